@@ -30,11 +30,13 @@ import net.java.btrace.api.extensions.ExtensionsRepositoryFactory;
 import net.java.btrace.api.wireio.AbstractCommand;
 import net.java.btrace.api.core.Lookup;
 import net.java.btrace.instr.ClassFilter;
+import net.java.btrace.instr.CommandInstantiatorGeneratorImpl;
 import net.java.btrace.instr.InstrumentUtils;
 import net.java.btrace.instr.Instrumentor;
 import net.java.btrace.org.objectweb.asm.ClassReader;
 import net.java.btrace.org.objectweb.asm.ClassWriter;
 import net.java.btrace.api.wireio.Channel;
+import net.java.btrace.api.wireio.CommandFactory;
 import net.java.btrace.wireio.commands.InstrumentCommand;
 import java.io.BufferedWriter;
 import java.io.File;
@@ -44,9 +46,6 @@ import java.io.PrintWriter;
 import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.IllegalClassFormatException;
 import java.lang.instrument.Instrumentation;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketTimeoutException;
 import java.security.ProtectionDomain;
 import java.util.ArrayList;
 import java.util.List;
@@ -64,6 +63,7 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.jar.JarFile;
 import net.java.btrace.api.core.ServiceProvider;
 import net.java.btrace.api.extensions.BTraceExtension;
@@ -73,6 +73,7 @@ import net.java.btrace.api.server.Session;
 import net.java.btrace.api.wireio.ResponseHandler;
 import net.java.btrace.instr.ExtensionRuntimeProcessor;
 import net.java.btrace.server.wireio.LocalChannel;
+import net.java.btrace.server.wireio.NioTransport;
 import net.java.btrace.server.wireio.ServerChannel;
 import net.java.btrace.spi.server.ServerImpl;
 import net.java.btrace.util.BTraceThreadFactory;
@@ -108,9 +109,13 @@ final public class BTraceServer implements ServerImpl {
         Instrumentor.class.getClass();
         ClassReader.class.getClass();
         ClassWriter.class.getClass();
+        // commands are created by generated instantiators rather than via reflection
+        CommandFactory.setInstantiatorGenerator(new CommandInstantiatorGeneratorImpl());
     }
 
     final private static ExecutorService localClientProcessor = Executors.newCachedThreadPool(new BTraceThreadFactory("BTrace Local Client"));
+    final private static ExecutorService handshakeProcessor = Executors.newCachedThreadPool(new BTraceThreadFactory("BTrace Handshake"));
+    final private AtomicInteger pendingHandshakes = new AtomicInteger(0);
 
     private Queue<ResponseHandler<Boolean>> stateReqQueue = new ConcurrentLinkedQueue<ResponseHandler<Boolean>>();
 
@@ -280,8 +285,8 @@ final public class BTraceServer implements ServerImpl {
         if (traceToStdOut) {
             traceWriter = new PrintWriter(System.out);
         } else {
-            if (fileRollMilliseconds != -1) {
-                traceWriter = new PrintWriter(new BufferedWriter(TraceOutputWriter.rollingFileWriter(new File(scriptOutputFile), 100, fileRollMilliseconds, TimeUnit.MILLISECONDS)));
+            if (fileRollMilliseconds != -1 || currentSettings.fileRollBytes != -1) {
+                traceWriter = new PrintWriter(new BufferedWriter(TraceOutputWriter.rollingFileWriter(new File(scriptOutputFile), 100, currentSettings.fileRollBytes, fileRollMilliseconds, TimeUnit.MILLISECONDS, currentSettings.fileRollCompress)));
             } else {
                 traceWriter = new PrintWriter(new BufferedWriter(TraceOutputWriter.fileWriter(new File(scriptOutputFile))));
             }
@@ -320,8 +325,7 @@ final public class BTraceServer implements ServerImpl {
     }
 
     private void startSocketServer(final int port) throws IOException {
-        final ServerSocket ss = new ServerSocket(port);
-        ss.setSoTimeout(1000);
+        final NioTransport transport = NioTransport.open(port);
 
         final Thread shutdownThread = new Thread(new Runnable() {
             @Override
@@ -332,43 +336,47 @@ final public class BTraceServer implements ServerImpl {
 
         Runtime.getRuntime().addShutdownHook(shutdownThread);
 
-        new Thread(new Runnable() {
-
+        running = true;
+        System.setProperty(Server.BTRACE_PORT_KEY, String.valueOf(port));
+        BTraceLogger.debugPrint("wating for client");
+        transport.start(new NioTransport.Listener() {
             @Override
-            public void run() {
-                running = true;
-                boolean wasTimeout = false;
-                System.setProperty(Server.BTRACE_PORT_KEY, String.valueOf(port));
-                while (running) {
-                    try {
-                        while (!stateReqQueue.isEmpty()) {
-                            ResponseHandler<Boolean> r = stateReqQueue.poll();
-                            if (r != null) {
-                                r.setResponse(running);
+            public void accepted(final java.nio.channels.SocketChannel sc) {
+                pendingHandshakes.incrementAndGet();
+                handshakeProcessor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            Channel ch = ServerChannel.open(sc, getExtensionRepository(), transport);
+                            if (ch != null) {
+                                addServerSession(ch);
                             }
+                        } catch (IOException e) {
+                            BTraceLogger.debugPrint(e);
+                        } finally {
+                            pendingHandshakes.decrementAndGet();
                         }
-                        if (!wasTimeout) {
-                            BTraceLogger.debugPrint("wating for client");
-                        }
-                        final Socket s = ss.accept();
-                        wasTimeout = false;
-                        BTraceLogger.debugPrint("client accepted");
-                        Channel ch = ServerChannel.open(s, getExtensionRepository());
-                        addServerSession(ch);
-                    } catch (SocketTimeoutException e) {
-                        wasTimeout = true;
-                        running = !sessions.isEmpty();
-                    } catch (IOException e) {
-                        running = false;
+                    }
+                });
+            }
+
+            @Override
+            public boolean idle() {
+                while (!stateReqQueue.isEmpty()) {
+                    ResponseHandler<Boolean> r = stateReqQueue.poll();
+                    if (r != null) {
+                        r.setResponse(running);
                     }
                 }
+                running = !sessions.isEmpty() || pendingHandshakes.get() > 0;
+                return running;
+            }
+
+            @Override
+            public void stopped() {
+                running = false;
                 BTraceLogger.debugPrint("Leaving BTrace Socket Server");
-                try {
-                    System.getProperties().remove(Server.BTRACE_PORT_KEY);
-                    ss.close();
-                } catch (IOException e) {
-                    BTraceLogger.debugPrint(e);
-                }
+                System.getProperties().remove(Server.BTRACE_PORT_KEY);
                 try {
                     instr.removeTransformer(extensionTransformer);
                     Runtime.getRuntime().removeShutdownHook(shutdownThread);
@@ -376,7 +384,7 @@ final public class BTraceServer implements ServerImpl {
                     // trying to remove shutdown hook while the shutdown is in progress
                 }
             }
-        }, "BTrace Socket Server").start();
+        });
     }
 
     private void startProvidedScripts(Server.Settings settings) {
@@ -469,7 +477,9 @@ final public class BTraceServer implements ServerImpl {
     }
 
     private SessionImpl addServerSession(Channel ch, final CountDownLatch initLatch) throws IOException {
-        SessionImpl session = new SessionImpl(ch, getExtensionRepository(), getInstrumentation());
+        SessionImpl session = currentSettings != null ?
+                                new SessionImpl(ch, getExtensionRepository(), getInstrumentation(), currentSettings) :
+                                new SessionImpl(ch, getExtensionRepository(), getInstrumentation());
         sessions.add(session);
         session.addObserver(new Observer() {
             @Override
@@ -0,0 +1,446 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package net.java.btrace.server;
+
+import net.java.btrace.api.core.BTraceLogger;
+import net.java.btrace.instr.Instrumentor;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * An optional on-disk cache of the instrumented class bytes shared by
+ * all the sessions and agent restarts.
+ * <p>
+ * An entry is keyed by the SHA-1 digest of the agent build, the preprocessed
+ * trace class and the original bytes of the target class. Entries are stored
+ * one per file, named by the key, and read back by mapping the file. An
+ * in-memory index kept in the access order provides the lookups and the LRU
+ * eviction once the total size exceeds the configured cap.
+ * <p>
+ * Any entry failing the validation is deleted and treated as a miss so the
+ * class gets instrumented afresh.
+ * <p>
+ * The cache is enabled by setting the <b>btrace.cache.dir</b> system property.
+ * The size cap is set by <b>btrace.cache.maxSize</b> (in bytes, 64MB by default).
+ *
+ * @author Jaroslav Bachorik
+ */
+final class InstrumentationCache {
+    final private static String DIR_KEY = "btrace.cache.dir"; // NOI18N
+    final private static String SIZE_KEY = "btrace.cache.maxSize"; // NOI18N
+    final private static long DEFAULT_SIZE = 64L * 1024 * 1024;
+
+    final private static String SUFFIX = ".bci"; // NOI18N
+    final private static int MAGIC = 0x42544349; // BTCI
+    final private static int FORMAT = 1;
+    // magic, format, flags, length, crc
+    final private static int HEADER_SIZE = 24;
+    final private static int FLAG_MATCHED = 1;
+
+    final private static char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static class Singleton {
+        final private static InstrumentationCache INSTANCE = create();
+    }
+
+    /**
+     * An instrumented class retrieved from the cache
+     */
+    static final class Entry {
+        final byte[] code;
+        final boolean matched;
+
+        private Entry(byte[] code, boolean matched) {
+            this.code = code;
+            this.matched = matched;
+        }
+    }
+
+    /**
+     * Computes the cache keys for one trace class
+     */
+    static final class Scope {
+        final private MessageDigest base;
+
+        private Scope(MessageDigest base) {
+            this.base = base;
+        }
+
+        /**
+         * @param target The original target class bytes
+         * @param superTypes The super types the instrumentation depends on; may be <b>NULL</b>
+         * @return The cache key
+         */
+        String key(byte[] target, Collection<String> superTypes) {
+            MessageDigest md;
+            try {
+                md = (MessageDigest)base.clone();
+            } catch (CloneNotSupportedException e) {
+                return null;
+            }
+            md.update(target);
+            if (superTypes != null) {
+                String[] sorted = superTypes.toArray(new String[superTypes.size()]);
+                Arrays.sort(sorted);
+                for (String st : sorted) {
+                    md.update((byte)0);
+                    updateString(md, st);
+                }
+            }
+            return toHex(md.digest());
+        }
+    }
+
+    // the system properties read by the instrumentor; they change the generated code
+    final private static String[] INSTRUMENTATION_SWITCHES = new String[] {
+        "btrace.timer.sampled" // NOI18N
+    };
+
+    final private File dir;
+    final private long maxSize;
+    final private String fingerprint;
+    // key -> entry file size; kept in the access order
+    final private LinkedHashMap<String, Long> index = new LinkedHashMap<String, Long>(256, 0.75f, true);
+    private long size;
+
+    private InstrumentationCache(File dir, long maxSize, String fingerprint) {
+        this.dir = dir;
+        this.maxSize = maxSize;
+        this.fingerprint = fingerprint;
+    }
+
+    /**
+     * @return The shared cache instance or <b>NULL</b> if the cache is disabled
+     */
+    static InstrumentationCache getDefault() {
+        return Singleton.INSTANCE;
+    }
+
+    private static InstrumentationCache create() {
+        String path = System.getProperty(DIR_KEY);
+        if (path == null || path.isEmpty()) {
+            return null;
+        }
+        File dir = new File(path);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            BTraceLogger.debugPrint("can not create the instrumentation cache in " + dir); // NOI18N
+            return null;
+        }
+        if (!dir.canWrite()) {
+            BTraceLogger.debugPrint("the instrumentation cache " + dir + " is not writable"); // NOI18N
+            return null;
+        }
+        try {
+            MessageDigest.getInstance("SHA-1"); // NOI18N
+        } catch (NoSuchAlgorithmException e) {
+            BTraceLogger.debugPrint(e);
+            return null;
+        }
+        long maxSize = DEFAULT_SIZE;
+        try {
+            maxSize = Long.parseLong(System.getProperty(SIZE_KEY, String.valueOf(DEFAULT_SIZE)));
+        } catch (NumberFormatException e) {
+            BTraceLogger.debugPrint("invalid " + SIZE_KEY + "; using " + DEFAULT_SIZE); // NOI18N
+        }
+        InstrumentationCache cache = open(dir, maxSize, fingerprint());
+        BTraceLogger.debugPrint("using the instrumentation cache in " + dir + " (" + cache.index.size() + " entries)"); // NOI18N
+        return cache;
+    }
+
+    /**
+     * Opens the cache in an existing directory
+     * @param dir The cache directory
+     * @param maxSize The size cap in bytes
+     * @param fingerprint The agent build identification
+     * @return The cache with the index of the entries already present
+     */
+    static InstrumentationCache open(File dir, long maxSize, String fingerprint) {
+        InstrumentationCache cache = new InstrumentationCache(dir, maxSize, fingerprint);
+        cache.load();
+        return cache;
+    }
+
+    /**
+     * Identifies the agent build; the instrumentation may differ between
+     * builds sharing the same version
+     */
+    private static String fingerprint() {
+        StringBuilder sb = new StringBuilder();
+        Package p = Instrumentor.class.getPackage();
+        if (p != null && p.getImplementationVersion() != null) {
+            sb.append(p.getImplementationVersion());
+        }
+        URL u = Instrumentor.class.getResource("Instrumentor.class"); // NOI18N
+        if (u != null) {
+            String path = u.getPath();
+            int idx = path.indexOf("!/"); // NOI18N
+            if (idx > -1) {
+                path = path.substring(0, idx);
+            }
+            if (path.startsWith("file:")) { // NOI18N
+                path = path.substring(5);
+            }
+            File f = new File(path);
+            sb.append(';').append(path).append(';').append(f.length()).append(';').append(f.lastModified());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Starts computing keys for the given trace class
+     * @param traceName The trace class name
+     * @param traceCode The preprocessed trace class bytes
+     * @return The key scope
+     */
+    Scope scope(String traceName, byte[] traceCode) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1"); // NOI18N
+            updateString(md, fingerprint);
+            for (String sw : INSTRUMENTATION_SWITCHES) {
+                md.update((byte)0);
+                updateString(md, sw + "=" + Boolean.getBoolean(sw)); // NOI18N
+            }
+            md.update((byte)0);
+            updateString(md, traceName);
+            md.update((byte)0);
+            md.update(traceCode);
+            return new Scope(md);
+        } catch (NoSuchAlgorithmException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param key The cache key
+     * @return The cached entry or <b>NULL</b> if there is no valid entry for the key
+     */
+    Entry get(String key) {
+        synchronized(index) {
+            if (index.get(key) == null) {
+                return null;
+            }
+        }
+        File f = new File(dir, key + SUFFIX);
+        Entry e = read(f);
+        if (e == null) {
+            BTraceLogger.debugPrint("discarding invalid instrumentation cache entry " + f); // NOI18N
+            remove(key);
+            f.delete();
+            return null;
+        }
+        f.setLastModified(System.currentTimeMillis());
+        return e;
+    }
+
+    /**
+     * Stores the instrumented class bytes
+     * @param key The cache key
+     * @param code The instrumented class bytes
+     * @param matched Whether any probe matched the class
+     */
+    void put(String key, byte[] code, boolean matched) {
+        long entrySize = HEADER_SIZE + code.length;
+        if (entrySize > maxSize) {
+            return;
+        }
+        synchronized(index) {
+            if (index.containsKey(key)) {
+                return;
+            }
+        }
+        File f = new File(dir, key + SUFFIX);
+        File tmp = null;
+        try {
+            tmp = File.createTempFile(key, ".tmp", dir); // NOI18N
+            CRC32 crc = new CRC32();
+            crc.update(code);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(FORMAT).putInt(matched ? FLAG_MATCHED : 0).putInt(code.length).putLong(crc.getValue());
+            header.flip();
+            RandomAccessFile raf = new RandomAccessFile(tmp, "rw"); // NOI18N
+            try {
+                FileChannel ch = raf.getChannel();
+                ByteBuffer body = ByteBuffer.wrap(code);
+                while (header.hasRemaining() || body.hasRemaining()) {
+                    ch.write(new ByteBuffer[]{header, body});
+                }
+            } finally {
+                raf.close();
+            }
+            if (!tmp.renameTo(f)) {
+                // another agent may have stored the same entry meanwhile
+                tmp.delete();
+                if (!f.isFile()) {
+                    return;
+                }
+            }
+            tmp = null;
+        } catch (IOException e) {
+            BTraceLogger.debugPrint(e);
+            return;
+        } finally {
+            if (tmp != null) {
+                tmp.delete();
+            }
+        }
+        List<String> evicted = new ArrayList<String>();
+        synchronized(index) {
+            Long old = index.put(key, entrySize);
+            size += entrySize - (old != null ? old : 0L);
+            Iterator<Map.Entry<String, Long>> iter = index.entrySet().iterator();
+            while (size > maxSize && iter.hasNext()) {
+                Map.Entry<String, Long> me = iter.next();
+                if (me.getKey().equals(key)) {
+                    continue;
+                }
+                size -= me.getValue();
+                evicted.add(me.getKey());
+                iter.remove();
+            }
+        }
+        for (String k : evicted) {
+            new File(dir, k + SUFFIX).delete();
+        }
+    }
+
+    private void remove(String key) {
+        synchronized(index) {
+            Long s = index.remove(key);
+            if (s != null) {
+                size -= s;
+            }
+        }
+    }
+
+    private void load() {
+        File[] files = dir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File f) {
+                return f.isFile() && f.getName().endsWith(SUFFIX);
+            }
+        });
+        if (files == null) {
+            return;
+        }
+        final long[] stamps = new long[files.length];
+        Integer[] order = new Integer[files.length];
+        for (int i = 0; i < files.length; i++) {
+            stamps[i] = files[i].lastModified();
+            order[i] = i;
+        }
+        // the least recently used entries go first
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                return stamps[o1] < stamps[o2] ? -1 : (stamps[o1] == stamps[o2] ? 0 : 1);
+            }
+        });
+        synchronized(index) {
+            for (Integer i : order) {
+                File f = files[i];
+                String name = f.getName();
+                index.put(name.substring(0, name.length() - SUFFIX.length()), f.length());
+                size += f.length();
+            }
+            Iterator<Map.Entry<String, Long>> iter = index.entrySet().iterator();
+            while (size > maxSize && iter.hasNext()) {
+                Map.Entry<String, Long> me = iter.next();
+                size -= me.getValue();
+                new File(dir, me.getKey() + SUFFIX).delete();
+                iter.remove();
+            }
+        }
+    }
+
+    private static Entry read(File f) {
+        try {
+            RandomAccessFile raf = new RandomAccessFile(f, "r"); // NOI18N
+            try {
+                FileChannel ch = raf.getChannel();
+                long len = ch.size();
+                if (len < HEADER_SIZE || len > Integer.MAX_VALUE) {
+                    return null;
+                }
+                MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, len);
+                if (buf.getInt() != MAGIC || buf.getInt() != FORMAT) {
+                    return null;
+                }
+                int flags = buf.getInt();
+                int codeLen = buf.getInt();
+                long checksum = buf.getLong();
+                if (codeLen != len - HEADER_SIZE) {
+                    return null;
+                }
+                byte[] code = new byte[codeLen];
+                buf.get(code);
+                CRC32 crc = new CRC32();
+                crc.update(code);
+                if (crc.getValue() != checksum) {
+                    return null;
+                }
+                return new Entry(code, (flags & FLAG_MATCHED) != 0);
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            BTraceLogger.debugPrint(e);
+            return null;
+        }
+    }
+
+    private static void updateString(MessageDigest md, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            md.update((byte)(c >>> 8));
+            md.update((byte)c);
+        }
+    }
+
+    private static String toHex(byte[] data) {
+        char[] chars = new char[data.length * 2];
+        for (int i = 0; i < data.length; i++) {
+            chars[i * 2] = HEX[(data[i] >> 4) & 0x0f];
+            chars[i * 2 + 1] = HEX[data[i] & 0x0f];
+        }
+        return new String(chars);
+    }
+}
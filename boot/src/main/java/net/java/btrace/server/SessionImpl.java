@@ -24,6 +24,8 @@
  */
 package net.java.btrace.server;
 
+import net.java.btrace.annotations.Clock;
+import net.java.btrace.api.server.Server;
 import net.java.btrace.api.server.Session;
 import net.java.btrace.runtime.BTraceRuntime;
 import net.java.btrace.api.core.BTraceLogger;
@@ -32,6 +34,7 @@ import net.java.btrace.api.wireio.AbstractCommand;
 import net.java.btrace.api.core.Lookup;
 import net.java.btrace.api.wireio.Response;
 import net.java.btrace.instr.ClassFilter;
+import net.java.btrace.instr.ClassHierarchy;
 import net.java.btrace.instr.ClassRenamer;
 import net.java.btrace.instr.ClinitInjector;
 import net.java.btrace.instr.InstrumentUtils;
@@ -50,6 +53,7 @@ import net.java.btrace.api.server.Session.State;
 import net.java.btrace.wireio.commands.ErrorCommand;
 import net.java.btrace.wireio.commands.ExitCommand;
 import net.java.btrace.wireio.commands.RetransformClassNotification;
+import net.java.btrace.wireio.commands.RetransformationStartNotification;
 import java.io.EOFException;
 import java.io.IOException;
 import java.lang.instrument.ClassFileTransformer;
@@ -63,13 +67,20 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Observer;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 import net.java.btrace.api.extensions.ExtensionsRepository;
 import net.java.btrace.api.server.ShutdownHandler;
 import net.java.btrace.instr.ProbeDescriptor;
+import net.java.btrace.server.wireio.NioServerChannel;
 import net.java.btrace.util.BTraceThreadFactory;
 
 /**
@@ -79,7 +90,19 @@ import net.java.btrace.util.BTraceThreadFactory;
 final public class SessionImpl extends Session implements ShutdownHandler {
 
     final private static ExecutorService handlerPool = Executors.newCachedThreadPool(new BTraceThreadFactory());
-    private Future<?> cmdHandler;
+    final private static int RETRANSFORM_CHUNK = Integer.getInteger("btrace.retransform.chunkSize", 500);
+    final private static long RETRANSFORM_PAUSE = Long.getLong("btrace.retransform.chunkPause", 10L);
+    // the number of loaded classes checked by one filtering task
+    final private static int FILTER_SLICE = 2048;
+    final private static ThreadPoolExecutor filterPool;
+
+    static {
+        int cpus = Runtime.getRuntime().availableProcessors();
+        filterPool = new ThreadPoolExecutor(cpus, cpus, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new BTraceThreadFactory("BTrace Class Filter"));
+        filterPool.allowCoreThreadTimeOut(true);
+    }
+    private volatile Future<?> cmdHandler;
+    final private AtomicBoolean cleanedUp = new AtomicBoolean(false);
 
     private AtomicReference<State> state = new AtomicReference<State>(State.DISCONNECTED);
     private Lookup lookup = new Lookup();
@@ -88,10 +111,11 @@ final public class SessionImpl extends Session implements ShutdownHandler {
     private volatile List<OnMethod> onMethods;
     private volatile List<OnProbe> onProbes;
     private volatile boolean hasSubclassChecks;
-    private volatile ClassFilter filter;
+    volatile ClassFilter filter;
     private volatile boolean skipRetransforms;
     private volatile boolean trackRetransforms;
     private volatile byte[] btraceCode;
+    private volatile InstrumentationCache.Scope cacheScope;
     private BTraceRuntime runtime;
     private Class btraceClazz;
     final private Set<String> instrumentedClasses = new HashSet<String>();
@@ -102,6 +126,10 @@ final public class SessionImpl extends Session implements ShutdownHandler {
             if (!hasSubclassChecks || classBeingRedefined != null || isBTraceClass(cname) || isSensitiveClass(cname)) {
                 return null;
             }
+            if (ClassHierarchy.getDefault().isResolved(loader, cname)) {
+                // the super type probes have already been matched at load time
+                return null;
+            }
 
             if (!skipRetransforms) {
                 BTraceLogger.debugPrint("injecting <clinit> for " + cname); // NOI18N
@@ -140,18 +168,20 @@ final public class SessionImpl extends Session implements ShutdownHandler {
                 if (classBeingRedefined != null) {
                     // class already defined; retransforming
                     if (!skipRetransforms && filter.isCandidate(classBeingRedefined)) {
-                        return doTransform(classBeingRedefined, cname, classfileBuffer);
+                        return doTransform(classBeingRedefined, loader, cname, classfileBuffer);
                     } else {
                         BTraceLogger.debugPrint("client " + className + ": skipping transform for " + cname); // NOi18N
                     }
                 } else {
                     // class not yet defined
-                    if (!hasSubclassChecks) {
-                        if (filter.isCandidate(classfileBuffer)) {
-                            return doTransform(classBeingRedefined, cname, classfileBuffer);
-                        } else {
-                            BTraceLogger.debugPrint("client " + className + ": skipping transform for " + cname); // NOI18N
-                        }
+                    ClassReader cr = new ClassReader(classfileBuffer);
+                    if (hasSubclassChecks) {
+                        ClassHierarchy.getDefault().add(loader, cr);
+                    }
+                    if (filter.isCandidate(loader, cr)) {
+                        return doTransform(classBeingRedefined, loader, cname, classfileBuffer);
+                    } else {
+                        BTraceLogger.debugPrint("client " + className + ": skipping transform for " + cname); // NOI18N
                     }
                 }
 
@@ -173,6 +203,8 @@ final public class SessionImpl extends Session implements ShutdownHandler {
     SessionImpl(Object... ctx) throws IOException {
         lookup.add(this);
         lookup.add(ctx);
+        Server.Settings settings = lookup.lookup(Server.Settings.class);
+        trackRetransforms = settings != null && settings.trackRetransforms;
     }
 
     State getState() {
@@ -227,6 +259,10 @@ final public class SessionImpl extends Session implements ShutdownHandler {
 
             BTraceLogger.dumpClass(className + "_proc", traceCode); // NOI18N
             SessionImpl.this.btraceCode = traceCode;
+            InstrumentationCache cache = InstrumentationCache.getDefault();
+            if (cache != null && isCacheable()) {
+                SessionImpl.this.cacheScope = cache.scope(className, traceCode);
+            }
             BTraceLogger.debugPrint("creating BTraceRuntime instance for " + className); // NOI18N
             SessionImpl.this.runtime = new BTraceRuntime(this, className, args, getChannel(), instr, lookup.lookup(ExtensionsRepository.class));
             BTraceLogger.debugPrint("created BTraceRuntime instance for " + className); // NOI18N
@@ -264,18 +300,13 @@ final public class SessionImpl extends Session implements ShutdownHandler {
                     instr.addTransformer(traceTransformer, true);
                     instr.addTransformer(clInitTransformer, false);
                 }
-                List<Class> clzs = new ArrayList<Class>();
-                for (Class clz : instr.getAllLoadedClasses()) {
-                    if (instr.isModifiableClass(clz)) {
-                        if (clz.getAnnotation(BTraceExtension.class) != null || filter.isCandidate(clz)) {
-                            clzs.add(clz);
-                        }
-                    }
-                }
-                instr.retransformClasses(clzs.toArray(new Class[clzs.size()]));
+                retransform(instr, findCandidates(instr, instr.getAllLoadedClasses()));
             }
         } catch (UnmodifiableClassException e) {
             capturedError = e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            capturedError = e;
         } catch (Throwable e) {
             e.printStackTrace();
         } finally {
@@ -293,6 +324,96 @@ final public class SessionImpl extends Session implements ShutdownHandler {
         return false;
     }
 
+    /**
+     * Filters the loaded classes in parallel; the class order is retained
+     */
+    List<Class> findCandidates(final Instrumentation instr, final Class[] classes) throws InterruptedException {
+        List<Future<List<Class>>> slices = new ArrayList<Future<List<Class>>>();
+        for (int i = 0; i < classes.length; i += FILTER_SLICE) {
+            final int from = i;
+            final int to = Math.min(classes.length, i + FILTER_SLICE);
+            Callable<List<Class>> task = new Callable<List<Class>>() {
+                public List<Class> call() {
+                    return findCandidates(instr, classes, from, to);
+                }
+            };
+            if (to == classes.length && slices.isEmpty()) {
+                // not worth the hand-off
+                return findCandidates(instr, classes, from, to);
+            }
+            slices.add(filterPool.submit(task));
+        }
+        List<Class> candidates = new ArrayList<Class>();
+        try {
+            for (Future<List<Class>> slice : slices) {
+                candidates.addAll(slice.get());
+            }
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            for (Future<List<Class>> slice : slices) {
+                slice.cancel(true);
+            }
+        }
+        return candidates;
+    }
+
+    List<Class> findCandidates(Instrumentation instr, Class[] classes, int from, int to) {
+        List<Class> candidates = new ArrayList<Class>();
+        for (int i = from; i < to; i++) {
+            Class clz = classes[i];
+            if (instr.isModifiableClass(clz)) {
+                if (clz.getAnnotation(BTraceExtension.class) != null || filter.isCandidate(clz)) {
+                    candidates.add(clz);
+                }
+            }
+        }
+        return candidates;
+    }
+
+    /**
+     * Retransforms the classes in chunks of <b>btrace.retransform.chunkSize</b> classes,
+     * pausing for <b>btrace.retransform.chunkPause</b> ms in between so that the application
+     * threads are not held in the safepoint for too long
+     */
+    private void retransform(Instrumentation instr, final List<Class> classes) throws UnmodifiableClassException, InterruptedException {
+        retransform(instr, classes, RETRANSFORM_CHUNK);
+    }
+
+    void retransform(Instrumentation instr, final List<Class> classes, int chunkSize) throws UnmodifiableClassException, InterruptedException {
+        if (classes.isEmpty()) {
+            return;
+        }
+        BTraceLogger.debugPrint("retransforming " + classes.size() + " classes"); // NOI18N
+        if (trackRetransforms) {
+            try {
+                getChannel().sendCommand(RetransformationStartNotification.class, new AbstractCommand.Initializer<RetransformationStartNotification>() {
+
+                    @Override
+                    public void init(RetransformationStartNotification cmd) {
+                        cmd.setNumClasses(classes.size());
+                    }
+                });
+            } catch (IOException ex) {
+                BTraceLogger.debugPrint(ex);
+            }
+        }
+        int chunk = chunkSize > 0 ? chunkSize : classes.size();
+        for (int i = 0; i < classes.size(); i += chunk) {
+            if (i > 0) {
+                if (getState() != State.CONNECTED) {
+                    BTraceLogger.debugPrint("session closed; retransformation stopped"); // NOI18N
+                    return;
+                }
+                if (RETRANSFORM_PAUSE > 0) {
+                    Thread.sleep(RETRANSFORM_PAUSE);
+                }
+            }
+            List<Class> part = classes.subList(i, Math.min(classes.size(), i + chunk));
+            instr.retransformClasses(part.toArray(new Class[part.size()]));
+        }
+    }
+
     @Override
     public void shutdown(final int exitCode) {
         if (setState(State.CONNECTED, State.DISCONNECTING)) {
@@ -336,7 +457,10 @@ final public class SessionImpl extends Session implements ShutdownHandler {
     }
 
     private void cleanup() {
-        if (cmdHandler.cancel(true)) {
+        if (cleanedUp.compareAndSet(false, true)) {
+            if (cmdHandler != null) {
+                cmdHandler.cancel(true);
+            }
             Instrumentation instr = getInstrumentation();
             if (shouldAddTransformer()) {
                 instr.removeTransformer(traceTransformer);
@@ -365,7 +489,7 @@ final public class SessionImpl extends Session implements ShutdownHandler {
         }
     }
 
-    private void setState(State newState) {
+    void setState(State newState) {
         State oldState = state.getAndSet(newState);
         setChanged();
         notifyObservers(oldState);
@@ -382,6 +506,26 @@ final public class SessionImpl extends Session implements ShutdownHandler {
 
     private void startCommandHandler() {
         setState(State.CONNECTED);
+        if (getChannel() instanceof NioServerChannel) {
+            // no dedicated thread; the commands are dispatched to the handler pool as they arrive
+            final Channel ch = getChannel();
+            ((NioServerChannel)ch).dispatch(handlerPool, new NioServerChannel.CommandHandler() {
+                @Override
+                public void handle(AbstractCommand cmd) {
+                    BTraceLogger.debugPrint("Command: " + cmd);
+                    cmd.execute(lookup);
+                }
+
+                @Override
+                public void closed() {
+                    if (getState() == State.CONNECTED) {
+                        detach();
+                        ch.close();
+                    }
+                }
+            });
+            return;
+        }
         cmdHandler = handlerPool.submit(new Runnable() {
 
             public void run() {
@@ -434,7 +578,7 @@ final public class SessionImpl extends Session implements ShutdownHandler {
         onProbes = verifier.getOnProbes();
         if (onProbes != null && !onProbes.isEmpty()) {
             // map @OnProbe's to @OnMethod's and store
-            onMethods.addAll(mapOnProbes(onProbes));
+            onMethods.addAll(mapOnProbes(onProbes, verifier.getClock()));
         }
         for (OnMethod om : onMethods) {
             if (om.getClazz().startsWith("+")) {
@@ -448,7 +592,24 @@ final public class SessionImpl extends Session implements ShutdownHandler {
      * Maps a list of @OnProbe's to a list @OnMethod's using probe descriptor
      * XML files.
      */
-    private static List<OnMethod> mapOnProbes(List<OnProbe> onProbes) {
+    /**
+     * The instrumented code may be cached only if it does not depend on any per-session state
+     */
+    private boolean isCacheable() {
+        // the probe descriptors are not part of the cache key
+        if (onProbes != null && !onProbes.isEmpty()) {
+            return false;
+        }
+        // the sampler ids are assigned by the current JVM and baked into the instrumented code
+        for (OnMethod om : onMethods) {
+            if (om.isSampled()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static List<OnMethod> mapOnProbes(List<OnProbe> onProbes, Clock clock) {
         List<OnMethod> res = new ArrayList<OnMethod>();
         for (OnProbe op : onProbes) {
             String ns = op.getNamespace();
@@ -479,6 +640,7 @@ final public class SessionImpl extends Session implements ShutdownHandler {
                 omn.copyFrom(om);
                 omn.setTargetName(op.getTargetName());
                 omn.setTargetDescriptor(op.getTargetDescriptor());
+                omn.setClock(clock);
                 res.add(omn);
             }
         }
@@ -545,7 +707,7 @@ final public class SessionImpl extends Session implements ShutdownHandler {
                 name.equals("java/lang/VerifyError"); // NOI18N
     }
 
-    private byte[] doTransform(Class<?> classBeingRedefined, final String cname, byte[] classfileBuffer) {
+    private byte[] doTransform(Class<?> classBeingRedefined, ClassLoader loader, final String cname, byte[] classfileBuffer) {
         BTraceLogger.debugPrint("client " + className + ": instrumenting " + cname); // NOI18N
         if (trackRetransforms) {
             try {
@@ -561,17 +723,37 @@ final public class SessionImpl extends Session implements ShutdownHandler {
             }
         }
 //        classes.add(new WeakReference<Class<?>>(classBeingRedefined));
-        return instrument(classBeingRedefined, cname, classfileBuffer);
+        return instrument(classBeingRedefined, loader, cname, classfileBuffer);
     }
 
-    private byte[] instrument(Class clazz, String cname, byte[] target) {
+    private byte[] instrument(Class clazz, ClassLoader loader, String cname, byte[] target) {
+        InstrumentationCache.Scope scope = cacheScope;
+        String cacheKey = null;
+        if (scope != null) {
+            Set<String> superTypes = null;
+            if (hasSubclassChecks) {
+                // the +SuperType probes depend on the class hierarchy
+                superTypes = clazz != null ? ClassHierarchy.getDefault().getSuperTypes(clazz) : ClassHierarchy.getDefault().getSuperTypes(loader, cname);
+            }
+            cacheKey = scope.key(target, superTypes);
+            InstrumentationCache.Entry cached = cacheKey != null ? InstrumentationCache.getDefault().get(cacheKey) : null;
+            if (cached != null) {
+                if (cached.matched) {
+                    instrumentedClasses.add(cname.replace('/', '.'));
+                }
+                BTraceLogger.dumpClass(cname, cached.code);
+                return cached.code;
+            }
+        }
         byte[] instrumentedCode;
+        boolean matched;
         try {
             ClassWriter writer = InstrumentUtils.newClassWriter(target);
             ClassReader reader = new ClassReader(target);
-            Instrumentor i = new Instrumentor(clazz, className, btraceCode, onMethods, writer);
+            Instrumentor i = new Instrumentor(clazz, loader, className, btraceCode, onMethods, filter.getMatcher(), writer);
             InstrumentUtils.accept(reader, i);
-            if (!i.hasMatch()) {
+            matched = i.hasMatch();
+            if (!matched) {
                 BTraceLogger.debugPrint("*WARNING* No method was matched for class " + cname); // NOI18N
             } else {
                 instrumentedClasses.add(cname.replace('/', '.'));
@@ -581,6 +763,9 @@ final public class SessionImpl extends Session implements ShutdownHandler {
             BTraceLogger.debugPrint(th);
             return null;
         }
+        if (cacheKey != null) {
+            InstrumentationCache.getDefault().put(cacheKey, instrumentedCode, matched);
+        }
         BTraceLogger.dumpClass(cname, instrumentedCode);
         return instrumentedCode;
     }
@@ -22,156 +22,336 @@
  * or visit www.oracle.com if you need additional information or have any
  * questions.
  */
-
 package net.java.btrace.server;
 
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.GZIPOutputStream;
 import net.java.btrace.api.core.BTraceLogger;
+import net.java.btrace.util.BTraceThreadFactory;
 
 /**
  * This class represents various strategies available for dumping BTrace
  * output to a file.
+ * <br/><br/>
+ * The written characters are encoded into a direct buffer which is handed
+ * over to a background thread once it is full or flushed; the background
+ * thread writes it through a {@linkplain FileChannel} while the producer
+ * continues with the second buffer. The output may be rolled over by size
+ * and/or time and the rolled segments may be gzipped by a separate thread.
  *
  * @author Jaroslav Bachorik
  */
 abstract public class TraceOutputWriter extends Writer {
-    static private class SimpleFileOutput extends TraceOutputWriter {
-        final private FileWriter delegate;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // the longest period the writer thread sleeps when there is nothing to write
+    private static final long IDLE_WAIT_MS = 1000L;
+    private static final int DEFAULT_MAX_ROLLS = 100;
 
-        public SimpleFileOutput(File output) throws IOException {
-            output.getCanonicalFile().getParentFile().mkdirs();
-            delegate = new FileWriter(output);
-        }
-        @Override
-        public void close() throws IOException {
-            delegate.close();
-        }
+    static private final class AsyncFileWriter extends TraceOutputWriter implements Runnable {
+        final private Object lock = new Object();
+        final private CharsetEncoder encoder = Charset.defaultCharset().newEncoder()
+                                                      .onMalformedInput(CodingErrorAction.REPLACE)
+                                                      .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        // an unpaired high surrogate left over from the previous write
+        final private CharBuffer carry = CharBuffer.allocate(2);
 
-        @Override
-        public void flush() throws IOException {
-            delegate.flush();
-        }
+        // @GuardedBy lock; exactly one of pending and spare is set at any time
+        private ByteBuffer active = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private ByteBuffer pending = null;
+        private ByteBuffer spare = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private boolean flushRequested = false;
+        private boolean closed = false;
+        private boolean finished = false;
+        private IOException failure = null;
 
-        @Override
-        public void write(char[] cbuf, int off, int len) throws IOException {
-            delegate.write(cbuf, off, len);
-        }
-    }
-
-    static abstract private class RollingFileWriter extends TraceOutputWriter {
-        final private ReentrantReadWriteLock writerLock = new ReentrantReadWriteLock();
-        // @GuardedBy writerLock
-        private FileWriter currentFileWriter;
-        private String path, baseName;
+        // accessed only by the writer thread
+        final private File output;
+        final private int maxRolls;
+        final private long rollBytes;
+        final private long rollMillis;
+        final private boolean compress;
+        private FileChannel channel;
+        private long segmentBytes = 0L;
+        private long segmentStart = System.currentTimeMillis();
         private int counter = 1;
-        private int maxRolls;
+        private ExecutorService compressor = null;
 
-        public RollingFileWriter(File output) throws IOException {
-            this(output, 5);
-        }
-        
-        public RollingFileWriter(File output, int maxRolls) throws IOException {
-            output.getParentFile().mkdirs();
-            currentFileWriter = new FileWriter(output);
-            path = output.getParentFile().getAbsolutePath();
-            baseName = output.getName();
+        AsyncFileWriter(File output, int maxRolls, long rollBytes, long rollMillis, boolean compress) throws IOException {
+            this.output = output.getCanonicalFile();
+            this.output.getParentFile().mkdirs();
             this.maxRolls = maxRolls;
+            this.rollBytes = rollBytes;
+            this.rollMillis = rollMillis;
+            this.compress = compress;
+            this.channel = new FileOutputStream(this.output).getChannel();
+
+            new BTraceThreadFactory("BTrace Trace Output Writer").newThread(this).start();
         }
 
         @Override
-        final public void close() throws IOException {
-            try {
-                writerLock.readLock().lock();
-                currentFileWriter.close();
-            } finally {
-                writerLock.readLock().unlock();
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            synchronized(lock) {
+                ensureOpen();
+                CharBuffer in = CharBuffer.wrap(cbuf, off, len);
+                if (carry.position() > 0 && in.hasRemaining()) {
+                    carry.put(in.get());
+                    carry.flip();
+                    encode(carry);
+                    carry.clear();
+                }
+                encode(in);
+                if (in.hasRemaining()) {
+                    carry.put(in);
+                }
             }
         }
 
         @Override
-        final public void flush() throws IOException {        	
-        	try {
-                writerLock.readLock().lock();
-                currentFileWriter.flush();
-            } finally {
-                writerLock.readLock().unlock();
-            }
-            
-            if (needsRoll()) {
-                nextWriter();
+        public void flush() throws IOException {
+            synchronized(lock) {
+                ensureOpen();
+                if (active.position() > 0) {
+                    if (pending == null) {
+                        swapBuffers();
+                    } else {
+                        // the writer thread will pick it up as soon as it is done
+                        flushRequested = true;
+                    }
+                }
             }
         }
 
         @Override
-        final public void write(char[] cbuf, int off, int len) throws IOException {
-            try {
-                writerLock.readLock().lock();
-                currentFileWriter.write(cbuf, off, len);
-            } finally {
-                writerLock.readLock().unlock();
+        public void close() throws IOException {
+            synchronized(lock) {
+                if (closed) return;
+                IOException encodingFailure = null;
+                try {
+                    finishEncoding();
+                } catch (IOException e) {
+                    encodingFailure = e;
+                }
+                closed = true;
+                lock.notifyAll();
+                try {
+                    while (!finished) {
+                        lock.wait();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+                if (failure != null) {
+                    throw failure;
+                }
+                if (encodingFailure != null) {
+                    throw encodingFailure;
+                }
             }
         }
 
-        private void nextWriter() {
+        public void run() {
             try {
-                writerLock.writeLock().lock();
-                currentFileWriter = getNextWriter();
-            } catch (IOException e) {
-                BTraceLogger.debugPrint(e);
+                while (true) {
+                    ByteBuffer buf = null;
+                    boolean done = false;
+                    synchronized(lock) {
+                        while (pending == null) {
+                            if (active.position() > 0 && (flushRequested || closed)) {
+                                flushRequested = false;
+                                swapBuffers();
+                                break;
+                            }
+                            if (closed) {
+                                done = true;
+                                break;
+                            }
+                            long wait = IDLE_WAIT_MS;
+                            if (rollMillis > 0 && segmentBytes > 0) {
+                                long left = segmentStart + rollMillis - System.currentTimeMillis();
+                                if (left <= 0) break;
+                                wait = Math.min(wait, left);
+                            }
+                            lock.wait(wait);
+                        }
+                        buf = pending;
+                    }
+                    if (buf != null) {
+                        try {
+                            while (buf.hasRemaining()) {
+                                segmentBytes += channel.write(buf);
+                            }
+                        } catch (IOException e) {
+                            fail(e);
+                        }
+                        synchronized(lock) {
+                            buf.clear();
+                            spare = buf;
+                            pending = null;
+                            lock.notifyAll();
+                        }
+                    }
+                    if (done) break;
+                    if (needsRoll()) {
+                        try {
+                            roll();
+                        } catch (IOException e) {
+                            fail(e);
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                fail(new InterruptedIOException());
             } finally {
-                writerLock.writeLock().unlock();
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    fail(e);
+                }
+                if (compressor != null) {
+                    // the rolled segments are complete once the writer is closed
+                    compressor.shutdown();
+                    try {
+                        compressor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException e) {
+                        fail(new InterruptedIOException());
+                    }
+                }
+                synchronized(lock) {
+                    finished = true;
+                    lock.notifyAll();
+                }
             }
         }
 
-        private FileWriter getNextWriter() throws IOException {
-        	currentFileWriter.close();
-        	File scriptOutputFile_renameFrom = new File(path + File.separator + baseName);
-        	File scriptOutputFile_renameTo = new File(path + File.separator + baseName + "." + (counter++));
-        	
-            if (scriptOutputFile_renameTo.exists()) {
-            	scriptOutputFile_renameTo.delete();
+        // @GuardedBy lock
+        private void encode(CharBuffer in) throws IOException {
+            while (true) {
+                CoderResult cr = encoder.encode(in, active, false);
+                if (cr.isOverflow()) {
+                    handOff();
+                } else if (cr.isUnderflow()) {
+                    return;
+                } else {
+                    cr.throwException();
+                }
             }
-            scriptOutputFile_renameFrom.renameTo(scriptOutputFile_renameTo);
-            scriptOutputFile_renameFrom = new File(path + File.separator + baseName);
-            if (counter > maxRolls) {
-                counter = 1;
+        }
+
+        // @GuardedBy lock
+        private void finishEncoding() throws IOException {
+            // an unpaired surrogate at the very end gets replaced
+            carry.flip();
+            CoderResult cr;
+            while ((cr = encoder.encode(carry, active, true)).isOverflow()) {
+                handOff();
+            }
+            carry.clear();
+            if (cr.isError()) {
+                cr.throwException();
+            }
+            while (encoder.flush(active).isOverflow()) {
+                handOff();
             }
-            return new FileWriter(scriptOutputFile_renameFrom);
         }
 
-        abstract protected boolean needsRoll();
-    }
+        // @GuardedBy lock
+        private void handOff() throws IOException {
+            try {
+                while (pending != null) {
+                    ensureOpen();
+                    lock.wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            swapBuffers();
+        }
 
-    static private class TimeBasedRollingFileWriter extends RollingFileWriter {
-        private long lastTimeStamp = System.currentTimeMillis();
-        private long interval;
-        private TimeUnit unit;
+        // @GuardedBy lock
+        private void swapBuffers() {
+            active.flip();
+            pending = active;
+            active = spare;
+            spare = null;
+            lock.notifyAll();
+        }
 
-        public TimeBasedRollingFileWriter(File output, int maxRolls, long interval, TimeUnit unit) throws IOException {
-            super(output, maxRolls);
-            this.interval = interval;
-            this.unit = unit;
+        // @GuardedBy lock
+        private void ensureOpen() throws IOException {
+            if (failure != null) {
+                throw failure;
+            }
+            if (closed) {
+                throw new IOException("Writer closed");
+            }
         }
 
-        public TimeBasedRollingFileWriter(File output, long interval, TimeUnit unit) throws IOException {
-            super(output);
-            this.interval = interval;
-            this.unit = unit;
+        private void fail(IOException e) {
+            BTraceLogger.debugPrint(e);
+            synchronized(lock) {
+                if (failure == null) {
+                    failure = e;
+                }
+                lock.notifyAll();
+            }
         }
 
-        protected boolean needsRoll() {
-            long currTime = System.currentTimeMillis();
-            long myInterval =  currTime- lastTimeStamp;
-            if (unit.convert(myInterval, TimeUnit.MILLISECONDS) >= interval) {
-                lastTimeStamp = currTime;
+        private boolean needsRoll() {
+            if (rollBytes > 0 && segmentBytes >= rollBytes) {
                 return true;
             }
-            return false;
+            // do not produce empty chunks when there is no output
+            return rollMillis > 0 && segmentBytes > 0 && System.currentTimeMillis() - segmentStart >= rollMillis;
+        }
+
+        private void roll() throws IOException {
+            segmentStart = System.currentTimeMillis();
+            segmentBytes = 0L;
+
+            channel.close();
+            final File rolled = new File(output.getParentFile(), output.getName() + "." + (counter++));
+            if (counter > maxRolls) {
+                counter = 1;
+            }
+            final File rolledGz = new File(rolled.getPath() + ".gz");
+            if (rolled.exists()) {
+                rolled.delete();
+            }
+            if (rolledGz.exists()) {
+                rolledGz.delete();
+            }
+            output.renameTo(rolled);
+            channel = new FileOutputStream(output).getChannel();
+
+            if (compress) {
+                if (compressor == null) {
+                    compressor = Executors.newSingleThreadExecutor(new BTraceThreadFactory("BTrace Trace Output Compressor"));
+                }
+                compressor.submit(new Runnable() {
+                    public void run() {
+                        gzip(rolled, rolledGz);
+                    }
+                });
+            }
         }
     }
 
@@ -181,13 +361,7 @@ abstract public class TraceOutputWriter extends Writer {
      * @return Returns an appropriate {@linkplain  TraceOutputWriter} instance or NULL
      */
     public static TraceOutputWriter fileWriter(File output) {
-        TraceOutputWriter instance = null;
-        try {
-            instance = new SimpleFileOutput(output);
-        } catch (IOException e) {
-            BTraceLogger.debugPrint(e);
-        }
-        return instance;
+        return rollingFileWriter(output, DEFAULT_MAX_ROLLS, -1, -1, TimeUnit.MILLISECONDS, false);
     }
 
     /**
@@ -198,13 +372,7 @@ abstract public class TraceOutputWriter extends Writer {
      * @return Returns an appropriate {@linkplain  TraceOutputWriter} instance or NULL
      */
     public static TraceOutputWriter rollingFileWriter(File output, long interval, TimeUnit unit) {
-        TraceOutputWriter instance = null;
-        try {
-            instance = new TimeBasedRollingFileWriter(null, interval, unit);
-        } catch (IOException e) {
-            BTraceLogger.debugPrint(e);
-        }
-        return instance;
+        return rollingFileWriter(output, DEFAULT_MAX_ROLLS, interval, unit);
     }
 
     /**
@@ -216,15 +384,61 @@ abstract public class TraceOutputWriter extends Writer {
      * @return Returns an appropriate {@linkplain  TraceOutputWriter} instance or NULL
      */
     public static TraceOutputWriter rollingFileWriter(File output, int maxRolls, long interval, TimeUnit unit) {
+        return rollingFileWriter(output, maxRolls, -1, interval, unit, false);
+    }
+
+    /**
+     * Size and/or time based rolling file writer.
+     * <br/>
+     * The size limit is checked after each buffer is written so a chunk may
+     * exceed it by up to 64kB.
+     * @param output The file to put the output to
+     * @param maxRolls Maximum number of roll chunks
+     * @param maxBytes The size of the output file triggering the roll; -1 to disable
+     * @param interval The interval between rolling the output file; -1 to disable
+     * @param unit The {@linkplain TimeUnit} value the interval is represented in
+     * @param compress Whether the rolled chunks should be gzipped (to <b>&lt;output&gt;.&lt;n&gt;.gz</b>)
+     * @return Returns an appropriate {@linkplain  TraceOutputWriter} instance or NULL
+     */
+    public static TraceOutputWriter rollingFileWriter(File output, int maxRolls, long maxBytes, long interval, TimeUnit unit, boolean compress) {
         TraceOutputWriter instance = null;
         try {
-            instance = new TimeBasedRollingFileWriter(output, maxRolls, interval, unit);
+            long rollMillis = interval > 0 ? Math.max(1L, unit.toMillis(interval)) : -1;
+            instance = new AsyncFileWriter(output, maxRolls, maxBytes, rollMillis, compress);
         } catch (IOException e) {
             BTraceLogger.debugPrint(e);
         }
         return instance;
     }
 
+    private static void gzip(File from, File to) {
+        byte[] buf = new byte[8192];
+        InputStream is = null;
+        OutputStream os = null;
+        try {
+            is = new FileInputStream(from);
+            os = new GZIPOutputStream(new FileOutputStream(to));
+            int read;
+            while ((read = is.read(buf)) > -1) {
+                os.write(buf, 0, read);
+            }
+            os.close();
+            os = null;
+            is.close();
+            is = null;
+            from.delete();
+        } catch (IOException e) {
+            BTraceLogger.debugPrint(e);
+        } finally {
+            try {
+                if (is != null) is.close();
+                if (os != null) os.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
     private static void ensurePathExists(File f) {
         if (f == null || f.exists()) return;
         
@@ -0,0 +1,422 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package net.java.btrace.server.wireio;
+
+import java.io.IOException;
+import java.io.ObjectStreamConstants;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import net.java.btrace.api.core.BTraceLogger;
+import net.java.btrace.api.extensions.ExtensionsRepository;
+import net.java.btrace.api.wireio.AbstractCommand;
+import net.java.btrace.api.wireio.Channel;
+import net.java.btrace.api.wireio.CommandFactory;
+import net.java.btrace.api.wireio.FrameInput;
+import net.java.btrace.api.wireio.FrameOutput;
+import net.java.btrace.api.wireio.ResponseCommand;
+
+/**
+ * A server channel speaking the framed wire format over a non-blocking socket.
+ * <p>
+ * All the I/O is performed by the shared {@linkplain NioTransport} thread; the channel
+ * does not own any threads. The submitted commands are encoded straight into a direct
+ * frame buffer which is written out together with its header by a single gathering write.
+ * The received commands are either handed over to a {@linkplain CommandHandler}
+ * running on the given executor or may be read by {@linkplain #readCommand()}.
+ * </p>
+ * <p>
+ * The client still wraps the socket in the object streams so the frames travel as
+ * the object stream block data in both directions.
+ * </p>
+ * @author Jaroslav Bachorik
+ */
+public final class NioServerChannel extends Channel {
+    /**
+     * Receives the commands read from the channel
+     */
+    public static interface CommandHandler {
+        /**
+         * Called for each received command, one at a time
+         * @param cmd The received command
+         */
+        void handle(AbstractCommand cmd);
+        /**
+         * Called once the channel has been closed by the other side
+         */
+        void closed();
+    }
+
+    final private static int FRAME_SIZE = Integer.getInteger("btrace.wire.frameSize", 64 * 1024);
+    final private static int READ_BUFFER_SIZE = 16 * 1024;
+    // marks the end of the inbound command stream
+    final private static AbstractCommand EOF = AbstractCommand.NULL;
+
+    final private SocketChannel sc;
+    final private NioTransport transport;
+    final private CommandFactory cFactory;
+
+    final private FrameOutput frameOut = new FrameOutput(FRAME_SIZE + FRAME_SIZE / 4, true);
+    final private ByteBuffer frameHeader = ByteBuffer.allocateDirect(9);
+    final private ByteBuffer[] outBuffers = new ByteBuffer[2];
+    private boolean writePending = false;
+    // the commands passed to writeCommand() directly, bypassing the queue
+    final private Queue<AbstractCommand> written = new ConcurrentLinkedQueue<AbstractCommand>();
+
+    final private FrameInput frameIn;
+    final private ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    // remaining bytes of the current object stream data block
+    private int blockLeft = 0;
+    // the frame being received; its length is known once all the 4 length bytes have been read
+    private byte[] frame = new byte[256];
+    private int lengthBytes = 0;
+    private int frameLen = 0;
+    private int framePos = 0;
+
+    final private BlockingQueue<AbstractCommand> received = new LinkedBlockingQueue<AbstractCommand>();
+    final private AtomicBoolean dispatching = new AtomicBoolean(false);
+    private volatile CommandHandler handler;
+    private volatile Executor executor;
+
+    private SelectionKey key;
+    private volatile boolean closing = false;
+    private long closeDeadline = 0L;
+
+    private NioServerChannel(SocketChannel sc, CommandFactory cFactory, ExtensionsRepository extRep, NioTransport transport) {
+        super(false);
+        this.sc = sc;
+        this.cFactory = cFactory;
+        this.transport = transport;
+        this.frameIn = new FrameInput(extRep.getClassLoader());
+        this.outBuffers[0] = frameHeader;
+    }
+
+    static NioServerChannel open(SocketChannel sc, CommandFactory cFactory, ExtensionsRepository extRep, NioTransport transport) throws IOException {
+        NioServerChannel ch = new NioServerChannel(sc, cFactory, extRep, transport);
+        sc.configureBlocking(false);
+        transport.register(ch);
+        return ch;
+    }
+
+    /**
+     * Starts dispatching the received commands to the given handler.
+     * The commands are handled one at a time, in the order of arrival, by the executor threads.
+     * {@linkplain #readCommand()} must not be used afterwards.
+     * @param executor The executor to run the handler in
+     * @param handler The handler
+     */
+    public void dispatch(Executor executor, CommandHandler handler) {
+        this.executor = executor;
+        this.handler = handler;
+        scheduleDispatch();
+    }
+
+    @Override
+    protected CommandFactory getCommandFactory() {
+        return cFactory;
+    }
+
+    @Override
+    public AbstractCommand readCommand() throws IOException, ClassNotFoundException {
+        try {
+            AbstractCommand cmd = received.take();
+            if (cmd == EOF) {
+                received.add(EOF);
+                throw new java.io.EOFException();
+            }
+            return cmd;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return null;
+    }
+
+    @Override
+    public void writeCommand(AbstractCommand cmd) throws IOException {
+        written.add(cmd);
+        transport.requestFlush();
+    }
+
+    @Override
+    protected void flushCommands() throws IOException {
+        transport.requestFlush();
+    }
+
+    @Override
+    protected void commandQueued() {
+        transport.requestFlush();
+    }
+
+    @Override
+    protected AbstractCommand prepareDropSummary(Map<String, Long> drops) {
+        return ServerChannel.prepareDropSummary(this, drops);
+    }
+
+    @Override
+    protected void doClose() {
+        closing = true;
+        transport.requestFlush();
+    }
+
+    // ---- the following methods are called by the transport thread only
+
+    void register(Selector selector) throws IOException {
+        key = sc.register(selector, SelectionKey.OP_READ, this);
+    }
+
+    /**
+     * Reads whatever is available and decodes all the complete frames
+     * @return <b>FALSE</b> if the other side has closed the connection
+     */
+    boolean read() throws IOException {
+        int n;
+        while ((n = sc.read(readBuffer)) > 0) {
+            readBuffer.flip();
+            decodeBlocks(readBuffer);
+            readBuffer.compact();
+        }
+        return n >= 0;
+    }
+
+    /**
+     * Writes out the pending frame and encodes and writes the queued commands
+     * until the queue is drained or the socket would block
+     * @return <b>TRUE</b> if there is nothing more to write
+     */
+    boolean write() throws IOException {
+        while (true) {
+            if (!writePending && !encode()) {
+                setInterest(SelectionKey.OP_READ);
+                return true;
+            }
+            writePending = true;
+            sc.write(outBuffers);
+            if (outBuffers[1].hasRemaining()) {
+                setInterest(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return false;
+            }
+            frameOut.reset();
+            writePending = false;
+        }
+    }
+
+    void sendDropSummary() {
+        try {
+            reportDrops();
+        } catch (IOException e) {
+            BTraceLogger.debugPrint(e);
+        }
+    }
+
+    /**
+     * @return <b>TRUE</b> if the channel has been closed and its output has been written or abandoned
+     */
+    boolean isDone(long now, boolean flushed, long closeTimeout) {
+        if (!closing) return false;
+        if (closeDeadline == 0L) {
+            closeDeadline = now + closeTimeout;
+        }
+        return flushed || now - closeDeadline >= 0;
+    }
+
+    /**
+     * Closes the socket; the channel is not usable any more
+     * @param eof <b>TRUE</b> if the socket is being closed because the other side has gone away
+     */
+    void terminate(boolean eof) {
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            sc.close();
+        } catch (IOException e) {
+            BTraceLogger.debugPrint(e);
+        }
+        if (eof) {
+            received.add(EOF);
+            scheduleDispatch();
+        }
+    }
+
+    private void setInterest(int ops) {
+        if (key != null && key.isValid() && key.interestOps() != ops) {
+            key.interestOps(ops);
+        }
+    }
+
+    /**
+     * Encodes the commands written directly and then the queued ones into the next frame
+     * @return <b>TRUE</b> if there is a frame to write
+     */
+    private boolean encode() {
+        AbstractCommand cmd;
+        while (frameOut.size() < FRAME_SIZE &&
+               ((cmd = written.poll()) != null || (cmd = pollCommand()) != null)) {
+            frameOut.mark();
+            try {
+                frameOut.writeHeader(cmd);
+                cmd.write(frameOut);
+                cFactory.recycle(cmd);
+            } catch (IOException e) {
+                // drop the partially written command; the rest of the frame must stay readable
+                BTraceLogger.debugPrint(e);
+                frameOut.rollback();
+            }
+        }
+        if (frameOut.size() == 0) {
+            return false;
+        }
+        ByteBuffer data = frameOut.frame();
+        int len = data.remaining();
+        frameHeader.clear();
+        // a single long data block containing the length prefixed frame
+        frameHeader.put(ObjectStreamConstants.TC_BLOCKDATALONG);
+        frameHeader.putInt(len + 4);
+        frameHeader.putInt(len);
+        frameHeader.flip();
+        outBuffers[1] = data;
+        return true;
+    }
+
+    /**
+     * Strips the object stream block data headers and feeds the payload to the frame decoder
+     */
+    private void decodeBlocks(ByteBuffer in) throws IOException {
+        while (true) {
+            if (blockLeft == 0) {
+                if (!in.hasRemaining()) return;
+                byte tag = in.get(in.position());
+                if (tag == ObjectStreamConstants.TC_BLOCKDATA) {
+                    if (in.remaining() < 2) return;
+                    in.get();
+                    blockLeft = in.get() & 0xff;
+                } else if (tag == ObjectStreamConstants.TC_BLOCKDATALONG) {
+                    if (in.remaining() < 5) return;
+                    in.get();
+                    blockLeft = in.getInt();
+                    if (blockLeft < 0) {
+                        throw new IOException("invalid block length " + blockLeft);
+                    }
+                } else {
+                    throw new IOException("unexpected stream tag " + tag);
+                }
+                continue;
+            }
+            int n = Math.min(blockLeft, in.remaining());
+            if (n == 0) return;
+            blockLeft -= n;
+            decodeFrames(in, n);
+        }
+    }
+
+    private void decodeFrames(ByteBuffer in, int n) throws IOException {
+        while (n > 0) {
+            if (lengthBytes < 4) {
+                // the frame is prefixed by its big-endian int length
+                frameLen = (frameLen << 8) | (in.get() & 0xff);
+                n--;
+                if (++lengthBytes < 4) {
+                    continue;
+                }
+                if (frameLen < 0) {
+                    throw new IOException("invalid frame length " + frameLen);
+                }
+                if (frame.length < frameLen) {
+                    frame = new byte[frameLen];
+                }
+                framePos = 0;
+            }
+            int chunk = Math.min(n, frameLen - framePos);
+            in.get(frame, framePos, chunk);
+            framePos += chunk;
+            n -= chunk;
+            if (framePos == frameLen) {
+                frameIn.readFrame(frame, 0, frameLen);
+                decodeCommands();
+                lengthBytes = 0;
+                frameLen = 0;
+            }
+        }
+    }
+
+    private void decodeCommands() throws IOException {
+        while (frameIn.hasMore()) {
+            AbstractCommand c = frameIn.restoreCommand(cFactory);
+            try {
+                c.read(frameIn);
+            } catch (ClassNotFoundException e) {
+                throw new IOException(e.toString());
+            }
+            if (c instanceof ResponseCommand) { // implicitly process the response
+                responseReceived((ResponseCommand<?>)c);
+                continue;
+            }
+            received.add(c);
+        }
+        scheduleDispatch();
+    }
+
+    private void scheduleDispatch() {
+        Executor e = executor;
+        if (e != null && !received.isEmpty() && dispatching.compareAndSet(false, true)) {
+            e.execute(new Runnable() {
+                public void run() {
+                    drainReceived();
+                }
+            });
+        }
+    }
+
+    private void drainReceived() {
+        CommandHandler h = handler;
+        while (true) {
+            AbstractCommand cmd;
+            while ((cmd = received.poll()) != null) {
+                if (cmd == EOF) {
+                    h.closed();
+                    return; // never stop dispatching; nothing else is going to come
+                }
+                try {
+                    h.handle(cmd);
+                } catch (Throwable t) {
+                    BTraceLogger.debugPrint(t);
+                }
+            }
+            dispatching.set(false);
+            // a command might have arrived after the queue was found empty
+            if (received.isEmpty() || !dispatching.compareAndSet(false, true)) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,291 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package net.java.btrace.server.wireio;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import net.java.btrace.api.core.BTraceLogger;
+
+/**
+ * A selector based socket server serving all the framed client connections
+ * from a single I/O thread.
+ * <p>
+ * The queued commands are written out in batches - the first command submitted
+ * after a batch has been written starts the flush interval (<b>btrace.wire.flushInterval</b> ms)
+ * and everything queued by then goes out together.
+ * </p>
+ * @author Jaroslav Bachorik
+ */
+public final class NioTransport {
+    /**
+     * Receives the transport events; called from the I/O thread
+     */
+    public static interface Listener {
+        /**
+         * A new connection has been accepted. The listener is supposed to perform the handshake
+         * (eg. via {@linkplain ServerChannel#open(java.nio.channels.SocketChannel, net.java.btrace.api.extensions.ExtensionsRepository, NioTransport)})
+         * outside of the I/O thread
+         * @param sc The accepted connection, in blocking mode
+         */
+        void accepted(SocketChannel sc);
+        /**
+         * Called about every second
+         * @return <b>FALSE</b> to stop the transport
+         */
+        boolean idle();
+        /**
+         * The transport has been stopped
+         */
+        void stopped();
+    }
+
+    final private static long FLUSH_INTERVAL = TimeUnit.MILLISECONDS.toNanos(Long.getLong("btrace.wire.flushInterval", 10L));
+    final private static long DROP_REPORT_INTERVAL = TimeUnit.MILLISECONDS.toNanos(Long.getLong("btrace.wire.dropReportInterval", 1000L));
+    final private static long IDLE_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+    final private static long CLOSE_TIMEOUT = TimeUnit.SECONDS.toNanos(2);
+
+    final private Selector selector;
+    final private ServerSocketChannel ssc;
+    final private Queue<NioServerChannel> registrations = new ConcurrentLinkedQueue<NioServerChannel>();
+    final private AtomicBoolean flushRequested = new AtomicBoolean(false);
+    // accessed only from the I/O thread
+    final private Set<NioServerChannel> channels = new HashSet<NioServerChannel>();
+    private volatile boolean running = false;
+
+    private NioTransport(Selector selector, ServerSocketChannel ssc) {
+        this.selector = selector;
+        this.ssc = ssc;
+    }
+
+    /**
+     * Binds the server socket to the given port
+     * @param port The port to listen on
+     * @return A new transport; not started yet
+     * @throws IOException
+     */
+    public static NioTransport open(int port) throws IOException {
+        Selector selector = Selector.open();
+        ServerSocketChannel ssc = ServerSocketChannel.open();
+        try {
+            ssc.socket().bind(new InetSocketAddress(port));
+            ssc.configureBlocking(false);
+            ssc.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            ssc.close();
+            selector.close();
+            throw e;
+        }
+        return new NioTransport(selector, ssc);
+    }
+
+    /**
+     * Starts the I/O thread
+     * @param listener The listener to notify
+     */
+    public void start(final Listener listener) {
+        running = true;
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    loop(listener);
+                } catch (IOException e) {
+                    BTraceLogger.debugPrint(e);
+                } finally {
+                    running = false;
+                    for(NioServerChannel ch : channels) {
+                        ch.terminate(true);
+                    }
+                    channels.clear();
+                    try {
+                        ssc.close();
+                        selector.close();
+                    } catch (IOException e) {
+                        BTraceLogger.debugPrint(e);
+                    }
+                    listener.stopped();
+                }
+            }
+        }, "BTrace Socket Server");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Stops the I/O thread; all the connections are closed
+     */
+    public void stop() {
+        running = false;
+        selector.wakeup();
+    }
+
+    /**
+     * @return The port the transport is listening on
+     */
+    int getPort() {
+        return ssc.socket().getLocalPort();
+    }
+
+    void register(NioServerChannel ch) {
+        registrations.add(ch);
+        selector.wakeup();
+    }
+
+    void requestFlush() {
+        if (flushRequested.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    private void loop(Listener listener) throws IOException {
+        long now = System.nanoTime();
+        long flushDeadline = 0L;
+        long idleDeadline = now + IDLE_INTERVAL;
+        long reportDeadline = now + DROP_REPORT_INTERVAL;
+
+        while (running) {
+            long wait = (flushDeadline != 0L ? flushDeadline : idleDeadline) - now;
+            if (wait > 0) {
+                selector.select(Math.max(1L, TimeUnit.NANOSECONDS.toMillis(wait)));
+            } else {
+                selector.selectNow();
+            }
+            now = System.nanoTime();
+
+            NioServerChannel ch;
+            while ((ch = registrations.poll()) != null) {
+                ch.register(selector);
+                channels.add(ch);
+            }
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (!key.isValid()) continue;
+                if (key.isAcceptable()) {
+                    accept(listener);
+                    continue;
+                }
+                ch = (NioServerChannel)key.attachment();
+                try {
+                    if (key.isReadable() && !ch.read()) {
+                        BTraceLogger.debugPrint("connection closed by the client");
+                        close(ch, true);
+                        continue;
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        ch.write();
+                    }
+                } catch (IOException e) {
+                    BTraceLogger.debugPrint(e);
+                    close(ch, true);
+                }
+            }
+
+            if (flushDeadline == 0L && flushRequested.get()) {
+                flushDeadline = now + FLUSH_INTERVAL;
+            }
+            if (flushDeadline != 0L && now - flushDeadline >= 0) {
+                flushDeadline = 0L;
+                flushRequested.set(false);
+                boolean report = now - reportDeadline >= 0;
+                if (report) {
+                    reportDeadline = now + DROP_REPORT_INTERVAL;
+                }
+                flush(now, report);
+            }
+            if (now - idleDeadline >= 0) {
+                idleDeadline = now + IDLE_INTERVAL;
+                if (!listener.idle()) {
+                    running = false;
+                }
+                // the drops happen when the queue is full; the flush will be requested anyway
+            }
+        }
+    }
+
+    private void accept(Listener listener) {
+        try {
+            SocketChannel sc;
+            while ((sc = ssc.accept()) != null) {
+                BTraceLogger.debugPrint("client accepted");
+                listener.accepted(sc);
+            }
+        } catch (IOException e) {
+            BTraceLogger.debugPrint(e);
+        }
+    }
+
+    private void flush(long now, boolean report) {
+        List<NioServerChannel> done = null;
+        for(NioServerChannel ch : channels) {
+            try {
+                if (report) {
+                    ch.sendDropSummary();
+                }
+                boolean flushed = ch.write();
+                if (ch.isDone(now, flushed, CLOSE_TIMEOUT)) {
+                    if (done == null) {
+                        done = new ArrayList<NioServerChannel>();
+                    }
+                    done.add(ch);
+                } else if (!flushed) {
+                    // keep trying until the channel gets writable
+                    flushRequested.set(true);
+                }
+            } catch (IOException e) {
+                BTraceLogger.debugPrint(e);
+                if (done == null) {
+                    done = new ArrayList<NioServerChannel>();
+                }
+                done.add(ch);
+            }
+        }
+        if (done != null) {
+            for(NioServerChannel ch : done) {
+                close(ch, false);
+            }
+        }
+    }
+
+    private void close(NioServerChannel ch, boolean eof) {
+        channels.remove(ch);
+        ch.terminate(eof);
+    }
+}
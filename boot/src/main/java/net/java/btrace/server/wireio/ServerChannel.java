@@ -24,6 +24,7 @@
  */
 package net.java.btrace.server.wireio;
 
+import net.java.btrace.api.core.BTraceLogger;
 import net.java.btrace.api.extensions.ExtensionsRepository;
 import net.java.btrace.api.wireio.AbstractCommand;
 import net.java.btrace.api.wireio.CommandFactory;
@@ -38,7 +39,9 @@ import java.io.ObjectOutput ;
 import java.io.ObjectOutputStream;
 import java.net.Socket;
 import java.util.List;
+import java.util.Map;
 import net.java.btrace.api.wireio.Command;
+import net.java.btrace.wireio.commands.DropSummaryCommand;
 
 /**
  *
@@ -69,20 +72,98 @@ public final class ServerChannel extends SocketChannel {
         return null;
     }
 
+    /**
+     * Opens a server channel over the given NIO socket channel.
+     * The clients negotiating the framed wire format are served by the shared
+     * {@linkplain NioTransport}; the legacy clients get a blocking channel.
+     * @param sc The accepted socket channel in blocking mode
+     * @param extRep The {@linkplain ExtensionsRepository} to use
+     * @param transport The transport to register the framed channels with
+     * @return Returns a new channel or <b>NULL</b> if the handshake failed
+     */
+    public static Channel open(java.nio.channels.SocketChannel sc, final ExtensionsRepository extRep, NioTransport transport) {
+        try {
+            Socket skt = sc.socket();
+            ObjectInputStream ois = new ObjectInputStreamEx(skt.getInputStream(), extRep.getClassLoader());
+            ObjectOutputStream oos = new ObjectOutputStream(skt.getOutputStream());
+            Handshake h = handshake(ois, oos, extRep);
+            if (h == null) {
+                sc.close();
+                return null;
+            }
+            if (h.framed) {
+                // the rest of the conversation bypasses the object streams
+                return NioServerChannel.open(sc, h.factory, extRep, transport);
+            }
+            ServerChannel ch = new ServerChannel(ois, oos, extRep);
+            ch.setCommandFactory(h.factory);
+            ch.init();
+            return ch;
+        } catch (IOException e) {
+            BTraceLogger.debugPrint(e);
+            try {
+                sc.close();
+            } catch (IOException ex) {
+            }
+        }
+        return null;
+    }
+
+    @Override
+    protected AbstractCommand prepareDropSummary(Map<String, Long> drops) {
+        return prepareDropSummary(this, drops);
+    }
+
+    static AbstractCommand prepareDropSummary(Channel ch, final Map<String, Long> drops) {
+        // older clients do not know the command; prepareCommand() returns NULL for them
+        return ch.prepareCommand(DropSummaryCommand.class, new AbstractCommand.Initializer<DropSummaryCommand>() {
+            public void init(DropSummaryCommand cmd) {
+                cmd.setDrops(drops);
+            }
+        });
+    }
+
     @Override
     protected boolean handshake() {
+        init();
+        Handshake h = handshake(input, output, extRep);
+        if (h != null) {
+            setCommandFactory(h.factory);
+            if (h.framed) {
+                enableFraming();
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * The outcome of a successful handshake
+     */
+    private static final class Handshake {
+        final CommandFactory factory;
+        final boolean framed;
+
+        Handshake(CommandFactory factory, boolean framed) {
+            this.factory = factory;
+            this.framed = framed;
+        }
+    }
+
+    private static Handshake handshake(ObjectInput input, ObjectOutput output, ExtensionsRepository extRep) {
         try {
-            init();
             String magic = input.readUTF();
-            if (BTRACE_MAGIC.equals(magic)) {
-                output.writeUTF(BTRACE_MAGIC);
+            // older clients do not know about the framed format; keep talking the legacy one to them
+            boolean framed = BTRACE_MAGIC_FRAMED.equals(magic);
+            if (framed || BTRACE_MAGIC.equals(magic)) {
+                output.writeUTF(magic);
                 output.writeInt(Version.MAJOR);
                 output.writeInt(Version.MINOR);
                 output.flush();
                 boolean cont = input.readBoolean();
                 if (cont) {
                     int commandCnt = input.readInt();
-                    boolean cmdFactoriesOk = false;
+                    CommandFactory cf = null;
                     try {
                         Class<? extends AbstractCommand>[] mapper = new Class[commandCnt];
                         for (int i = 0; i < commandCnt; i++) {
@@ -90,25 +171,24 @@ public final class ServerChannel extends SocketChannel {
                             Class cmdClz = Class.forName(cmdClass);
                             mapper[i] = cmdClz;
                         }
-                        CommandFactory cf = CommandFactory.getInstance(mapper, extRep.getClassLoader(getMyLoader()), Command.Target.SERVER);
-                        List<Class<? extends AbstractCommand>> cmds  = cf.listSupportedCommands();
+                        CommandFactory f = CommandFactory.getInstance(mapper, extRep.getClassLoader(getMyLoader()), Command.Target.SERVER);
+                        List<Class<? extends AbstractCommand>> cmds  = f.listSupportedCommands();
                         output.writeInt(cmds.size() - commandCnt);
                         for(int i=commandCnt;i<cmds.size();i++) {
                             output.writeUTF(cmds.get(i).getName());
                         }
                         output.flush();
                         if (input.readBoolean()) {
-                            setCommandFactory(cf);
-                            cmdFactoriesOk = true;
+                            cf = f;
                         }
                     } catch (IOException e) {
-                        cmdFactoriesOk = false;
+                        cf = null;
                     } catch (ClassNotFoundException e) {
-                        cmdFactoriesOk = false;
+                        cf = null;
                     }
-                    output.writeBoolean(cmdFactoriesOk);
+                    output.writeBoolean(cf != null);
                     output.flush();
-                    return cmdFactoriesOk;
+                    return cf != null ? new Handshake(cf, framed) : null;
                 }
             }
         } catch (IOException e) {
@@ -119,6 +199,6 @@ public final class ServerChannel extends SocketChannel {
             } catch (IOException e) {
             }
         }
-        return false;
+        return null;
     }
 }
@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package net.java.btrace.server;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Jaroslav Bachorik
+ */
+public class InstrumentationCacheTest {
+    private static final int ENTRY_SIZE = 24 + 100;
+
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = File.createTempFile("bci", "");
+        dir.delete();
+        dir.mkdirs();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for(File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void testHitAndMiss() throws Exception {
+        System.out.println("hitAndMiss");
+        InstrumentationCache cache = InstrumentationCache.open(dir, 1024 * 1024, "test");
+        InstrumentationCache.Scope scope = cache.scope("Trace", new byte[]{1, 2, 3});
+        String key = scope.key(code(1), Arrays.asList("java/lang/Object"));
+        assertNull(cache.get(key));
+
+        cache.put(key, code(2), true);
+        InstrumentationCache.Entry e = cache.get(key);
+        assertNotNull(e);
+        assertArrayEquals(code(2), e.code);
+        assertTrue(e.matched);
+
+        // a different target, super type set, trace or build is a miss
+        assertNull(cache.get(scope.key(code(3), Arrays.asList("java/lang/Object"))));
+        assertNull(cache.get(scope.key(code(1), Arrays.asList("java/lang/Runnable"))));
+        assertNull(cache.get(cache.scope("Trace", new byte[]{1, 2, 4}).key(code(1), Arrays.asList("java/lang/Object"))));
+        assertNull(cache.get(InstrumentationCache.open(dir, 1024 * 1024, "other").scope("Trace", new byte[]{1, 2, 3}).key(code(1), Arrays.asList("java/lang/Object"))));
+
+        // the entries survive reopening the cache
+        cache = InstrumentationCache.open(dir, 1024 * 1024, "test");
+        e = cache.get(key);
+        assertNotNull(e);
+        assertArrayEquals(code(2), e.code);
+    }
+
+    @Test
+    public void testInstrumentationSwitches() throws Exception {
+        System.out.println("instrumentationSwitches");
+        InstrumentationCache cache = InstrumentationCache.open(dir, 1024 * 1024, "test");
+        String key = cache.scope("Trace", new byte[]{1, 2, 3}).key(code(1), null);
+        cache.put(key, code(2), true);
+
+        String sampled = System.getProperty("btrace.timer.sampled");
+        System.setProperty("btrace.timer.sampled", "true");
+        try {
+            // the code generated with the coarse clock must not be reused without it and vice versa
+            String sampledKey = cache.scope("Trace", new byte[]{1, 2, 3}).key(code(1), null);
+            assertFalse(key.equals(sampledKey));
+            assertNull(cache.get(sampledKey));
+        } finally {
+            if (sampled != null) {
+                System.setProperty("btrace.timer.sampled", sampled);
+            } else {
+                System.clearProperty("btrace.timer.sampled");
+            }
+        }
+        assertEquals(key, cache.scope("Trace", new byte[]{1, 2, 3}).key(code(1), null));
+    }
+
+    @Test
+    public void testCorruptEntry() throws Exception {
+        System.out.println("corruptEntry");
+        InstrumentationCache cache = InstrumentationCache.open(dir, 1024 * 1024, "test");
+        String key = cache.scope("Trace", new byte[0]).key(code(1), null);
+        cache.put(key, code(2), false);
+        File f = new File(dir, key + ".bci");
+        assertTrue(f.isFile());
+
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        try {
+            raf.seek(ENTRY_SIZE - 1);
+            raf.write(0xff);
+        } finally {
+            raf.close();
+        }
+        assertNull(cache.get(key));
+        assertFalse(f.exists());
+
+        // stored afresh after being discarded
+        cache.put(key, code(2), false);
+        assertArrayEquals(code(2), cache.get(key).code);
+    }
+
+    @Test
+    public void testLruEviction() throws Exception {
+        System.out.println("lruEviction");
+        InstrumentationCache cache = InstrumentationCache.open(dir, 3 * ENTRY_SIZE, "test");
+        InstrumentationCache.Scope scope = cache.scope("Trace", new byte[0]);
+        String[] keys = new String[4];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = scope.key(code(i), null);
+        }
+        cache.put(keys[0], code(10), true);
+        cache.put(keys[1], code(11), true);
+        cache.put(keys[2], code(12), true);
+        // makes keys[1] the least recently used one
+        assertNotNull(cache.get(keys[0]));
+
+        cache.put(keys[3], code(13), true);
+        assertNull(cache.get(keys[1]));
+        assertFalse(new File(dir, keys[1] + ".bci").exists());
+        assertNotNull(cache.get(keys[0]));
+        assertNotNull(cache.get(keys[2]));
+        assertNotNull(cache.get(keys[3]));
+
+        // the cap is applied when reopening with a smaller one
+        cache = InstrumentationCache.open(dir, ENTRY_SIZE, "test");
+        assertEquals(1, dir.listFiles().length);
+    }
+
+    private static byte[] code(int seed) {
+        byte[] code = new byte[100];
+        Arrays.fill(code, (byte)seed);
+        return code;
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package net.java.btrace.server;
+
+import java.lang.instrument.Instrumentation;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import net.java.btrace.api.server.Session.State;
+import net.java.btrace.instr.ClassFilter;
+import net.java.btrace.instr.OnMethod;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Jaroslav Bachorik
+ */
+public class SessionImplTest {
+    private static final Class[] POOL = new Class[] {
+        String.class, ArrayList.class, HashMap.class, Integer.class,
+        Runnable.class, int.class, String[].class, Thread.class,
+        Arrays.class, StringBuilder.class
+    };
+
+    private SessionImpl session;
+    private List<Class[]> retransformed;
+    private Instrumentation instr;
+
+    @Before
+    public void setUp() throws Exception {
+        OnMethod om1 = new OnMethod();
+        om1.setClazz("/java\\.util\\..*/");
+        OnMethod om2 = new OnMethod();
+        om2.setClazz("java.lang.String");
+
+        session = new SessionImpl();
+        session.filter = new ClassFilter(Arrays.asList(om1, om2));
+
+        retransformed = new ArrayList<Class[]>();
+        instr = (Instrumentation)Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{Instrumentation.class}, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (method.getName().equals("isModifiableClass")) {
+                    Class clz = (Class)args[0];
+                    return !clz.isPrimitive() && !clz.isArray();
+                } else if (method.getName().equals("retransformClasses")) {
+                    retransformed.add((Class[])args[0]);
+                    return null;
+                }
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    @Test
+    public void testParallelFilter() throws Exception {
+        System.out.println("parallelFilter");
+        Class[] classes = new Class[10000];
+        for (int i = 0; i < classes.length; i++) {
+            classes[i] = POOL[(i * 7) % POOL.length];
+        }
+
+        List<Class> serial = session.findCandidates(instr, classes, 0, classes.length);
+        List<Class> parallel = session.findCandidates(instr, classes);
+
+        assertEquals(Arrays.asList(String.class, ArrayList.class, Arrays.class, HashMap.class), new ArrayList<Class>(new LinkedHashSet<Class>(serial)));
+        assertEquals(serial, parallel);
+    }
+
+    @Test
+    public void testSingleSliceFilter() throws Exception {
+        System.out.println("singleSliceFilter");
+        List<Class> candidates = session.findCandidates(instr, POOL);
+        assertEquals(Arrays.asList(String.class, ArrayList.class, HashMap.class, Arrays.class), candidates);
+    }
+
+    @Test
+    public void testRetransformChunks() throws Exception {
+        System.out.println("retransformChunks");
+        session.setState(State.CONNECTED);
+        List<Class> classes = classes(1234);
+
+        session.retransform(instr, classes, 500);
+
+        assertEquals(3, retransformed.size());
+        assertEquals(500, retransformed.get(0).length);
+        assertEquals(500, retransformed.get(1).length);
+        assertEquals(234, retransformed.get(2).length);
+        List<Class> all = new ArrayList<Class>();
+        for (Class[] chunk : retransformed) {
+            all.addAll(Arrays.asList(chunk));
+        }
+        assertEquals(classes, all);
+    }
+
+    @Test
+    public void testRetransformUnchunked() throws Exception {
+        System.out.println("retransformUnchunked");
+        session.setState(State.CONNECTED);
+
+        session.retransform(instr, classes(1234), 0);
+
+        assertEquals(1, retransformed.size());
+        assertEquals(1234, retransformed.get(0).length);
+    }
+
+    @Test
+    public void testRetransformStopsWhenDisconnected() throws Exception {
+        System.out.println("retransformStopsWhenDisconnected");
+        session.retransform(instr, classes(1234), 500);
+
+        assertEquals(1, retransformed.size());
+        assertEquals(500, retransformed.get(0).length);
+    }
+
+    private static List<Class> classes(int count) {
+        List<Class> classes = new ArrayList<Class>(count);
+        for (int i = 0; i < count; i++) {
+            classes.add(POOL[i % POOL.length]);
+        }
+        return classes;
+    }
+}
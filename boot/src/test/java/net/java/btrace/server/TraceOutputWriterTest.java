@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package net.java.btrace.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Jaroslav Bachorik
+ */
+public class TraceOutputWriterTest {
+    private File dir;
+    private File output;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = File.createTempFile("btrace-out", "");
+        dir.delete();
+        dir.mkdirs();
+        output = new File(dir, "trace.btrace");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for(File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void testCloseDrains() throws Exception {
+        System.out.println("closeDrains");
+        TraceOutputWriter w = TraceOutputWriter.fileWriter(output);
+        StringBuilder expected = new StringBuilder();
+        // several buffers worth of output, never flushed explicitly
+        for(int i=0;i<20000;i++) {
+            String line = "line #" + i + "\n";
+            w.write(line);
+            expected.append(line);
+        }
+        w.close();
+        assertEquals(expected.toString(), read(output));
+    }
+
+    @Test
+    public void testCloseEncodesCarry() throws Exception {
+        System.out.println("closeEncodesCarry");
+        TraceOutputWriter w = TraceOutputWriter.fileWriter(output);
+        // the trailing unpaired surrogate is only resolved at the end of input
+        w.write("x\uD83D");
+        w.close();
+        assertEquals("x?", read(output));
+    }
+
+    @Test
+    public void testSizeRoll() throws Exception {
+        System.out.println("sizeRoll");
+        TraceOutputWriter w = TraceOutputWriter.rollingFileWriter(output, 1000, 1024, -1, TimeUnit.MILLISECONDS, false);
+        String expected = writeChunks(w, 300, 1000);
+        w.close();
+        assertTrue(new File(dir, output.getName() + ".1").exists());
+        assertTrue(new File(dir, output.getName() + ".2").exists());
+        for(int i=1;new File(dir, output.getName() + "." + i).exists();i++) {
+            // the limit is checked once per written buffer
+            assertTrue(new File(dir, output.getName() + "." + i).length() <= 1024 + 64 * 1024);
+        }
+        assertEquals(expected, readAll(false));
+    }
+
+    @Test
+    public void testTimeRoll() throws Exception {
+        System.out.println("timeRoll");
+        TraceOutputWriter w = TraceOutputWriter.rollingFileWriter(output, 1000, -1, 50, TimeUnit.MILLISECONDS, false);
+        w.write("a");
+        w.flush();
+        File rolled = new File(dir, output.getName() + ".1");
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!rolled.exists() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        w.write("b");
+        w.close();
+        assertEquals("a", read(rolled));
+        assertEquals("ab", readAll(false));
+    }
+
+    @Test
+    public void testGzipRoll() throws Exception {
+        System.out.println("gzipRoll");
+        TraceOutputWriter w = TraceOutputWriter.rollingFileWriter(output, 1000, 1024, -1, TimeUnit.MILLISECONDS, true);
+        String expected = writeChunks(w, 300, 1000);
+        w.close();
+        // all the rolled segments are compressed by the time close() returns
+        assertTrue(new File(dir, output.getName() + ".1.gz").exists());
+        assertFalse(new File(dir, output.getName() + ".1").exists());
+        assertEquals(expected, readAll(true));
+    }
+
+    private static String writeChunks(TraceOutputWriter w, int count, int size) throws IOException {
+        StringBuilder expected = new StringBuilder();
+        for(int i=0;i<count;i++) {
+            StringBuilder chunk = new StringBuilder();
+            while (chunk.length() < size) {
+                chunk.append(i).append(';');
+            }
+            w.write(chunk.toString());
+            w.flush();
+            expected.append(chunk);
+        }
+        return expected.toString();
+    }
+
+    /**
+     * Concatenates the rolled segments and the current output in the order they were written
+     */
+    private String readAll(boolean compressed) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for(int i=1;;i++) {
+            File f = new File(dir, output.getName() + "." + i + (compressed ? ".gz" : ""));
+            if (!f.exists()) break;
+            sb.append(compressed ? readGzip(f) : read(f));
+        }
+        sb.append(read(output));
+        return sb.toString();
+    }
+
+    private static String read(File f) throws IOException {
+        return read(new FileInputStream(f));
+    }
+
+    private static String readGzip(File f) throws IOException {
+        return read(new GZIPInputStream(new FileInputStream(f)));
+    }
+
+    private static String read(InputStream is) throws IOException {
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            byte[] buf = new byte[8192];
+            int len;
+            while ((len = is.read(buf)) > -1) {
+                bos.write(buf, 0, len);
+            }
+            return bos.toString();
+        } finally {
+            is.close();
+        }
+    }
+}
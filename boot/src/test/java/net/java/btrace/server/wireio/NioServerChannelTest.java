@@ -0,0 +1,280 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package net.java.btrace.server.wireio;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutput;
+import java.io.ObjectOutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.TimeUnit;
+import net.java.btrace.api.extensions.ExtensionsRepository;
+import net.java.btrace.api.extensions.ExtensionsRepositoryFactory;
+import net.java.btrace.api.wireio.AbstractCommand;
+import net.java.btrace.api.wireio.Command;
+import net.java.btrace.api.wireio.CommandFactory;
+import net.java.btrace.api.wireio.FrameInput;
+import net.java.btrace.api.wireio.FrameOutput;
+import net.java.btrace.api.wireio.Response;
+import net.java.btrace.wireio.commands.ACKCommand;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Talks to a {@linkplain NioServerChannel} over a loopback connection
+ * the way the framed client does
+ * @author Jaroslav Bachorik
+ */
+public class NioServerChannelTest {
+    private static class TextCommand extends AbstractCommand {
+        private String text;
+
+        public TextCommand(int type, int rx, int tx) {
+            super(type, rx, tx);
+        }
+
+        @Override
+        public boolean needsResponse() {
+            return true;
+        }
+
+        @Override
+        public void write(ObjectOutput out) throws IOException {
+            out.writeUTF(text);
+        }
+
+        @Override
+        public void read(ObjectInput in) throws ClassNotFoundException, IOException {
+            text = in.readUTF();
+        }
+    }
+
+    /**
+     * Fails half way through being written
+     */
+    private static class BrokenCommand extends TextCommand {
+        public BrokenCommand(int type, int rx, int tx) {
+            super(type, rx, tx);
+        }
+
+        @Override
+        public void write(ObjectOutput out) throws IOException {
+            super.write(out);
+            super.write(out);
+            throw new IOException("broken");
+        }
+    }
+
+    private final ExtensionsRepository extRep = ExtensionsRepositoryFactory.builtin(ExtensionsRepository.Location.SERVER);
+    // there is no generic array creation for Class<? extends AbstractCommand>[]
+    @SuppressWarnings("unchecked")
+    private final CommandFactory factory = CommandFactory.getInstance(
+        (Class<? extends AbstractCommand>[])new Class<?>[]{TextCommand.class, BrokenCommand.class, ACKCommand.class}, NioServerChannelTest.class.getClassLoader(), Command.Target.SERVER);
+
+    private NioTransport transport;
+    private final SynchronousQueue<NioServerChannel> accepted = new SynchronousQueue<NioServerChannel>();
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    private Socket socket;
+    private ObjectOutputStream out;
+    private ObjectInputStream in;
+    private final FrameOutput frameOut = new FrameOutput(256);
+    private final FrameInput frameIn = new FrameInput(NioServerChannelTest.class.getClassLoader());
+
+    @Before
+    public void setUp() throws Exception {
+        transport = NioTransport.open(0);
+        transport.start(new NioTransport.Listener() {
+            public void accepted(final SocketChannel sc) {
+                new Thread(new Runnable() {
+                    public void run() {
+                        try {
+                            // stands in for the handshake; exchanges the object stream headers
+                            new ObjectInputStream(sc.socket().getInputStream());
+                            new ObjectOutputStream(sc.socket().getOutputStream()).flush();
+                            accepted.put(NioServerChannel.open(sc, factory, extRep, transport));
+                        } catch (Exception e) {
+                            e.printStackTrace();
+                        }
+                    }
+                }).start();
+            }
+
+            public boolean idle() {
+                return true;
+            }
+
+            public void stopped() {
+            }
+        });
+        socket = new Socket(InetAddress.getLoopbackAddress(), transport.getPort());
+        socket.setSoTimeout(10000);
+        out = new ObjectOutputStream(socket.getOutputStream());
+        out.flush();
+        in = new ObjectInputStream(socket.getInputStream());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        socket.close();
+        transport.stop();
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testClientRequests() throws Exception {
+        System.out.println("clientRequests");
+        final NioServerChannel ch = accepted.poll(10, TimeUnit.SECONDS);
+        ch.dispatch(executor, new NioServerChannel.CommandHandler() {
+            public void handle(AbstractCommand cmd) {
+                try {
+                    ch.sendResponse(cmd, ACKCommand.class, ((TextCommand)cmd).text.startsWith("ping"));
+                } catch (IOException e) {
+                    fail(e.toString());
+                }
+            }
+
+            public void closed() {
+            }
+        });
+
+        for(int round=0;round<3;round++) {
+            int[] rxs = new int[10];
+            for(int i=0;i<rxs.length;i++) {
+                TextCommand cmd = factory.createCommand(TextCommand.class);
+                cmd.text = (i % 2 == 0 ? "ping" : "pong") + "#" + round;
+                rxs[i] = cmd.getRx();
+                send(cmd);
+            }
+            out.flush();
+            for(int i=0;i<rxs.length;i++) {
+                AbstractCommand c = receive();
+                assertTrue(c instanceof ACKCommand);
+                assertEquals(rxs[i], c.getTx());
+                assertEquals(i % 2 == 0, ((ACKCommand)c).getPayload());
+            }
+        }
+    }
+
+    @Test
+    public void testServerRequests() throws Exception {
+        System.out.println("serverRequests");
+        NioServerChannel ch = accepted.poll(10, TimeUnit.SECONDS);
+        ch.dispatch(executor, new NioServerChannel.CommandHandler() {
+            public void handle(AbstractCommand cmd) {
+            }
+
+            public void closed() {
+            }
+        });
+
+        for(int i=0;i<10;i++) {
+            final String text = "request#" + (i % 3);
+            Response<Boolean> r = ch.sendCommand(TextCommand.class, new AbstractCommand.Initializer<TextCommand>() {
+                public void init(TextCommand cmd) {
+                    cmd.text = text;
+                }
+            });
+            AbstractCommand c = receive();
+            assertEquals(text, ((TextCommand)c).text);
+            // the response is processed by the channel itself
+            ACKCommand ack = (ACKCommand)factory.createResponse(i % 2 == 0, ACKCommand.class, c.getRx());
+            send(ack);
+            out.flush();
+            assertEquals(i % 2 == 0, r.get(10000));
+        }
+    }
+
+    @Test
+    public void testBrokenCommandDropped() throws Exception {
+        System.out.println("brokenCommandDropped");
+        NioServerChannel ch = accepted.poll(10, TimeUnit.SECONDS);
+        AbstractCommand.Initializer<TextCommand> init = new AbstractCommand.Initializer<TextCommand>() {
+            public void init(TextCommand cmd) {
+                cmd.text = "shared";
+            }
+        };
+        // both commands go into the same frame; the broken one has defined the string already
+        ch.sendCommands(new AbstractCommand[]{
+            ch.prepareCommand(BrokenCommand.class, init),
+            ch.prepareCommand(TextCommand.class, init),
+            ch.prepareCommand(TextCommand.class, init)
+        }, 3);
+        for(int i=0;i<2;i++) {
+            AbstractCommand c = receive();
+            assertEquals(TextCommand.class, c.getClass());
+            assertEquals("shared", ((TextCommand)c).text);
+        }
+    }
+
+    @Test
+    public void testPeerDisconnect() throws Exception {
+        System.out.println("peerDisconnect");
+        NioServerChannel ch = accepted.poll(10, TimeUnit.SECONDS);
+        final CountDownLatch closed = new CountDownLatch(1);
+        final CountDownLatch handled = new CountDownLatch(1);
+        ch.dispatch(executor, new NioServerChannel.CommandHandler() {
+            public void handle(AbstractCommand cmd) {
+                handled.countDown();
+            }
+
+            public void closed() {
+                closed.countDown();
+            }
+        });
+        TextCommand cmd = factory.createCommand(TextCommand.class);
+        cmd.text = "last";
+        send(cmd);
+        out.flush();
+        socket.close();
+        assertTrue(handled.await(10, TimeUnit.SECONDS));
+        assertTrue(closed.await(10, TimeUnit.SECONDS));
+    }
+
+    private void send(AbstractCommand cmd) throws IOException {
+        frameOut.writeHeader(cmd);
+        cmd.write(frameOut);
+        frameOut.writeFrame(out);
+    }
+
+    private AbstractCommand receive() throws Exception {
+        if (!frameIn.hasMore()) {
+            frameIn.readFrame(in);
+        }
+        AbstractCommand c = frameIn.restoreCommand(factory);
+        c.read(frameIn);
+        return c;
+    }
+}
@@ -4,92 +4,201 @@
  */
 package net.java.btrace.client;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
-import java.io.Writer;
-import java.nio.CharBuffer;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.Locale;
-import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 import net.java.btrace.api.core.BTraceLogger;
 
 /**
+ * A {@linkplain PrintWriter} which can temporarily divert the output into
+ * a spill file (eg. while the user is interacting with the CLI menu).
+ * <br/><br/>
+ * The spill file is an append-only, memory mapped file. Upon {@linkplain #unpark()}
+ * it is transferred to the target stream in bulk by a background thread;
+ * the output arriving in the meantime is appended to the spill file and
+ * the writer switches back to the target stream once the transfer catches up.
  *
  * @author Jaroslav Bachorik <jaroslav.bachorik at oracle.com>
  */
 final public class ClientWriter extends PrintWriter {
+    private static final int SEGMENT_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * The append-only spill file. Written under the {@linkplain ClientWriter#lock},
+     * drained by the background thread.
+     */
+    private static final class SpillFile extends OutputStream {
+        final private File file;
+        final private RandomAccessFile raf;
+        final private FileChannel channel;
+        private MappedByteBuffer segment;
+        private long segmentBase = 0L;
+        volatile private long size = 0L;
+        // accessed only by the draining thread
+        private long drained = 0L;
+
+        SpillFile() throws IOException {
+            file = File.createTempFile("btrace-", ".cache");
+            raf = new RandomAccessFile(file, "rw");
+            channel = raf.getChannel();
+            segment = channel.map(FileChannel.MapMode.READ_WRITE, segmentBase, SEGMENT_SIZE);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            ensureSpace();
+            segment.put((byte)b);
+            size++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                ensureSpace();
+                int chunk = Math.min(len, segment.remaining());
+                segment.put(b, off, chunk);
+                off += chunk;
+                len -= chunk;
+                size += chunk;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            segment = null;
+            try {
+                channel.close();
+                raf.close();
+            } finally {
+                if (!file.delete()) {
+                    // still mapped on some platforms
+                    file.deleteOnExit();
+                }
+            }
+        }
+
+        private boolean isDrained() {
+            return drained == size;
+        }
+
+        /**
+         * Transfers the data appended so far to the given channel
+         */
+        private void drainTo(WritableByteChannel target) throws IOException {
+            long end = size;
+            while (drained < end) {
+                drained += channel.transferTo(drained, end - drained, target);
+            }
+        }
+
+        private void ensureSpace() throws IOException {
+            if (!segment.hasRemaining()) {
+                segmentBase += SEGMENT_SIZE;
+                segment = channel.map(FileChannel.MapMode.READ_WRITE, segmentBase, SEGMENT_SIZE);
+            }
+        }
+    }
+
     final private ExecutorService s = Executors.newSingleThreadExecutor();
     final private AtomicReference<PrintWriter> cacheWriterRef = new AtomicReference<PrintWriter>();
+    final private OutputStream directStream;
+    final private WritableByteChannel directChannel;
     final private PrintWriter directWriter;
-    volatile private File cacheFile;
-    
+    // @GuardedBy lock
+    private SpillFile spillFile;
+    // @GuardedBy lock
+    private PrintWriter spillWriter;
+    // @GuardedBy lock
+    private boolean parked = false;
+    // @GuardedBy lock
+    private boolean closed = false;
+
     public ClientWriter(OutputStream os) {
         super(os);
+        directStream = os;
+        directChannel = Channels.newChannel(os);
         directWriter = new PrintWriter(os);
         cacheWriterRef.set(directWriter);
     }
-    
-    public void park() throws InterruptedException {
-        final CountDownLatch latch = new CountDownLatch(1);
-        s.submit(new Runnable() {
 
-            @Override
-            public void run() {
+    public void park() throws InterruptedException {
+        synchronized(lock) {
+            parked = true;
+            if (spillFile == null) {
                 try {
-                    cacheFile = File.createTempFile("btrace-", ".cache");
-                    PrintWriter pw = new PrintWriter(cacheFile);
-                    
-                    synchronized(lock) {
-                        cacheWriterRef.set(pw);
-                        latch.countDown();
-                    }
+                    spillFile = new SpillFile();
                 } catch (IOException e) {
                     BTraceLogger.debugPrint(e);
+                    return;
                 }
+                spillWriter = new PrintWriter(new OutputStreamWriter(spillFile));
+                directWriter.flush();
+                cacheWriterRef.set(spillWriter);
             }
-        });
-        latch.await();
+        }
     }
-    
+
     public void unpark() {
+        synchronized(lock) {
+            parked = false;
+            if (spillFile == null || closed) return;
+        }
         s.submit(new Runnable() {
 
             @Override
             public void run() {
-                synchronized(lock) {
-                    Writer pw = cacheWriterRef.getAndSet(directWriter);
-                    BufferedReader br = null;
-                    try {
-                        pw.close();
-
-                        br = new BufferedReader(new FileReader(cacheFile));
-                        String line = null;
-                        while ((line = br.readLine()) != null) {
-                            directWriter.println(line);
-                        }
-                        directWriter.flush();
-                    } catch (IOException ex) {
-                    } finally {
-                        try {
-                            if (br != null) {
-                                br.close();
+                try {
+                    while (true) {
+                        SpillFile sf;
+                        synchronized(lock) {
+                            if (parked || closed || spillFile == null) return;
+                            spillWriter.flush();
+                            sf = spillFile;
+                            if (sf.isDrained()) {
+                                // caught up; the new output may go directly to the target
+                                releaseSpillFile();
+                                return;
                             }
-                        } catch (IOException ex) {}
+                        }
+                        sf.drainTo(directChannel);
+                        directStream.flush();
+                    }
+                } catch (IOException e) {
+                    BTraceLogger.debugPrint(e);
+                    synchronized(lock) {
+                        releaseSpillFile();
                     }
                 }
-                cacheFile.delete();
-                cacheFile = null;
             }
         });
     }
 
+    // @GuardedBy lock
+    private void releaseSpillFile() {
+        cacheWriterRef.set(directWriter);
+        if (spillFile != null) {
+            try {
+                spillFile.close();
+            } catch (IOException e) {
+                BTraceLogger.debugPrint(e);
+            }
+            spillFile = null;
+            spillWriter = null;
+        }
+    }
+
     public void flush() {
         synchronized(lock) {
             cacheWriterRef.get().flush();
@@ -281,6 +390,30 @@ final public class ClientWriter extends PrintWriter {
     }
 
     public void close() {
+        synchronized(lock) {
+            closed = true;
+        }
+        // the draining thread must not be transferring the spill file concurrently
+        s.shutdown();
+        try {
+            while (!s.awaitTermination(1, TimeUnit.SECONDS)) {
+                BTraceLogger.debugPrint("waiting for the spilled output to be drained");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized(lock) {
+            if (spillFile != null) {
+                // write out whatever has been spilled so far
+                spillWriter.flush();
+                try {
+                    spillFile.drainTo(directChannel);
+                } catch (IOException e) {
+                    BTraceLogger.debugPrint(e);
+                }
+                releaseSpillFile();
+            }
+        }
         directWriter.close();
     }
 
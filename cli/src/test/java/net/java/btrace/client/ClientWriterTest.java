@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package net.java.btrace.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Jaroslav Bachorik
+ */
+public class ClientWriterTest {
+    /**
+     * A slow console; keeps the background transfer of the spilled output busy
+     */
+    private static final class SlowStream extends OutputStream {
+        final private ByteArrayOutputStream bos = new ByteArrayOutputStream();
+
+        @Override
+        public synchronized void write(int b) throws IOException {
+            bos.write(b);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            bos.write(b, off, len);
+        }
+
+        synchronized String content() {
+            return bos.toString();
+        }
+    }
+
+    @Test
+    public void testDirect() {
+        System.out.println("direct");
+        SlowStream os = new SlowStream();
+        ClientWriter w = new ClientWriter(os);
+        w.println("a");
+        w.print(1);
+        w.close();
+        assertEquals("a" + System.getProperty("line.separator") + "1", os.content());
+    }
+
+    @Test
+    public void testParkedUntilUnpark() throws Exception {
+        System.out.println("parkedUntilUnpark");
+        SlowStream os = new SlowStream();
+        ClientWriter w = new ClientWriter(os);
+        w.park();
+        w.print("spilled");
+        w.flush();
+        assertEquals("", os.content());
+        w.unpark();
+        w.close();
+        assertEquals("spilled", os.content());
+    }
+
+    @Test
+    public void testCloseWhileDraining() throws Exception {
+        System.out.println("closeWhileDraining");
+        for(int round=0;round<20;round++) {
+            SlowStream os = new SlowStream();
+            ClientWriter w = new ClientWriter(os);
+            StringBuilder expected = new StringBuilder();
+            w.print("before;");
+            expected.append("before;");
+            w.park();
+            for(int i=0;i<2000;i++) {
+                w.print(i + ";");
+                expected.append(i).append(';');
+            }
+            w.unpark();
+            // written while the spill file is being transferred
+            for(int i=0;i<200;i++) {
+                w.print("after" + i + ";");
+                expected.append("after").append(i).append(';');
+            }
+            w.close();
+            // nothing lost, duplicated or reordered
+            assertEquals(expected.toString(), os.content());
+        }
+    }
+}
@@ -474,28 +474,11 @@ public class Client {
     public Client submit(String fileName, final byte[] code, String[] args) throws IOException {
         if (setState(State.ATTACHED, State.SUBMITTING)) {
             try {
-                BTraceLogger.debugPrint("opening socket to " + port);
-                Socket sock = null;
-                boolean retry;
-                do {
-                    retry = false;
-                    try {
-                        sock = new Socket("localhost", port);
-                    } catch (ConnectException e) {
-                        try {
-                            Thread.sleep(500);
-                            retry = true;
-                        } catch (InterruptedException iEx) {
-                            Thread.currentThread().interrupt();
-                        }
-                    }
-                } while (retry);
-
-                if (sock == null) {
-                    throw new IOException("Can not open port " + port);
+                channel = ClientChannel.open(openSocket(), extRepository, true);
+                if (channel == null) {
+                    BTraceLogger.debugPrint("the agent does not support the framed wire format; retrying with the legacy one");
+                    channel = ClientChannel.open(openSocket(), extRepository, false);
                 }
-
-                channel = ClientChannel.open(sock, extRepository);
                 if (channel != null) {
                     commandCtx.add(channel);
                     Response<Boolean> f = channel.sendCommand(InstrumentCommand.class, new AbstractCommand.Initializer<InstrumentCommand>() {
@@ -548,6 +531,30 @@ public class Client {
         return this;
     }
     
+    private Socket openSocket() throws IOException {
+        BTraceLogger.debugPrint("opening socket to " + port);
+        Socket sock = null;
+        boolean retry;
+        do {
+            retry = false;
+            try {
+                sock = new Socket("localhost", port);
+            } catch (ConnectException e) {
+                try {
+                    Thread.sleep(500);
+                    retry = true;
+                } catch (InterruptedException iEx) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        } while (retry);
+
+        if (sock == null) {
+            throw new IOException("Can not open port " + port);
+        }
+        return sock;
+    }
+
     public void exit(int exitCode) {
         if (setState(State.RUNNING, State.EXITING)) {
             sendExit(exitCode);
@@ -33,6 +33,7 @@ import net.java.btrace.api.wireio.SocketChannel;
 import net.java.btrace.api.wireio.Version;
 import net.java.btrace.api.wireio.ObjectInputStreamEx;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.ObjectInput;
 import java.io.ObjectInputStream;
@@ -50,16 +51,30 @@ import net.java.btrace.api.wireio.Command;
  */
 public final class ClientChannel extends SocketChannel {
 
-    protected ClientChannel(ObjectInput oi, ObjectOutput oo, ExtensionsRepository extRep) {
+    private final boolean framed;
+
+    protected ClientChannel(ObjectInput oi, ObjectOutput oo, ExtensionsRepository extRep, boolean framed) {
         super(oi, oo, extRep);
+        this.framed = framed;
     }
 
     public static Channel open(Socket skt, ExtensionsRepository extRep) {
+        return open(skt, extRep, true);
+    }
+
+    /**
+     * Opens the client channel over the given socket
+     * @param skt The socket to use
+     * @param extRep The {@linkplain ExtensionsRepository} to use
+     * @param framed Whether to request the framed wire format; the agents not supporting it will refuse the connection
+     * @return Returns a new channel or <b>NULL</b> if the handshake failed
+     */
+    public static Channel open(Socket skt, ExtensionsRepository extRep, boolean framed) {
         try {
             ObjectOutput  oos = new ObjectOutputStream(skt.getOutputStream());
             ObjectInputStream ois = new ObjectInputStreamEx(skt.getInputStream(), extRep.getClassLoader());
             
-            ClientChannel ch = new ClientChannel(ois, oos, extRep);
+            ClientChannel ch = new ClientChannel(ois, oos, extRep, framed);
             if (!ch.handshake()) {
                 try {
                     ch.output.close();
@@ -78,10 +93,11 @@ public final class ClientChannel extends SocketChannel {
     protected boolean handshake() {
         try {
             init();
-            output.writeUTF(BTRACE_MAGIC);
+            String myMagic = framed ? BTRACE_MAGIC_FRAMED : BTRACE_MAGIC;
+            output.writeUTF(myMagic);
             output.flush();
             String magic = input.readUTF();
-            if (BTRACE_MAGIC.equals(magic)) {
+            if (myMagic.equals(magic)) {
                 int majVer = input.readInt();
                 int minVer = input.readInt();
                 if (majVer < Version.MAJOR || (majVer == Version.MAJOR && minVer <= Version.MINOR)) {
@@ -118,10 +134,16 @@ public final class ClientChannel extends SocketChannel {
                         output.writeBoolean(false);
                     }
                     output.flush();
-                    return input.readBoolean();
+                    boolean rslt = input.readBoolean();
+                    if (rslt && framed) {
+                        enableFraming();
+                    }
+                    return rslt;
                 }
                 output.writeBoolean(false);
             }
+        } catch (EOFException e) {
+            BTraceLogger.debugPrint("connection closed by the agent during handshake");
         } catch (IOException e) {
             e.printStackTrace();
         } catch (SecurityException e) {
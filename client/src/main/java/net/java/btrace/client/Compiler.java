@@ -7,6 +7,7 @@ package net.java.btrace.client;
 import net.java.btrace.api.core.BTraceLogger;
 import net.java.btrace.api.extensions.ExtensionsRepository;
 import net.java.btrace.api.extensions.ExtensionsRepositoryFactory;
+import net.java.btrace.compiler.CompilerDaemon;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
@@ -22,6 +23,9 @@ public class Compiler {
     private boolean unsafe;
     private ExtensionsRepository extRepository;
     private PrintWriter writer = new PrintWriter(System.err);
+    // the warm compiler is reused for the same include path
+    private net.java.btrace.compiler.Compiler compiler;
+    private String compilerIncludePath;
 
     public Compiler(boolean unsafe, ExtensionsRepository extRepository) {
         this.unsafe = unsafe;
@@ -32,14 +36,13 @@ public class Compiler {
         byte[] code = null;
         File file = new File(fileName);
         if (fileName.toLowerCase().endsWith(".java")) {
-            net.java.btrace.compiler.Compiler compiler = new net.java.btrace.compiler.Compiler(includePath, unsafe, extRepository);
             StringBuilder cpBuilder = new StringBuilder(classPath);
             cpBuilder.append(File.pathSeparator).append(System.getProperty("java.class.path"));
             cpBuilder.append(File.pathSeparator).append(extRepository.getClassPath());
             
             BTraceLogger.debugPrint("compiling *" + fileName + "*");
             BTraceLogger.debugPrint("compiler classpath = " + cpBuilder.toString());
-            Map<String, byte[]> classes = compiler.compile(file, writer, ".", cpBuilder.toString());
+            Map<String, byte[]> classes = compile(file, cpBuilder.toString(), includePath);
             if (classes == null) {
                 writer.println("btrace compilation failed!");
                 return null;
@@ -76,4 +79,24 @@ public class Compiler {
 
         return code;
     }
+
+    private Map<String, byte[]> compile(File file, String classPath, String includePath) {
+        Integer daemonPort = Integer.getInteger(CompilerDaemon.PORT_KEY);
+        if (daemonPort != null) {
+            try {
+                return CompilerDaemon.compile(daemonPort, file, writer, ".", classPath, includePath, unsafe, extRepository);
+            } catch (IOException e) {
+                BTraceLogger.debugPrint("compiler daemon not available at port " + daemonPort + "; compiling in-process");
+            }
+        }
+        if (compiler == null || !equals(includePath, compilerIncludePath)) {
+            compiler = new net.java.btrace.compiler.Compiler(includePath, unsafe, extRepository);
+            compilerIncludePath = includePath;
+        }
+        return compiler.compile(file, writer, ".", classPath);
+    }
+
+    private static boolean equals(String s1, String s2) {
+        return s1 == null ? s2 == null : s1.equals(s2);
+    }
 }
@@ -0,0 +1,26 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package net.java.btrace.client.commands;
+
+import net.java.btrace.api.wireio.Command;
+import net.java.btrace.api.core.Lookup;
+import net.java.btrace.spi.wireio.CommandImpl;
+import net.java.btrace.wireio.commands.DropSummaryCommand;
+import java.io.PrintWriter;
+
+/**
+ *
+ * @author Jaroslav Bachorik
+ */
+@Command(clazz=DropSummaryCommand.class, target=Command.Target.CLIENT)
+public class DropSummaryCommandImpl extends CommandImpl<DropSummaryCommand> {
+    public void execute(Lookup ctx, DropSummaryCommand cmd) {
+        PrintWriter pw = ctx.lookup(PrintWriter.class);
+        if (pw != null) {
+            pw.println("btrace: " + cmd.getTotal() + " drops " + cmd.getDrops());
+            pw.flush();
+        }
+    }
+}
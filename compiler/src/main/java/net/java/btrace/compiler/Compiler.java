@@ -120,6 +120,18 @@ public class Compiler {
         if (args.length == 0) {
             usage();
         }
+        if (args[0].equals("-daemon")) {
+            final CompilerDaemon daemon = new CompilerDaemon(args.length > 1 ? Integer.parseInt(args[1]) : 0);
+            // removes the secret file
+            Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+                public void run() {
+                    daemon.close();
+                }
+            }));
+            System.out.println("BTrace compiler daemon listening on port " + daemon.getPort());
+            daemon.run();
+            return;
+        }
 
         String classPath = ".";
         String outputDir = ".";
@@ -276,6 +288,16 @@ public class Compiler {
             options.add(classPath);
         }
 
+        ScriptCache cache = ScriptCache.getDefault();
+        String cacheKey = cache != null ? cache.key(compUnits, options, unsafe, classPath) : null;
+        if (cacheKey != null) {
+            Map<String, byte[]> cached = cache.get(cacheKey);
+            if (cached != null) {
+                BTraceLogger.debugPrint("*** using the cached compilation result " + cacheKey);
+                return cached;
+            }
+        }
+
         // create a compilation task
         JavacTask task =
                 (JavacTask) compiler.getTask(err, manager, diagnostics,
@@ -285,7 +307,8 @@ public class Compiler {
         Verifier btraceVerifier = new Verifier(ctValidator, unsafe);
         task.setTaskListener(btraceVerifier);
 
-        // we add BTrace Verifier as a (JSR 269) Processor
+        // we add BTrace Verifier as a (JSR 269) Processor; setting the processors
+        // disables the discovery so the processors on the user class path never run
         List<Processor> processors = new ArrayList<Processor>(1);
         processors.add(btraceVerifier);
         task.setProcessors(processors);
@@ -347,6 +370,9 @@ public class Compiler {
                     dump(name + "_after", cw.toByteArray());
                 }
             }
+            if (cacheKey != null) {
+                cache.put(cacheKey, result);
+            }
             return result;
         } catch (Throwable t) {
             t.printStackTrace();
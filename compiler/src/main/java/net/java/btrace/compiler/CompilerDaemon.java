@@ -0,0 +1,378 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package net.java.btrace.compiler;
+
+import net.java.btrace.api.core.BTraceLogger;
+import net.java.btrace.api.extensions.ExtensionsRepository;
+import net.java.btrace.api.extensions.ExtensionsRepositoryFactory;
+import net.java.btrace.util.BTraceThreadFactory;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A long running compiler service keeping the javac and the BTrace compiler
+ * instances warm between the compilations.
+ * <p>
+ * The daemon listens on the loopback interface only. The clients pick it up
+ * when the <b>btrace.compiler.daemon</b> system property is set to the daemon port
+ * and fall back to the in-process compilation when the daemon is not reachable.
+ * <p>
+ * Each request must carry the secret the daemon generates on start and stores
+ * in <b>~/.btrace/compiler-daemon-&lt;port&gt;.secret</b>, readable by the owner only.
+ * The requests failing the check are dropped without a response.
+ *
+ * @author Jaroslav Bachorik
+ */
+final public class CompilerDaemon {
+    final public static String PORT_KEY = "btrace.compiler.daemon"; // NOI18N
+
+    final private static int PROTOCOL = 1;
+    final private static int MAX_COMPILERS = 8;
+    final private static int CONNECT_TIMEOUT = 500;
+    final private static int SECRET_SIZE = 32;
+    final private static Charset UTF8 = Charset.forName("UTF-8"); // NOI18N
+
+    final private byte[] secret;
+    final private File secretFile;
+
+    final private ServerSocket ss;
+    final private ExecutorService handlers = Executors.newCachedThreadPool(new BTraceThreadFactory("BTrace Compiler Daemon"));
+    // compiler configuration -> warm compiler; the least recently used one is dropped
+    final private Map<String, Compiler> compilers = new LinkedHashMap<String, Compiler>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Compiler> eldest) {
+            return size() > MAX_COMPILERS;
+        }
+    };
+
+    /**
+     * @param port The port to listen on; 0 picks any free port
+     * @throws IOException
+     */
+    public CompilerDaemon(int port) throws IOException {
+        this(port, defaultSecretDir());
+    }
+
+    CompilerDaemon(int port, File secretDir) throws IOException {
+        ss = new ServerSocket(port, 50, InetAddress.getByName(null));
+        try {
+            byte[] random = new byte[SECRET_SIZE];
+            new SecureRandom().nextBytes(random);
+            secret = toHex(random).getBytes(UTF8);
+            secretFile = secretFile(secretDir, ss.getLocalPort());
+            writeSecret(secretFile, secret);
+        } catch (IOException e) {
+            ss.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return The port the daemon listens on
+     */
+    public int getPort() {
+        return ss.getLocalPort();
+    }
+
+    /**
+     * Serves the compilation requests until the daemon is closed
+     */
+    public void run() {
+        while (!ss.isClosed()) {
+            try {
+                final Socket s = ss.accept();
+                handlers.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        handle(s);
+                    }
+                });
+            } catch (IOException e) {
+                if (!ss.isClosed()) {
+                    BTraceLogger.debugPrint(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops accepting the compilation requests
+     */
+    public void close() {
+        try {
+            ss.close();
+        } catch (IOException e) {
+            BTraceLogger.debugPrint(e);
+        }
+        handlers.shutdown();
+        secretFile.delete();
+    }
+
+    private void handle(Socket s) {
+        try {
+            try {
+                DataInputStream dis = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+                DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+                if (dis.readInt() != PROTOCOL) {
+                    return;
+                }
+                if (!MessageDigest.isEqual(secret, dis.readUTF().getBytes(UTF8))) {
+                    BTraceLogger.debugPrint("rejecting an unauthenticated compilation request"); // NOI18N
+                    return;
+                }
+                File file = new File(dis.readUTF());
+                String sourcePath = dis.readUTF();
+                if (sourcePath.isEmpty()) {
+                    sourcePath = null;
+                }
+                String classPath = dis.readUTF();
+                String includePath = dis.readBoolean() ? dis.readUTF() : null;
+                boolean unsafe = dis.readBoolean();
+                ExtensionsRepository.Location location = ExtensionsRepository.Location.valueOf(dis.readUTF());
+                String extPath = dis.readBoolean() ? dis.readUTF() : null;
+
+                Compiler c = getCompiler(includePath, unsafe, location, extPath, classPath);
+                StringWriter messages = new StringWriter();
+                Map<String, byte[]> classes;
+                // the standard file manager is not thread safe
+                synchronized(c) {
+                    long ts = System.currentTimeMillis();
+                    classes = c.compile(file, new PrintWriter(messages), sourcePath, classPath);
+                    BTraceLogger.debugPrint("compiled " + file + " in " + (System.currentTimeMillis() - ts) + "ms"); // NOI18N
+                }
+                writeString(dos, messages.toString());
+                dos.writeBoolean(classes != null);
+                if (classes != null) {
+                    dos.writeInt(classes.size());
+                    for (Map.Entry<String, byte[]> e : classes.entrySet()) {
+                        dos.writeUTF(e.getKey());
+                        dos.writeInt(e.getValue().length);
+                        dos.write(e.getValue());
+                    }
+                }
+                dos.flush();
+            } finally {
+                s.close();
+            }
+        } catch (Throwable t) {
+            BTraceLogger.debugPrint(t);
+        }
+    }
+
+    private Compiler getCompiler(String includePath, boolean unsafe, ExtensionsRepository.Location location, String extPath, String classPath) {
+        // a changed class path entry would be served stale from the file manager caches
+        String key = includePath + '|' + unsafe + '|' + location + '|' + extPath + '|' + ScriptCache.fingerprint(classPath);
+        synchronized(compilers) {
+            Compiler c = compilers.get(key);
+            if (c == null) {
+                ExtensionsRepository rep = ExtensionsRepositoryFactory.fixed(location, extPath);
+                c = new Compiler(includePath, unsafe, rep);
+                compilers.put(key, c);
+            }
+            return c;
+        }
+    }
+
+    /**
+     * Compiles the given script using a running compiler daemon
+     * @param port The daemon port
+     * @param file The script source file
+     * @param err The writer to report the compilation errors to
+     * @param sourcePath The source path
+     * @param classPath The class path
+     * @param includePath The include path; may be <b>NULL</b>
+     * @param unsafe The unsafe mode flag
+     * @param repository The extensions repository
+     * @return The compiled classes or <b>NULL</b> if the compilation failed
+     * @throws IOException when the daemon can not be reached or does not accept the request
+     */
+    public static Map<String, byte[]> compile(int port, File file, Writer err, String sourcePath, String classPath, String includePath, boolean unsafe, ExtensionsRepository repository) throws IOException {
+        return compile(defaultSecretDir(), port, file, err, sourcePath, classPath, includePath, unsafe, repository);
+    }
+
+    static Map<String, byte[]> compile(File secretDir, int port, File file, Writer err, String sourcePath, String classPath, String includePath, boolean unsafe, ExtensionsRepository repository) throws IOException {
+        String secret = readSecret(secretFile(secretDir, port));
+        Socket s = new Socket();
+        try {
+            s.connect(new InetSocketAddress(InetAddress.getByName(null), port), CONNECT_TIMEOUT);
+            DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+            DataInputStream dis = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+            // the daemon runs in a different working directory
+            dos.writeInt(PROTOCOL);
+            dos.writeUTF(secret);
+            dos.writeUTF(file.getAbsolutePath());
+            dos.writeUTF(absolutePath(sourcePath));
+            dos.writeUTF(absolutePath(classPath));
+            dos.writeBoolean(includePath != null);
+            if (includePath != null) {
+                dos.writeUTF(absolutePath(includePath));
+            }
+            dos.writeBoolean(unsafe);
+            dos.writeUTF(repository.getLocation().name());
+            String extPath = repository.getExtensionsPath();
+            dos.writeBoolean(extPath != null);
+            if (extPath != null) {
+                dos.writeUTF(extPath);
+            }
+            dos.flush();
+
+            String messages = readString(dis);
+            if (!messages.isEmpty()) {
+                err.write(messages);
+                err.flush();
+            }
+            if (!dis.readBoolean()) {
+                return null;
+            }
+            int count = dis.readInt();
+            Map<String, byte[]> classes = new HashMap<String, byte[]>();
+            for (int i = 0; i < count; i++) {
+                String name = dis.readUTF();
+                byte[] code = new byte[dis.readInt()];
+                dis.readFully(code);
+                classes.put(name, code);
+            }
+            return classes;
+        } finally {
+            s.close();
+        }
+    }
+
+    private static File defaultSecretDir() {
+        return new File(System.getProperty("user.home"), ".btrace"); // NOI18N
+    }
+
+    private static File secretFile(File dir, int port) {
+        return new File(dir, "compiler-daemon-" + port + ".secret"); // NOI18N
+    }
+
+    private static void writeSecret(File f, byte[] secret) throws IOException {
+        Path p = f.toPath();
+        Files.createDirectories(p.getParent());
+        Files.deleteIfExists(p);
+        if (isPosix()) {
+            Files.createFile(p, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------"))); // NOI18N
+        } else {
+            Files.createFile(p);
+            f.setReadable(false, false);
+            f.setReadable(true, true);
+            f.setWritable(false, false);
+            f.setWritable(true, true);
+        }
+        Files.write(p, secret);
+    }
+
+    private static String readSecret(File f) throws IOException {
+        if (!isOwnerOnly(f)) {
+            throw new IOException("the compiler daemon secret " + f + " must be accessible by its owner only"); // NOI18N
+        }
+        return new String(Files.readAllBytes(f.toPath()), UTF8);
+    }
+
+    /**
+     * Checks that the file or directory is owned by the current user and nobody else
+     * can access it; always <b>TRUE</b> on the file systems without POSIX permissions
+     * @param f The file or directory to check
+     * @return <b>TRUE</b> if only the current user can access the file
+     * @throws IOException
+     */
+    static boolean isOwnerOnly(File f) throws IOException {
+        if (!isPosix()) {
+            return true;
+        }
+        Path p = f.toPath();
+        Set<PosixFilePermission> perms = Files.getPosixFilePermissions(p);
+        perms.remove(PosixFilePermission.OWNER_READ);
+        perms.remove(PosixFilePermission.OWNER_WRITE);
+        perms.remove(PosixFilePermission.OWNER_EXECUTE);
+        return perms.isEmpty() && Files.getOwner(p).getName().equals(System.getProperty("user.name")); // NOI18N
+    }
+
+    static boolean isPosix() {
+        return FileSystems.getDefault().supportedFileAttributeViews().contains("posix"); // NOI18N
+    }
+
+    private static String toHex(byte[] data) {
+        StringBuilder sb = new StringBuilder(data.length * 2);
+        for (byte b : data) {
+            sb.append(Character.forDigit((b >> 4) & 0x0f, 16)).append(Character.forDigit(b & 0x0f, 16));
+        }
+        return sb.toString();
+    }
+
+    private static String absolutePath(String path) {
+        if (path == null) {
+            return "";
+        }
+        StringBuilder sb = new StringBuilder();
+        for (String entry : path.split(File.pathSeparator)) {
+            if (entry.isEmpty()) {
+                continue;
+            }
+            if (sb.length() > 0) {
+                sb.append(File.pathSeparatorChar);
+            }
+            sb.append(new File(entry).getAbsolutePath());
+        }
+        return sb.toString();
+    }
+
+    private static void writeString(DataOutputStream dos, String s) throws IOException {
+        byte[] data = s.getBytes("UTF-8"); // NOI18N
+        dos.writeInt(data.length);
+        dos.write(data);
+    }
+
+    private static String readString(DataInputStream dis) throws IOException {
+        byte[] data = new byte[dis.readInt()];
+        dis.readFully(data);
+        return new String(data, "UTF-8"); // NOI18N
+    }
+}
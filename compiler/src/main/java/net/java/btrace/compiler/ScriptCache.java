@@ -0,0 +1,374 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package net.java.btrace.compiler;
+
+import net.java.btrace.api.core.BTraceLogger;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.ByteArrayInputStream;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import javax.tools.JavaFileObject;
+
+/**
+ * A content addressed on-disk cache of the compiled BTrace scripts.
+ * <p>
+ * The key is the SHA-1 digest of the preprocessed sources (the included
+ * files are already expanded by then), the compiler options, the compiler
+ * build and the size and timestamp of each classpath entry. Directories on the
+ * classpath are identified only by their own timestamp; the sources found
+ * via the source path are not tracked at all.
+ * <p>
+ * Only the successful compilations are cached; an entry failing the
+ * validation is deleted and the script gets recompiled.
+ * <p>
+ * The cached classes bypass the verification; the cache directory and the entries
+ * must therefore be owned by the current user and accessible by nobody else,
+ * otherwise the cache is refused or the entry ignored.
+ * <p>
+ * The cache is enabled by setting the <b>btrace.compiler.cache.dir</b> system property.
+ * <b>btrace.compiler.cache.maxEntries</b> caps the number of the retained entries (256 by default).
+ *
+ * @author Jaroslav Bachorik
+ */
+final class ScriptCache {
+    final private static String DIR_KEY = "btrace.compiler.cache.dir"; // NOI18N
+    final private static String ENTRIES_KEY = "btrace.compiler.cache.maxEntries"; // NOI18N
+
+    final private static String SUFFIX = ".btc"; // NOI18N
+    final private static int MAGIC = 0x42544343; // BTCC
+    final private static int FORMAT = 1;
+
+    final private static char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static class Singleton {
+        final private static ScriptCache INSTANCE = create();
+    }
+
+    final private File dir;
+    final private int maxEntries;
+    final private String fingerprint;
+
+    ScriptCache(File dir, int maxEntries) {
+        this.dir = dir;
+        this.maxEntries = maxEntries;
+        this.fingerprint = fingerprint();
+    }
+
+    /**
+     * @return The shared cache instance or <b>NULL</b> if the cache is disabled
+     */
+    static ScriptCache getDefault() {
+        return Singleton.INSTANCE;
+    }
+
+    private static ScriptCache create() {
+        String path = System.getProperty(DIR_KEY);
+        if (path == null || path.isEmpty()) {
+            return null;
+        }
+        return open(new File(path), Math.max(1, Integer.getInteger(ENTRIES_KEY, 256)));
+    }
+
+    /**
+     * Opens the cache in the given directory; the directory is created accessible by its owner only
+     * @param dir The cache directory
+     * @param maxEntries The max number of the retained entries
+     * @return The cache or <b>NULL</b> if the directory can not be created or is accessible by others
+     */
+    static ScriptCache open(File dir, int maxEntries) {
+        try {
+            if (!dir.isDirectory()) {
+                if (CompilerDaemon.isPosix()) {
+                    Files.createDirectories(dir.toPath(), PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------"))); // NOI18N
+                } else if (!dir.mkdirs()) {
+                    BTraceLogger.debugPrint("can not create the script cache in " + dir); // NOI18N
+                    return null;
+                }
+            }
+            if (!CompilerDaemon.isOwnerOnly(dir)) {
+                BTraceLogger.debugPrint("refusing the script cache in " + dir + "; it must be accessible by its owner only"); // NOI18N
+                return null;
+            }
+        } catch (IOException e) {
+            BTraceLogger.debugPrint(e);
+            return null;
+        }
+        return new ScriptCache(dir, maxEntries);
+    }
+
+    /**
+     * Identifies the compiler build and the underlying javac
+     */
+    private static String fingerprint() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(System.getProperty("java.version")); // NOI18N
+        URL u = ScriptCache.class.getResource("ScriptCache.class"); // NOI18N
+        if (u != null) {
+            sb.append(';').append(stamp(location(u)));
+        }
+        return sb.toString();
+    }
+
+    private static String location(URL u) {
+        String path = u.getPath();
+        int idx = path.indexOf("!/"); // NOI18N
+        if (idx > -1) {
+            path = path.substring(0, idx);
+        }
+        if (path.startsWith("file:")) { // NOI18N
+            path = path.substring(5);
+        }
+        return path;
+    }
+
+    private static String stamp(String path) {
+        File f = new File(path);
+        return path + ':' + f.length() + ':' + f.lastModified();
+    }
+
+    /**
+     * Identifies the current state of the given class path
+     * @param classPath The class path
+     * @return The class path fingerprint
+     */
+    static String fingerprint(String classPath) {
+        StringBuilder sb = new StringBuilder();
+        if (classPath != null) {
+            for (String entry : classPath.split(File.pathSeparator)) {
+                if (!entry.isEmpty()) {
+                    sb.append(stamp(entry)).append(File.pathSeparatorChar);
+                }
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @param compUnits The preprocessed compilation units
+     * @param options The javac options
+     * @param unsafe The unsafe mode flag
+     * @param classPath The effective class path
+     * @return The cache key or <b>NULL</b> if the sources can not be read
+     */
+    String key(Iterable<? extends JavaFileObject> compUnits, List<String> options, boolean unsafe, String classPath) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1"); // NOI18N
+            update(md, fingerprint);
+            update(md, String.valueOf(unsafe));
+            for (String o : options) {
+                update(md, o);
+            }
+            update(md, fingerprint(classPath));
+            for (JavaFileObject jfo : compUnits) {
+                update(md, jfo.getName());
+                update(md, jfo.getCharContent(true));
+            }
+            byte[] digest = md.digest();
+            char[] chars = new char[digest.length * 2];
+            for (int i = 0; i < digest.length; i++) {
+                chars[i * 2] = HEX[(digest[i] >> 4) & 0x0f];
+                chars[i * 2 + 1] = HEX[digest[i] & 0x0f];
+            }
+            return new String(chars);
+        } catch (NoSuchAlgorithmException e) {
+            BTraceLogger.debugPrint(e);
+        } catch (IOException e) {
+            BTraceLogger.debugPrint(e);
+        }
+        return null;
+    }
+
+    /**
+     * @param key The cache key
+     * @return The cached class bytes or <b>NULL</b> if there is no valid entry for the key
+     */
+    Map<String, byte[]> get(String key) {
+        File f = new File(dir, key + SUFFIX);
+        if (!f.isFile()) {
+            return null;
+        }
+        try {
+            if (!CompilerDaemon.isOwnerOnly(f)) {
+                BTraceLogger.debugPrint("ignoring script cache entry " + f + "; it must be accessible by its owner only"); // NOI18N
+                return null;
+            }
+        } catch (IOException e) {
+            BTraceLogger.debugPrint(e);
+            return null;
+        }
+        Map<String, byte[]> classes = read(f);
+        if (classes == null) {
+            BTraceLogger.debugPrint("discarding invalid script cache entry " + f); // NOI18N
+            f.delete();
+            return null;
+        }
+        f.setLastModified(System.currentTimeMillis());
+        return classes;
+    }
+
+    /**
+     * Stores the compiled class bytes
+     * @param key The cache key
+     * @param classes The compiled classes
+     */
+    void put(String key, Map<String, byte[]> classes) {
+        File tmp = null;
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(bos);
+            dos.writeInt(MAGIC);
+            dos.writeInt(FORMAT);
+            dos.writeInt(classes.size());
+            for (Map.Entry<String, byte[]> e : classes.entrySet()) {
+                dos.writeUTF(e.getKey());
+                dos.writeInt(e.getValue().length);
+                dos.write(e.getValue());
+            }
+            dos.flush();
+            CRC32 crc = new CRC32();
+            crc.update(bos.toByteArray());
+            dos.writeLong(crc.getValue());
+            dos.flush();
+
+            // created accessible by the owner only
+            tmp = Files.createTempFile(dir.toPath(), key, ".tmp").toFile(); // NOI18N
+            FileOutputStream fos = new FileOutputStream(tmp);
+            try {
+                bos.writeTo(fos);
+            } finally {
+                fos.close();
+            }
+            File f = new File(dir, key + SUFFIX);
+            if (tmp.renameTo(f)) {
+                tmp = null;
+            }
+        } catch (IOException e) {
+            BTraceLogger.debugPrint(e);
+        } finally {
+            if (tmp != null) {
+                tmp.delete();
+            }
+        }
+        evict();
+    }
+
+    private void evict() {
+        File[] files = dir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File f) {
+                return f.isFile() && f.getName().endsWith(SUFFIX);
+            }
+        });
+        if (files == null || files.length <= maxEntries) {
+            return;
+        }
+        final Map<File, Long> stamps = new HashMap<File, Long>();
+        for (File f : files) {
+            stamps.put(f, f.lastModified());
+        }
+        // the least recently used entries go first
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File o1, File o2) {
+                return stamps.get(o1).compareTo(stamps.get(o2));
+            }
+        });
+        for (int i = 0; i < files.length - maxEntries; i++) {
+            files[i].delete();
+        }
+    }
+
+    private static Map<String, byte[]> read(File f) {
+        try {
+            RandomAccessFile raf = new RandomAccessFile(f, "r"); // NOI18N
+            byte[] data;
+            try {
+                long len = raf.length();
+                if (len < 20 || len > Integer.MAX_VALUE) {
+                    return null;
+                }
+                data = new byte[(int)len];
+                raf.readFully(data);
+            } finally {
+                raf.close();
+            }
+            CRC32 crc = new CRC32();
+            crc.update(data, 0, data.length - 8);
+            DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+            if (dis.readInt() != MAGIC || dis.readInt() != FORMAT) {
+                return null;
+            }
+            int count = dis.readInt();
+            if (count < 0) {
+                return null;
+            }
+            Map<String, byte[]> classes = new HashMap<String, byte[]>();
+            for (int i = 0; i < count; i++) {
+                String name = dis.readUTF();
+                int codeLen = dis.readInt();
+                if (codeLen < 0 || codeLen > dis.available()) {
+                    return null;
+                }
+                byte[] code = new byte[codeLen];
+                dis.readFully(code);
+                classes.put(name, code);
+            }
+            if (dis.available() != 8 || dis.readLong() != crc.getValue()) {
+                return null;
+            }
+            return classes;
+        } catch (IOException e) {
+            BTraceLogger.debugPrint(e);
+            return null;
+        }
+    }
+
+    private static void update(MessageDigest md, CharSequence s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            md.update((byte)(c >>> 8));
+            md.update((byte)c);
+        }
+        // separator
+        md.update((byte)0xff);
+        md.update((byte)0xff);
+    }
+}
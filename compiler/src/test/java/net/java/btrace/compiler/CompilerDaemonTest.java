@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package net.java.btrace.compiler;
+
+import net.java.btrace.api.extensions.ExtensionsRepository;
+import net.java.btrace.api.extensions.ExtensionsRepositoryFactory;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Jaroslav Bachorik
+ */
+public class CompilerDaemonTest {
+    private File dir;
+    private File script;
+    private CompilerDaemon daemon;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = File.createTempFile("daemon", "");
+        dir.delete();
+        dir.mkdirs();
+        script = new File(dir, "Broken.java");
+        FileOutputStream fos = new FileOutputStream(script);
+        try {
+            fos.write("class Broken { int }".getBytes("UTF-8"));
+        } finally {
+            fos.close();
+        }
+        daemon = new CompilerDaemon(0, dir);
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                daemon.run();
+            }
+        });
+        t.setDaemon(true);
+        t.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        daemon.close();
+        for(File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void testAuthenticated() throws Exception {
+        System.out.println("authenticated");
+        File secret = new File(dir, "compiler-daemon-" + daemon.getPort() + ".secret");
+        assertTrue(secret.isFile());
+        assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(secret.toPath())));
+
+        StringWriter err = new StringWriter();
+        // the script does not compile; the daemon reports the errors back
+        assertNull(compile(daemon.getPort(), err));
+        assertFalse(err.toString().isEmpty());
+    }
+
+    @Test
+    public void testWrongSecret() throws Exception {
+        System.out.println("wrongSecret");
+        File secret = new File(dir, "compiler-daemon-" + daemon.getPort() + ".secret");
+        FileOutputStream fos = new FileOutputStream(secret);
+        try {
+            fos.write("0000".getBytes("UTF-8"));
+        } finally {
+            fos.close();
+        }
+        try {
+            compile(daemon.getPort(), new StringWriter());
+            fail("the request with a wrong secret must be rejected");
+        } catch (IOException e) {
+            // expected; the client falls back to the in-process compilation
+        }
+    }
+
+    @Test
+    public void testLooseSecretPermissions() throws Exception {
+        System.out.println("looseSecretPermissions");
+        File secret = new File(dir, "compiler-daemon-" + daemon.getPort() + ".secret");
+        Files.setPosixFilePermissions(secret.toPath(), PosixFilePermissions.fromString("rw-r--r--"));
+        try {
+            compile(daemon.getPort(), new StringWriter());
+            fail("a secret readable by others must not be used");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testUnreachable() throws Exception {
+        System.out.println("unreachable");
+        ServerSocket ss = new ServerSocket(0);
+        int port = ss.getLocalPort();
+        ss.close();
+        try {
+            compile(port, new StringWriter());
+            fail("the compilation must fail when the daemon is not running");
+        } catch (IOException e) {
+            // expected; the client falls back to the in-process compilation
+        }
+    }
+
+    private Map<String, byte[]> compile(int port, StringWriter err) throws IOException {
+        return CompilerDaemon.compile(dir, port, script, err, null, dir.getPath(), null, false,
+                ExtensionsRepositoryFactory.builtin(ExtensionsRepository.Location.SERVER));
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package net.java.btrace.compiler;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Jaroslav Bachorik
+ */
+public class ScriptCacheTest {
+    private static final List<String> OPTIONS = Arrays.asList("-g:lines");
+
+    private File dir;
+    private File lib;
+    private ScriptCache cache;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = File.createTempFile("btc", "");
+        dir.delete();
+        dir.mkdirs();
+        lib = new File(dir, "lib.jar");
+        write(lib, new byte[]{1, 2, 3});
+        cache = new ScriptCache(dir, 16);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for(File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void testHit() throws Exception {
+        System.out.println("hit");
+        String key = cache.key(source("class A {}"), OPTIONS, false, lib.getPath());
+        assertNotNull(key);
+        assertNull(cache.get(key));
+
+        cache.put(key, classes());
+        Map<String, byte[]> cached = cache.get(key);
+        assertNotNull(cached);
+        assertEquals(classes().keySet(), cached.keySet());
+        assertArrayEquals(classes().get("A"), cached.get("A"));
+
+        // the same input yields the same key
+        assertEquals(key, cache.key(source("class A {}"), OPTIONS, false, lib.getPath()));
+        // a different source, mode or options do not
+        assertFalse(key.equals(cache.key(source("class A { }"), OPTIONS, false, lib.getPath())));
+        assertFalse(key.equals(cache.key(source("class A {}"), OPTIONS, true, lib.getPath())));
+        assertFalse(key.equals(cache.key(source("class A {}"), Arrays.asList("-g"), false, lib.getPath())));
+    }
+
+    @Test
+    public void testClassPathChange() throws Exception {
+        System.out.println("classPathChange");
+        String key = cache.key(source("class A {}"), OPTIONS, false, lib.getPath());
+        cache.put(key, classes());
+
+        write(lib, new byte[]{1, 2, 3, 4});
+        lib.setLastModified(lib.lastModified() + 2000);
+        String newKey = cache.key(source("class A {}"), OPTIONS, false, lib.getPath());
+        assertFalse(key.equals(newKey));
+        assertNull(cache.get(newKey));
+    }
+
+    @Test
+    public void testCorruptEntry() throws Exception {
+        System.out.println("corruptEntry");
+        String key = cache.key(source("class A {}"), OPTIONS, false, lib.getPath());
+        cache.put(key, classes());
+        File f = new File(dir, key + ".btc");
+        assertTrue(f.isFile());
+
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        try {
+            raf.seek(raf.length() - 9);
+            raf.write(raf.read() ^ 0xff);
+        } finally {
+            raf.close();
+        }
+        assertNull(cache.get(key));
+        assertFalse(f.exists());
+    }
+
+    @Test
+    public void testOwnerOnly() throws Exception {
+        System.out.println("ownerOnly");
+        Files.setPosixFilePermissions(dir.toPath(), PosixFilePermissions.fromString("rwxr-xr-x"));
+        assertNull(ScriptCache.open(dir, 16));
+        Files.setPosixFilePermissions(dir.toPath(), PosixFilePermissions.fromString("rwx------"));
+        assertNotNull(ScriptCache.open(dir, 16));
+
+        File sub = new File(dir, "sub");
+        try {
+            assertNotNull(ScriptCache.open(sub, 16));
+            assertEquals("rwx------", PosixFilePermissions.toString(Files.getPosixFilePermissions(sub.toPath())));
+        } finally {
+            sub.delete();
+        }
+
+        String key = cache.key(source("class A {}"), OPTIONS, false, lib.getPath());
+        cache.put(key, classes());
+        File f = new File(dir, key + ".btc");
+        assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(f.toPath())));
+        // an entry others could have planted is not used
+        Files.setPosixFilePermissions(f.toPath(), PosixFilePermissions.fromString("rw-rw-r--"));
+        assertNull(cache.get(key));
+        Files.setPosixFilePermissions(f.toPath(), PosixFilePermissions.fromString("rw-------"));
+        assertNotNull(cache.get(key));
+    }
+
+    private static Iterable<JavaFileObject> source(final String code) {
+        JavaFileObject jfo = new SimpleJavaFileObject(URI.create("string:///A.java"), JavaFileObject.Kind.SOURCE) {
+            @Override
+            public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+                return code;
+            }
+        };
+        return Collections.singletonList(jfo);
+    }
+
+    private static Map<String, byte[]> classes() {
+        Map<String, byte[]> classes = new HashMap<String, byte[]>();
+        classes.put("A", new byte[]{(byte)0xca, (byte)0xfe, (byte)0xba, (byte)0xbe});
+        return classes;
+    }
+
+    private static void write(File f, byte[] data) throws IOException {
+        FileOutputStream fos = new FileOutputStream(f);
+        try {
+            fos.write(data);
+        } finally {
+            fos.close();
+        }
+    }
+}
@@ -46,4 +46,6 @@ public @interface BTrace {
     public String description() default "";
     // having "unsafe" set to true the script will be run in unsafe mode
     public boolean unsafe() default false;
+    // time source for the @Duration values
+    public Clock clock() default Clock.NANO;
 }
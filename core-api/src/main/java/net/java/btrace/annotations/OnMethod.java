@@ -78,4 +78,21 @@ public @interface OnMethod {
     Location location() default @Location();
 
     boolean follow() default false;
+
+    /**
+     * Whether the <b>AnyType[]</b> arguments array may be reused.
+     * <p>
+     * By default a new array is allocated for each probe invocation. When set to <b>TRUE</b>
+     * the array is taken from a per-thread pool instead and is cleared once the probe
+     * handler returns. The handler must not keep a reference to the array nor pass it
+     * anywhere it could outlive the invocation.
+     * </p>
+     */
+    boolean reuseArgs() default false;
+
+    /**
+     * Sampling of the probe invocations; by default
+     * each invocation calls the handler.
+     */
+    Sampled sampled() default @Sampled();
 }
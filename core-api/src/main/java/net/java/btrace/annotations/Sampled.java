@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package net.java.btrace.annotations;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * This annotation is used to specify the sampling of
+ * an {@linkplain OnMethod} probe. A sampled probe calls
+ * its handler only for a fraction of the invocations of the
+ * probed location; the skipped invocations cost just
+ * a counter decrement.
+ * <p>
+ * Eg. <b>@OnMethod(clazz="java.util.HashMap", method="get", sampled=@Sampled(kind=Sampler.CONST, mean=100))</b>
+ * calls the handler for one of each 100 invocations of <b>HashMap.get()</b>
+ * </p>
+ * The counts of sampled and seen invocations can be obtained in the
+ * handler to scale the collected data.
+ *
+ * @author Jaroslav Bachorik
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target({})
+public @interface Sampled {
+    /**
+     * The sampling method
+     */
+    Sampler kind() default Sampler.NONE;
+
+    /**
+     * For {@linkplain Sampler#CONST} this is the number of invocations
+     * per one reported invocation. For {@linkplain Sampler#ADAPTIVE}
+     * this is the target number of reported invocations per second.
+     */
+    int mean() default 0;
+}
@@ -56,6 +56,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.SortedSet;
+import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.WeakHashMap;
 import javax.annotation.processing.AbstractProcessor;
@@ -73,6 +74,7 @@ import javax.lang.model.util.ElementFilter;
 import javax.tools.Diagnostic.Kind;
 import javax.tools.FileObject;
 import javax.tools.StandardLocation;
+import net.java.btrace.api.core.ServiceLocator;
 
 /**
  * Infrastructure for generating {@code META-INF/services/*} and
@@ -85,6 +87,13 @@ public abstract class AbstractServiceProviderProcessor extends AbstractProcessor
             new WeakHashMap<Filer,Map<String,SortedSet<ServiceLoaderLine>>>();
     private final Map<Filer,Map<String,List<Element>>> originatingElementsByProcessor =
             new WeakHashMap<Filer,Map<String,List<Element>>>();
+    private static final String SERVICES = "META-INF/services/"; // NOI18N
+    // all the processors sharing a filer contribute to one index
+    private static final Map<Filer,Map<String,SortedSet<ServiceLoaderLine>>> indexByFiler =
+            new WeakHashMap<Filer,Map<String,SortedSet<ServiceLoaderLine>>>();
+    private static final Map<Filer,List<Element>> indexElementsByFiler =
+            new WeakHashMap<Filer,List<Element>>();
+
     private final Map<TypeElement,Boolean> verifiedClasses = new WeakHashMap<TypeElement,Boolean>();
     
     public @Override final boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
@@ -144,7 +153,7 @@ public abstract class AbstractServiceProviderProcessor extends AbstractProcessor
                     clazz, ann, findAnnotationValue(ann, "service"));
             return;
         }
-        String rsrc = (path.length() > 0 ? "META-INF/namedservices/" + path + "/" : "META-INF/services/") + xface;
+        String rsrc = (path.length() > 0 ? "META-INF/namedservices/" + path + "/" : SERVICES) + xface;
         Boolean verify = verifiedClasses.get(clazz);
         if (verify == null) {
             verify = verifyServiceProviderSignature(clazz, annotation);
@@ -224,8 +233,27 @@ public abstract class AbstractServiceProviderProcessor extends AbstractProcessor
                 return;
             }
             outputFiles.put(rsrc, lines);
+            if (rsrc.startsWith(SERVICES)) {
+                synchronized(indexByFiler) {
+                    Map<String,SortedSet<ServiceLoaderLine>> index = indexByFiler.get(filer);
+                    if (index == null) {
+                        index = new TreeMap<String,SortedSet<ServiceLoaderLine>>();
+                        indexByFiler.put(filer, index);
+                        indexElementsByFiler.put(filer, new ArrayList<Element>());
+                    }
+                    index.put(rsrc.substring(SERVICES.length()), lines);
+                }
+            }
         }
         lines.add(new ServiceLoaderLine(impl, position, supersedes));
+        if (rsrc.startsWith(SERVICES)) {
+            synchronized(indexByFiler) {
+                List<Element> indexElements = indexElementsByFiler.get(filer);
+                if (indexElements != null) {
+                    indexElements.add(clazz);
+                }
+            }
+        }
     }
 
     /**
@@ -311,6 +339,43 @@ public abstract class AbstractServiceProviderProcessor extends AbstractProcessor
                     processingEnv.getMessager().printMessage(Kind.ERROR, "Failed to write to " + entry.getKey() + ": " + x.toString());
                 }
             }
+            writeIndex(filer);
+        }
+    }
+
+    /**
+     * Writes all the {@code META-INF/services/*} registrations into one
+     * index file so the {@linkplain ServiceLocator} does not need to parse them one by one.
+     * The first processor reaching the last round writes the index for all of them.
+     */
+    private void writeIndex(Filer filer) {
+        Map<String,SortedSet<ServiceLoaderLine>> services;
+        List<Element> origEls;
+        synchronized(indexByFiler) {
+            services = indexByFiler.remove(filer);
+            origEls = indexElementsByFiler.remove(filer);
+        }
+        if (services == null || services.isEmpty()) {
+            return;
+        }
+        try {
+            FileObject out = filer.createResource(StandardLocation.CLASS_OUTPUT, "", ServiceLocator.SERVICE_INDEX,
+                    origEls.toArray(new Element[0]));
+            OutputStream os = out.openOutputStream();
+            try {
+                PrintWriter w = new PrintWriter(new OutputStreamWriter(os, "UTF-8"));
+                for (Map.Entry<String,SortedSet<ServiceLoaderLine>> entry : services.entrySet()) {
+                    for (ServiceLoaderLine line : entry.getValue()) {
+                        line.writeIndex(w, entry.getKey());
+                    }
+                }
+                w.flush();
+                w.close();
+            } finally {
+                os.close();
+            }
+        } catch (IOException x) {
+            processingEnv.getMessager().printMessage(Kind.ERROR, "Failed to write to " + ServiceLocator.SERVICE_INDEX + ": " + x.toString());
         }
     }
 
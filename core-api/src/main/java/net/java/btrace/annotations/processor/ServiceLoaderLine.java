@@ -97,6 +97,24 @@ final class ServiceLoaderLine implements Comparable<ServiceLoaderLine> {
         }
     }
 
+    /**
+     * Writes the line in the {@linkplain net.java.btrace.api.core.ServiceLocator#SERVICE_INDEX} format
+     * @param w The writer
+     * @param service The service the line registers an implementation of
+     */
+    public void writeIndex(PrintWriter w, String service) {
+        w.print(service);
+        w.print('\t');
+        w.print(impl);
+        w.print('\t');
+        w.print(position);
+        for (String exclude : supersedes) {
+            w.print('\t');
+            w.print(exclude);
+        }
+        w.println();
+    }
+
     public static void parse(Reader r, SortedSet<ServiceLoaderLine> lines) throws IOException {
         BufferedReader br = new BufferedReader(r);
         String line;
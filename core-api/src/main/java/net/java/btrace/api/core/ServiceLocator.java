@@ -26,7 +26,6 @@ package net.java.btrace.api.core;
 
 import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.URL;
 import java.nio.charset.Charset;
@@ -34,11 +33,24 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.ServiceLoader;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
+ * Locates the service implementations registered in {@code META-INF/services}.
+ * <p>
+ * The registrations are resolved once per class loader and service and
+ * cached. The class path roots carrying the build-time {@linkplain #SERVICE_INDEX}
+ * are served from the index; the registration files are parsed only for
+ * the roots without it.
  *
  * @author Jaroslav Bachorik
  */
@@ -171,6 +183,7 @@ public class ServiceLocator {
     private static class ServiceLine implements Comparable<ServiceLine> {
         private int position;
         private String serviceName;
+        private List<String> supersedes = Collections.emptyList();
 
         public ServiceLine(int position, String serviceName) {
             this.position = position;
@@ -178,7 +191,14 @@ public class ServiceLocator {
         }
 
         public ServiceLine(String serviceName) {
-            this(100, serviceName);
+            this(Integer.MAX_VALUE, serviceName);
+        }
+
+        void supersede(String serviceName) {
+            if (supersedes.isEmpty()) {
+                supersedes = new ArrayList<String>(1);
+            }
+            supersedes.add(serviceName);
         }
 
         @Override
@@ -213,51 +233,180 @@ public class ServiceLocator {
             return 0;
         }
     }
-    
+
+    /**
+     * The resolved services of one class loader
+     */
+    private static class LoaderServices {
+        // class path root -> service -> registrations
+        private Map<String, Map<String, List<ServiceLine>>> index;
+        final private ConcurrentMap<String, List<String>> resolved = new ConcurrentHashMap<String, List<String>>();
+
+        synchronized Map<String, Map<String, List<ServiceLine>>> getIndex(ClassLoader cl) throws IOException {
+            if (index == null) {
+                index = loadIndex(cl);
+            }
+            return index;
+        }
+    }
+
+    /**
+     * The build-time index of all the {@code META-INF/services} registrations
+     * generated by the {@linkplain net.java.btrace.annotations.processor.ServiceProviderProcessor}.
+     * One line per registration: {@code <service> TAB <implementation> TAB <position> [TAB <superseded>]*}
+     */
+    final public static String SERVICE_INDEX = "META-INF/btrace/services.idx"; // NOI18N
+    final private static String SERVICES = "META-INF/services/"; // NOI18N
+    final private static String POSITION = "#position="; // NOI18N
+    final private static String SUPERSEDE = "#-"; // NOI18N
+    final private static Charset UTF8 = Charset.forName("utf-8"); // NOI18N
+
+    // the class loaders are weakly held; the cached values keep only names
+    final private static Map<ClassLoader, LoaderServices> loaderServices = new WeakHashMap<ClassLoader, LoaderServices>();
+
     private static Collection<String> collectServices(String clzName, ClassLoader cl) {
+        LoaderServices ls;
+        synchronized(loaderServices) {
+            ls = loaderServices.get(cl);
+            if (ls == null) {
+                ls = new LoaderServices();
+                loaderServices.put(cl, ls);
+            }
+        }
+        List<String> serviceNames = ls.resolved.get(clzName);
+        if (serviceNames == null) {
+            try {
+                serviceNames = Collections.unmodifiableList(resolveServices(clzName, cl, ls.getIndex(cl)));
+                List<String> prev = ls.resolved.putIfAbsent(clzName, serviceNames);
+                if (prev != null) {
+                    serviceNames = prev;
+                }
+            } catch (IOException e) {
+                BTraceLogger.debugPrint(e);
+                return Collections.emptyList();
+            }
+        }
+        return serviceNames;
+    }
+
+    private static List<String> resolveServices(String clzName, ClassLoader cl, Map<String, Map<String, List<ServiceLine>>> index) throws IOException {
+        String rsrc = SERVICES + clzName;
         List<ServiceLine> services = new ArrayList<ServiceLine>();
-        InputStream is = null;
-        try {
-//            System.err.println("*** ClassLoader: ");
-//            debugCL(cl);
-//            System.err.println("*** getting resource for " + "META-INF/services/" + clzName);
-            Enumeration<URL> urls = cl != null ? cl.getResources("META-INF/services/" + clzName) : ClassLoader.getSystemResources("META-INF/services/" + clzName);
-            int curpos = 100;
-            while (urls.hasMoreElements()) {
-                is = urls.nextElement().openStream();
-                if (is != null) {
-                    BufferedReader br = new BufferedReader(new InputStreamReader(is, Charset.forName("utf-8")));
+        Enumeration<URL> urls = getResources(cl, rsrc);
+        while (urls.hasMoreElements()) {
+            URL u = urls.nextElement();
+            Map<String, List<ServiceLine>> rootIndex = index.get(getRoot(u, rsrc));
+            List<ServiceLine> registered = rootIndex != null ? rootIndex.get(clzName) : null;
+            if (registered == null) {
+                // not generated at build time; parse the registration file
+                registered = parseServices(u);
+            }
+            services.addAll(registered);
+        }
+
+        // stable; keeps the class path order for the same positions
+        Collections.sort(services);
+        Set<String> superseded = new HashSet<String>();
+        for(ServiceLine sl : services) {
+            superseded.addAll(sl.supersedes);
+        }
+        Set<String> serviceNames = new LinkedHashSet<String>();
+        for(ServiceLine sl : services) {
+            if (!superseded.contains(sl.serviceName)) {
+                serviceNames.add(sl.serviceName);
+            }
+        }
+        return new ArrayList<String>(serviceNames);
+    }
+
+    private static Map<String, Map<String, List<ServiceLine>>> loadIndex(ClassLoader cl) throws IOException {
+        Map<String, Map<String, List<ServiceLine>>> index = new HashMap<String, Map<String, List<ServiceLine>>>();
+        Enumeration<URL> urls = getResources(cl, SERVICE_INDEX);
+        while (urls.hasMoreElements()) {
+            URL u = urls.nextElement();
+            String root = getRoot(u, SERVICE_INDEX);
+            Map<String, List<ServiceLine>> rootIndex = index.get(root);
+            if (rootIndex == null) {
+                rootIndex = new HashMap<String, List<ServiceLine>>();
+                index.put(root, rootIndex);
+            }
+            BufferedReader br = new BufferedReader(new InputStreamReader(u.openStream(), UTF8));
+            try {
+                String line;
+                while ((line = br.readLine()) != null) {
+                    String[] fields = line.split("\t"); // NOI18N
+                    if (fields.length < 3) {
+                        continue;
+                    }
+                    ServiceLine sl;
                     try {
-                        String line = br.readLine();
-                        if (line.startsWith("#")) {
-                            curpos = Integer.valueOf(line.substring(1));
-                            continue;
-                        }
-                        while (line != null) {
-                            services.add(new ServiceLine(curpos, line));
-                            line = br.readLine();
-                        }
-                    } finally {
+                        sl = new ServiceLine(Integer.parseInt(fields[2]), fields[1]);
+                    } catch (NumberFormatException e) {
+                        continue;
+                    }
+                    for (int i = 3; i < fields.length; i++) {
+                        sl.supersede(fields[i]);
+                    }
+                    List<ServiceLine> registered = rootIndex.get(fields[0]);
+                    if (registered == null) {
+                        registered = new ArrayList<ServiceLine>();
+                        rootIndex.put(fields[0], registered);
+                    }
+                    registered.add(sl);
+                }
+            } finally {
+                try {
+                    br.close();
+                } catch (IOException e) {}
+            }
+        }
+        return index;
+    }
+
+    private static List<ServiceLine> parseServices(URL u) throws IOException {
+        List<ServiceLine> services = new ArrayList<ServiceLine>();
+        BufferedReader br = new BufferedReader(new InputStreamReader(u.openStream(), UTF8));
+        try {
+            ServiceLine last = null;
+            String line;
+            while ((line = br.readLine()) != null) {
+                line = line.trim();
+                if (line.startsWith(POSITION)) {
+                    if (last != null) {
                         try {
-                            br.close();
-                        } catch (Exception e) {}
+                            last.position = Integer.parseInt(line.substring(POSITION.length()));
+                        } catch (NumberFormatException e) {}
+                    }
+                } else if (line.startsWith(SUPERSEDE)) {
+                    if (last != null) {
+                        last.supersede(line.substring(SUPERSEDE.length()));
+                    }
+                } else {
+                    int comment = line.indexOf('#');
+                    if (comment > -1) {
+                        line = line.substring(0, comment).trim();
+                    }
+                    if (!line.isEmpty()) {
+                        last = new ServiceLine(line);
+                        services.add(last);
                     }
                 }
             }
-        } catch (IOException e) {
-            e.printStackTrace();
         } finally {
             try {
-                is.close();
-            } catch (Exception e) {}
+                br.close();
+            } catch (IOException e) {}
         }
+        return services;
+    }
 
-        Collections.sort(services);
-        List<String> serviceNames = new ArrayList<String>();
-        for(ServiceLine sl : services) {
-            serviceNames.add(sl.serviceName);
-        }
-        return serviceNames;
+    private static Enumeration<URL> getResources(ClassLoader cl, String rsrc) throws IOException {
+        return cl != null ? cl.getResources(rsrc) : ClassLoader.getSystemResources(rsrc);
+    }
+
+    private static String getRoot(URL u, String rsrc) {
+        String path = u.toExternalForm();
+        return path.endsWith(rsrc) ? path.substring(0, path.length() - rsrc.length()) : path;
     }
     
 //    private static void debugCL(ClassLoader cl) {
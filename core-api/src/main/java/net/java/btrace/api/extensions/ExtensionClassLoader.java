@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package net.java.btrace.api.extensions;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import net.java.btrace.api.core.ServiceLocator;
+
+/**
+ * Class loader over the extension jars which opens a jar only when
+ * a class or resource it may contain is requested.
+ * <p>
+ * The jar contents are known from the {@linkplain ExtensionsIndex}. The
+ * {@linkplain ServiceLocator#SERVICE_INDEX} of the jars is served from the
+ * index too so that resolving the services does not open every jar.
+ *
+ * @author Jaroslav Bachorik
+ * @since 2.0
+ */
+final class ExtensionClassLoader extends URLClassLoader {
+    final private List<ExtensionsIndex.JarInfo> jars;
+    // @GuardedBy opened
+    final private Set<ExtensionsIndex.JarInfo> opened = new HashSet<ExtensionsIndex.JarInfo>();
+
+    ExtensionClassLoader(List<ExtensionsIndex.JarInfo> jars, ClassLoader parent) {
+        super(new URL[0], parent);
+        this.jars = jars;
+    }
+
+    @Override
+    protected Class<?> findClass(String name) throws ClassNotFoundException {
+        open(name.replace('.', '/') + ".class"); // NOI18N
+        return super.findClass(name);
+    }
+
+    @Override
+    public URL findResource(String name) {
+        if (name.equals(ServiceLocator.SERVICE_INDEX)) {
+            List<URL> indices = serviceIndices();
+            return indices.isEmpty() ? null : indices.get(0);
+        }
+        open(name);
+        return super.findResource(name);
+    }
+
+    @Override
+    public Enumeration<URL> findResources(String name) throws IOException {
+        if (name.equals(ServiceLocator.SERVICE_INDEX)) {
+            return Collections.enumeration(serviceIndices());
+        }
+        open(name);
+        return super.findResources(name);
+    }
+
+    /**
+     * Creates the URLs of the indexed service indices; they have the same form
+     * as the URLs of the jar entries but are read from memory
+     */
+    private List<URL> serviceIndices() {
+        List<URL> indices = new ArrayList<URL>();
+        for (ExtensionsIndex.JarInfo ji : jars) {
+            if (ji.serviceIndex != null) {
+                try {
+                    indices.add(new URL(null, "jar:" + ji.jar.toURI().toURL() + "!/" + ServiceLocator.SERVICE_INDEX, new IndexedResourceHandler(ji.serviceIndex))); // NOI18N
+                } catch (MalformedURLException e) {
+                    // unreachable for a file URI
+                }
+            }
+        }
+        return indices;
+    }
+
+    private void open(String resource) {
+        synchronized(opened) {
+            if (opened.size() == jars.size()) {
+                return;
+            }
+            for (ExtensionsIndex.JarInfo ji : ExtensionsIndex.findJars(jars, resource)) {
+                if (opened.add(ji)) {
+                    try {
+                        addURL(ji.jar.toURI().toURL());
+                    } catch (MalformedURLException e) {
+                        // unreachable for a file URI
+                    }
+                }
+            }
+        }
+    }
+
+    private static final class IndexedResourceHandler extends URLStreamHandler {
+        final private byte[] content;
+
+        IndexedResourceHandler(byte[] content) {
+            this.content = content;
+        }
+
+        @Override
+        protected URLConnection openConnection(URL u) throws IOException {
+            return new URLConnection(u) {
+
+                @Override
+                public void connect() throws IOException {
+                    connected = true;
+                }
+
+                @Override
+                public InputStream getInputStream() throws IOException {
+                    return new ByteArrayInputStream(content);
+                }
+            };
+        }
+    }
+}
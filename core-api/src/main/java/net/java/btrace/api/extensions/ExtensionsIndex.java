@@ -0,0 +1,431 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package net.java.btrace.api.extensions;
+
+import net.java.btrace.api.core.BTraceLogger;
+import net.java.btrace.api.core.ServiceLocator;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.StringTokenizer;
+import java.util.TreeSet;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+
+/**
+ * An index of the extension jars found on an extensions path.
+ * <p>
+ * For each jar it records the manifest declared location and privileges,
+ * the signature presence, the provided extensions and services, the
+ * packages it contains and the content of its build-time service index. The index of an extensions directory is persisted
+ * in the directory itself (when writable) and a jar is re-read only when its
+ * size or timestamp change; the attach then does not need to open the
+ * extension jars at all.
+ *
+ * @author Jaroslav Bachorik
+ * @since 2.0
+ */
+final class ExtensionsIndex {
+    final static String INDEX_NAME = ".btrace-extensions.idx"; // NOI18N
+
+    final private static int MAGIC = 0x42544549; // BTEI
+    final private static int FORMAT = 2;
+
+    final private static String BTRACE_EXTENSION_ATTRIBUTE = "BTrace-Extension"; // NOI18N
+    final private static String BTRACE_PRIVILEGES_ATTRIBUTE = "BTrace-Privileges"; // NOI18N
+    final private static String SERVICES = "META-INF/services/"; // NOI18N
+
+    /**
+     * The indexed information about one jar
+     */
+    final static class JarInfo {
+        final File jar;
+        final long length;
+        final long lastModified;
+        // the raw manifest attributes; NULL if the jar is not an extension
+        final String location;
+        final String privileges;
+        final boolean signed;
+        final List<String> extensions;
+        final Set<String> services;
+        final Set<String> packages;
+        // the content of the jar's {@linkplain ServiceLocator#SERVICE_INDEX}; NULL if there is none
+        final byte[] serviceIndex;
+
+        JarInfo(File jar, long length, long lastModified, String location, String privileges, boolean signed,
+                List<String> extensions, Set<String> services, Set<String> packages, byte[] serviceIndex) {
+            this.jar = jar;
+            this.length = length;
+            this.lastModified = lastModified;
+            this.location = location;
+            this.privileges = privileges;
+            this.signed = signed;
+            this.extensions = extensions;
+            this.services = services;
+            this.packages = packages;
+            this.serviceIndex = serviceIndex;
+        }
+
+        boolean isCurrent(File f) {
+            return f.length() == length && f.lastModified() == lastModified;
+        }
+    }
+
+    final private static FileFilter jarFilter = new FileFilter() {
+
+        @Override
+        public boolean accept(File path) {
+            return path.isDirectory() || path.getName().toLowerCase().endsWith(".jar");
+        }
+    };
+
+    private ExtensionsIndex() {}
+
+    /**
+     * Lists the extension jars on the given path
+     * @param extPath The {@linkplain File#pathSeparator} delimited list of jars and folders
+     * @return The information about all the extension jars; in the path order
+     */
+    static List<JarInfo> scan(String extPath) {
+        List<JarInfo> infos = new ArrayList<JarInfo>();
+        if (extPath == null) {
+            return infos;
+        }
+        StringTokenizer st = new StringTokenizer(extPath, File.pathSeparator);
+        while (st.hasMoreTokens()) {
+            File f = new File(st.nextToken());
+            if (f.isDirectory()) {
+                scanDirectory(f, infos);
+            } else if (f.isFile()) {
+                JarInfo ji = read(f);
+                if (ji != null && ji.location != null) {
+                    infos.add(ji);
+                }
+            }
+        }
+        return infos;
+    }
+
+    private static void scanDirectory(File dir, List<JarInfo> infos) {
+        File indexFile = new File(dir, INDEX_NAME);
+        Map<String, JarInfo> cached = load(dir, indexFile);
+        List<File> jars = new ArrayList<File>();
+        collectJars(dir, jars);
+
+        boolean modified = jars.size() != cached.size();
+        List<JarInfo> current = new ArrayList<JarInfo>(jars.size());
+        for (File jar : jars) {
+            JarInfo ji = cached.get(jar.getAbsolutePath());
+            if (ji == null || !ji.isCurrent(jar)) {
+                ji = read(jar);
+                if (ji == null) {
+                    continue;
+                }
+                modified = true;
+            }
+            current.add(ji);
+        }
+        if (modified) {
+            store(dir, indexFile, current);
+        }
+        for (JarInfo ji : current) {
+            if (ji.location != null) {
+                infos.add(ji);
+            }
+        }
+    }
+
+    private static void collectJars(File dir, List<File> jars) {
+        File[] files = dir.listFiles(jarFilter);
+        if (files == null) {
+            return;
+        }
+        for (File f : files) {
+            if (f.isDirectory()) {
+                collectJars(f, jars);
+            } else {
+                jars.add(f.getAbsoluteFile());
+            }
+        }
+    }
+
+    /**
+     * Reads the index information directly from the jar
+     */
+    private static JarInfo read(File f) {
+        long length = f.length();
+        long lastModified = f.lastModified();
+        JarFile jf = null;
+        try {
+            jf = new JarFile(f);
+            String location = null, privileges = null;
+            boolean signed = false;
+            Manifest mf = jf.getManifest();
+            if (mf != null) {
+                Attributes attrs = mf.getMainAttributes();
+                location = attrs.getValue(BTRACE_EXTENSION_ATTRIBUTE);
+                privileges = attrs.getValue(BTRACE_PRIVILEGES_ATTRIBUTE);
+                signed = !mf.getEntries().isEmpty();
+            }
+            Set<String> services = new TreeSet<String>();
+            Set<String> packages = new TreeSet<String>();
+            byte[] serviceIndex = null;
+            Enumeration<JarEntry> entries = jf.entries();
+            while (entries.hasMoreElements()) {
+                JarEntry je = entries.nextElement();
+                String name = je.getName();
+                if (name.endsWith(".class")) { // NOI18N
+                    int idx = name.lastIndexOf('/');
+                    packages.add(idx > -1 ? name.substring(0, idx) : "");
+                } else if (name.startsWith(SERVICES) && name.length() > SERVICES.length()) {
+                    services.add(name.substring(SERVICES.length()));
+                } else if (name.equals(ServiceLocator.SERVICE_INDEX)) {
+                    serviceIndex = readEntry(jf, je);
+                }
+            }
+            List<String> extensions = Collections.emptyList();
+            if (location != null && services.contains(BTraceExtension.class.getName())) {
+                extensions = listExtensions(f);
+            }
+            return new JarInfo(f, length, lastModified, location, privileges, signed, extensions, services, packages, serviceIndex);
+        } catch (IOException e) {
+            BTraceLogger.debugPrint(e);
+            return null;
+        } finally {
+            if (jf != null) {
+                try {
+                    jf.close();
+                } catch (IOException e) {}
+            }
+        }
+    }
+
+    private static byte[] readEntry(JarFile jf, JarEntry je) throws IOException {
+        InputStream is = jf.getInputStream(je);
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            int read;
+            while ((read = is.read(buf)) > -1) {
+                bos.write(buf, 0, read);
+            }
+            return bos.toByteArray();
+        } finally {
+            is.close();
+        }
+    }
+
+    private static List<String> listExtensions(File f) throws IOException {
+        URLClassLoader cl = new URLClassLoader(new URL[]{f.toURI().toURL()}, null);
+        try {
+            List<String> extensions = new ArrayList<String>();
+            for (String ext : ServiceLocator.listServiceNames(BTraceExtension.class, cl)) {
+                extensions.add(ext);
+            }
+            return extensions;
+        } finally {
+            cl.close();
+        }
+    }
+
+    private static Map<String, JarInfo> load(File dir, File indexFile) {
+        Map<String, JarInfo> infos = new HashMap<String, JarInfo>();
+        if (!indexFile.isFile()) {
+            return infos;
+        }
+        try {
+            DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+            try {
+                if (dis.readInt() != MAGIC || dis.readInt() != FORMAT) {
+                    return infos;
+                }
+                int count = dis.readInt();
+                for (int i = 0; i < count; i++) {
+                    File jar = new File(dir, dis.readUTF()).getAbsoluteFile();
+                    long length = dis.readLong();
+                    long lastModified = dis.readLong();
+                    String location = dis.readBoolean() ? dis.readUTF() : null;
+                    String privileges = dis.readBoolean() ? dis.readUTF() : null;
+                    boolean signed = dis.readBoolean();
+                    byte[] serviceIndex = readBytes(dis);
+                    List<String> extensions = readStrings(dis, new ArrayList<String>());
+                    Set<String> services = readStrings(dis, new TreeSet<String>());
+                    Set<String> packages = readStrings(dis, new TreeSet<String>());
+                    infos.put(jar.getPath(), new JarInfo(jar, length, lastModified, location, privileges, signed, extensions, services, packages, serviceIndex));
+                }
+            } finally {
+                dis.close();
+            }
+        } catch (IOException e) {
+            // a broken index; the jars will be re-read
+            BTraceLogger.debugPrint(e);
+            infos.clear();
+        }
+        return infos;
+    }
+
+    private static void store(File dir, File indexFile, List<JarInfo> infos) {
+        if (!dir.canWrite()) {
+            return;
+        }
+        String base = dir.getAbsolutePath() + File.separator;
+        File tmp = null;
+        try {
+            tmp = File.createTempFile(INDEX_NAME, ".tmp", dir); // NOI18N
+            DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                dos.writeInt(MAGIC);
+                dos.writeInt(FORMAT);
+                dos.writeInt(infos.size());
+                for (JarInfo ji : infos) {
+                    String path = ji.jar.getPath();
+                    dos.writeUTF(path.startsWith(base) ? path.substring(base.length()) : path);
+                    dos.writeLong(ji.length);
+                    dos.writeLong(ji.lastModified);
+                    writeString(dos, ji.location);
+                    writeString(dos, ji.privileges);
+                    dos.writeBoolean(ji.signed);
+                    writeBytes(dos, ji.serviceIndex);
+                    writeStrings(dos, ji.extensions);
+                    writeStrings(dos, ji.services);
+                    writeStrings(dos, ji.packages);
+                }
+            } finally {
+                dos.close();
+            }
+            if (!tmp.renameTo(indexFile)) {
+                indexFile.delete();
+                if (!tmp.renameTo(indexFile)) {
+                    return;
+                }
+            }
+            tmp = null;
+        } catch (IOException e) {
+            BTraceLogger.debugPrint(e);
+        } finally {
+            if (tmp != null) {
+                tmp.delete();
+            }
+        }
+    }
+
+    private static void writeString(DataOutputStream dos, String s) throws IOException {
+        dos.writeBoolean(s != null);
+        if (s != null) {
+            dos.writeUTF(s);
+        }
+    }
+
+    private static void writeBytes(DataOutputStream dos, byte[] bytes) throws IOException {
+        dos.writeBoolean(bytes != null);
+        if (bytes != null) {
+            dos.writeInt(bytes.length);
+            dos.write(bytes);
+        }
+    }
+
+    private static byte[] readBytes(DataInputStream dis) throws IOException {
+        if (!dis.readBoolean()) {
+            return null;
+        }
+        int length = dis.readInt();
+        if (length < 0) {
+            throw new IOException("invalid index"); // NOI18N
+        }
+        byte[] bytes = new byte[length];
+        dis.readFully(bytes);
+        return bytes;
+    }
+
+    private static void writeStrings(DataOutputStream dos, Collection<String> strings) throws IOException {
+        dos.writeInt(strings.size());
+        for (String s : strings) {
+            dos.writeUTF(s);
+        }
+    }
+
+    private static <T extends Collection<String>> T readStrings(DataInputStream dis, T strings) throws IOException {
+        int count = dis.readInt();
+        if (count < 0) {
+            throw new IOException("invalid index"); // NOI18N
+        }
+        for (int i = 0; i < count; i++) {
+            strings.add(dis.readUTF());
+        }
+        return strings;
+    }
+
+    /**
+     * Collects the jars possibly providing the given resource.
+     * The {@linkplain ServiceLocator#SERVICE_INDEX} is served from the index and
+     * does not require opening any jar.
+     * @param infos The jars to choose from
+     * @param name The resource name
+     * @return The jars to search
+     */
+    static List<JarInfo> findJars(List<JarInfo> infos, String name) {
+        List<JarInfo> found = new ArrayList<JarInfo>();
+        if (name.endsWith(".class")) { // NOI18N
+            int idx = name.lastIndexOf('/');
+            String pkg = idx > -1 ? name.substring(0, idx) : "";
+            for (JarInfo ji : infos) {
+                if (ji.packages.contains(pkg)) {
+                    found.add(ji);
+                }
+            }
+        } else if (name.startsWith(SERVICES)) {
+            String svc = name.substring(SERVICES.length());
+            for (JarInfo ji : infos) {
+                if (ji.services.contains(svc)) {
+                    found.add(ji);
+                }
+            }
+        } else if (!name.equals(ServiceLocator.SERVICE_INDEX)) {
+            found.addAll(infos);
+        }
+        return found;
+    }
+}
@@ -25,30 +25,25 @@
 
 package net.java.btrace.api.extensions;
 
-import net.java.btrace.api.core.ServiceLocator;
 import java.io.File;
-import java.io.FileFilter;
-import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.net.URLClassLoader;
 import java.security.AccessController;
 import java.security.PrivilegedAction;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.EnumSet;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.StringTokenizer;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
-import java.util.jar.Attributes;
-import java.util.jar.JarFile;
-import java.util.jar.Manifest;
 
 /**
  * Represents a repository location of a set of extensions
@@ -57,8 +52,7 @@ import java.util.jar.Manifest;
  */
 abstract public class ExtensionsRepository {
 
-    private Set<ExtensionPrivilege> getRequestedPrivileges(Attributes attrs) {
-        String permissionsList = attrs.getValue(BTRACE_PRIVILEGES_ATTRIBUTE);
+    private Set<ExtensionPrivilege> getRequestedPrivileges(String permissionsList) {
         Set<ExtensionPrivilege> requestedPermissions = EnumSet.noneOf(ExtensionPrivilege.class);
         if (permissionsList != null) {
             StringTokenizer st = new StringTokenizer(permissionsList, ",");
@@ -82,9 +76,10 @@ abstract public class ExtensionsRepository {
         CLIENT, SERVER, BOTH
     }
     
-    private static final String BTRACE_EXTENSION_ATTRIBUTE = "BTrace-Extension";
-    private static final String BTRACE_PRIVILEGES_ATTRIBUTE = "BTrace-Privileges";
-    private ClassLoader cLoader = null, pLoader = null;
+    private ClassLoader pLoader = null;
+    // parent -> extension class loader; the parents are the agent's own, long living, class loaders
+    // @GuardedBy loaders
+    final private Map<ClassLoader, ClassLoader> loaders = new HashMap<ClassLoader, ClassLoader>();
     
     final private Object extensionsLock = new Object();
     // @GuardedBy extensionsLock
@@ -138,26 +133,33 @@ abstract public class ExtensionsRepository {
      * Repository's classloader
      * @return {@linkplain ClassLoader} used to load extensions from the repository
      */
-    final synchronized public ClassLoader getClassLoader() {
-        if (cLoader == null) {
-            cLoader = getClassLoader(pLoader);
-        }
-        return cLoader;
+    final public ClassLoader getClassLoader() {
+        return getClassLoader(pLoader);
     }
     
     /**
      * Repository's classloader with custom parent
+     * <p>
+     * The class loader is created once per parent so that the services
+     * resolved through it are cached across the sessions.
      * @param parent The parent classloader
      * @return {@linkplain ClassLoader} used to load extensions from the repository
      */
     final public ClassLoader getClassLoader(final ClassLoader parent) {
-        final List<URL> locs = getExtensionURLs();
-        return AccessController.doPrivileged(new PrivilegedAction<ClassLoader>() {
-            @Override
-            public ClassLoader run() {
-                return new URLClassLoader(locs.toArray(new URL[locs.size()]), parent);
+        synchronized(loaders) {
+            ClassLoader cl = loaders.get(parent);
+            if (cl == null) {
+                final List<ExtensionsIndex.JarInfo> jars = getExtensionJars();
+                cl = AccessController.doPrivileged(new PrivilegedAction<ClassLoader>() {
+                    @Override
+                    public ClassLoader run() {
+                        return new ExtensionClassLoader(jars, parent);
+                    }
+                });
+                loaders.put(parent, cl);
             }
-        });
+            return cl;
+        }
     }
     
     /**
@@ -187,8 +189,9 @@ abstract public class ExtensionsRepository {
      */
     final public Collection<String> listExtensions() {
         if (extensionsLoaded.compareAndSet(false, true)) {
-            for(String svcName : ServiceLocator.listServiceNames(BTraceExtension.class, getClassLoader())) {
-                enabledExtensions.add(svcName);
+            // known from the index; no need to open the jars
+            for(ExtensionsIndex.JarInfo ji : getExtensionJars()) {
+                enabledExtensions.addAll(ji.extensions);
             }
         }
         return Collections.unmodifiableSet(enabledExtensions);
@@ -223,25 +226,31 @@ abstract public class ExtensionsRepository {
     abstract public String getExtensionsPath();
     
     final ReadWriteLock extensionJarsLock = new ReentrantReadWriteLock();
-    final AtomicReference<List<File>> extensionJarsRef = new AtomicReference<List<File>>();
+    final AtomicReference<List<ExtensionsIndex.JarInfo>> extensionJarsRef = new AtomicReference<List<ExtensionsIndex.JarInfo>>();
     private List<File> getExtensionFiles() {
+        List<File> files = new ArrayList<File>();
+        for(ExtensionsIndex.JarInfo ji : getExtensionJars()) {
+            files.add(ji.jar);
+        }
+        return files;
+    }
+
+    private List<ExtensionsIndex.JarInfo> getExtensionJars() {
         extensionJarsLock.readLock().lock();
-        List<File> jars = extensionJarsRef.get();
+        List<ExtensionsIndex.JarInfo> jars = extensionJarsRef.get();
         if (jars == null) {
             try {
                 extensionJarsLock.readLock().unlock();
                 extensionJarsLock.writeLock().lock();
                 jars = extensionJarsRef.get();
                 if (jars == null) {
-                    jars = new ArrayList<File>();
-
-                    String extPath = getExtensionsPath();
-                    if (extPath != null) {
-                        StringTokenizer st = new StringTokenizer(extPath, File.pathSeparator);
-                        while (st.hasMoreTokens()) {
-                            collectJars(new File(st.nextToken()), jars);
+                    jars = new ArrayList<ExtensionsIndex.JarInfo>();
+                    for(ExtensionsIndex.JarInfo ji : ExtensionsIndex.scan(getExtensionsPath())) {
+                        if (isAllowed(ji)) {
+                            jars.add(ji);
                         }
                     }
+                    jars = Collections.unmodifiableList(jars);
                     extensionJarsRef.set(jars);
                     return jars;
                 }
@@ -253,64 +262,27 @@ abstract public class ExtensionsRepository {
         }
         return jars;
     }
-    
-    final private FileFilter jarFilter = new FileFilter() {
 
-        @Override
-        public boolean accept(File path) {
-            return path.isDirectory() || path.getName().toLowerCase().endsWith(".jar");
+    private boolean isAllowed(ExtensionsIndex.JarInfo ji) {
+        Location extLocation;
+        try {
+            extLocation = Location.valueOf(ji.location.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return false;
         }
-    };
-    
-    private void collectJars(File dir, List<File> jars) {
-        if (!dir.exists()) return;
-        
-        if (dir.isDirectory()) {
-            File[] files = dir.listFiles(jarFilter);
-            if (files != null) {
-                for(File f : files) {
-                    collectJars(f, jars);
-                }
+        if (location == Location.BOTH || extLocation == Location.BOTH || location == extLocation) {
+            if (!ji.signed) {
+                System.err.println("*** attempting to load an extension from unsigned jar: " + ji.jar.getPath() + " @" + extLocation.name());
             }
-        } else {
-            JarFile jf = null;
-            try {
-                jf = new JarFile(dir);
-                Manifest mf = jf.getManifest();
-                if (mf == null) return;
-                
-                Attributes attrs = mf.getMainAttributes();
-                String extLocationStr = attrs.getValue(BTRACE_EXTENSION_ATTRIBUTE);
-                if (extLocationStr != null) {
-                    Location extLocation = Location.valueOf(extLocationStr.toUpperCase());
-                    if (location == Location.BOTH || extLocation == Location.BOTH || location == extLocation) {
-                        if (mf.getEntries().isEmpty()) {
-                            System.err.println("*** attempting to load an extension from unsigned jar: " + jf.getName() + " @" + extLocation.name());
-                        }
-                        Set<ExtensionPrivilege> requestedPrivileges = getRequestedPrivileges(attrs);
-                        if (privileges.containsAll(requestedPrivileges)) {
-                            jars.add(dir);
-                        } else {
-                            requestedPrivileges.removeAll(privileges);
-                            System.err.println("*** attempting to load an extension with not allowed privileges: " + requestedPrivileges);
-                        }
-                    }
-                }
-            } catch (IOException e) {
-            } finally {
-                try {
-                    jf.close();
-                } catch (Exception e){}
-            }
-        }
-    }
-    
-    private static boolean hasSignature(Attributes attrs) {
-        for(Object k : attrs.keySet()) {
-            if (((Attributes.Name)k).toString().endsWith("-Digest")) {
+            Set<ExtensionPrivilege> requestedPrivileges = getRequestedPrivileges(ji.privileges);
+            if (privileges.containsAll(requestedPrivileges)) {
                 return true;
+            } else {
+                requestedPrivileges.removeAll(privileges);
+                System.err.println("*** attempting to load an extension with not allowed privileges: " + requestedPrivileges);
             }
         }
         return false;
     }
+    
 }
@@ -43,4 +43,31 @@ public interface CommLine {
      * @return A response or <b>NULL</b>
      */
     abstract public <T extends AbstractCommand> Response<T> send(Class<? extends T> cmdClass, AbstractCommand.Initializer<T> init);
+
+    /**
+     * Defers the given action until the current probe handler finishes or until
+     * another command is sent from the current thread, whichever comes first.
+     * Useful for extensions batching their output per thread.
+     * @param action The action to run
+     * @return <b>TRUE</b> if the action was deferred, <b>FALSE</b> if not running within a probe handler;
+     *         the caller is supposed to run the action itself then
+     */
+    abstract public boolean defer(Runnable action);
+
+    /**
+     * Retrieves the per-thread state attached by {@linkplain #attach(Object, Object)}
+     * @param key The attachment key; compared by identity
+     * @return The attached value or <b>NULL</b>
+     */
+    abstract public Object getAttachment(Object key);
+
+    /**
+     * Attaches a per-thread state to the current thread, alongside its deferred actions.
+     * Unlike {@linkplain ThreadLocal} this is safe to call from within a probe handler.
+     * @param key The attachment key; compared by identity
+     * @param value The value to attach
+     * @return <b>TRUE</b> if the value was attached, <b>FALSE</b> if the current thread has never run
+     *         a probe handler; the caller should not rely on the value being retained then
+     */
+    abstract public boolean attach(Object key, Object value);
 }
@@ -0,0 +1,51 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package net.java.btrace.api.extensions.runtime;
+
+/**
+ * Statistics of the sampled probes
+ * <p>
+ * The values relate to the sampled probe the current thread has
+ * most recently passed - that is the probe whose handler is being
+ * executed when called from a handler of a sampled probe
+ *
+ * @author Jaroslav Bachorik <jaroslav.bachorik at oracle.com>
+ * @since 2.0
+ */
+public interface ProbeSampling {
+    /**
+     * @return The number of the probe invocations the handler was called for
+     */
+    abstract public long sampledHits();
+    /**
+     * @return The estimated number of all the probe invocations, including the skipped ones
+     */
+    abstract public long sampledEvents();
+    /**
+     * @return The current mean number of the invocations per one handler call
+     */
+    abstract public int samplingInterval();
+}
@@ -45,6 +45,8 @@ final public class Server {
         final public boolean trackRetransforms;
         final public String scriptOutputFile;
         final public long fileRollMilliseconds;
+        final public long fileRollBytes;
+        final public boolean fileRollCompress;
         final public boolean unsafeMode;
         final public boolean dumpClasses;
         final public String dumpDir;
@@ -59,7 +61,8 @@ final public class Server {
         final public int port;
 
         private Settings(boolean debugMode, boolean trackRetransforms, String scriptOutputFile,
-                         long fileRollMilliseconds, boolean unsafeMode, boolean dumpClasses,
+                         long fileRollMilliseconds, long fileRollBytes,
+                         boolean fileRollCompress, boolean unsafeMode, boolean dumpClasses,
                          String dumpDir, boolean stdOut, String probeDescPath, String script,
                          String scriptDir, String extPath, boolean noServer, String bootClassPath,
                          String systemClassPath, int port) {
@@ -67,6 +70,8 @@ final public class Server {
             this.trackRetransforms = trackRetransforms;
             this.scriptOutputFile = scriptOutputFile;
             this.fileRollMilliseconds = fileRollMilliseconds;
+            this.fileRollBytes = fileRollBytes;
+            this.fileRollCompress = fileRollCompress;
             this.unsafeMode = unsafeMode;
             this.dumpClasses = dumpClasses;
             this.dumpDir = dumpDir;
@@ -96,6 +101,17 @@ final public class Server {
                     fileRollMilliseconds = -1;
                 }
             }
+            p = args.get("fileRollBytes");
+            long fileRollBytes = -1;
+            if (p != null && p.length() > 0) {
+                try {
+                    fileRollBytes = Long.parseLong(p);
+                } catch (NumberFormatException nfe) {
+                    fileRollBytes = -1;
+                }
+            }
+            p = args.get("fileRollCompress");
+            boolean fileRollCompress = p != null && !"false".equals(p);
             p = args.get("unsafe");
             boolean unsafeMode = "true".equals(p);
             p = args.get("dumpClasses");
@@ -135,7 +151,8 @@ final public class Server {
             p = args.get("port");
             int port = p != null ? Integer.valueOf(p) : BTRACE_DEFAULT_PORT;
             return new Settings(debugMode, trackRetransforms, scriptOutputFile,
-                                fileRollMilliseconds, unsafeMode, dumpClasses,
+                                fileRollMilliseconds, fileRollBytes,
+                                fileRollCompress, unsafeMode, dumpClasses,
                                 dumpDir, traceToStdOut, probeDescPath, script,
                                 scriptDir, extPath, noServer, bootClassPath,
                                 systemClassPath, port);
@@ -143,7 +160,7 @@ final public class Server {
 
         @Override
         public String toString() {
-            return "BTrace Server Settings{" + "debugMode=" + debugMode + ", trackRetransforms=" + trackRetransforms + ", scriptOutputFile=" + scriptOutputFile + ", fileRollMilliseconds=" + fileRollMilliseconds + ", unsafeMode=" + unsafeMode + ", dumpClasses=" + dumpClasses + ", dumpDir=" + dumpDir + ", stdOut=" + stdOut + ", probeDescPath=" + probeDescPath + ", script=" + script + ", scriptDir=" + scriptDir + ", extPath=" + extPath + '}';
+            return "BTrace Server Settings{" + "debugMode=" + debugMode + ", trackRetransforms=" + trackRetransforms + ", scriptOutputFile=" + scriptOutputFile + ", fileRollMilliseconds=" + fileRollMilliseconds + ", fileRollBytes=" + fileRollBytes + ", fileRollCompress=" + fileRollCompress + ", unsafeMode=" + unsafeMode + ", dumpClasses=" + dumpClasses + ", dumpDir=" + dumpDir + ", stdOut=" + stdOut + ", probeDescPath=" + probeDescPath + ", script=" + script + ", scriptDir=" + scriptDir + ", extPath=" + extPath + '}';
         }
     }
 
@@ -47,9 +47,10 @@ import java.io.ObjectInput;
  */
 public abstract class AbstractCommand {
     transient final private int type;
-    transient final private int rx, tx;
+    transient private int rx, tx;
 
-    private final transient CommandImpl impl = CommandImpl.NULL;
+    // assigned directly by the owning {@linkplain CommandFactory}
+    transient CommandImpl impl = CommandImpl.NULL;
 
     public static final AbstractCommand NULL = new AbstractCommand(-1, 1, -1) {
         @Override
@@ -103,6 +104,41 @@ public abstract class AbstractCommand {
         return true;
     }
 
+    /**
+     * Can this command be dropped when the channel can not keep up with the producers?
+     * Only the commands carrying the trace data should be droppable; the control
+     * commands are always delivered.
+     * @return Returns <b>TRUE</b> if the command may be lost, <b>FALSE</b> otherwise
+     */
+    public boolean canBeDropped() {
+        return false;
+    }
+
+    /**
+     * Can this command instance be reused once it has been written out?
+     * <p>
+     * A recyclable command must not publish any of its state beyond
+     * {@linkplain #write(java.io.ObjectOutput)} and must reset itself in {@linkplain #recycle()}.
+     * The recyclable commands are pooled by the {@linkplain CommandFactory}.
+     * </p>
+     * @return Returns <b>TRUE</b> if the command can be pooled, <b>FALSE</b> otherwise
+     */
+    public boolean isRecyclable() {
+        return false;
+    }
+
+    /**
+     * Resets the command state before the instance is returned to the pool.
+     * To be overridden by recyclable subclasses.
+     */
+    protected void recycle() {
+    }
+
+    final void reinit(int rx, int tx) {
+        this.rx = rx;
+        this.tx = tx;
+    }
+
     /**
      * Executes the command with the given context
      * @param ctx The execution context - a command can use it to search for specific services and information
@@ -26,10 +26,15 @@ package net.java.btrace.api.wireio;
 
 import net.java.btrace.api.core.BTraceLogger;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * The representation of the communication channel.
@@ -45,21 +50,75 @@ abstract public class Channel {
     private final AtomicBoolean isInited = new AtomicBoolean(false);
 
     final private ConcurrentHashMap<Integer, ResponseHandler> responseMap = new ConcurrentHashMap<Integer, ResponseHandler>();
-    final private BlockingQueue<AbstractCommand> commandQueue = new ArrayBlockingQueue<AbstractCommand>(1280000);
+    /**
+     * The command queue capacity (rounded up to the nearest power of 2)
+     */
+    final private static int QUEUE_SIZE = Integer.getInteger("btrace.wire.queueSize", 256 * 1024);
+    /**
+     * What to do with a droppable command when the queue is full; one of <b>block</b>,
+     * <b>dropNewest</b> (default), <b>dropOldest</b> or <b>sample</b>
+     */
+    final private static CommandQueue.Overflow OVERFLOW = CommandQueue.Overflow.parse(System.getProperty("btrace.wire.overflow"));
+    /**
+     * Only every n-th droppable command is admitted to a more than half full queue in <b>sample</b> mode
+     */
+    final private static int SAMPLE_RATE = Math.max(1, Integer.getInteger("btrace.wire.sampleRate", 10));
+    /**
+     * The minimal interval between two drop summaries
+     */
+    final private static long DROP_REPORT_INTERVAL = TimeUnit.MILLISECONDS.toNanos(Long.getLong("btrace.wire.dropReportInterval", 1000L));
+    final private static long IDLE_WAIT = TimeUnit.SECONDS.toNanos(1);
+    // the drops of command types with higher ids are accounted to the last slot
+    final private static int MAX_DROP_TYPES = 256;
+
+    final private CommandQueue commandQueue = new CommandQueue(QUEUE_SIZE);
+    final private AtomicLongArray drops = new AtomicLongArray(MAX_DROP_TYPES);
+    final private AtomicLong dropCount = new AtomicLong();
+    final private AtomicInteger sampleCounter = new AtomicInteger();
+    // accessed only from the writer thread and the closing thread
+    private volatile long reportedDrops = 0L;
 
     private Thread delayedWriteService = null;
 
+    /**
+     * The maximum time a written command may wait before the channel is flushed
+     */
+    final private static long FLUSH_INTERVAL = TimeUnit.MILLISECONDS.toNanos(Long.getLong("btrace.wire.flushInterval", 10L));
+
     protected Channel(boolean useDelayedWrite) {
         if (useDelayedWrite) {
             delayedWriteService = new Thread(new Runnable() {
                 @Override
                 public void run() {
                     try {
+                        // the deadline for flushing the already written commands; 0 if there is nothing to flush
+                        long flushDeadline = 0L;
+                        long reportDeadline = System.nanoTime() + DROP_REPORT_INTERVAL;
                         while (!isClosed.get()) {
                             try {
-                                AbstractCommand cmd = commandQueue.poll(1, TimeUnit.SECONDS);
+                                long now = System.nanoTime();
+                                if (now - reportDeadline >= 0) {
+                                    if (reportDrops() && flushDeadline == 0L) {
+                                        // the summary must not wait for the next command
+                                        flushDeadline = now + FLUSH_INTERVAL;
+                                    }
+                                    reportDeadline = now + DROP_REPORT_INTERVAL;
+                                }
+                                AbstractCommand cmd;
+                                if (flushDeadline == 0L) {
+                                    cmd = commandQueue.poll(Math.min(IDLE_WAIT, reportDeadline - now));
+                                } else {
+                                    long wait = flushDeadline - now;
+                                    cmd = wait > 0 ? commandQueue.poll(wait) : null;
+                                }
                                 if (cmd != null) {
                                     writeCommand(cmd);
+                                    if (flushDeadline == 0L) {
+                                        flushDeadline = System.nanoTime() + FLUSH_INTERVAL;
+                                    }
+                                } else if (flushDeadline != 0L) {
+                                    flushCommands();
+                                    flushDeadline = 0L;
                                 }
                             } catch (InterruptedException e) {}
                         }
@@ -102,6 +161,49 @@ abstract public class Channel {
      */
     abstract public void writeCommand(AbstractCommand cmd) throws IOException;
 
+    /**
+     * Flushes the commands submitted by {@linkplain #writeCommand(net.java.btrace.api.wireio.AbstractCommand)}.
+     * Called by the delayed writer once the flush interval (<b>btrace.wire.flushInterval</b> ms)
+     * since the first unflushed command has elapsed.
+     * To be overridden by the implementations buffering the written commands.
+     * @throws IOException
+     */
+    protected void flushCommands() throws IOException {
+    }
+
+    /**
+     * Takes the next command from the queue of the submitted commands.
+     * For the implementations not using the delayed writer and draining the queue themselves.
+     * @return The next command or <b>NULL</b> if the queue is empty
+     */
+    final protected AbstractCommand pollCommand() {
+        return commandQueue.poll();
+    }
+
+    /**
+     * Called after a command has been submitted to the queue.
+     * To be overridden by the implementations draining the queue themselves.
+     */
+    protected void commandQueued() {
+    }
+
+    /**
+     * Creates a command summarizing the commands dropped because of the queue overflow.
+     * To be overridden by the implementations able to report the drops to the other side.
+     * @param drops The number of dropped commands per command type since the last summary
+     * @return The summary command or <b>NULL</b> if the drops can not be reported
+     */
+    protected AbstractCommand prepareDropSummary(Map<String, Long> drops) {
+        return null;
+    }
+
+    /**
+     * @return The total number of commands dropped by this channel
+     */
+    final public long getDropCount() {
+        return dropCount.get();
+    }
+
     /**
      * Perform the close operation.
      * To be overridden.
@@ -124,14 +226,17 @@ abstract public class Channel {
      */
     final public void close() {
         if (isClosed.compareAndSet(false, true)) {
-            delayedWriteService.interrupt();
+            if (delayedWriteService != null) {
+                delayedWriteService.interrupt();
+            }
             try {
                 // drain the queue
-                Collection<AbstractCommand> drainage = new ArrayList<AbstractCommand>();
-                commandQueue.drainTo(drainage);
-                for (AbstractCommand cmd : drainage) {
+                AbstractCommand cmd;
+                while ((cmd = commandQueue.poll()) != null) {
                     writeCommand(cmd);
                 }
+                reportDrops();
+                flushCommands();
             } catch (IOException e) {
                 BTraceLogger.debugPrint(e);
             }
@@ -169,19 +274,56 @@ abstract public class Channel {
         }
         T cmd = prepareCommand(clz, init);
         if (cmd != null) {
-            try {
-                ResponseHandler<V> rslt = addResponseHandler(cmd);
-                commandQueue.put(cmd);
-                return rslt;
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-            }
+            return sendCommand(cmd);
         } else {
             BTraceLogger.debugPrint("can not instantiate " + clz.getName() + " command!");
         }
         return Response.NULL;
     }
 
+    /**
+     * Sends a command created by {@linkplain #prepareCommand(java.lang.Class, net.java.btrace.api.wireio.AbstractCommand.Initializer)}
+     * @param <V> The response type type
+     * @param cmd The command to send
+     * @return Returns an asynchronous {@linkplain Response}
+     */
+    final public <V> Response<V> sendCommand(AbstractCommand cmd) {
+        if (isClosed.get()) {
+            return Response.NULL;
+        }
+        try {
+            ResponseHandler<V> rslt = addResponseHandler(cmd);
+            enqueue(cmd);
+            commandQueued();
+            return rslt;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return Response.NULL;
+    }
+
+    /**
+     * Sends a batch of commands created by {@linkplain #prepareCommand(java.lang.Class, net.java.btrace.api.wireio.AbstractCommand.Initializer)}.
+     * The commands are submitted in the given order and the writer is notified only once.
+     * No responses are tracked for the batched commands.
+     * @param cmds The commands to send; the array is not retained
+     * @param count The number of commands to send from the beginning of the array
+     */
+    final public void sendCommands(AbstractCommand[] cmds, int count) {
+        if (isClosed.get() || count == 0) {
+            return;
+        }
+        try {
+            for(int i=0;i<count;i++) {
+                enqueue(cmds[i]);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            commandQueued();
+        }
+    }
+
     /**
      * Sends a response of the given type
      * @param <T> The response type type
@@ -199,6 +341,7 @@ abstract public class Channel {
         if (response != null) {
             try {
                 commandQueue.put(response);
+                commandQueued();
             } catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
             }
@@ -207,6 +350,78 @@ abstract public class Channel {
         }
     }
 
+    private void enqueue(AbstractCommand cmd) throws InterruptedException {
+        if (!cmd.canBeDropped() || OVERFLOW == CommandQueue.Overflow.BLOCK) {
+            commandQueue.put(cmd);
+            return;
+        }
+        switch (OVERFLOW) {
+            case SAMPLE: {
+                if (commandQueue.size() > commandQueue.capacity() / 2 &&
+                    sampleCounter.getAndIncrement() % SAMPLE_RATE != 0) {
+                    dropped(cmd);
+                    return;
+                }
+                break;
+            }
+            case DROP_OLDEST: {
+                while (!commandQueue.offer(cmd)) {
+                    AbstractCommand oldest = commandQueue.pollDroppable();
+                    if (oldest == null) {
+                        // the oldest command must be delivered; give up on the new one instead
+                        dropped(cmd);
+                        return;
+                    }
+                    dropped(oldest);
+                }
+                return;
+            }
+        }
+        if (!commandQueue.offer(cmd)) {
+            dropped(cmd);
+        }
+    }
+
+    private void dropped(AbstractCommand cmd) {
+        int type = cmd.getType();
+        drops.incrementAndGet(type >= 0 && type < MAX_DROP_TYPES ? type : MAX_DROP_TYPES - 1);
+        dropCount.incrementAndGet();
+    }
+
+    /**
+     * Sends out the summary of the commands dropped since the last call, if any.
+     * Called periodically by the delayed writer; the implementations draining the
+     * queue themselves are responsible for calling it.
+     * @return <b>TRUE</b> if a summary has been written and needs flushing
+     * @throws IOException
+     */
+    final protected boolean reportDrops() throws IOException {
+        if (dropCount.get() == reportedDrops) {
+            return false;
+        }
+        reportedDrops = dropCount.get();
+
+        List<Class<? extends AbstractCommand>> cmds = getCommandFactory() != null ?
+                getCommandFactory().listSupportedCommands() : Collections.<Class<? extends AbstractCommand>>emptyList();
+        Map<String, Long> summary = new HashMap<String, Long>();
+        for(int i=0;i<MAX_DROP_TYPES;i++) {
+            long cnt = drops.getAndSet(i, 0);
+            if (cnt > 0) {
+                Class<? extends AbstractCommand> clz = i < cmds.size() ? cmds.get(i) : null;
+                summary.put(clz != null ? clz.getSimpleName() : "#" + i, cnt);
+            }
+        }
+        if (summary.isEmpty()) return false;
+
+        BTraceLogger.debugPrint("commands dropped: " + summary);
+        AbstractCommand cmd = prepareDropSummary(summary);
+        if (cmd != null) {
+            writeCommand(cmd);
+            return true;
+        }
+        return false;
+    }
+
     /**
      * Creates a command of the given type and with the given initialiser
      * @param <T> The command type type
@@ -28,7 +28,6 @@ import net.java.btrace.api.core.BTraceLogger;
 import net.java.btrace.api.core.ServiceLocator;
 import net.java.btrace.spi.wireio.CommandImpl;
 import java.lang.reflect.Constructor;
-import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.security.AccessController;
 import java.security.PrivilegedAction;
@@ -39,6 +38,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.WeakHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * A factory for instances of {@linkplain AbstractCommand}.
@@ -46,34 +46,76 @@ import java.util.concurrent.atomic.AtomicInteger;
  * @since 2.0
  */
 public class CommandFactory {
-    private static class FactoryMethod<T extends AbstractCommand> {
-        private CommandImpl<T> impl;
-        private final Constructor<T> constructor;
-        private static Field implFld;
-        private final int type;
+    /**
+     * The number of pooled instances per recyclable command type; 0 disables pooling
+     */
+    final private static int POOL_SIZE = Integer.getInteger("btrace.commands.poolSize", 64);
+    // the number of slots a thread will try when acquiring or releasing a pooled command
+    final private static int POOL_PROBES = 8;
+
+    private static volatile CommandInstantiatorGenerator instantiatorGenerator = null;
+
+    /**
+     * Sets the generator used to create non-reflective command instantiators.
+     * Factories created before this call keep using the reflective instantiation.
+     * @param gen The generator to use or <b>NULL</b> to use reflection only
+     */
+    public static void setInstantiatorGenerator(CommandInstantiatorGenerator gen) {
+        instantiatorGenerator = gen;
+    }
 
-        static {
+    private static class ReflectiveInstantiator extends CommandInstantiator {
+        private final Constructor<? extends AbstractCommand> constructor;
+
+        public ReflectiveInstantiator(final Constructor<? extends AbstractCommand> constructor) {
+            this.constructor = constructor;
+            AccessController.doPrivileged(new PrivilegedAction<Void>() {
+                @Override
+                public Void run() {
+                    constructor.setAccessible(true);
+                    return null;
+                }
+            });
+        }
+
+        @Override
+        public AbstractCommand newInstance(int type, int rx, int tx) {
             try {
-                implFld = AbstractCommand.class.getDeclaredField("impl");
-                AccessController.doPrivileged(new PrivilegedAction<Void>() {
-                    @Override
-                    public Void run() {
-                        implFld.setAccessible(true);
-                        return null;
-                    }
-                });
-            } catch (NoSuchFieldException e) {
-                implFld = null;
-            } catch (SecurityException e) {
-                implFld = null;
+                return constructor.newInstance(type, rx, tx);
+            } catch (InstantiationException e) {
+                e.printStackTrace(System.err);
+            } catch (IllegalAccessException e) {
+                e.printStackTrace(System.err);
+            } catch (IllegalArgumentException e) {
+                e.printStackTrace(System.err);
+            } catch (InvocationTargetException e) {
+                e.printStackTrace(System.err);
             }
+            return null;
+        }
+    }
+
+    private static class InstantiatorLoader extends ClassLoader {
+        public InstantiatorLoader(ClassLoader parent) {
+            super(parent);
         }
 
+        Class<?> define(String name, byte[] code) {
+            return defineClass(name, code, 0, code.length);
+        }
+    }
+
+    private static class FactoryMethod<T extends AbstractCommand> {
+        private volatile CommandImpl<T> impl;
+        private final CommandInstantiator instantiator;
+        private final int type;
+        private final AtomicReferenceArray<T> pool;
+
         public FactoryMethod(CommandImpl<T> impl, Constructor<T> constructor, int type) {
-            this.constructor = constructor;
             this.type = type;
-            this.constructor.setAccessible(true);
+            this.instantiator = createInstantiator(constructor);
             updateImpl(impl);
+            this.pool = POOL_SIZE > 0 && isRecyclable() ? new AtomicReferenceArray<T>(POOL_SIZE) : null;
         }
 
         private void updateImpl(CommandImpl<T> impl) {
@@ -81,23 +123,74 @@ public class CommandFactory {
         }
 
         public T newInstance(int rx, int tx) {
-            try {
-                T instance = constructor.newInstance(type, rx, tx);
-                if (implFld != null) {
-                    implFld.set(instance, impl);
+            T instance = acquire();
+            if (instance != null) {
+                instance.reinit(rx, tx);
+            } else {
+                instance = (T)instantiator.newInstance(type, rx, tx);
+                if (instance == null) return null;
+            }
+            instance.impl = impl;
+            return instance;
+        }
+
+        /**
+         * Returns the command to the pool
+         * @param cmd The command which is not going to be used any more
+         */
+        public void release(T cmd) {
+            if (pool == null || cmd.getType() != type) return;
+            cmd.recycle();
+            int start = (int)Thread.currentThread().getId();
+            for(int i=0;i<POOL_PROBES;i++) {
+                int idx = (start + i) % POOL_SIZE;
+                if (pool.get(idx) == null && pool.compareAndSet(idx, null, cmd)) {
+                    return;
+                }
+            }
+            // pool is full; let the command be garbage collected
+        }
+
+        private T acquire() {
+            if (pool == null) return null;
+            int start = (int)Thread.currentThread().getId();
+            for(int i=0;i<POOL_PROBES;i++) {
+                int idx = (start + i) % POOL_SIZE;
+                T cmd = pool.get(idx);
+                if (cmd != null && pool.compareAndSet(idx, cmd, null)) {
+                    return cmd;
                 }
-                return instance;
-            } catch (InstantiationException e) {
-                e.printStackTrace(System.err);
-            } catch (IllegalAccessException e) {
-                e.printStackTrace(System.err);
-            } catch (IllegalArgumentException e) {
-                e.printStackTrace(System.err);
-            } catch (InvocationTargetException e) {
-                e.printStackTrace(System.err);
             }
             return null;
         }
+
+        private boolean isRecyclable() {
+            AbstractCommand prototype = instantiator.newInstance(type, -1, -1);
+            return prototype != null && prototype.isRecyclable();
+        }
+
+        private static CommandInstantiator createInstantiator(Constructor<? extends AbstractCommand> constructor) {
+            CommandInstantiatorGenerator gen = instantiatorGenerator;
+            if (gen != null) {
+                final Class<? extends AbstractCommand> cmdClz = constructor.getDeclaringClass();
+                try {
+                    final String className = cmdClz.getName() + "$BTraceInstantiator";
+                    final byte[] code = gen.generate(cmdClz, className.replace('.', '/'));
+                    Class<?> instClz = AccessController.doPrivileged(new PrivilegedAction<Class<?>>() {
+                        @Override
+                        public Class<?> run() {
+                            return new InstantiatorLoader(cmdClz.getClassLoader()).define(className, code);
+                        }
+                    });
+                    return (CommandInstantiator)instClz.newInstance();
+                } catch (IllegalArgumentException e) {
+                    // the command can not be instantiated directly
+                } catch (Throwable e) {
+                    BTraceLogger.debugPrint(e);
+                }
+            }
+            return new ReflectiveInstantiator(constructor);
+        }
     }
 
     private final Map<Integer, FactoryMethod> mapById = new HashMap();
@@ -137,7 +230,6 @@ public class CommandFactory {
                 Class<? extends AbstractCommand> cmdClz = ann.clazz();
                 if (!mapByType.containsKey(cmdClz)) {
                     Constructor<? extends AbstractCommand> constructor = cmdClz.getDeclaredConstructor(int.class, int.class, int.class);
-                    constructor.setAccessible(true);
 
                     Integer cmdId = mapper.get(cmdClz);
                     if (cmdId == null) {
@@ -158,7 +250,6 @@ public class CommandFactory {
     private void copyInitialMapper(Map<Class<? extends AbstractCommand>, Integer> mapper) throws NoSuchMethodException, SecurityException {
         for(Map.Entry<Class<? extends AbstractCommand>, Integer> mapping : mapper.entrySet()) {
             Constructor<? extends AbstractCommand> constructor = mapping.getKey().getDeclaredConstructor(int.class, int.class, int.class);
-            constructor.setAccessible(true);
             FactoryMethod fm = new FactoryMethod(CommandImpl.NULL, constructor, mapping.getValue());
             int id = mapping.getValue();
             lastTypeId = Math.max(lastTypeId, id + 1);
@@ -192,7 +283,6 @@ public class CommandFactory {
      * @return Returns a new instance of {@linkplain CommandFactory} or <b>NULL</b>
      */
     public static CommandFactory getInstance(Class<? extends AbstractCommand>[] mapping, ClassLoader cl, Command.Target target) {
-        ServiceLocator.listServiceNames(CommandImpl.class, cl);
         try {
             Iterable<CommandImpl> rslt = ServiceLocator.listServices(CommandImpl.class, cl);
             if (rslt != null) {
@@ -251,6 +341,19 @@ public class CommandFactory {
         return null;
     }
 
+    /**
+     * Returns a command which is not going to be used any more to the pool.
+     * Commands not marked as {@linkplain AbstractCommand#isRecyclable() recyclable} are ignored.
+     * @param cmd The command to recycle
+     */
+    public void recycle(AbstractCommand cmd) {
+        if (cmd == null || !cmd.isRecyclable()) return;
+        FactoryMethod fm = mapByType.get(cmd.getClass());
+        if (fm != null) {
+            fm.release(cmd);
+        }
+    }
+
     private int incCounter() {
         int cntr = rxCntr.getAndIncrement();
         if (cntr == MAX_SEQ_NR) {
@@ -286,11 +389,10 @@ public class CommandFactory {
 
             try {
                 Constructor<? extends AbstractCommand> constructor = cmdClz.getDeclaredConstructor(int.class, int.class, int.class);
-                constructor.setAccessible(true);
 
                 int id = cnt++;
                 FactoryMethod fm = new FactoryMethod(CommandImpl.NULL, constructor, id);
-                mapById.put(cnt, fm);
+                mapById.put(id, fm);
                 mapByType.put(cmdClz, fm);
             } catch (NoSuchMethodException e) {
                 BTraceLogger.debugPrint(e);
@@ -0,0 +1,45 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package net.java.btrace.api.wireio;
+
+/**
+ * This interface is used to generate .class bytes for
+ * a {@linkplain CommandInstantiator} subclass that calls
+ * the public <b>(int, int, int)</b> constructor of the given command type directly.
+ *
+ * @author Jaroslav Bachorik
+ * @since 2.0
+ */
+public interface CommandInstantiatorGenerator {
+    /**
+     * Generate class bytes for {@linkplain CommandInstantiator}
+     * implementation and return the same.
+     * @param cmdClass The command type to create the instantiator for
+     * @param className The internal name of the generated class
+     * @return The generated class bytes
+     * @throws IllegalArgumentException if the command type can not be instantiated directly
+     */
+    public byte[] generate(Class<? extends AbstractCommand> cmdClass, String className);
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package net.java.btrace.api.wireio;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded, lock-free queue of commands waiting to be written out by the channel.
+ * <p>
+ * Any number of producers may {@linkplain #offer(AbstractCommand) offer} commands;
+ * a full queue is reported back immediately instead of parking the producer.
+ * There is one consumer (the channel writer) which may wait for new commands.
+ * Producers may additionally remove the oldest command if it is
+ * {@linkplain AbstractCommand#canBeDropped() droppable} to make space for a new one.
+ * </p>
+ * <p>
+ * The implementation is an array of slots each carrying its own sequence number
+ * (a la D.Vyukov's bounded MPMC queue) so the producers only contend on the tail counter.
+ * </p>
+ * @author Jaroslav Bachorik
+ */
+final class CommandQueue {
+    /**
+     * Policy applied to a droppable command when the queue is full
+     */
+    static enum Overflow {
+        /**
+         * Wait for the writer to make space
+         */
+        BLOCK,
+        /**
+         * Drop the command being submitted
+         */
+        DROP_NEWEST,
+        /**
+         * Drop the oldest droppable command in the queue
+         */
+        DROP_OLDEST,
+        /**
+         * Admit only every n-th droppable command once the queue is half full
+         */
+        SAMPLE;
+
+        static Overflow parse(String val) {
+            if (val != null) {
+                val = val.trim();
+                for(Overflow o : values()) {
+                    if (o.name().replace("_", "").equalsIgnoreCase(val.replace("_", "").replace("-", ""))) {
+                        return o;
+                    }
+                }
+            }
+            return DROP_NEWEST;
+        }
+    }
+
+    // the number of unsuccessful attempts before the waiting thread yields or parks
+    private static final int SPINS = 64;
+    private static final long PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    private final AtomicReferenceArray<AbstractCommand> buffer;
+    private final AtomicLongArray sequence;
+    private final int mask;
+
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong head = new AtomicLong();
+    // the consumer thread parked in poll(), if any
+    private final AtomicReference<Thread> waiter = new AtomicReference<Thread>();
+
+    CommandQueue(int size) {
+        int capacity = 1;
+        while (capacity < size) {
+            capacity <<= 1;
+        }
+        buffer = new AtomicReferenceArray<AbstractCommand>(capacity);
+        sequence = new AtomicLongArray(capacity);
+        for(int i=0;i<capacity;i++) {
+            sequence.set(i, i);
+        }
+        mask = capacity - 1;
+    }
+
+    int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * @return The approximate number of the queued commands
+     */
+    int size() {
+        long s = tail.get() - head.get();
+        return s < 0 ? 0 : (int)Math.min(s, capacity());
+    }
+
+    /**
+     * Enqueues the command if there is space left; never blocks
+     * @param cmd The command to enqueue
+     * @return <b>TRUE</b> if the command has been enqueued, <b>FALSE</b> if the queue is full
+     */
+    boolean offer(AbstractCommand cmd) {
+        long pos = tail.get();
+        while (true) {
+            int idx = (int)pos & mask;
+            long dif = sequence.get(idx) - pos;
+            if (dif == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    buffer.lazySet(idx, cmd);
+                    // volatile store; orders the publication before the waiter read in signal()
+                    sequence.set(idx, pos + 1);
+                    signal();
+                    return true;
+                }
+                pos = tail.get();
+            } else if (dif < 0) {
+                return false;
+            } else {
+                pos = tail.get();
+            }
+        }
+    }
+
+    /**
+     * Enqueues the command, waiting for space if necessary
+     * @param cmd The command to enqueue
+     * @throws InterruptedException
+     */
+    void put(AbstractCommand cmd) throws InterruptedException {
+        int spins = 0;
+        while (!offer(cmd)) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            backoff(++spins);
+        }
+    }
+
+    /**
+     * Dequeues the oldest command
+     * @return The oldest command or <b>NULL</b> if the queue is empty
+     */
+    AbstractCommand poll() {
+        return poll(false);
+    }
+
+    /**
+     * Dequeues the oldest command, waiting for one to arrive if necessary.
+     * Only the consumer thread may call this method.
+     * @param timeout The maximum time to wait in nanoseconds
+     * @return The oldest command or <b>NULL</b> if none arrived in time
+     * @throws InterruptedException
+     */
+    AbstractCommand poll(long timeout) throws InterruptedException {
+        long deadline = System.nanoTime() + timeout;
+        int spins = 0;
+        while (true) {
+            AbstractCommand cmd = poll(false);
+            if (cmd != null) {
+                return cmd;
+            }
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return null;
+            }
+            if (++spins < SPINS) {
+                continue;
+            }
+            Thread me = Thread.currentThread();
+            waiter.set(me);
+            // re-check after announcing ourselves so a concurrent offer can not be missed
+            cmd = poll(false);
+            if (cmd != null) {
+                waiter.compareAndSet(me, null);
+                return cmd;
+            }
+            LockSupport.parkNanos(this, remaining);
+            waiter.compareAndSet(me, null);
+        }
+    }
+
+    /**
+     * Removes the oldest command provided it can be dropped.
+     * Used by the producers to make space in a full queue.
+     * @return The removed command or <b>NULL</b> if the oldest command can not be dropped
+     */
+    AbstractCommand pollDroppable() {
+        return poll(true);
+    }
+
+    private AbstractCommand poll(boolean droppableOnly) {
+        long pos = head.get();
+        while (true) {
+            int idx = (int)pos & mask;
+            long dif = sequence.get(idx) - (pos + 1);
+            if (dif == 0) {
+                AbstractCommand cmd = buffer.get(idx);
+                // the slot can not be reused before the head moves past it; the CAS would fail then
+                if (droppableOnly && (cmd == null || !cmd.canBeDropped())) {
+                    return null;
+                }
+                if (head.compareAndSet(pos, pos + 1)) {
+                    buffer.lazySet(idx, null);
+                    sequence.set(idx, pos + mask + 1);
+                    return cmd;
+                }
+                pos = head.get();
+            } else if (dif < 0) {
+                return null;
+            } else {
+                pos = head.get();
+            }
+        }
+    }
+
+    private void signal() {
+        Thread w = waiter.get();
+        if (w != null && waiter.compareAndSet(w, null)) {
+            LockSupport.unpark(w);
+        }
+    }
+
+    private static void backoff(int spins) {
+        if (spins < SPINS) {
+            // busy spin
+        } else if (spins < SPINS * 2) {
+            Thread.yield();
+        } else {
+            LockSupport.parkNanos(PARK_NANOS);
+        }
+    }
+}
@@ -0,0 +1,327 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package net.java.btrace.api.wireio;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectInputStream;
+import java.io.UTFDataFormatException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static net.java.btrace.api.wireio.FrameOutput.*;
+
+/**
+ * The reading counterpart of {@linkplain FrameOutput}.
+ * <p>
+ * Reads one length-prefixed frame at a time and maintains the string table
+ * populated by the writing side.
+ * </p>
+ * @author Jaroslav Bachorik
+ * @since 2.0
+ */
+final public class FrameInput implements ObjectInput {
+    final private List<String> strings = new ArrayList<String>();
+    final private ClassLoader loader;
+
+    private byte[] buf = new byte[0];
+    private int pos;
+    private int limit;
+
+    public FrameInput(ClassLoader loader) {
+        this.loader = loader;
+    }
+
+    /**
+     * Reads the next frame from the given input
+     * @param in The input to read the frame from
+     * @throws IOException
+     */
+    public void readFrame(ObjectInput in) throws IOException {
+        int len = in.readInt();
+        if (len < 0) {
+            throw new IOException("invalid frame length " + len);
+        }
+        if (buf.length < len) {
+            buf = new byte[len];
+        }
+        in.readFully(buf, 0, len);
+        pos = 0;
+        limit = len;
+    }
+
+    /**
+     * Takes the next frame from the given bytes; the bytes are copied
+     * @param b The frame contents
+     * @param off The frame offset
+     * @param len The frame length
+     */
+    public void readFrame(byte[] b, int off, int len) {
+        if (buf.length < len) {
+            buf = new byte[len];
+        }
+        System.arraycopy(b, off, buf, 0, len);
+        pos = 0;
+        limit = len;
+    }
+
+    /**
+     * @return <b>TRUE</b> if there are more data in the current frame
+     */
+    public boolean hasMore() {
+        return pos < limit;
+    }
+
+    /**
+     * Reads the command header written by {@linkplain FrameOutput#writeHeader(net.java.btrace.api.wireio.AbstractCommand)}
+     * and restores the appropriate command
+     * @param cf The {@linkplain CommandFactory} to use
+     * @return Returns the restored command, its contents still to be read
+     * @throws IOException if the command type is not known; neither the rest of the frame
+     *         nor the string definitions it might contain can be interpreted then
+     *         and the connection is not usable any more
+     */
+    public AbstractCommand restoreCommand(CommandFactory cf) throws IOException {
+        int type = readVarInt();
+        int rx = unZigZag(readVarInt());
+        int tx = unZigZag(readVarInt());
+        AbstractCommand c = cf.restoreCommand(type, rx, tx);
+        if (c == null) {
+            pos = limit;
+            throw new IOException("unknown command type " + type);
+        }
+        return c;
+    }
+
+    @Override
+    public Object readObject() throws ClassNotFoundException, IOException {
+        int tag = read();
+        switch (tag) {
+            case OBJ_NULL: return null;
+            case OBJ_STRING: return readString();
+            case OBJ_INT: return readInt();
+            case OBJ_LONG: return readLong();
+            case OBJ_DOUBLE: return readDouble();
+            case OBJ_FLOAT: return readFloat();
+            case OBJ_SHORT: return readShort();
+            case OBJ_BYTE: return readByte();
+            case OBJ_BOOLEAN: return readBoolean();
+            case OBJ_CHAR: return readChar();
+            case OBJ_SERIALIZED: {
+                int len = readVarInt();
+                require(len);
+                ObjectInputStream ois = new ObjectInputStreamEx(new ByteArrayInputStream(buf, pos, len), loader);
+                pos += len;
+                try {
+                    return ois.readObject();
+                } finally {
+                    ois.close();
+                }
+            }
+            default: throw new IOException("unknown object tag " + tag);
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        require(1);
+        return buf[pos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b) throws IOException {
+        return read(b, 0, b.length);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (pos >= limit) return -1;
+        int cnt = Math.min(len, limit - pos);
+        System.arraycopy(buf, pos, b, off, cnt);
+        pos += cnt;
+        return cnt;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        int cnt = (int)Math.min(n, limit - pos);
+        pos += cnt;
+        return cnt;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return limit - pos;
+    }
+
+    @Override
+    public void close() throws IOException {
+        pos = limit;
+    }
+
+    @Override
+    public void readFully(byte[] b) throws IOException {
+        readFully(b, 0, b.length);
+    }
+
+    @Override
+    public void readFully(byte[] b, int off, int len) throws IOException {
+        require(len);
+        System.arraycopy(buf, pos, b, off, len);
+        pos += len;
+    }
+
+    @Override
+    public int skipBytes(int n) throws IOException {
+        return (int)skip(n);
+    }
+
+    @Override
+    public boolean readBoolean() throws IOException {
+        return read() != 0;
+    }
+
+    @Override
+    public byte readByte() throws IOException {
+        return (byte)read();
+    }
+
+    @Override
+    public int readUnsignedByte() throws IOException {
+        return read();
+    }
+
+    @Override
+    public short readShort() throws IOException {
+        require(2);
+        int v = ((buf[pos] & 0xff) << 8) | (buf[pos + 1] & 0xff);
+        pos += 2;
+        return (short)v;
+    }
+
+    @Override
+    public int readUnsignedShort() throws IOException {
+        return readShort() & 0xffff;
+    }
+
+    @Override
+    public char readChar() throws IOException {
+        return (char)readShort();
+    }
+
+    @Override
+    public int readInt() throws IOException {
+        require(4);
+        int v = ((buf[pos] & 0xff) << 24) | ((buf[pos + 1] & 0xff) << 16) |
+                ((buf[pos + 2] & 0xff) << 8) | (buf[pos + 3] & 0xff);
+        pos += 4;
+        return v;
+    }
+
+    @Override
+    public long readLong() throws IOException {
+        return ((long)readInt() << 32) | (readInt() & 0xffffffffL);
+    }
+
+    @Override
+    public float readFloat() throws IOException {
+        return Float.intBitsToFloat(readInt());
+    }
+
+    @Override
+    public double readDouble() throws IOException {
+        return Double.longBitsToDouble(readLong());
+    }
+
+    @Override
+    public String readLine() throws IOException {
+        if (pos >= limit) return null;
+        StringBuilder sb = new StringBuilder();
+        while (pos < limit) {
+            char c = (char)(buf[pos++] & 0xff);
+            if (c == '\n') break;
+            if (c != '\r') sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public String readUTF() throws IOException {
+        return readString();
+    }
+
+    private String readString() throws IOException {
+        int tag = readVarInt();
+        switch (tag) {
+            case STR_LITERAL: {
+                return readStringBytes();
+            }
+            case STR_DEFINE: {
+                String s = readStringBytes();
+                strings.add(s);
+                return s;
+            }
+            default: {
+                int idx = tag - STR_REF_BASE;
+                if (idx >= strings.size()) {
+                    throw new UTFDataFormatException("unknown string reference " + idx);
+                }
+                return strings.get(idx);
+            }
+        }
+    }
+
+    private String readStringBytes() throws IOException {
+        int len = readVarInt();
+        require(len);
+        String s = new String(buf, pos, len, UTF8);
+        pos += len;
+        return s;
+    }
+
+    int readVarInt() throws IOException {
+        int v = 0;
+        for(int shift = 0; shift < 32; shift += 7) {
+            int b = read();
+            v |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return v;
+            }
+        }
+        throw new IOException("malformed varint");
+    }
+
+    private static int unZigZag(int v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    private void require(int len) throws EOFException {
+        if (len < 0 || pos + len > limit) {
+            throw new EOFException();
+        }
+    }
+}
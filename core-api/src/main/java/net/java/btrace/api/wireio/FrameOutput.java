@@ -0,0 +1,367 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package net.java.btrace.api.wireio;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutput;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * A compact, binary {@linkplain ObjectOutput} packing many commands into one frame.
+ * <p>
+ * Primitives are written in the usual big-endian {@linkplain java.io.DataOutput} format,
+ * strings are UTF-8 encoded and, once seen repeatedly, replaced by an index into a string table
+ * shared with the reading {@linkplain FrameInput} for the lifetime of the connection.
+ * The common boxed types are written with a one-byte tag instead of going through Java serialization;
+ * only the other objects are serialized.
+ * </p>
+ * @author Jaroslav Bachorik
+ * @since 2.0
+ */
+final public class FrameOutput implements ObjectOutput {
+    final static Charset UTF8 = Charset.forName("UTF-8");
+
+    // string tags
+    final static int STR_LITERAL = 0;
+    final static int STR_DEFINE = 1;
+    final static int STR_REF_BASE = 2;
+
+    // object tags
+    final static int OBJ_NULL = 0;
+    final static int OBJ_STRING = 1;
+    final static int OBJ_INT = 2;
+    final static int OBJ_LONG = 3;
+    final static int OBJ_DOUBLE = 4;
+    final static int OBJ_FLOAT = 5;
+    final static int OBJ_SHORT = 6;
+    final static int OBJ_BYTE = 7;
+    final static int OBJ_BOOLEAN = 8;
+    final static int OBJ_CHAR = 9;
+    final static int OBJ_SERIALIZED = 10;
+
+    // maximum number of entries in the string table
+    final static int MAX_STRINGS = 16384;
+    // longer strings are never interned
+    final private static int MAX_INTERNED_LENGTH = 1024;
+    // direct-mapped hashes of the recently seen strings; a string is interned on its second occurrence
+    final private static int SEEN_SIZE = 4096;
+
+    final private Map<String, Integer> strings = new HashMap<String, Integer>();
+    final private int[] seen = new int[SEEN_SIZE];
+
+    final private boolean direct;
+    // the frame being assembled; its position is the frame size
+    private ByteBuffer buf;
+    // the frame size and the string table size recorded by mark()
+    private int markPosition = 0;
+    private int markStrings = 0;
+
+    public FrameOutput(int initialSize) {
+        this(initialSize, false);
+    }
+
+    /**
+     * @param initialSize The initial frame buffer capacity
+     * @param direct Use a direct {@linkplain ByteBuffer} so the frames can be written to a NIO channel without copying
+     */
+    public FrameOutput(int initialSize, boolean direct) {
+        this.direct = direct;
+        this.buf = allocate(initialSize);
+    }
+
+    /**
+     * @return The number of bytes in the current frame
+     */
+    public int size() {
+        return buf.position();
+    }
+
+    /**
+     * Provides a read-only view of the current frame contents without copying them.
+     * The view is valid until the frame is {@linkplain #reset() reset}; no writes
+     * are allowed in the meantime.
+     * @return The current frame contents
+     */
+    public ByteBuffer frame() {
+        ByteBuffer view = buf.duplicate();
+        view.flip();
+        return view.asReadOnlyBuffer();
+    }
+
+    /**
+     * Discards the current frame
+     */
+    public void reset() {
+        buf.clear();
+        markPosition = 0;
+    }
+
+    /**
+     * Remembers the current frame size and string table for {@linkplain #rollback()}
+     */
+    public void mark() {
+        markPosition = buf.position();
+        markStrings = strings.size();
+    }
+
+    /**
+     * Discards everything written since the last {@linkplain #mark()}, including
+     * the strings defined in the meantime; the reading side would never learn about them.
+     * Used to drop a command which failed to be written completely.
+     */
+    public void rollback() {
+        buf.position(markPosition);
+        if (strings.size() > markStrings) {
+            for(Iterator<Integer> iter = strings.values().iterator(); iter.hasNext();) {
+                if (iter.next() >= markStrings) {
+                    iter.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the current frame, prefixed by its length, and resets the buffer
+     * @param out The output to write the frame to
+     * @throws IOException
+     */
+    public void writeFrame(ObjectOutput out) throws IOException {
+        int count = buf.position();
+        if (count == 0) return;
+        out.writeInt(count);
+        if (buf.hasArray()) {
+            out.write(buf.array(), buf.arrayOffset(), count);
+        } else {
+            byte[] bytes = new byte[count];
+            buf.flip();
+            buf.get(bytes);
+            out.write(bytes);
+        }
+        reset();
+    }
+
+    /**
+     * Writes the command header - type, rx and tx
+     * @param cmd The command to write the header for
+     */
+    public void writeHeader(AbstractCommand cmd) {
+        writeVarInt(cmd.getType());
+        writeVarInt(zigZag(cmd.getRx()));
+        writeVarInt(zigZag(cmd.getTx()));
+    }
+
+    @Override
+    public void writeObject(Object obj) throws IOException {
+        if (obj == null) {
+            write(OBJ_NULL);
+        } else if (obj instanceof String) {
+            write(OBJ_STRING);
+            writeString((String)obj);
+        } else if (obj instanceof Integer) {
+            write(OBJ_INT);
+            writeInt((Integer)obj);
+        } else if (obj instanceof Long) {
+            write(OBJ_LONG);
+            writeLong((Long)obj);
+        } else if (obj instanceof Double) {
+            write(OBJ_DOUBLE);
+            writeDouble((Double)obj);
+        } else if (obj instanceof Float) {
+            write(OBJ_FLOAT);
+            writeFloat((Float)obj);
+        } else if (obj instanceof Short) {
+            write(OBJ_SHORT);
+            writeShort((Short)obj);
+        } else if (obj instanceof Byte) {
+            write(OBJ_BYTE);
+            writeByte((Byte)obj);
+        } else if (obj instanceof Boolean) {
+            write(OBJ_BOOLEAN);
+            writeBoolean((Boolean)obj);
+        } else if (obj instanceof Character) {
+            write(OBJ_CHAR);
+            writeChar((Character)obj);
+        } else {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            ObjectOutputStream oos = new ObjectOutputStream(bos);
+            oos.writeObject(obj);
+            oos.close();
+            write(OBJ_SERIALIZED);
+            writeVarInt(bos.size());
+            write(bos.toByteArray());
+        }
+    }
+
+    @Override
+    public void write(int b) {
+        ensureCapacity(1);
+        buf.put((byte)b);
+    }
+
+    @Override
+    public void write(byte[] b) {
+        write(b, 0, b.length);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        ensureCapacity(len);
+        buf.put(b, off, len);
+    }
+
+    @Override
+    public void writeBoolean(boolean v) {
+        write(v ? 1 : 0);
+    }
+
+    @Override
+    public void writeByte(int v) {
+        write(v);
+    }
+
+    @Override
+    public void writeShort(int v) {
+        ensureCapacity(2);
+        buf.putShort((short)v);
+    }
+
+    @Override
+    public void writeChar(int v) {
+        writeShort(v);
+    }
+
+    @Override
+    public void writeInt(int v) {
+        ensureCapacity(4);
+        buf.putInt(v);
+    }
+
+    @Override
+    public void writeLong(long v) {
+        ensureCapacity(8);
+        buf.putLong(v);
+    }
+
+    @Override
+    public void writeFloat(float v) {
+        writeInt(Float.floatToIntBits(v));
+    }
+
+    @Override
+    public void writeDouble(double v) {
+        writeLong(Double.doubleToLongBits(v));
+    }
+
+    @Override
+    public void writeBytes(String s) {
+        int len = s.length();
+        ensureCapacity(len);
+        for(int i=0;i<len;i++) {
+            buf.put((byte)s.charAt(i));
+        }
+    }
+
+    @Override
+    public void writeChars(String s) {
+        int len = s.length();
+        for(int i=0;i<len;i++) {
+            writeChar(s.charAt(i));
+        }
+    }
+
+    @Override
+    public void writeUTF(String s) {
+        writeString(s);
+    }
+
+    @Override
+    public void flush() {
+        // frames are written explicitly by {@linkplain #writeFrame(java.io.ObjectOutput)}
+    }
+
+    @Override
+    public void close() {
+        buf.clear();
+    }
+
+    private void writeString(String s) {
+        Integer idx = strings.get(s);
+        if (idx != null) {
+            writeVarInt(STR_REF_BASE + idx);
+            return;
+        }
+        if (strings.size() < MAX_STRINGS && s.length() <= MAX_INTERNED_LENGTH) {
+            int h = s.hashCode();
+            int slot = (h ^ (h >>> 16)) & (SEEN_SIZE - 1);
+            if (seen[slot] == h) {
+                strings.put(s, strings.size());
+                writeVarInt(STR_DEFINE);
+                writeStringBytes(s);
+                return;
+            }
+            seen[slot] = h;
+        }
+        writeVarInt(STR_LITERAL);
+        writeStringBytes(s);
+    }
+
+    private void writeStringBytes(String s) {
+        byte[] bytes = s.getBytes(UTF8);
+        writeVarInt(bytes.length);
+        write(bytes);
+    }
+
+    void writeVarInt(int v) {
+        ensureCapacity(5);
+        while ((v & ~0x7F) != 0) {
+            buf.put((byte)((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        buf.put((byte)v);
+    }
+
+    private static int zigZag(int v) {
+        return (v << 1) ^ (v >> 31);
+    }
+
+    private void ensureCapacity(int len) {
+        if (buf.remaining() < len) {
+            ByteBuffer newBuf = allocate(Math.max(buf.capacity() << 1, buf.position() + len));
+            buf.flip();
+            newBuf.put(buf);
+            buf = newBuf;
+        }
+    }
+
+    private ByteBuffer allocate(int size) {
+        return direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+    }
+}
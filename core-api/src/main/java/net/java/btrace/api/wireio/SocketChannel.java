@@ -26,12 +26,20 @@ package net.java.btrace.api.wireio;
 
 import java.io.ObjectOutput ;
 import java.io.EOFException;
+import net.java.btrace.api.core.BTraceLogger;
 import net.java.btrace.api.extensions.ExtensionsRepository;
 import java.io.IOException;
 import java.io.ObjectInput;
 
 /**
  * A {@linkplain Channel} implementation using sockets for communication
+ * <p>
+ * Two wire formats are supported. The legacy one writes each command separately
+ * to the underlying {@linkplain ObjectOutput}. The framed one, negotiated during
+ * the handshake, packs the commands into length-prefixed binary frames
+ * (see {@linkplain FrameOutput}) which are written out once they reach
+ * {@linkplain #FRAME_SIZE} bytes or when the channel is flushed.
+ * </p>
  * @author Jaroslav Bachorik
  */
 abstract public class SocketChannel extends Channel {
@@ -43,11 +51,22 @@ abstract public class SocketChannel extends Channel {
     };
     
     final protected static String BTRACE_MAGIC="BTRACE";
+    /**
+     * Magic sent by the clients supporting the framed wire format
+     */
+    final protected static String BTRACE_MAGIC_FRAMED="BTRACE/FRAMED";
+    /**
+     * The frame size threshold; a frame is written out as soon as it reaches this size
+     */
+    final protected static int FRAME_SIZE = Integer.getInteger("btrace.wire.frameSize", 64 * 1024);
     
     final protected ObjectInput input;
     final protected ObjectOutput  output;
     private CommandFactory cFactory;
     final protected ExtensionsRepository extRep;
+
+    private volatile FrameOutput frameOut;
+    private volatile FrameInput frameIn;
     
     protected SocketChannel(ObjectInput oi, ObjectOutput  oo, ExtensionsRepository extRep) {
         super(oi != null && oo != null);
@@ -61,11 +80,21 @@ abstract public class SocketChannel extends Channel {
         if (input == null) return null;
         try {
             while (true) {
-                int id = input.readInt();
-                int rx = input.readInt();
-                int tx = input.readInt();
-                AbstractCommand c = cFactory.restoreCommand(id, rx, tx);
-                c.read(input);
+                AbstractCommand c;
+                FrameInput fi = frameIn;
+                if (fi != null) {
+                    if (!fi.hasMore()) {
+                        fi.readFrame(input);
+                    }
+                    c = fi.restoreCommand(cFactory);
+                    c.read(fi);
+                } else {
+                    int id = input.readInt();
+                    int rx = input.readInt();
+                    int tx = input.readInt();
+                    c = cFactory.restoreCommand(id, rx, tx);
+                    c.read(input);
+                }
                 if (c instanceof ResponseCommand) { // implicitly process the response
                     responseReceived((ResponseCommand)c);
                     continue;
@@ -75,6 +104,7 @@ abstract public class SocketChannel extends Channel {
         } catch (EOFException e) {
             throw e;
         } catch (IOException e) {
+            BTraceLogger.debugPrint(e);
             close();
         }
         return AbstractCommand.NULL;
@@ -84,15 +114,67 @@ abstract public class SocketChannel extends Channel {
     final public void writeCommand(AbstractCommand cmd) throws IOException {
         if (output == null) throw new IOException("output command channel not available");
         try {
-            output.writeInt(cmd.getType());
-            output.writeInt(cmd.getRx());
-            output.writeInt(cmd.getTx());
-            cmd.write(output);
-            output.flush();
+            FrameOutput fo = frameOut;
+            if (fo != null) {
+                synchronized(fo) {
+                    fo.writeHeader(cmd);
+                    cmd.write(fo);
+                    if (fo.size() >= FRAME_SIZE) {
+                        fo.writeFrame(output);
+                        output.flush();
+                    }
+                }
+            } else {
+                synchronized(output) {
+                    output.writeInt(cmd.getType());
+                    output.writeInt(cmd.getRx());
+                    output.writeInt(cmd.getTx());
+                    cmd.write(output);
+                }
+            }
+            // the command has been serialized; no one is going to touch it anymore
+            cFactory.recycle(cmd);
         } catch (IOException e) {
             close();
         }
     }
+
+    @Override
+    final protected void flushCommands() throws IOException {
+        if (output == null) return;
+        try {
+            FrameOutput fo = frameOut;
+            if (fo != null) {
+                synchronized(fo) {
+                    fo.writeFrame(output);
+                    output.flush();
+                }
+            } else {
+                synchronized(output) {
+                    output.flush();
+                }
+            }
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    /**
+     * Switches the channel to the framed wire format.
+     * To be called by the implementations upon successfully negotiating the framed format
+     * during the handshake and before any command is sent or received.
+     */
+    final protected void enableFraming() {
+        frameOut = new FrameOutput(FRAME_SIZE + FRAME_SIZE / 4);
+        frameIn = new FrameInput(extRep.getClassLoader());
+    }
+
+    /**
+     * @return <b>TRUE</b> if the framed wire format is used
+     */
+    final public boolean isFramed() {
+        return frameOut != null;
+    }
     
     @Override
     final public CommandFactory getCommandFactory() {
@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package net.java.btrace.api.core;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Jaroslav Bachorik
+ */
+public class ServiceLocatorTest {
+    private static interface TestService {}
+
+    private File indexed, plain;
+
+    @Before
+    public void setUp() throws Exception {
+        indexed = createRoot("indexed");
+        plain = createRoot("plain");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        delete(indexed);
+        delete(plain);
+    }
+
+    @Test
+    public void testIndexedRoot() throws Exception {
+        System.out.println("indexedRoot");
+        // the index takes precedence over the registration file in the same root
+        write(indexed, "META-INF/services/" + TestService.class.getName(), "a.Stale\n");
+        write(indexed, ServiceLocator.SERVICE_INDEX,
+                TestService.class.getName() + "\ta.Second\t20\n" +
+                "other.Service\ta.Other\t10\n" +
+                TestService.class.getName() + "\ta.First\t10\n");
+        ClassLoader cl = new URLClassLoader(new URL[]{indexed.toURI().toURL()}, null);
+        assertEquals(Arrays.asList("a.First", "a.Second"), list(ServiceLocator.listServiceNames(TestService.class, cl)));
+    }
+
+    @Test
+    public void testPlainRoot() throws Exception {
+        System.out.println("plainRoot");
+        write(plain, "META-INF/services/" + TestService.class.getName(),
+                "# comment\n" +
+                "b.Last\n" +
+                "b.First\n#position=10\n" +
+                "b.Second # trailing comment\n#position=20\n#-b.Last\n" +
+                "\n");
+        ClassLoader cl = new URLClassLoader(new URL[]{plain.toURI().toURL()}, null);
+        assertEquals(Arrays.asList("b.First", "b.Second"), list(ServiceLocator.listServiceNames(TestService.class, cl)));
+    }
+
+    @Test
+    public void testMixedRoots() throws Exception {
+        System.out.println("mixedRoots");
+        write(indexed, "META-INF/services/" + TestService.class.getName(), "a.First\n");
+        write(indexed, ServiceLocator.SERVICE_INDEX, TestService.class.getName() + "\ta.First\t" + Integer.MAX_VALUE + "\n");
+        write(plain, "META-INF/services/" + TestService.class.getName(), "b.First\n");
+        ClassLoader cl = new URLClassLoader(new URL[]{indexed.toURI().toURL(), plain.toURI().toURL()}, null);
+        assertEquals(Arrays.asList("a.First", "b.First"), list(ServiceLocator.listServiceNames(TestService.class, cl)));
+
+        // resolved once per class loader
+        write(plain, "META-INF/services/" + TestService.class.getName(), "b.Changed\n");
+        assertEquals(Arrays.asList("a.First", "b.First"), list(ServiceLocator.listServiceNames(TestService.class, cl)));
+    }
+
+    private static List<String> list(Iterable<String> names) {
+        List<String> l = new ArrayList<String>();
+        for(String n : names) {
+            l.add(n);
+        }
+        return l;
+    }
+
+    private static File createRoot(String name) throws IOException {
+        File f = File.createTempFile(name, "");
+        f.delete();
+        f.mkdirs();
+        return f;
+    }
+
+    private static void write(File root, String path, String content) throws IOException {
+        File f = new File(root, path);
+        f.getParentFile().mkdirs();
+        FileOutputStream fos = new FileOutputStream(f);
+        try {
+            fos.write(content.getBytes("UTF-8"));
+        } finally {
+            fos.close();
+        }
+    }
+
+    private static void delete(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for(File c : children) {
+                delete(c);
+            }
+        }
+        f.delete();
+    }
+}
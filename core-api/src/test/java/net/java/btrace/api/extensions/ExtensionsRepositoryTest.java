@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package net.java.btrace.api.extensions;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import net.java.btrace.api.core.ServiceLocator;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Jaroslav Bachorik
+ */
+public class ExtensionsRepositoryTest {
+    private static interface TestService {}
+
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = File.createTempFile("ext", "");
+        dir.delete();
+        dir.mkdirs();
+        createJar("a.jar", "SERVER", "a.ExtA");
+        createJar("b.jar", "BOTH", "b.ExtB");
+        createJar("c.jar", "CLIENT", "c.ExtC");
+        createJar("d.jar", null, "d.ExtD");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for(File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void testListExtensions() throws Exception {
+        System.out.println("listExtensions");
+        ExtensionsRepository r = ExtensionsRepositoryFactory.fixed(ExtensionsRepository.Location.SERVER, dir.getAbsolutePath());
+        assertEquals(new HashSet<String>(Arrays.asList("a.ExtA", "b.ExtB")), new HashSet<String>(r.listExtensions()));
+        assertTrue(new File(dir, ExtensionsIndex.INDEX_NAME).isFile());
+
+        // served from the persisted index
+        r = ExtensionsRepositoryFactory.fixed(ExtensionsRepository.Location.BOTH, dir.getAbsolutePath());
+        assertEquals(new HashSet<String>(Arrays.asList("a.ExtA", "b.ExtB", "c.ExtC")), new HashSet<String>(r.listExtensions()));
+    }
+
+    @Test
+    public void testModifiedJar() throws Exception {
+        System.out.println("modifiedJar");
+        ExtensionsRepositoryFactory.fixed(ExtensionsRepository.Location.SERVER, dir.getAbsolutePath()).listExtensions();
+        File a = new File(dir, "a.jar");
+        createJar("a.jar", "SERVER", "a.ExtA2");
+        a.setLastModified(a.lastModified() + 2000);
+        ExtensionsRepository r = ExtensionsRepositoryFactory.fixed(ExtensionsRepository.Location.SERVER, dir.getAbsolutePath());
+        assertEquals(new HashSet<String>(Arrays.asList("a.ExtA2", "b.ExtB")), new HashSet<String>(r.listExtensions()));
+    }
+
+    @Test
+    public void testCorruptedIndex() throws Exception {
+        System.out.println("corruptedIndex");
+        FileOutputStream fos = new FileOutputStream(new File(dir, ExtensionsIndex.INDEX_NAME));
+        fos.write(new byte[]{1, 2, 3});
+        fos.close();
+        ExtensionsRepository r = ExtensionsRepositoryFactory.fixed(ExtensionsRepository.Location.SERVER, dir.getAbsolutePath());
+        assertEquals(new HashSet<String>(Arrays.asList("a.ExtA", "b.ExtB")), new HashSet<String>(r.listExtensions()));
+    }
+
+    @Test
+    public void testLazyJars() throws Exception {
+        System.out.println("lazyJars");
+        ExtensionsRepository r = ExtensionsRepositoryFactory.fixed(ExtensionsRepository.Location.SERVER, dir.getAbsolutePath());
+        URLClassLoader cl = (URLClassLoader)r.getClassLoader();
+        assertEquals(0, cl.getURLs().length);
+        assertNotNull(cl.getResource("b/ExtB.class"));
+        assertEquals(1, cl.getURLs().length);
+        assertNull(cl.getResource("c/ExtC.class"));
+        assertEquals(1, cl.getURLs().length);
+    }
+
+    @Test
+    public void testClassLoaderPerParent() throws Exception {
+        System.out.println("classLoaderPerParent");
+        ExtensionsRepository r = ExtensionsRepositoryFactory.fixed(ExtensionsRepository.Location.SERVER, dir.getAbsolutePath());
+        ClassLoader parent = getClass().getClassLoader();
+        ClassLoader cl = r.getClassLoader(parent);
+        assertSame(cl, r.getClassLoader(parent));
+        assertSame(parent, cl.getParent());
+        assertNotSame(cl, r.getClassLoader(null));
+        assertSame(r.getClassLoader(null), r.getClassLoader(null));
+    }
+
+    @Test
+    public void testIndexedServices() throws Exception {
+        System.out.println("indexedServices");
+        String svc = TestService.class.getName();
+        createJar("e.jar", "SERVER", "e.ExtE", svc, "e.Stale\n", svc + "\te.Impl\t10\n");
+        createJar("f.jar", "SERVER", "f.ExtF", "other.Service", "f.Impl\n", "other.Service\tf.Impl\t10\n");
+
+        for (int i = 0; i < 2; i++) {
+            // the second round is served from the persisted index
+            ExtensionsRepository r = ExtensionsRepositoryFactory.fixed(ExtensionsRepository.Location.SERVER, dir.getAbsolutePath());
+            URLClassLoader cl = (URLClassLoader)r.getClassLoader();
+            assertEquals(2, Collections.list(cl.getResources(ServiceLocator.SERVICE_INDEX)).size());
+            assertEquals(0, cl.getURLs().length);
+
+            List<String> services = new ArrayList<String>();
+            for (String s : ServiceLocator.listServiceNames(TestService.class, cl)) {
+                services.add(s);
+            }
+            // the indexed registration wins over the registration file
+            assertEquals(Arrays.asList("e.Impl"), services);
+            // only the jar providing the service has been opened
+            assertEquals(Arrays.asList(new File(dir, "e.jar").toURI().toURL()), Arrays.asList(cl.getURLs()));
+        }
+    }
+
+    private void createJar(String name, String location, String extension) throws IOException {
+        createJar(name, location, extension, null, null, null);
+    }
+
+    private void createJar(String name, String location, String extension, String service, String registration, String serviceIndex) throws IOException {
+        Manifest mf = new Manifest();
+        mf.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        if (location != null) {
+            mf.getMainAttributes().putValue("BTrace-Extension", location);
+        }
+        JarOutputStream jos = new JarOutputStream(new FileOutputStream(new File(dir, name)), mf);
+        try {
+            jos.putNextEntry(new JarEntry("META-INF/services/" + BTraceExtension.class.getName()));
+            jos.write((extension + "\n").getBytes("UTF-8"));
+            jos.putNextEntry(new JarEntry(extension.replace('.', '/') + ".class"));
+            jos.write(new byte[]{(byte)0xca, (byte)0xfe});
+            if (service != null) {
+                jos.putNextEntry(new JarEntry("META-INF/services/" + service));
+                jos.write(registration.getBytes("UTF-8"));
+            }
+            if (serviceIndex != null) {
+                jos.putNextEntry(new JarEntry(ServiceLocator.SERVICE_INDEX));
+                jos.write(serviceIndex.getBytes("UTF-8"));
+            }
+        } finally {
+            jos.close();
+        }
+    }
+}
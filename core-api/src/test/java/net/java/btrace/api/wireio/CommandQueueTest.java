@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package net.java.btrace.api.wireio;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.concurrent.CountDownLatch;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Jaroslav Bachorik
+ */
+public class CommandQueueTest {
+    private static class TestCommand extends AbstractCommand {
+        private final boolean droppable;
+
+        public TestCommand(int producer, int seq, boolean droppable) {
+            super(0, producer, seq);
+            this.droppable = droppable;
+        }
+
+        @Override
+        public boolean canBeDropped() {
+            return droppable;
+        }
+
+        @Override
+        public void write(ObjectOutput out) throws IOException {
+        }
+
+        @Override
+        public void read(ObjectInput in) throws ClassNotFoundException, IOException {
+        }
+    }
+
+    @Test
+    public void testCapacity() {
+        CommandQueue q = new CommandQueue(100);
+        assertEquals(128, q.capacity());
+        for(int i=0;i<128;i++) {
+            assertTrue(q.offer(new TestCommand(0, i, true)));
+        }
+        assertFalse(q.offer(new TestCommand(0, 128, true)));
+        assertEquals(128, q.size());
+        assertEquals(0, q.poll().getTx());
+        assertTrue(q.offer(new TestCommand(0, 128, true)));
+    }
+
+    @Test
+    public void testPollDroppable() {
+        CommandQueue q = new CommandQueue(4);
+        q.offer(new TestCommand(0, 0, false));
+        q.offer(new TestCommand(0, 1, true));
+        assertNull(q.pollDroppable());
+        assertEquals(0, q.poll().getTx());
+        assertEquals(1, q.pollDroppable().getTx());
+        assertNull(q.poll());
+    }
+
+    @Test
+    public void testPollTimeout() throws Exception {
+        CommandQueue q = new CommandQueue(4);
+        long start = System.nanoTime();
+        assertNull(q.poll(20000000L));
+        assertTrue(System.nanoTime() - start >= 20000000L);
+    }
+
+    @Test
+    public void testMultipleProducers() throws Exception {
+        final int producers = 4;
+        final int perProducer = 100000;
+        final CommandQueue q = new CommandQueue(1024);
+        final CountDownLatch start = new CountDownLatch(1);
+
+        for(int p=0;p<producers;p++) {
+            final int producer = p;
+            new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        start.await();
+                        for(int i=0;i<perProducer;i++) {
+                            q.put(new TestCommand(producer, i, false));
+                        }
+                    } catch (InterruptedException e) {
+                    }
+                }
+            }).start();
+        }
+        start.countDown();
+
+        int[] next = new int[producers];
+        for(int i=0;i<producers * perProducer;i++) {
+            AbstractCommand cmd = q.poll(10000000000L);
+            assertNotNull("command lost", cmd);
+            // commands of one producer must keep their order
+            assertEquals(next[cmd.getRx()]++, cmd.getTx());
+        }
+        assertNull(q.poll());
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package net.java.btrace.api.wireio;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutput;
+import java.io.ObjectOutputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Jaroslav Bachorik
+ */
+public class FrameInputTest {
+    private static class TextCommand extends AbstractCommand {
+        private String text;
+
+        public TextCommand(int type, int rx, int tx) {
+            super(type, rx, tx);
+        }
+
+        @Override
+        public void write(ObjectOutput out) throws IOException {
+            out.writeUTF(text);
+        }
+
+        @Override
+        public void read(ObjectInput in) throws ClassNotFoundException, IOException {
+            text = in.readUTF();
+        }
+    }
+
+    // there is no generic array creation for Class<? extends AbstractCommand>[]
+    @SuppressWarnings("unchecked")
+    private final CommandFactory factory = CommandFactory.getInstance((Class<? extends AbstractCommand>[])new Class<?>[]{TextCommand.class}, FrameInputTest.class.getClassLoader(), Command.Target.SERVER);
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        System.out.println("roundTrip");
+        FrameOutput out = new FrameOutput(16);
+        out.writeInt(-1);
+        out.writeLong(Long.MIN_VALUE);
+        out.writeShort(-2);
+        out.writeChar('x');
+        out.writeBoolean(true);
+        out.writeDouble(Math.PI);
+        out.writeFloat(1.5f);
+        out.writeUTF("\u017elu\u0165ou\u010dk\u00fd k\u016f\u0148");
+        Object[] objs = new Object[]{null, "str", 1, 2L, 3d, 4f, (short)5, (byte)6, true, 'c', BigInteger.TEN};
+        for(Object o : objs) {
+            out.writeObject(o);
+        }
+
+        // through the object streams used by the socket channels
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(bos);
+        out.writeFrame(oos);
+        oos.close();
+        assertEquals(0, out.size());
+
+        FrameInput in = new FrameInput(getClass().getClassLoader());
+        in.readFrame(new ObjectInputStream(new ByteArrayInputStream(bos.toByteArray())));
+        assertEquals(-1, in.readInt());
+        assertEquals(Long.MIN_VALUE, in.readLong());
+        assertEquals(-2, in.readShort());
+        assertEquals('x', in.readChar());
+        assertTrue(in.readBoolean());
+        assertEquals(Math.PI, in.readDouble(), 0d);
+        assertEquals(1.5f, in.readFloat(), 0f);
+        assertEquals("\u017elu\u0165ou\u010dk\u00fd k\u016f\u0148", in.readUTF());
+        for(Object o : objs) {
+            assertEquals(o, in.readObject());
+        }
+        assertFalse(in.hasMore());
+    }
+
+    @Test
+    public void testStringTableAcrossFrames() throws Exception {
+        System.out.println("stringTableAcrossFrames");
+        FrameOutput out = new FrameOutput(64);
+        FrameInput in = new FrameInput(getClass().getClassLoader());
+
+        out.writeUTF("repeated");
+        out.writeUTF("repeated");
+        transfer(out, in);
+        assertEquals("repeated", in.readUTF());
+        assertEquals("repeated", in.readUTF());
+        assertFalse(in.hasMore());
+
+        // the string defined in the previous frame is referenced by its index
+        out.writeUTF("repeated");
+        int size = out.size();
+        transfer(out, in);
+        assertEquals("repeated", in.readUTF());
+        assertFalse(in.hasMore());
+        assertTrue(size < "repeated".length());
+
+        out.writeUTF("another");
+        out.writeObject("repeated");
+        transfer(out, in);
+        assertEquals("another", in.readUTF());
+        assertEquals("repeated", in.readObject());
+    }
+
+    @Test
+    public void testCommandsInFrame() throws Exception {
+        System.out.println("commandsInFrame");
+        FrameOutput out = new FrameOutput(64);
+        for(int i=0;i<3;i++) {
+            TextCommand cmd = factory.createCommand(TextCommand.class);
+            cmd.text = "cmd#" + i;
+            out.writeHeader(cmd);
+            cmd.write(out);
+        }
+        FrameInput in = new FrameInput(getClass().getClassLoader());
+        transfer(out, in);
+        for(int i=0;i<3;i++) {
+            AbstractCommand c = in.restoreCommand(factory);
+            assertTrue(c instanceof TextCommand);
+            c.read(in);
+            assertEquals("cmd#" + i, ((TextCommand)c).text);
+        }
+        assertFalse(in.hasMore());
+    }
+
+    @Test
+    public void testUnknownCommandMidFrame() throws Exception {
+        System.out.println("unknownCommandMidFrame");
+        FrameOutput out = new FrameOutput(64);
+        TextCommand known = factory.createCommand(TextCommand.class);
+        known.text = "known";
+        out.writeHeader(known);
+        known.write(out);
+        TextCommand unknown = new TextCommand(12345, 0, 0);
+        unknown.text = "unknown";
+        out.writeHeader(unknown);
+        unknown.write(out);
+        out.writeHeader(known);
+        known.write(out);
+
+        FrameInput in = new FrameInput(getClass().getClassLoader());
+        transfer(out, in);
+        AbstractCommand c = in.restoreCommand(factory);
+        c.read(in);
+        assertEquals("known", ((TextCommand)c).text);
+        try {
+            in.restoreCommand(factory);
+            fail("the unknown command must not be silently skipped");
+        } catch (IOException e) {
+            // expected; the rest of the frame can not be interpreted
+        }
+    }
+
+    private static void transfer(FrameOutput out, FrameInput in) {
+        ByteBuffer frame = out.frame();
+        byte[] bytes = new byte[frame.remaining()];
+        frame.get(bytes);
+        out.reset();
+        in.readFrame(bytes, 0, bytes.length);
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package net.java.btrace.wireio.commands;
+
+import net.java.btrace.api.wireio.AbstractCommand;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * This command is sent out periodically when the BTrace engine had to drop
+ * some commands because the client was not able to keep up with the traced application.
+ * It carries the number of the dropped commands per command type since the last summary.
+ * @author Jaroslav Bachorik
+ */
+final public class DropSummaryCommand extends AbstractCommand {
+    private Map<String, Long> drops = Collections.emptyMap();
+
+    public DropSummaryCommand(int typeId, int rx, int tx) {
+        super(typeId, rx, tx);
+    }
+
+    /**
+     * Drop summary may never go on the speculation queue
+     * @return FALSE
+     */
+    @Override
+    final public boolean canBeSpeculated() {
+        return false;
+    }
+
+    @Override
+    final public void write(ObjectOutput out) throws IOException {
+        out.writeInt(drops.size());
+        for (Map.Entry<String, Long> e : drops.entrySet()) {
+            out.writeUTF(e.getKey());
+            out.writeLong(e.getValue());
+        }
+    }
+
+    @Override
+    final public void read(ObjectInput in) throws ClassNotFoundException, IOException {
+        int size = in.readInt();
+        Map<String, Long> map = new HashMap<String, Long>();
+        for (int i = 0; i < size; i++) {
+            String type = in.readUTF();
+            map.put(type, in.readLong());
+        }
+        drops = map;
+    }
+
+    /**
+     * @return The number of dropped commands per command type
+     */
+    final public Map<String, Long> getDrops() {
+        return drops;
+    }
+
+    final public void setDrops(Map<String, Long> drops) {
+        this.drops = drops != null ? drops : Collections.<String, Long>emptyMap();
+    }
+
+    /**
+     * @return The total number of dropped commands
+     */
+    final public long getTotal() {
+        long total = 0;
+        for (Long cnt : drops.values()) {
+            total += cnt;
+        }
+        return total;
+    }
+}
@@ -29,19 +29,44 @@ import net.java.btrace.api.wireio.DataCommand;
 import java.io.IOException;
 import java.io.ObjectInput;
 import java.io.ObjectOutput;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 
 /**
  * A data command that holds tabular data.
  * 
  * The elements contained within the grid must be of type Number, String or HistogramData.
+ * <p>
+ * The grid is transferred column by column. Each column carries a type tag;
+ * the {@linkplain Integer} and {@linkplain Long} columns are written as zig-zag varints,
+ * the {@linkplain Float} and {@linkplain Double} columns as fixed-width values and
+ * the {@linkplain String} columns as indices into a dictionary shared by the whole grid.
+ * The cells of the mixed columns are tagged individually; only the values of other types
+ * fall back to {@linkplain ObjectOutput#writeObject(java.lang.Object)}.
+ * </p>
  * 
  * @author Christian Glencross
  * @author Jaroslav Bachorik
  */
 final public class GridDataCommand extends DataCommand<GridDataCommand.GridData>  {
+    final private static Charset UTF8 = Charset.forName("UTF-8");
+
+    // column type tags
+    final private static int COL_EMPTY = 0;
+    final private static int COL_INT = 1;
+    final private static int COL_LONG = 2;
+    final private static int COL_FLOAT = 3;
+    final private static int COL_DOUBLE = 4;
+    final private static int COL_STRING = 5;
+    final private static int COL_OBJECT = 6;
+    final private static int COL_MIXED = 7;
+    // the column contains nulls; a bitmap of the non-null cells follows the tag
+    final private static int COL_NULLS = 0x80;
+
     final public static class GridData {
         private String format;
         private List<Object[]> grid;
@@ -85,6 +110,11 @@ final public class GridDataCommand extends DataCommand<GridDataCommand.GridData>
         super(typeId, rx, tx);
     }
 
+    @Override
+    final public boolean canBeDropped() {
+        return true;
+    }
+
     @Override
     final public boolean canBeSpeculated() {
         return super.canBeSpeculated();
@@ -94,18 +124,85 @@ final public class GridDataCommand extends DataCommand<GridDataCommand.GridData>
     public void write(ObjectOutput out) throws IOException {
         super.write(out);
         GridData gData = getPayload();
-        List<Object[]> grid = gData.getGrid();
-        if (grid != null) {
-            out.writeUTF(gData.getFormat());
-            out.writeInt(grid.size());
+        List<Object[]> grid = gData != null ? gData.getGrid() : null;
+        out.writeUTF(gData != null ? gData.getFormat() : "");
+        if (grid == null || grid.isEmpty()) {
+            writeVarInt(out, 0);
+            return;
+        }
+        int rowCount = grid.size();
+        writeVarInt(out, rowCount);
+
+        int width = grid.get(0).length;
+        boolean ragged = false;
+        for (Object[] row : grid) {
+            if (row.length != width) {
+                ragged = true;
+                width = Math.max(width, row.length);
+            }
+        }
+        writeVarInt(out, width);
+        out.writeBoolean(ragged);
+        if (ragged) {
             for (Object[] row : grid) {
-                out.writeInt(row.length);
-                for (Object cell : row) {
-                    out.writeObject(cell);
+                writeVarInt(out, row.length);
+            }
+        }
+
+        int[] types = new int[width];
+        Map<String, Integer> dictionary = new HashMap<String, Integer>();
+        List<String> strings = new ArrayList<String>();
+        for (int c = 0; c < width; c++) {
+            types[c] = columnType(grid, c);
+            int type = types[c] & ~COL_NULLS;
+            if (type == COL_STRING || type == COL_MIXED) {
+                for (Object[] row : grid) {
+                    if (c < row.length && row[c] instanceof String && !dictionary.containsKey(row[c])) {
+                        dictionary.put((String)row[c], strings.size());
+                        strings.add((String)row[c]);
+                    }
+                }
+            }
+        }
+        writeVarInt(out, strings.size());
+        for (String str : strings) {
+            byte[] bytes = str.getBytes(UTF8);
+            writeVarInt(out, bytes.length);
+            out.write(bytes);
+        }
+
+        for (int c = 0; c < width; c++) {
+            int type = types[c] & ~COL_NULLS;
+            out.writeByte(types[c]);
+            if ((types[c] & COL_NULLS) != 0) {
+                // bitmap of the non-null cells
+                int bits = 0, bitCnt = 0;
+                for (Object[] row : grid) {
+                    if (c >= row.length) continue;
+                    if (row[c] != null) {
+                        bits |= 1 << bitCnt;
+                    }
+                    if (++bitCnt == 8) {
+                        out.writeByte(bits);
+                        bits = bitCnt = 0;
+                    }
+                }
+                if (bitCnt > 0) {
+                    out.writeByte(bits);
+                }
+            }
+            for (Object[] row : grid) {
+                if (c >= row.length) continue;
+                Object cell = row[c];
+                if (type == COL_MIXED) {
+                    // a per-cell type tag
+                    int cellType = cellType(cell);
+                    out.writeByte(cellType);
+                    writeCell(out, cellType, cell, dictionary);
+                } else if (cell != null) {
+                    writeCell(out, type, cell, dictionary);
                 }
             }
-        } else {
-            out.writeInt(0);
         }
     }
 
@@ -114,16 +211,202 @@ final public class GridDataCommand extends DataCommand<GridDataCommand.GridData>
         String format = in.readUTF();
         if (format.length() == 0) format = null;
         
-        int rowCount = in.readInt();
+        int rowCount = readVarInt(in);
         List<Object[]> grid = new ArrayList<Object[]>(rowCount);
-        for (int i = 0; i < rowCount; i++) {
-            int cellCount = in.readInt();
-            Object[] row = new Object[cellCount];
-            for (int j = 0; j < cellCount; j++) {
-                row[j] = in.readObject();
+        if (rowCount > 0) {
+            int width = readVarInt(in);
+            boolean ragged = in.readBoolean();
+            for (int i = 0; i < rowCount; i++) {
+                grid.add(new Object[ragged ? readVarInt(in) : width]);
+            }
+
+            String[] strings = new String[readVarInt(in)];
+            for (int i = 0; i < strings.length; i++) {
+                byte[] bytes = new byte[readVarInt(in)];
+                in.readFully(bytes);
+                strings[i] = new String(bytes, UTF8);
+            }
+
+            for (int c = 0; c < width; c++) {
+                int typeTag = in.readUnsignedByte();
+                int type = typeTag & ~COL_NULLS;
+                boolean[] present = null;
+                if ((typeTag & COL_NULLS) != 0) {
+                    present = new boolean[rowCount];
+                    int bits = 0, bitCnt = 8;
+                    for (int r = 0; r < rowCount; r++) {
+                        if (c >= grid.get(r).length) continue;
+                        if (bitCnt == 8) {
+                            bits = in.readUnsignedByte();
+                            bitCnt = 0;
+                        }
+                        present[r] = (bits & (1 << bitCnt++)) != 0;
+                    }
+                }
+                for (int r = 0; r < rowCount; r++) {
+                    Object[] row = grid.get(r);
+                    if (c >= row.length) continue;
+                    if (type == COL_MIXED) {
+                        row[c] = readCell(in, in.readUnsignedByte(), strings);
+                    } else if (present == null || present[r]) {
+                        row[c] = readCell(in, type, strings);
+                    }
+                }
             }
-            grid.add(row);
         }
         setPayload(new GridData(format, grid));
     }
+
+    /**
+     * Determines the type shared by all the non-null cells in the given column
+     */
+    private static int columnType(List<Object[]> grid, int c) {
+        int type = COL_EMPTY;
+        boolean nulls = false;
+        for (Object[] row : grid) {
+            if (c >= row.length) continue;
+            Object cell = row[c];
+            if (cell == null) {
+                nulls = true;
+                continue;
+            }
+            int cellType = cellType(cell);
+            if (type == COL_EMPTY) {
+                type = cellType;
+            } else if (type != cellType) {
+                return COL_MIXED;
+            }
+        }
+        if (type == COL_OBJECT) {
+            return COL_MIXED;
+        }
+        return nulls && type != COL_EMPTY ? type | COL_NULLS : type;
+    }
+
+    private static int cellType(Object cell) {
+        if (cell == null) {
+            return COL_EMPTY;
+        } else if (cell instanceof Integer) {
+            return COL_INT;
+        } else if (cell instanceof Long) {
+            return COL_LONG;
+        } else if (cell instanceof Float) {
+            return COL_FLOAT;
+        } else if (cell instanceof Double) {
+            return COL_DOUBLE;
+        } else if (cell instanceof String) {
+            return COL_STRING;
+        }
+        return COL_OBJECT;
+    }
+
+    private static void writeCell(ObjectOutput out, int type, Object cell, Map<String, Integer> dictionary) throws IOException {
+        switch (type) {
+            case COL_INT: {
+                writeVarInt(out, zigZag((Integer)cell));
+                break;
+            }
+            case COL_LONG: {
+                writeVarLong(out, zigZag((Long)cell));
+                break;
+            }
+            case COL_FLOAT: {
+                out.writeFloat((Float)cell);
+                break;
+            }
+            case COL_DOUBLE: {
+                out.writeDouble((Double)cell);
+                break;
+            }
+            case COL_STRING: {
+                writeVarInt(out, dictionary.get((String)cell));
+                break;
+            }
+            case COL_OBJECT: {
+                out.writeObject(cell);
+                break;
+            }
+        }
+    }
+
+    private static Object readCell(ObjectInput in, int type, String[] strings) throws IOException, ClassNotFoundException {
+        switch (type) {
+            case COL_EMPTY: {
+                return null;
+            }
+            case COL_INT: {
+                return unZigZag(readVarInt(in));
+            }
+            case COL_LONG: {
+                return unZigZag(readVarLong(in));
+            }
+            case COL_FLOAT: {
+                return in.readFloat();
+            }
+            case COL_DOUBLE: {
+                return in.readDouble();
+            }
+            case COL_STRING: {
+                return strings[readVarInt(in)];
+            }
+            case COL_OBJECT: {
+                return in.readObject();
+            }
+            default: {
+                throw new IOException("Unknown grid cell type " + type);
+            }
+        }
+    }
+
+    private static void writeVarInt(ObjectOutput out, int v) throws IOException {
+        while ((v & ~0x7F) != 0) {
+            out.writeByte((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        out.writeByte(v);
+    }
+
+    private static void writeVarLong(ObjectOutput out, long v) throws IOException {
+        while ((v & ~0x7FL) != 0) {
+            out.writeByte((int)(v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        out.writeByte((int)v);
+    }
+
+    private static int readVarInt(ObjectInput in) throws IOException {
+        int v = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.readUnsignedByte();
+            v |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return v;
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private static long readVarLong(ObjectInput in) throws IOException {
+        long v = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            int b = in.readUnsignedByte();
+            v |= (long)(b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return v;
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private static int zigZag(int v) {
+        return (v << 1) ^ (v >> 31);
+    }
+
+    private static long zigZag(long v) {
+        return (v << 1) ^ (v >> 63);
+    }
+
+    private static int unZigZag(int v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    private static long unZigZag(long v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
 }
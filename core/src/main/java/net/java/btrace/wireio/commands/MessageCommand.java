@@ -44,11 +44,27 @@ final public class MessageCommand extends AbstractCommand {
         super(typeId, rx, tx);
     }
 
+    @Override
+    final public boolean canBeDropped() {
+        return true;
+    }
+
     @Override
     final public boolean canBeSpeculated() {
         return super.canBeSpeculated();
     }
     
+    @Override
+    final public boolean isRecyclable() {
+        return true;
+    }
+
+    @Override
+    final protected void recycle() {
+        time = 0L;
+        msg = null;
+    }
+
     @Override
     final public void write(ObjectOutput out) throws IOException {
         out.writeLong(time);
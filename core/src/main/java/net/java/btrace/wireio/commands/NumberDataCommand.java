@@ -40,6 +40,11 @@ final public class NumberDataCommand extends DataCommand<Number> {
     public NumberDataCommand(int typeId, int rx, int tx) {
         super(typeId, rx, tx);
     }
+
+    @Override
+    final public boolean canBeDropped() {
+        return true;
+    }
     
     @Override
     final public void write(ObjectOutput out) throws IOException {
@@ -41,6 +41,11 @@ final public class NumberMapDataCommand extends DataCommand<Map<String, ? extend
     public NumberMapDataCommand(int typeId, int rx, int tx) {
         super(typeId, rx, tx);
     }
+
+    @Override
+    final public boolean canBeDropped() {
+        return true;
+    }
     
     @Override
     final public void write(ObjectOutput out) throws IOException {
@@ -41,6 +41,11 @@ final public class StringMapDataCommand extends DataCommand<Map<String, String>>
     public StringMapDataCommand(int typeId, int rx, int tx) {
         super(typeId, rx, tx);
     }
+
+    @Override
+    final public boolean canBeDropped() {
+        return true;
+    }
     
     @Override
     final public void write(ObjectOutput out) throws IOException {
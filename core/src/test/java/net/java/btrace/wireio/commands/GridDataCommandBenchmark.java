@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package net.java.btrace.wireio.commands;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutput;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A simple benchmark comparing the payload size and the encoding time of the columnar
+ * {@linkplain GridDataCommand} encoding with the former cell-by-cell serialization
+ * Usage: GridDataCommandBenchmark [rows] [iterations]
+ *
+ * @author Jaroslav Bachorik
+ */
+public class GridDataCommandBenchmark {
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+        List<Object[]> grid = profilerGrid(rows);
+        GridDataCommand cmd = GridDataCommandTest.newCommand("profile", null, grid);
+
+        // warm up
+        for (int i = 0; i < iterations; i++) {
+            encodeCells(grid);
+            encodeColumns(cmd);
+        }
+
+        long start = System.nanoTime();
+        int cellsSize = 0;
+        for (int i = 0; i < iterations; i++) {
+            cellsSize = encodeCells(grid);
+        }
+        long durCells = (System.nanoTime() - start) / iterations;
+
+        start = System.nanoTime();
+        int columnsSize = 0;
+        for (int i = 0; i < iterations; i++) {
+            columnsSize = encodeColumns(cmd);
+        }
+        long durColumns = (System.nanoTime() - start) / iterations;
+
+        System.err.println(rows + " rows: " +
+                           "per-cell " + cellsSize + " bytes in " + (durCells / 1000) + " us, " +
+                           "columnar " + columnsSize + " bytes in " + (durColumns / 1000) + " us");
+    }
+
+    private static int encodeCells(List<Object[]> grid) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ObjectOutput out = new ObjectOutputStream(bos);
+        out.writeUTF("profile");
+        out.writeUTF("");
+        out.writeInt(grid.size());
+        for (Object[] row : grid) {
+            out.writeInt(row.length);
+            for (Object cell : row) {
+                out.writeObject(cell);
+            }
+        }
+        out.close();
+        return bos.size();
+    }
+
+    private static int encodeColumns(GridDataCommand cmd) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ObjectOutput out = new ObjectOutputStream(bos);
+        cmd.write(out);
+        out.close();
+        return bos.size();
+    }
+
+    /**
+     * Mimics the grid produced by the profiler snapshots
+     */
+    private static List<Object[]> profilerGrid(int rows) {
+        List<Object[]> grid = new ArrayList<Object[]>();
+        grid.add(new Object[]{"Block", "Invocations", "SelfTime.Total", "SelfTime.Avg", "SelfTime.Min",
+                              "SelfTime.Max", "WallTime.Total", "WallTime.Avg", "WallTime.Min", "WallTime.Max"});
+        long seed = 17;
+        for (int i = 0; i < rows; i++) {
+            seed = seed * 6364136223846793005L + 1442695040888963407L;
+            long invocations = 1 + ((seed >>> 33) & 0xffff);
+            long selfTime = invocations * ((seed >>> 17) & 0xfff);
+            long wallTime = selfTime * 2;
+            grid.add(new Object[]{"com.example.app.Service" + (i % 200) + "#method" + (i % 50),
+                                  invocations, selfTime, selfTime / invocations,
+                                  i % 10 == 0 ? "N/A" : (Object)(selfTime / invocations / 2), selfTime / invocations * 2,
+                                  wallTime, wallTime / invocations,
+                                  wallTime / invocations / 2, wallTime / invocations * 2});
+        }
+        return grid;
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package net.java.btrace.wireio.commands;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import net.java.btrace.api.wireio.FrameInput;
+import net.java.btrace.api.wireio.FrameOutput;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Jaroslav Bachorik
+ */
+public class GridDataCommandTest {
+    @Test
+    public void streamRoundTrip() throws Exception {
+        System.out.println("streamRoundTrip");
+        List<Object[]> grid = sampleGrid();
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(bos);
+        newCommand("grid", "%s %d", grid).write(oos);
+        oos.close();
+
+        GridDataCommand cmd = new GridDataCommand(0, 0, 0);
+        cmd.read(new ObjectInputStream(new ByteArrayInputStream(bos.toByteArray())));
+        assertEquals("grid", cmd.getName());
+        assertEquals("%s %d", cmd.getPayload().getFormat());
+        assertGridEquals(grid, cmd.getPayload().getGrid());
+    }
+
+    @Test
+    public void frameRoundTrip() throws Exception {
+        System.out.println("frameRoundTrip");
+        List<Object[]> grid = sampleGrid();
+
+        FrameOutput out = new FrameOutput(64);
+        newCommand("grid", null, grid).write(out);
+        ByteBuffer frame = out.frame();
+        byte[] bytes = new byte[frame.remaining()];
+        frame.get(bytes);
+
+        FrameInput in = new FrameInput(getClass().getClassLoader());
+        in.readFrame(bytes, 0, bytes.length);
+        GridDataCommand cmd = new GridDataCommand(0, 0, 0);
+        cmd.read(in);
+        assertEquals("", cmd.getPayload().getFormat());
+        assertGridEquals(grid, cmd.getPayload().getGrid());
+        assertFalse(in.hasMore());
+    }
+
+    @Test
+    public void emptyGrid() throws Exception {
+        System.out.println("emptyGrid");
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(bos);
+        newCommand("empty", null, null).write(oos);
+        oos.close();
+
+        GridDataCommand cmd = new GridDataCommand(0, 0, 0);
+        cmd.read(new ObjectInputStream(new ByteArrayInputStream(bos.toByteArray())));
+        assertEquals(0, cmd.getPayload().getGrid().size());
+    }
+
+    static GridDataCommand newCommand(String name, String format, List<Object[]> grid) {
+        GridDataCommand cmd = new GridDataCommand(0, 0, 0);
+        cmd.setName(name);
+        cmd.setPayload(new GridDataCommand.GridData(format, grid));
+        return cmd;
+    }
+
+    private static List<Object[]> sampleGrid() {
+        List<Object[]> grid = new ArrayList<Object[]>();
+        grid.add(new Object[]{"Block", "Invocations", "Time", "Ratio", "Mixed", "Nothing"});
+        for (int i = 0; i < 100; i++) {
+            grid.add(new Object[]{
+                "java.lang.Object#method" + (i % 7),
+                i % 3 == 0 ? null : Integer.valueOf(i - 50),
+                Long.valueOf(i == 99 ? Long.MIN_VALUE : (long)i * 1000000007L),
+                Double.valueOf(i / 3.0d),
+                i % 2 == 0 ? (Object)"N/A" : (Object)BigInteger.valueOf(i),
+                null
+            });
+        }
+        // a ragged row
+        grid.add(new Object[]{"short", 1});
+        return grid;
+    }
+
+    private static void assertGridEquals(List<Object[]> expected, List<Object[]> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertArrayEquals("row " + i, expected.get(i), actual.get(i));
+        }
+    }
+}
@@ -44,6 +44,8 @@ public class Aggregation implements Cloneable {
     private static final AggregationKey NULL_AGGREGATION_KEY = new AggregationKey(new Object[0]);
     private final AggregationFunction type;
     private final ConcurrentHashMap<AggregationKey, AggregationValue> values = new ConcurrentHashMap<AggregationKey, AggregationValue>();
+    // the value for the empty key; spares the map lookup for the single-valued aggregations
+    private volatile AggregationValue nullKeyValue;
 
     /**
      * Creates an aggregation.
@@ -65,7 +67,12 @@ public class Aggregation implements Cloneable {
      *            the value to be added
      */
     public void add(long data) {
-        add(NULL_AGGREGATION_KEY, data);
+        AggregationValue aggregationValue = nullKeyValue;
+        if (aggregationValue == null) {
+            aggregationValue = getOrCreate(NULL_AGGREGATION_KEY);
+            nullKeyValue = aggregationValue;
+        }
+        aggregationValue.add(data);
     }
 
     /**
@@ -77,6 +84,10 @@ public class Aggregation implements Cloneable {
      *            the value to be added
      */
     public void add(AggregationKey key, long data) {
+        getOrCreate(key).add(data);
+    }
+
+    private AggregationValue getOrCreate(AggregationKey key) {
         AggregationValue aggregationValue = values.get(key);
         if (aggregationValue == null) {
             aggregationValue = type.newValue();
@@ -85,7 +96,7 @@ public class Aggregation implements Cloneable {
                 aggregationValue = existing;
             }
         }
-        aggregationValue.add(data);
+        return aggregationValue;
     }
 
     /**
@@ -107,6 +118,7 @@ public class Aggregation implements Cloneable {
      */
     public void truncate(int count) {
         if (count == 0) {
+            nullKeyValue = null;
             values.clear();
         } else {
             List<Map.Entry<AggregationKey, AggregationValue>> sortedContents = sort();
@@ -124,7 +136,11 @@ public class Aggregation implements Cloneable {
                 removeContents = sortedContents.subList(collectionSize - numberToRemove, collectionSize);
             }
             for (int i = 0; i < removeContents.size(); i++) {
-                values.remove(removeContents.get(i).getKey());
+                AggregationKey key = removeContents.get(i).getKey();
+                if (NULL_AGGREGATION_KEY.equals(key)) {
+                    nullKeyValue = null;
+                }
+                values.remove(key);
             }
         }
     }
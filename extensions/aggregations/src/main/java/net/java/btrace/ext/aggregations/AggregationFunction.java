@@ -34,40 +34,43 @@ public enum AggregationFunction {
 
     COUNT {
 
-        public Count newValue() {
-            return new Count();
+        public AggregationValue newValue() {
+            return STRIPED ? new StripedCount() : new Count();
         }
     },
     SUM {
 
-        public Sum newValue() {
-            return new Sum();
+        public AggregationValue newValue() {
+            return STRIPED ? new StripedSum() : new Sum();
         }
     },
     MINIMUM {
 
-        public Minimum newValue() {
-            return new Minimum();
+        public AggregationValue newValue() {
+            return STRIPED ? new StripedMinimum() : new Minimum();
         }
     },
     MAXIMUM {
 
-        public Maximum newValue() {
-            return new Maximum();
+        public AggregationValue newValue() {
+            return STRIPED ? new StripedMaximum() : new Maximum();
         }
     },
     AVERAGE {
 
-        public Average newValue() {
-            return new Average();
+        public AggregationValue newValue() {
+            return STRIPED ? new StripedAverage() : new Average();
         }
     },
     QUANTIZE {
 
-        public Quantize newValue() {
-            return new Quantize();
+        public AggregationValue newValue() {
+            return STRIPED ? new StripedQuantize() : new Quantize();
         }
     };
 
+    // the lock-free striped values are used unless -Dbtrace.aggregations.striped=false
+    private static final boolean STRIPED = !"false".equals(System.getProperty("btrace.aggregations.striped"));
+
     public abstract AggregationValue newValue();
 }
@@ -35,6 +35,7 @@ import java.util.concurrent.atomic.AtomicLong;
  */
 class Quantize implements AggregationValue {
 
+    static final int BUCKETS = 64;
     private static final int ZERO_INDEX = 32;
 
     // Array of buckets, where each bucket contains a count of the number of
@@ -47,7 +48,7 @@ class Quantize implements AggregationValue {
     // buckets[33] counts the number of 1s
     // buckets[34] counts 2s and 3s,
     // buckets[35] counts numbers in the range 4 to 7
-    private AtomicLong[] buckets = new AtomicLong[64];
+    private AtomicLong[] buckets = new AtomicLong[BUCKETS];
 
     public Quantize() {
         super();
@@ -126,10 +127,23 @@ class Quantize implements AggregationValue {
     }
 
     public HistogramData getData() {
+        long[] counts = new long[buckets.length];
+        for (int i = 0; i < buckets.length; i++) {
+            counts[i] = buckets[i].get();
+        }
+        return toHistogram(counts);
+    }
+
+    /**
+     * Creates the histogram of the non-empty bucket range, including one empty bucket on each side
+     * @param buckets The bucket counts
+     * @return The histogram or <b>NULL</b> if all the buckets are empty
+     */
+    static HistogramData toHistogram(long[] buckets) {
         int minIndex = buckets.length;
         int maxIndex = -1;
         for (int i = 0; i < buckets.length; i++) {
-            if (buckets[i].get() != 0) {
+            if (buckets[i] != 0) {
                 minIndex = Math.min(i, minIndex);
                 maxIndex = Math.max(i, maxIndex);
             }
@@ -149,12 +163,12 @@ class Quantize implements AggregationValue {
         long[] counts = new long[rows];
         for (int i = 0; i < rows; i++) {
             values[i] = getBucketLabel(minIndex + i);
-            counts[i] = buckets[minIndex + i].get();
+            counts[i] = buckets[minIndex + i];
         }
         return new HistogramData(values, counts);
     }
 
-    private static int getBucketIndex(long data) {
+    static int getBucketIndex(long data) {
         if (data == 0) {
             return ZERO_INDEX;
         } else if (data > 0) {
@@ -167,7 +181,7 @@ class Quantize implements AggregationValue {
         }
     }
 
-    private static long getBucketLabel(int index) {
+    static long getBucketLabel(int index) {
         if (index == ZERO_INDEX) {
             return 0;
         } else if (index == 0) {
@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package net.java.btrace.ext.aggregations;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * A fixed-width row of <b>long</b> slots updated without locking.
+ * <p>
+ * All updates go to a single shared row until two threads collide on it. After that
+ * the value is spread over per-thread rows (stripes); their number starts at two and
+ * doubles whenever the threads keep colliding, up to the next power of two of the
+ * number of CPUs (at most 64). The narrow rows are padded so that the threads do not
+ * share cache lines; the wide rows span several cache lines on their own and are not.
+ * Reading a slot combines the shared row with all the stripes.
+ * </p>
+ * <p>
+ * Reads are not atomic with respect to concurrent updates and neither is {@linkplain #reset()}
+ * </p>
+ *
+ * @author Jaroslav Bachorik
+ */
+abstract class StripedCells {
+    // 16 longs = 128 bytes; covers the adjacent cache line prefetch
+    private static final int PAD = 16;
+    private static final int MAX_STRIPES;
+
+    static {
+        int cpus = Runtime.getRuntime().availableProcessors();
+        int stripes = 1;
+        while (stripes < cpus) {
+            stripes <<= 1;
+        }
+        MAX_STRIPES = Math.min(stripes, 64);
+    }
+
+    private static final AtomicReferenceFieldUpdater<StripedCells, AtomicLongArray[]> STRIPES =
+        AtomicReferenceFieldUpdater.newUpdater(StripedCells.class, AtomicLongArray[].class, "stripes");
+
+    private final int width;
+    private final long identity;
+    // the padding on both sides of a stripe row
+    private final int pad;
+    private final AtomicLongArray base;
+    private volatile AtomicLongArray[] stripes;
+
+    /**
+     * @param width The number of slots
+     * @param identity The initial slot value; <code>combine(identity, x) == x</code>
+     */
+    StripedCells(int width, long identity) {
+        this.width = width;
+        this.identity = identity;
+        this.pad = width < PAD ? PAD : 0;
+        this.base = new AtomicLongArray(width);
+        if (identity != 0) {
+            for (int i = 0; i < width; i++) {
+                base.set(i, identity);
+            }
+        }
+    }
+
+    /**
+     * The accumulating function. Must be associative and commutative.
+     */
+    abstract long combine(long current, long x);
+
+    final void accumulate(int slot, long x) {
+        AtomicLongArray[] ss = stripes;
+        if (ss == null) {
+            long v = base.get(slot);
+            long r = combine(v, x);
+            if (r == v || base.compareAndSet(slot, v, r)) {
+                return;
+            }
+            ss = grow(null);
+        }
+        int idx = pad + slot;
+        while (true) {
+            AtomicLongArray row = ss[stripe() & (ss.length - 1)];
+            long v = row.get(idx);
+            long r = combine(v, x);
+            if (r == v || row.compareAndSet(idx, v, r)) {
+                return;
+            }
+            // still contended; spread the threads over more stripes
+            ss = ss.length < MAX_STRIPES ? grow(ss) : ss;
+        }
+    }
+
+    final long reduce(int slot) {
+        long r = base.get(slot);
+        AtomicLongArray[] ss = stripes;
+        if (ss != null) {
+            for (AtomicLongArray row : ss) {
+                r = combine(r, row.get(pad + slot));
+            }
+        }
+        return r;
+    }
+
+    final void reset() {
+        reset(identity);
+    }
+
+    /**
+     * @param value The value the slots read after the reset
+     */
+    final void reset(long value) {
+        for (int i = 0; i < width; i++) {
+            base.set(i, value);
+        }
+        AtomicLongArray[] ss = stripes;
+        if (ss != null) {
+            for (AtomicLongArray row : ss) {
+                for (int j = 0; j < width; j++) {
+                    row.set(pad + j, identity);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The current number of the stripes; 0 until the first collision
+     */
+    final int stripeCount() {
+        AtomicLongArray[] ss = stripes;
+        return ss != null ? ss.length : 0;
+    }
+
+    /**
+     * Doubles the number of the stripes; the existing stripes are retained
+     * so that no concurrent update gets lost
+     */
+    private AtomicLongArray[] grow(AtomicLongArray[] old) {
+        int len = old != null ? old.length : 0;
+        AtomicLongArray[] ss = new AtomicLongArray[Math.min(Math.max(len * 2, 2), MAX_STRIPES)];
+        if (old != null) {
+            System.arraycopy(old, 0, ss, 0, len);
+        }
+        for (int i = len; i < ss.length; i++) {
+            AtomicLongArray row = new AtomicLongArray(pad + width + pad);
+            if (identity != 0) {
+                for (int j = 0; j < width; j++) {
+                    row.set(pad + j, identity);
+                }
+            }
+            ss[i] = row;
+        }
+        if (!STRIPES.compareAndSet(this, old, ss)) {
+            ss = stripes;
+        }
+        return ss;
+    }
+
+    private static int stripe() {
+        long id = Thread.currentThread().getId();
+        return (int)((id * 0x9E3779B97F4A7C15L) >>> 58);
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package net.java.btrace.ext.aggregations;
+
+/**
+ * Lock-free aggregation function for computing the minimum value.
+ * <p>
+ * Scales with the number of updating threads; see {@linkplain StripedCells}
+ * </p>
+ *
+ * @author Jaroslav Bachorik
+ */
+final class StripedMinimum extends StripedCells implements AggregationValue {
+
+    StripedMinimum() {
+        super(1, Long.MAX_VALUE);
+    }
+
+    @Override
+    long combine(long current, long x) {
+        return x < current ? x : current;
+    }
+
+    /**
+     * Clears the value to {@linkplain Integer#MAX_VALUE} the same way {@linkplain Minimum#clear()} does
+     */
+    @Override
+    public void clear() {
+        reset(Integer.MAX_VALUE);
+    }
+
+    @Override
+    public void add(long data) {
+        accumulate(0, data);
+    }
+
+    @Override
+    public long getValue() {
+        return reduce(0);
+    }
+
+    @Override
+    public Object getData() {
+        return Long.valueOf(getValue());
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package net.java.btrace.ext.aggregations;
+
+/**
+ * Lock-free aggregation function that calculates a power-of-two frequency distribution of the values.
+ * <p>
+ * The buckets are laid out in a single flat row per stripe instead of separate counter objects;
+ * see {@linkplain StripedCells} and {@linkplain Quantize} for the bucket layout.
+ * </p>
+ *
+ * @author Jaroslav Bachorik
+ */
+final class StripedQuantize extends StripedCells implements AggregationValue {
+
+    StripedQuantize() {
+        super(Quantize.BUCKETS, 0L);
+    }
+
+    @Override
+    long combine(long current, long x) {
+        return current + x;
+    }
+
+    @Override
+    public void clear() {
+        reset();
+    }
+
+    @Override
+    public void add(long data) {
+        accumulate(Quantize.getBucketIndex(data), 1);
+    }
+
+    /**
+     * Returns the label of the bucket containing the largest value; see {@linkplain Quantize#getValue()}
+     */
+    @Override
+    public long getValue() {
+        for (int i = Quantize.BUCKETS - 1; i >= 0; i--) {
+            if (reduce(i) > 0) {
+                return Quantize.getBucketLabel(i);
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public HistogramData getData() {
+        long[] buckets = new long[Quantize.BUCKETS];
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = reduce(i);
+        }
+        return Quantize.toHistogram(buckets);
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package net.java.btrace.ext.aggregations;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * A simple multi-threaded benchmark comparing the synchronized/atomic aggregation values
+ * with their striped counterparts
+ * Usage: AggregationsBenchmark [max threads] [iterations per thread]
+ *
+ * @author Jaroslav Bachorik
+ */
+public class AggregationsBenchmark {
+    private static interface Factory {
+        AggregationValue newValue();
+    }
+
+    public static void main(String[] args) throws Exception {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 5000000;
+
+        Factory[][] pairs = new Factory[][] {
+            {new Factory() { public AggregationValue newValue() { return new Sum(); }},
+             new Factory() { public AggregationValue newValue() { return new StripedSum(); }}},
+            {new Factory() { public AggregationValue newValue() { return new Count(); }},
+             new Factory() { public AggregationValue newValue() { return new StripedCount(); }}},
+            {new Factory() { public AggregationValue newValue() { return new Minimum(); }},
+             new Factory() { public AggregationValue newValue() { return new StripedMinimum(); }}},
+            {new Factory() { public AggregationValue newValue() { return new Maximum(); }},
+             new Factory() { public AggregationValue newValue() { return new StripedMaximum(); }}},
+            {new Factory() { public AggregationValue newValue() { return new Average(); }},
+             new Factory() { public AggregationValue newValue() { return new StripedAverage(); }}},
+            {new Factory() { public AggregationValue newValue() { return new Quantize(); }},
+             new Factory() { public AggregationValue newValue() { return new StripedQuantize(); }}}
+        };
+
+        for (Factory[] pair : pairs) {
+            String classic = pair[0].newValue().getClass().getSimpleName();
+            String striped = pair[1].newValue().getClass().getSimpleName();
+            // warm up
+            runBenchmark(pair[0].newValue(), 2, iterations);
+            runBenchmark(pair[1].newValue(), 2, iterations);
+
+            for (int threads = 1; threads <= maxThreads; threads *= 2) {
+                long ops = (long)threads * iterations;
+                long durClassic = runBenchmark(pair[0].newValue(), threads, iterations);
+                long durStriped = runBenchmark(pair[1].newValue(), threads, iterations);
+                System.err.println(threads + " thread(s): " +
+                                   classic + " " + (ops * 1000000000L / durClassic) + " ops/s, " +
+                                   striped + " " + (ops * 1000000000L / durStriped) + " ops/s");
+            }
+        }
+    }
+
+    private static long runBenchmark(final AggregationValue value, int threads, final int iterations) throws InterruptedException {
+        final CountDownLatch ready = new CountDownLatch(threads);
+        final CountDownLatch go = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            final long seed = i;
+            Thread t = new Thread(new Runnable() {
+                public void run() {
+                    ready.countDown();
+                    try {
+                        go.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    long data = seed;
+                    for (int i = 0; i < iterations; i++) {
+                        value.add(data);
+                        data = (data * 31 + 7) & 0xffff;
+                    }
+                    done.countDown();
+                }
+            }, "Thread#" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+        ready.await();
+        long start = System.nanoTime();
+        go.countDown();
+        done.await();
+        return System.nanoTime() - start;
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package net.java.btrace.ext.aggregations;
+
+import java.util.concurrent.CountDownLatch;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Jaroslav Bachorik
+ */
+public class StripedValuesTest {
+    private static final int THREADS = 8;
+    private static final int ITERATIONS = 100000;
+
+    @Test
+    public void testSum() throws Exception {
+        System.out.println("sum");
+        assertSame(new Sum(), new StripedSum(), -5, 3, 0, 1000);
+        StripedSum s = new StripedSum();
+        hammer(s, 7);
+        assertEquals(7L * THREADS * ITERATIONS, s.getValue());
+    }
+
+    @Test
+    public void testCount() throws Exception {
+        System.out.println("count");
+        assertSame(new Count(), new StripedCount(), -5, 3, 0, 1000);
+        StripedCount c = new StripedCount();
+        hammer(c, 7);
+        assertEquals((long)THREADS * ITERATIONS, c.getValue());
+    }
+
+    @Test
+    public void testMinMax() throws Exception {
+        System.out.println("minMax");
+        assertSame(new Minimum(), new StripedMinimum(), 5, -3, 0, 1000);
+        assertSame(new Maximum(), new StripedMaximum(), 5, -3, 0, 1000);
+        StripedMinimum min = new StripedMinimum();
+        StripedMaximum max = new StripedMaximum();
+        hammer(min, 3);
+        hammer(max, 3);
+        assertEquals(3, min.getValue());
+        assertEquals(3, max.getValue());
+        min.add(-1);
+        max.add(ITERATIONS);
+        assertEquals(-1, min.getValue());
+        assertEquals(ITERATIONS, max.getValue());
+        min.clear();
+        max.clear();
+        assertEquals(Integer.MAX_VALUE, min.getValue());
+        assertEquals(Integer.MIN_VALUE, max.getValue());
+
+        // cleared the same way as the replaced values
+        Minimum m1 = new Minimum();
+        StripedMinimum m2 = new StripedMinimum();
+        m1.clear();
+        m2.clear();
+        assertSame(m1, m2, Integer.MAX_VALUE + 1L, 5);
+        Maximum m3 = new Maximum();
+        StripedMaximum m4 = new StripedMaximum();
+        m3.clear();
+        m4.clear();
+        assertSame(m3, m4, Integer.MIN_VALUE - 1L, -5);
+    }
+
+    @Test
+    public void testAverage() throws Exception {
+        System.out.println("average");
+        assertSame(new Average(), new StripedAverage(), 5, -3, 0, 1000);
+        StripedAverage a = new StripedAverage();
+        assertEquals(0, a.getValue());
+        hammer(a, 12);
+        assertEquals(12, a.getValue());
+
+        // the mean is truncated to int the same way
+        assertSame(new Average(), new StripedAverage(), Integer.MAX_VALUE * 4L, Integer.MAX_VALUE * 2L);
+    }
+
+    @Test
+    public void testStripesOnContention() throws Exception {
+        System.out.println("stripesOnContention");
+        StripedQuantize q = new StripedQuantize();
+        for (int i = 0; i < ITERATIONS; i++) {
+            q.add(i);
+        }
+        // a single thread never collides
+        assertEquals(0, q.stripeCount());
+
+        hammer(q, 100);
+        int stripes = q.stripeCount();
+        assertTrue(stripes <= 64);
+        assertEquals(0, stripes & (stripes - 1));
+        assertEquals(ITERATIONS + (long)THREADS * ITERATIONS, sum(q.getData().getCounts()));
+    }
+
+    @Test
+    public void testQuantize() throws Exception {
+        System.out.println("quantize");
+        Quantize q = new Quantize();
+        StripedQuantize sq = new StripedQuantize();
+        assertNull(sq.getData());
+        for (long l = -100; l < 5000; l += 7) {
+            q.add(l);
+            sq.add(l);
+        }
+        assertEquals(q.getValue(), sq.getValue());
+        HistogramData expected = q.getData();
+        HistogramData actual = sq.getData();
+        assertArrayEquals(expected.getValues(), actual.getValues());
+        assertArrayEquals(expected.getCounts(), actual.getCounts());
+
+        sq.clear();
+        hammer(sq, 100);
+        assertEquals(64, sq.getValue());
+        assertEquals((long)THREADS * ITERATIONS, sq.getData().getCounts()[1]);
+    }
+
+    private static void assertSame(AggregationValue expected, AggregationValue actual, long ... data) {
+        for (long d : data) {
+            expected.add(d);
+            actual.add(d);
+            assertEquals(expected.getValue(), actual.getValue());
+        }
+        assertEquals(expected.getData(), actual.getData());
+    }
+
+    private static long sum(long[] counts) {
+        long s = 0;
+        for (long c : counts) {
+            s += c;
+        }
+        return s;
+    }
+
+    private static void hammer(final AggregationValue value, final long data) throws InterruptedException {
+        final CountDownLatch go = new CountDownLatch(1);
+        Thread[] threads = new Thread[THREADS];
+        for (int i = 0; i < THREADS; i++) {
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        go.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int j = 0; j < ITERATIONS; j++) {
+                        value.add(data);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        go.countDown();
+        for (Thread t : threads) {
+            t.join();
+        }
+    }
+}
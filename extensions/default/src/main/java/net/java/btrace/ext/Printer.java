@@ -46,19 +46,86 @@ public class Printer {
     private static final String NULL_MSG = "<null>";
     public static String LINE_SEPARATOR = System.getProperty("line.separator");
     public static String INDENT = "    ";
+
+    /**
+     * The number of characters buffered per thread before they are sent out
+     */
+    private static final int BUFFER_SIZE = Integer.getInteger("btrace.printer.bufferSize", 8192);
+
+    /**
+     * Collects the messages printed by one thread; the batch is sent as a single
+     * {@linkplain MessageCommand} once the probe handler finishes, the buffer fills up
+     * or a command is about to be sent from the same thread
+     */
+    private static final class PrintBuffer implements Runnable {
+        private StringBuilder sb = new StringBuilder(256);
+        private long time = 0L;
+        private boolean deferred = false;
+
+        void append(String str, boolean newLine, boolean timeStamp) {
+            if (timeStamp) {
+                // the timestamp belongs to the batch; start a new one
+                flush();
+                time = System.currentTimeMillis();
+            }
+            sb.append(str);
+            if (newLine) {
+                sb.append('\n');
+            }
+            if (sb.length() >= BUFFER_SIZE) {
+                flush();
+            } else if (!deferred) {
+                deferred = l.defer(this);
+                if (!deferred) {
+                    flush();
+                }
+            }
+        }
+
+        public void run() {
+            deferred = false;
+            flush();
+        }
+
+        private void flush() {
+            if (sb.length() == 0) return;
+
+            final String msg = sb.toString();
+            final long timeStamp = time;
+            if (sb.capacity() > BUFFER_SIZE * 2) {
+                // do not keep a builder grown by a single large print for the thread's lifetime;
+                // the regular growth overshoots the buffer size by one doubling at most
+                sb = new StringBuilder(256);
+            } else {
+                sb.setLength(0);
+            }
+            time = 0L;
+            l.send(MessageCommand.class, new AbstractCommand.Initializer<MessageCommand> () {
+                public void init(MessageCommand cmd) {
+                    cmd.setMessage(msg);
+                    if (timeStamp != 0L) cmd.setTime(timeStamp);
+                }
+            });
+        }
+    }
+
+    private static PrintBuffer buffer() {
+        // kept next to the thread's deferred actions; ThreadLocal might be instrumented itself
+        PrintBuffer pb = (PrintBuffer)l.getAttachment(PrintBuffer.class);
+        if (pb == null) {
+            pb = new PrintBuffer();
+            l.attach(PrintBuffer.class, pb);
+        }
+        return pb;
+    }
+
     /**
      * Convenience method for printing textual messages to the BTrace output stream
      * @param str The message to print
      * @param timeStamp Flag indicating whether a {@linkplain System#currentTimeMillis()} timestamp should be attached to the message
      */
-    public static void print(final String str, final boolean timeStamp) {        
-        l.send(MessageCommand.class, new AbstractCommand.Initializer<MessageCommand> () {
-
-            public void init(MessageCommand cmd) {
-                cmd.setMessage(str != null ? str : NULL_MSG);
-                if (timeStamp) cmd.setTime(System.currentTimeMillis());
-            }
-        });
+    public static void print(final String str, final boolean timeStamp) {
+        buffer().append(str != null ? str : NULL_MSG, false, timeStamp);
     }
 
     public static void print(String str) {
@@ -71,7 +138,7 @@ public class Printer {
      * @param timeStamp Flag indicating whether a {@linkplain System#currentTimeMillis()} timestamp should be attached to the message
      */
     public static void println(String str, boolean timeStamp) {
-        print(str + "\n", timeStamp);
+        buffer().append(str != null ? str : NULL_MSG, true, timeStamp);
     }
 
     public static void println(String str) {
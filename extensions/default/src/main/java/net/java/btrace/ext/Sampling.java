@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package net.java.btrace.ext;
+
+import net.java.btrace.api.extensions.BTraceExtension;
+import javax.annotation.Resource;
+import net.java.btrace.api.extensions.runtime.ProbeSampling;
+
+/*
+ * Statistics of the sampled probes; see {@linkplain net.java.btrace.annotations.Sampled}
+ * <p>
+ * To be called from a handler of a sampled probe. The values can be used
+ * to scale the collected data, eg. <b>count * sampledEvents() / sampledHits()</b>
+ * @since 2.0
+ * @author Jaroslav Bachorik
+ */
+@BTraceExtension
+public class Sampling {
+    @Resource
+    private static ProbeSampling sampling;
+
+    /**
+     * The number of the probe invocations the handler was called for
+     */
+    public static long sampledHits() {
+        return sampling.sampledHits();
+    }
+
+    /**
+     * The estimated number of all the probe invocations, including the skipped ones
+     */
+    public static long sampledEvents() {
+        return sampling.sampledEvents();
+    }
+
+    /**
+     * The current mean number of the probe invocations per one handler call
+     */
+    public static int samplingInterval() {
+        return sampling.samplingInterval();
+    }
+}
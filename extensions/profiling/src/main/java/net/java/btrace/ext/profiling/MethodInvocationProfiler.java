@@ -22,249 +22,291 @@
  * or visit www.oracle.com if you need additional information or have any
  * questions.
  */
-
 package net.java.btrace.ext.profiling;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Field;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import sun.misc.Unsafe;
 
 /**
  * Implementation of {@linkplain Profiler}
+ * <br/><br/>
+ * Block names are interned to integer ids at their first use. Each thread
+ * records into its own flat, primitive call stack and accumulator array,
+ * guarded by a seqlock, so that snapshots can be taken without stopping
+ * the recording threads. Threads are tracked only weakly; the data of
+ * the terminated threads is folded into a shared accumulator and the
+ * per-thread recorder is released.
  * @author Jaroslav Bachorik
  */
 class MethodInvocationProfiler extends Profiler implements Profiler.MBeanValueProvider {
-    private static class MethodInvocationRecorder {
-        private int stackSize = 200;
+    // layout of the per-block accumulator
+    private static final int INVOCATIONS = 0;
+    private static final int SELF_TIME = 1;
+    private static final int WALL_TIME = 2;
+    private static final int SELF_TIME_MIN = 3;
+    private static final int SELF_TIME_MAX = 4;
+    private static final int WALL_TIME_MIN = 5;
+    private static final int WALL_TIME_MAX = 6;
+    private static final int FIELDS = 7;
+
+    // the dead recorders are purged on every PURGE_INTERVAL-th thread registration
+    private static final int PURGE_INTERVAL = 64;
+    // the number of the failed optimistic reads before the reader starts yielding
+    private static final int MAX_SPINS = 64;
+
+    // provides the ordered accumulator stores and the volatile accumulator loads
+    // keeping the accesses inside the seqlock brackets; available since JDK 6
+    private static final Unsafe unsafe;
+    private static final long LONG_BASE;
+    private static final int LONG_SHIFT;
+
+    static {
+        unsafe = AccessController.doPrivileged(new PrivilegedAction<Unsafe>() {
+            @Override
+            public Unsafe run() {
+                try {
+                    Field f = Unsafe.class.getDeclaredField("theUnsafe");
+                    f.setAccessible(true);
+                    return (Unsafe)f.get(null);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        LONG_BASE = unsafe.arrayBaseOffset(long[].class);
+        LONG_SHIFT = 31 - Integer.numberOfLeadingZeros(unsafe.arrayIndexScale(long[].class));
+    }
+
+    /**
+     * The per-thread data. The call stack is touched only by the owning thread.
+     * The accumulator is written only by the owning thread and read by the snapshots;
+     * the writes are bracketed by incrementing {@linkplain #seq} (odd while in progress).
+     * The accumulator slots are written with ordered stores so they can not become visible
+     * before the odd sequence number and read with volatile loads so they can not be
+     * satisfied after the sequence number re-check.
+     */
+    private static final class MethodInvocationRecorder {
+        private final WeakReference<Thread> thread;
+
+        private int[] stackIds = new int[16];
+        private long[] stackChildTime = new long[16];
         private int stackPtr = -1;
-        private int stackBndr = 150;
-        private Record[] stackArr = new Record[stackSize];
+        private int[] active; // number of the activations of a block currently on stack
+        private long carryOver = 0L;
 
-        private int measuredSize = 0;
-        private int measuredPtr = 0;
-        private Record[] measured = new Record[0];
+        private volatile int seq = 0;
+        private volatile long[] acc;
+        private volatile int epoch;
 
-        private long carryOver = 0L;
-        private int defaultBufferSize;
+        // snapshot side only; the sums reported before the last reset
+        private long[] baseline = new long[0];
 
-        public MethodInvocationRecorder(int expectedBlockCnt) {
-            defaultBufferSize = expectedBlockCnt * 10;
-            measuredSize = defaultBufferSize;
-            measured = new Record[measuredSize];
+        private MethodInvocationRecorder(Thread t, int blockCnt, int epoch) {
+            this.thread = new WeakReference<Thread>(t);
+            this.active = new int[blockCnt];
+            this.acc = newAccumulator(blockCnt);
+            this.epoch = epoch;
         }
-        
-        private synchronized void recordEntry(String blockName) {
-            Record r = new Record(blockName);
-            addMeasured(r);
-            push(r);
-            carryOver = 0L; // clear the carryOver; not 2 subsequent calls to recordExit
+
+        private boolean isAlive() {
+            Thread t = thread.get();
+            return t != null && t.isAlive();
         }
 
-        private synchronized void recordExit(String blockName, long duration) {
-            Record r = pop();
-            if (r == null) {
-                r = new Record(blockName);
-                addMeasured(r);
+        private void recordEntry(int id) {
+            if (++stackPtr == stackIds.length) {
+                int newSize = stackIds.length * 2;
+                stackIds = Arrays.copyOf(stackIds, newSize);
+                stackChildTime = Arrays.copyOf(stackChildTime, newSize);
             }
-            r.wallTime = duration;
-            r.selfTime += duration - carryOver;
-
-            for(int i=0;i<stackPtr;i++) {
-                if (stackArr[i].blockName.equals(blockName)) {
-                    r.wallTime = 0;
-                    break;
-                }
+            stackIds[stackPtr] = id;
+            stackChildTime[stackPtr] = 0L;
+            if (id >= active.length) {
+                active = Arrays.copyOf(active, Math.max(id + 1, active.length * 3 / 2));
             }
-            r.selfTimeMin = r.selfTimeMax = r.selfTime;
-            r.wallTimeMin = r.wallTimeMax = r.wallTime;
+            active[id]++;
+            carryOver = 0L; // clear the carryOver; not 2 subsequent calls to recordExit
+        }
 
-            Record parent = peek();
-            if (parent != null) {
-                parent.selfTime -= duration;
+        private void recordExit(int id, long duration, int curEpoch) {
+            long childTime;
+            if (stackPtr > -1) {
+                childTime = stackChildTime[stackPtr--];
+            } else {
+                childTime = carryOver;
+            }
+            // a recursive invocation does not add to the wall time of the block
+            long wallTime = id < active.length && active[id] > 0 ? 0L : duration;
+            long selfTime = duration - childTime;
+            if (stackPtr > -1) {
+                stackChildTime[stackPtr] += duration;
             } else {
                 carryOver = duration;
             }
-        }
 
-        private Record[] getRecords(boolean reset) {
-            Record[] recs = null;
-            synchronized(this) {
-                // compact the collected data
-                int stopPtr = compactMeasured();
-                recs = new Record[stopPtr];
-                // copy the record array
-                System.arraycopy(measured, 0, recs, 0, stopPtr);
-                // call reset if requested
-                if (reset) reset();
-
-                // detach the real records so they don't change as the measuring goes on
-                for(int i=0;i<recs.length;i++) {
-                    recs[i] = recs[i].duplicate();
+            int s = seq;
+            seq = s + 1;
+            long[] a = acc;
+            if (epoch != curEpoch) {
+                // the profiler has been reset; start collecting new extremes
+                for(int i=0;i<a.length;i+=FIELDS) {
+                    store(a, i + SELF_TIME_MIN, Long.MAX_VALUE);
+                    store(a, i + SELF_TIME_MAX, 0L);
+                    store(a, i + WALL_TIME_MIN, Long.MAX_VALUE);
+                    store(a, i + WALL_TIME_MAX, 0L);
                 }
-                return recs;
+                epoch = curEpoch;
             }
-        }
-
-        private void push(Record r) {
-            if (stackPtr > stackBndr) {
-                stackSize *= 1.5;
-                stackBndr *= 1.5;
-                Record[] newStack = new Record[stackSize];
-                System.arraycopy(stackArr, 0, newStack, 0, stackPtr + 1);
-                stackArr = newStack;
+            int base = id * FIELDS;
+            if (base >= a.length) {
+                a = growAccumulator(a, id + 1);
+                acc = a;
             }
-            stackArr[++stackPtr] = r;
-            r.onStack = true;
+            store(a, base + INVOCATIONS, a[base + INVOCATIONS] + 1);
+            store(a, base + SELF_TIME, a[base + SELF_TIME] + selfTime);
+            store(a, base + WALL_TIME, a[base + WALL_TIME] + wallTime);
+            if (selfTime < a[base + SELF_TIME_MIN]) store(a, base + SELF_TIME_MIN, selfTime);
+            if (selfTime > a[base + SELF_TIME_MAX]) store(a, base + SELF_TIME_MAX, selfTime);
+            if (wallTime < a[base + WALL_TIME_MIN]) store(a, base + WALL_TIME_MIN, wallTime);
+            if (wallTime > a[base + WALL_TIME_MAX]) store(a, base + WALL_TIME_MAX, wallTime);
+            seq = s + 2;
         }
 
-        private Record pop() {
-            Record r = stackPtr > -1 ? stackArr[stackPtr--] : null;
-            if (r != null) {
-                r.onStack = false;
-            }
-            return r;
-        }
-
-        private Record peek() {
-            return stackPtr > -1 ? stackArr[stackPtr] : null;
-        }
-
-        private void addMeasured(Record r) {
-            if (measuredPtr == measuredSize) {
-                compactMeasured();
-            }
-            measured[measuredPtr++] = r;
+        private int popId() {
+            int id = stackIds[stackPtr];
+            active[id]--;
+            return id;
         }
 
-        private synchronized void reset() {
-            Record[] newMeasured = new Record[defaultBufferSize + stackPtr + 1];
-            if (stackPtr > -1) {
-                System.arraycopy(stackArr, 0, newMeasured, 0, stackPtr + 1);
-            }
-            measuredPtr = stackPtr + 1;
-            measured = newMeasured;
-            measuredSize = measured.length;
-        }
-
-        private int compactMeasured() {
-            Map<String, Integer> indexMap = new HashMap<String, Integer>();
-            int lastIndex = 0;
-            for(int i=0;i<measuredPtr;i++) {
-                Record m = measured[i];
-                if (!m.onStack) {
-                    Integer newIndex = indexMap.get(m.blockName);
-                    if (newIndex == null) {
-                        newIndex = lastIndex++;
-                        indexMap.put(m.blockName, newIndex);
-                        measured[newIndex] = m;
-                    } else {
-                        Record mr = measured[newIndex];
-                        mr.selfTime += m.selfTime;
-                        mr.wallTime += m.wallTime;
-                        mr.invocations++;
-                        mr.selfTimeMax = m.selfTime > mr.selfTimeMax ? m.selfTime : mr.selfTimeMax;
-                        mr.selfTimeMin = m.selfTime < mr.selfTimeMin ? m.selfTime : mr.selfTimeMin;
-                        mr.wallTimeMax = m.wallTime > mr.wallTimeMax ? m.wallTime : mr.wallTimeMax;
-                        mr.wallTimeMin = m.wallTime < mr.wallTimeMin ? m.wallTime : mr.wallTimeMin;
-                        for(int j=0;j<stackPtr;j++) {
-                            if (stackArr[j] == m) { // if the old ref is kept on stack
-                                stackArr[j] = mr; // replace it with the compacted ref
-                            }
+        /**
+         * Reads a consistent copy of the accumulator without blocking the owner.
+         * The extremes are cleared in the copy if they belong to an older epoch.
+         */
+        private long[] read(int curEpoch) {
+            int spins = 0;
+            while (true) {
+                int s = seq;
+                if ((s & 1) == 0) {
+                    long[] a = acc;
+                    long[] copy = new long[a.length];
+                    for(int i=0;i<copy.length;i++) {
+                        copy[i] = unsafe.getLongVolatile(a, LONG_BASE + ((long)i << LONG_SHIFT));
+                    }
+                    int e = epoch;
+                    if (seq == s) {
+                        if (e != curEpoch) {
+                            clearExtremes(copy);
                         }
+                        return copy;
                     }
                 }
-            }
-            if ((lastIndex + stackPtr + 1) == measuredSize) {
-                int newMeasuredSize = (int)(measuredSize * 1.25) + (stackPtr + 1); // make room for the methods on the stack
-                if (newMeasuredSize == measuredSize) {
-                    newMeasuredSize = measuredSize * 2 + (stackPtr + 1); // make room for the methods on the stack
+                if (++spins > MAX_SPINS) {
+                    Thread.yield();
                 }
-                Record[] newMeasured = new Record[newMeasuredSize];
-                System.arraycopy(measured, 0, newMeasured, 0, lastIndex); // copy the compacted values
-                measured = newMeasured;
-                measuredSize = newMeasuredSize;
             }
-            System.arraycopy(stackArr, 0, measured, lastIndex, stackPtr + 1); // add the not processed methods on the stack
-            measuredPtr = lastIndex + stackPtr + 1; // move the pointer behind the methods on the stack
-            
-            return lastIndex;
         }
     }
 
-    final private Map<Thread, MethodInvocationRecorder> recorders = new HashMap<Thread, MethodInvocationRecorder>(128);
+    final private ConcurrentHashMap<String, Integer> blockIds;
+    volatile private String[] blockNames = new String[0];
+    private int blockCnt = 0;
+    final private Object blockLock = new Object();
+
+    final private ConcurrentLinkedQueue<MethodInvocationRecorder> recorders = new ConcurrentLinkedQueue<MethodInvocationRecorder>();
+    final private AtomicInteger registrations = new AtomicInteger();
+    final private ThreadLocal<MethodInvocationRecorder> threadRecorder = new ThreadLocal<MethodInvocationRecorder>() {
+        @Override
+        protected MethodInvocationRecorder initialValue() {
+            return register();
+        }
+    };
 
+    // guarded by snapshotLock; the data of the terminated threads
+    private long[] retired = newAccumulator(0);
+    final private Object snapshotLock = new Object();
+    volatile private int epoch = 0;
 
     volatile private Snapshot lastValidSnapshot = null;
 
-    private int expectedBlockCnt;
-
     public MethodInvocationProfiler(int expectedMethodCnt) {
-        this.expectedBlockCnt = expectedMethodCnt;
+        this.blockIds = new ConcurrentHashMap<String, Integer>(expectedMethodCnt);
     }
 
     public void recordEntry(String blockName) {
-        getThreadSampler().recordEntry(blockName);
+        threadRecorder.get().recordEntry(blockId(blockName));
     }
 
     public void recordExit(String blockName, long duration) {
-        getThreadSampler().recordExit(blockName, duration);
+        MethodInvocationRecorder r = threadRecorder.get();
+        int id = r.stackPtr > -1 ? r.popId() : blockId(blockName);
+        r.recordExit(id, duration, epoch);
     }
 
     public void reset() {
-        synchronized(recorders) {
-            for(MethodInvocationRecorder r : recorders.values()) {
-                r.reset();
+        synchronized(snapshotLock) {
+            int curEpoch = epoch;
+            for(MethodInvocationRecorder r : recorders) {
+                r.baseline = r.read(curEpoch);
             }
+            retired = newAccumulator(0);
+            epoch = curEpoch + 1;
         }
     }
 
     private long lastTs = START_TIME;
 
     public Snapshot snapshot(boolean reset) {
-        synchronized(recorders) {
-            Map<String, Integer> idMap = new HashMap<String, Integer>();
-
-            Record[] mergedRecords = null;
-            int mergedEntries = 0, mergedCapacity = 0;
-            for(Map.Entry<Thread, MethodInvocationRecorder> sEntry : recorders.entrySet()) {
-                final Record[] records = sEntry.getValue().getRecords(reset);
-                if (records == null || records.length == 0) continue; // just skip the empty data
-
-                if (mergedRecords == null) {
-                    mergedRecords = records;
-                    mergedCapacity = mergedRecords.length;
-                    for(int i=0;i<records.length;i++) {
-                        if (records[i] != null) {
-                            mergedEntries = i + 1;
-                        }
-                        idMap.put(records[i].blockName, i);
+        synchronized(snapshotLock) {
+            int curEpoch = epoch;
+            long[] merged = retired.clone();
+            for(Iterator<MethodInvocationRecorder> iter = recorders.iterator(); iter.hasNext();) {
+                MethodInvocationRecorder r = iter.next();
+                // check the liveness first; once dead, the recorder can not change any more
+                boolean alive = r.isAlive();
+                long[] data = r.read(curEpoch);
+                merged = merge(merged, data, r.baseline);
+                if (reset) {
+                    r.baseline = data;
+                }
+                if (!alive) {
+                    iter.remove();
+                    if (!reset) {
+                        retired = merge(retired, data, r.baseline);
                     }
-                    continue;
                 }
+            }
 
-                for(int i=0;i<records.length;i++) {
-                    Record r = records[i];
-                    Integer id = idMap.get(r.blockName);
-                    if (id == null) {
-                        id = mergedEntries++;
-                        if (mergedEntries > mergedCapacity) {
-                            mergedCapacity = (int)((mergedEntries + 1) * 1.25);
-                            Record[] newRecs = new Record[mergedCapacity];
-                            System.arraycopy(mergedRecords, 0, newRecs, 0, mergedEntries - 1);
-                            mergedRecords = newRecs;
-                        }
-                        idMap.put(r.blockName, id);
-                        mergedRecords[id] = r;
-                    } else {
-                        Record merged = mergedRecords[id];
-                        merged.invocations += r.invocations;
-                        merged.selfTime += r.selfTime;
-                        merged.wallTime += r.wallTime;
-                    }
+            String[] names = blockNames;
+            int cnt = 0;
+            for(int i=0;i<merged.length;i+=FIELDS) {
+                if (merged[i + INVOCATIONS] > 0) cnt++;
+            }
+            Record[] rslt = new Record[cnt];
+            int ptr = 0;
+            for(int i=0;i<merged.length;i+=FIELDS) {
+                if (merged[i + INVOCATIONS] > 0) {
+                    Record rec = new Record(names[i / FIELDS]);
+                    rec.invocations = merged[i + INVOCATIONS];
+                    rec.selfTime = merged[i + SELF_TIME];
+                    rec.wallTime = merged[i + WALL_TIME];
+                    rec.selfTimeMin = merged[i + SELF_TIME_MIN];
+                    rec.selfTimeMax = merged[i + SELF_TIME_MAX];
+                    rec.wallTimeMin = merged[i + WALL_TIME_MIN];
+                    rec.wallTimeMax = merged[i + WALL_TIME_MAX];
+                    rslt[ptr++] = rec;
                 }
             }
-            Record[] rslt = new Record[mergedEntries];
-            if (mergedRecords != null) {
-                System.arraycopy(mergedRecords, 0, rslt, 0, mergedEntries);
+            if (reset) {
+                retired = newAccumulator(0);
+                epoch = curEpoch + 1;
             }
 
             long curTs = System.currentTimeMillis();
@@ -278,18 +320,113 @@ class MethodInvocationProfiler extends Profiler implements Profiler.MBeanValuePr
     public Snapshot getMBeanValue() {
         return lastValidSnapshot;
     }
-    
-    private MethodInvocationRecorder getThreadSampler() {
-        Thread t = Thread.currentThread();
-        MethodInvocationRecorder s = recorders.get(t);
-        if (s == null) {
-            synchronized(recorders) {
-                if (!recorders.containsKey(t)) {
-                    s = new MethodInvocationRecorder(expectedBlockCnt);
-                    recorders.put(t, s);
+
+    /**
+     * @return The number of the currently registered per-thread recorders
+     */
+    int recorderCount() {
+        return recorders.size();
+    }
+
+    private int blockId(String blockName) {
+        Integer id = blockIds.get(blockName);
+        return id != null ? id : registerBlock(blockName);
+    }
+
+    private int registerBlock(String blockName) {
+        synchronized(blockLock) {
+            Integer id = blockIds.get(blockName);
+            if (id == null) {
+                id = blockCnt++;
+                String[] names = Arrays.copyOf(blockNames, blockCnt);
+                names[id] = blockName;
+                // publish the name before the id so the snapshots can always resolve it
+                blockNames = names;
+                blockIds.put(blockName, id);
+            }
+            return id;
+        }
+    }
+
+    private MethodInvocationRecorder register() {
+        MethodInvocationRecorder r = new MethodInvocationRecorder(Thread.currentThread(), blockNames.length, epoch);
+        recorders.add(r);
+        if (registrations.incrementAndGet() % PURGE_INTERVAL == 0) {
+            purge();
+        }
+        return r;
+    }
+
+    /**
+     * Folds the data of the terminated threads into the shared accumulator
+     * and releases their recorders
+     */
+    private void purge() {
+        synchronized(snapshotLock) {
+            int curEpoch = epoch;
+            for(Iterator<MethodInvocationRecorder> iter = recorders.iterator(); iter.hasNext();) {
+                MethodInvocationRecorder r = iter.next();
+                if (!r.isAlive()) {
+                    retired = merge(retired, r.read(curEpoch), r.baseline);
+                    iter.remove();
                 }
             }
         }
-        return s;
+    }
+
+    /**
+     * Adds the data collected since the baseline to the target accumulator
+     * @return The target accumulator, possibly reallocated
+     */
+    private static long[] merge(long[] target, long[] data, long[] baseline) {
+        if (target.length < data.length) {
+            target = growAccumulator(target, data.length / FIELDS);
+        }
+        for(int i=0;i<data.length;i+=FIELDS) {
+            long invocations = data[i + INVOCATIONS];
+            if (i < baseline.length) {
+                invocations -= baseline[i + INVOCATIONS];
+            }
+            if (invocations == 0) continue;
+
+            target[i + INVOCATIONS] += invocations;
+            target[i + SELF_TIME] += data[i + SELF_TIME] - (i < baseline.length ? baseline[i + SELF_TIME] : 0L);
+            target[i + WALL_TIME] += data[i + WALL_TIME] - (i < baseline.length ? baseline[i + WALL_TIME] : 0L);
+            target[i + SELF_TIME_MIN] = Math.min(target[i + SELF_TIME_MIN], data[i + SELF_TIME_MIN]);
+            target[i + SELF_TIME_MAX] = Math.max(target[i + SELF_TIME_MAX], data[i + SELF_TIME_MAX]);
+            target[i + WALL_TIME_MIN] = Math.min(target[i + WALL_TIME_MIN], data[i + WALL_TIME_MIN]);
+            target[i + WALL_TIME_MAX] = Math.max(target[i + WALL_TIME_MAX], data[i + WALL_TIME_MAX]);
+        }
+        return target;
+    }
+
+    private static long[] newAccumulator(int blockCnt) {
+        long[] a = new long[blockCnt * FIELDS];
+        clearExtremes(a);
+        return a;
+    }
+
+    private static long[] growAccumulator(long[] a, int minBlockCnt) {
+        int oldLen = a.length;
+        int newLen = Math.max(minBlockCnt, (oldLen / FIELDS) * 3 / 2) * FIELDS;
+        a = Arrays.copyOf(a, newLen);
+        for(int i=oldLen;i<newLen;i+=FIELDS) {
+            a[i + SELF_TIME_MIN] = Long.MAX_VALUE;
+            a[i + WALL_TIME_MIN] = Long.MAX_VALUE;
+        }
+        return a;
+    }
+
+    private static void store(long[] a, int idx, long value) {
+        unsafe.putOrderedLong(a, LONG_BASE + ((long)idx << LONG_SHIFT), value);
+    }
+
+    private static void clearExtremes(long[] a) {
+        for(int i=0;i<a.length;i+=FIELDS) {
+            a[i + SELF_TIME_MIN] = Long.MAX_VALUE;
+            a[i + SELF_TIME_MAX] = 0L;
+            a[i + WALL_TIME_MIN] = Long.MAX_VALUE;
+            a[i + WALL_TIME_MAX] = 0L;
+        }
     }
 }
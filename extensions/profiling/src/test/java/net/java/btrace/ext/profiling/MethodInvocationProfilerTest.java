@@ -268,4 +268,89 @@ public class MethodInvocationProfilerTest {
         Snapshot s = p.snapshot();
         assertArrayEquals(expected, s.total);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testTerminatedThreadData() throws Exception {
+        System.out.println("testTerminatedThreadData()");
+
+        Record[] expected = new Record[]{new Record("r1")};
+        expected[0].invocations = 2;
+        expected[0].selfTime = 20;
+        expected[0].wallTime = 20;
+
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                p.recordEntry("r1");
+                p.recordExit("r1", 10);
+            }
+        });
+        t.start();
+        t.join();
+        assertEquals(1, ((MethodInvocationProfiler)p).recorderCount());
+
+        Snapshot s = p.snapshot();
+        assertEquals(0, ((MethodInvocationProfiler)p).recorderCount());
+        assertEquals(1, s.total.length);
+        assertEquals(1, s.total[0].invocations);
+
+        p.recordEntry("r1");
+        p.recordExit("r1", 10);
+
+        s = p.snapshot();
+        assertArrayEquals(expected, s.total);
+    }
+
+    @Test
+    public void testConcurrentSnapshots() throws Exception {
+        System.out.println("testConcurrentSnapshots()");
+
+        final int threads = 4;
+        final int loops = 100000;
+        Thread[] workers = new Thread[threads];
+        for(int i=0;i<threads;i++) {
+            workers[i] = new Thread(new Runnable() {
+                public void run() {
+                    for(int j=0;j<loops;j++) {
+                        p.recordEntry("r1");
+                        p.recordEntry("r2");
+                        p.recordExit("r2", 10);
+                        p.recordExit("r1", 20);
+                    }
+                }
+            });
+            workers[i].start();
+        }
+        long lastInvocations = 0;
+        while (true) {
+            boolean running = false;
+            for(Thread t : workers) {
+                running |= t.isAlive();
+            }
+            Snapshot s = p.snapshot();
+            for(Record r : s.total) {
+                // a consistent view has the times matching the number of invocations
+                if (r.blockName.equals("r1")) {
+                    assertEquals(r.invocations * 10, r.selfTime);
+                    assertEquals(r.invocations * 20, r.wallTime);
+                    assertTrue(r.invocations >= lastInvocations);
+                    lastInvocations = r.invocations;
+                } else {
+                    assertEquals(r.invocations * 10, r.selfTime);
+                }
+            }
+            if (!running) break;
+        }
+
+        Record[] expected = new Record[]{new Record("r1"), new Record("r2")};
+        expected[0].invocations = threads * loops;
+        expected[0].selfTime = threads * loops * 10L;
+        expected[0].wallTime = threads * loops * 20L;
+        expected[1].invocations = threads * loops;
+        expected[1].selfTime = threads * loops * 10L;
+        expected[1].wallTime = threads * loops * 10L;
+
+        Snapshot s = p.snapshot();
+        assertArrayEquals(expected, s.total);
+        assertEquals(0, ((MethodInvocationProfiler)p).recorderCount());
+    }
+}
@@ -26,9 +26,7 @@ package net.java.btrace.instr;
 
 import net.java.btrace.annotations.BTrace;
 import java.lang.annotation.Annotation;
-import java.util.ArrayList;
 import java.util.List;
-import java.util.regex.Pattern;
 import static net.java.btrace.org.objectweb.asm.Opcodes.ACC_INTERFACE;
 import static net.java.btrace.instr.Constants.*;
 import net.java.btrace.org.objectweb.asm.AnnotationVisitor;
@@ -40,7 +38,6 @@ import net.java.btrace.org.objectweb.asm.MethodVisitor;
 import net.java.btrace.org.objectweb.asm.Type;
 import net.java.btrace.org.objectweb.asm.Opcodes;
 import net.java.btrace.api.extensions.BTraceExtension;
-import java.util.regex.PatternSyntaxException;
 
 /**
  * This class checks whether a given target class
@@ -50,16 +47,8 @@ import java.util.regex.PatternSyntaxException;
  * @author A. Sundararajan
  */
 public class ClassFilter {
+    private final ProbeMatcher matcher;
 
-    private String[] sourceClasses;
-    private Pattern[] sourceClassPatterns;
-    private String[] annotationClasses;
-    private Pattern[] annotationClassPatterns;
-    // +foo type class pattern in any @OnMethod.
-    private String[] superTypes;
-    // same as above but stored in internal name form ('/' instead of '.')
-    private String[] superTypesInternal;
-        
     static {
         CheckingVisitor.class.getClass();
         ClassReader.class.getClass();
@@ -71,7 +60,18 @@ public class ClassFilter {
     }
 
     public ClassFilter(List<OnMethod> onMethods) {
-        init(onMethods);
+        this(new ProbeMatcher(onMethods));
+    }
+
+    public ClassFilter(ProbeMatcher matcher) {
+        this.matcher = matcher;
+    }
+
+    /**
+     * @return The probe index used by this filter; to be shared with {@linkplain Instrumentor}
+     */
+    public ProbeMatcher getMatcher() {
+        return matcher;
     }
 
     public boolean isCandidate(Class target) {
@@ -86,42 +86,13 @@ public class ClassFilter {
             return false;
         }
 
-        String className = target.getName();
-        for (String name : sourceClasses) {
-            if (name.equals(className)) {
-                return true;
-            }
-        }
-
-        for (Pattern pat : sourceClassPatterns) {
-            if (pat.matcher(className).matches()) {
-                return true;
-            }
-        }
-
-        for (String st : superTypes) {
-            if (isSubTypeOf(target, st)) {
-                return true;
-            }
-        }
-
-        Annotation[] annotations = target.getAnnotations();
-        String[] annoTypes = new String[annotations.length];
-        for (int i = 0; i < annotations.length; i++) {
-            annoTypes[i] = annotations[i].annotationType().getName();
-        }
-
-        for (String name : annotationClasses) {
-            for (int i = 0; i < annoTypes.length; i++) {
-                if (name.equals(annoTypes[i])) {
-                    return true;
-                }
-            }
+        if (matcher.matchesClass(target)) {
+            return true;
         }
 
-        for (Pattern pat : annotationClassPatterns) {
-            for (int i = 0; i < annoTypes.length; i++) {
-                if (pat.matcher(annoTypes[i]).matches()) {
+        if (matcher.hasAnnotationProbes()) {
+            for (Annotation a : target.getAnnotations()) {
+                if (matcher.matchesAnnotation(a.annotationType().getName())) {
                     return true;
                 }
             }
@@ -131,12 +102,30 @@ public class ClassFilter {
     }
 
     public boolean isCandidate(byte[] classBytes) {
-        return isCandidate(new ClassReader(classBytes));
+        return isCandidate(null, new ClassReader(classBytes));
     }
 
     public boolean isCandidate(ClassReader reader) {
-        CheckingVisitor cv = new CheckingVisitor();
-        InstrumentUtils.accept(reader, cv);
+        return isCandidate(null, reader);
+    }
+
+    /**
+     * Checks a class being loaded
+     * @param loader The class loader defining the class; used to resolve its super types
+     * @param reader The class bytes
+     * @return <b>TRUE</b> if the class should be instrumented
+     */
+    public boolean isCandidate(ClassLoader loader, ClassReader reader) {
+        if ((reader.getAccess() & ACC_INTERFACE) != 0) {
+            return false;
+        }
+        boolean nameMatch = matcher.matchesClass(loader, reader.getClassName(), reader.getSuperName(), reader.getInterfaces());
+        if (!nameMatch && !matcher.hasAnnotationProbes()) {
+            // no need to parse the rest of the class
+            return false;
+        }
+        CheckingVisitor cv = new CheckingVisitor(nameMatch);
+        InstrumentUtils.accept(reader, cv, ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
         return cv.isCandidate();
     }
 
@@ -146,102 +135,40 @@ public class ClassFilter {
      * type is specified by just name and not by Class object.
      */
     public static boolean isSubTypeOf(Class clazz, String typeName) {
-        if (clazz == null) {
-            return false;
-        } else if (clazz.getName().equals(typeName)) {
-            return true;
-        } else {
-            for (Class iface : clazz.getInterfaces()) {
-                if (isSubTypeOf(iface, typeName)) {
-                    return true;
-                }
-            }
-            return isSubTypeOf(clazz.getSuperclass(), typeName);
-        }
+        return ClassHierarchy.getDefault().isSubTypeOf(clazz, typeName.replace('.', '/'));
     }
 
     private class CheckingVisitor extends ClassVisitor {
 
-        private boolean isInterface;
         private boolean isCandidate;
+        private boolean isExcluded;
 
-        public CheckingVisitor() {
+        public CheckingVisitor(boolean nameMatch) {
             super(Opcodes.ASM4);
+            this.isCandidate = nameMatch;
         }
 
         boolean isCandidate() {
-            return isCandidate;
-        }
-
-        public void visit(int version, int access, String name,
-                String signature, String superName, String[] interfaces) {
-            if ((access & ACC_INTERFACE) != 0) {
-                isInterface = true;
-                isCandidate = false;
-                return;
-            }
-            name = name.replace('/', '.');
-            for (String className : sourceClasses) {
-                if (className.equals(name)) {
-                    isCandidate = true;
-                    return;
-                }
-            }
-
-            for (Pattern pat : sourceClassPatterns) {
-                if (pat.matcher(name).matches()) {
-                    isCandidate = true;
-                    return;
-                }
-            }
-
-            for (String st : superTypesInternal) {
-                if (superName.equals(st)) {
-                    isCandidate = true;
-                    return;
-                }
-                for (String iface : interfaces) {
-                    if (iface.equals(st)) {
-                        isCandidate = true;
-                        return;
-                    }
-                }
-            }
+            return isCandidate && !isExcluded;
         }
 
         public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
-            if (isInterface) {
-                return null;
-            }
-
             if (BTRACE_DESC.equals(desc)) {
                 // ignore classes annotated with @BTrace -
                 // we don't want to instrument tracing classes!
-                isCandidate = false;
+                isExcluded = true;
                 return null;
             }
             
             if (BTRACE_EXT.equals(desc)) {
                 // ignore classes annotated with @BTraceExtension -
                 // we don't want to instrument tracing extensions classes!
-                isCandidate = false;
+                isExcluded = true;
                 return null;
             }
 
-            if (!isCandidate) {
-                String annoName = Type.getType(desc).getClassName();
-                for (String name : annotationClasses) {
-                    if (annoName.equals(name)) {
-                        isCandidate = true;
-                        return null;
-                    }
-                }
-                for (Pattern pat : annotationClassPatterns) {
-                    if (pat.matcher(annoName).matches()) {
-                        isCandidate = true;
-                        return null;
-                    }
-                }
+            if (!isCandidate && matcher.matchesAnnotation(Type.getType(desc).getClassName())) {
+                isCandidate = true;
             }
 
             return null;
@@ -273,64 +200,4 @@ public class ClassFilter {
         public void visitSource(String source, String debug) {
         }
     }
-
-    private void init(List<OnMethod> onMethods) {
-        List<String> strSrcList = new ArrayList<String>();
-        List<Pattern> patSrcList = new ArrayList<Pattern>();
-        List<String> superTypesList = new ArrayList<String>();
-        List<String> superTypesInternalList = new ArrayList<String>();
-        List<String> strAnoList = new ArrayList<String>();
-        List<Pattern> patAnoList = new ArrayList<Pattern>();
-
-        for (OnMethod om : onMethods) {
-            String className = om.getClazz();
-            if (className.length() == 0) {
-                continue;
-            }
-            char firstCh = className.charAt(0);
-            if (firstCh == '/' &&
-                    REGEX_SPECIFIER.matcher(className).matches()) {
-                try {
-                    Pattern p = Pattern.compile(className.substring(1,
-                            className.length() - 1));
-                    patSrcList.add(p);
-                } catch (PatternSyntaxException pse) {
-                    System.err.println("btrace ERROR: invalid regex pattern - " + className.substring(1, className.length() - 1));
-                }
-            } else if (firstCh == '@') {
-                className = className.substring(1);
-                if (REGEX_SPECIFIER.matcher(className).matches()) {
-                    try {
-                        Pattern p = Pattern.compile(
-                                className.substring(1, className.length() - 1));
-                        patAnoList.add(p);
-                    } catch (PatternSyntaxException pse) {
-                        System.err.println("btrace ERROR: invalid regex pattern - " + className.substring(1, className.length() - 1));
-                    }
-                } else {
-                    strAnoList.add(className);
-                }
-            } else if (firstCh == '+') {
-                String superType = className.substring(1);
-                superTypesList.add(superType);
-                superTypesInternalList.add(superType.replace('.', '/'));
-                strSrcList.add(superType);
-            } else {
-                strSrcList.add(className);
-            }
-        }
-
-        sourceClasses = new String[strSrcList.size()];
-        strSrcList.toArray(sourceClasses);
-        sourceClassPatterns = new Pattern[patSrcList.size()];
-        patSrcList.toArray(sourceClassPatterns);
-        superTypes = new String[superTypesList.size()];
-        superTypesList.toArray(superTypes);
-        superTypesInternal = new String[superTypesInternalList.size()];
-        superTypesInternalList.toArray(superTypesInternal);
-        annotationClasses = new String[strAnoList.size()];
-        strAnoList.toArray(annotationClasses);
-        annotationClassPatterns = new Pattern[patAnoList.size()];
-        patAnoList.toArray(annotationClassPatterns);
-    }
 }
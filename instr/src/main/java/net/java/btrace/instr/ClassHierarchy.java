@@ -0,0 +1,337 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package net.java.btrace.instr;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import net.java.btrace.api.core.BTraceLogger;
+import net.java.btrace.org.objectweb.asm.ClassReader;
+
+/**
+ * An agent-wide index of the class hierarchy keyed by the class internal names.
+ * <p>
+ * It is populated incrementally from the class bytes as the classes are being
+ * loaded, from the already loaded {@linkplain Class} instances and, as a last resort,
+ * by reading the class file headers of the not yet loaded super types through
+ * the initiating class loader. The class loaders are referenced only weakly.
+ * </p>
+ * <p>
+ * The transitive closure of the super types is computed once per class and
+ * cached so that the subtype checks are plain hash lookups.
+ * </p>
+ *
+ * @author Jaroslav Bachorik
+ */
+public final class ClassHierarchy {
+    final private static ClassHierarchy INSTANCE = new ClassHierarchy();
+
+    final private static class TypeInfo {
+        final private String superName;
+        final private String[] interfaces;
+        // the internal names of all the super types, including the type itself
+        private volatile Set<String> superTypes;
+
+        TypeInfo(String superName, String[] interfaces) {
+            this.superName = superName;
+            this.interfaces = interfaces != null ? interfaces : new String[0];
+        }
+    }
+
+    final private static class LoaderKey extends WeakReference<ClassLoader> {
+        final private int hash;
+
+        LoaderKey(ClassLoader loader, ReferenceQueue<ClassLoader> queue) {
+            super(loader, queue);
+            this.hash = System.identityHashCode(loader);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof LoaderKey)) {
+                return false;
+            }
+            ClassLoader l = get();
+            return l != null && l == ((LoaderKey)obj).get();
+        }
+    }
+
+    // marks a type whose class file could not be found through the initiating class loader
+    final private static TypeInfo MISSING = new TypeInfo(null, null);
+
+    final private ConcurrentMap<String, TypeInfo> bootTypes = new ConcurrentHashMap<String, TypeInfo>();
+    final private ConcurrentMap<LoaderKey, ConcurrentMap<String, TypeInfo>> loaderTypes = new ConcurrentHashMap<LoaderKey, ConcurrentMap<String, TypeInfo>>();
+    final private ReferenceQueue<ClassLoader> collected = new ReferenceQueue<ClassLoader>();
+
+    ClassHierarchy() {
+    }
+
+    public static ClassHierarchy getDefault() {
+        return INSTANCE;
+    }
+
+    /**
+     * Records a class being loaded
+     * @param loader The defining class loader; <b>NULL</b> for the bootstrap class loader
+     * @param reader The class bytes
+     */
+    public void add(ClassLoader loader, ClassReader reader) {
+        add(loader, reader.getClassName(), reader.getSuperName(), reader.getInterfaces());
+    }
+
+    /**
+     * Records a class
+     * @param loader The defining class loader; <b>NULL</b> for the bootstrap class loader
+     * @param internalName The class internal name
+     * @param superName The super class internal name; may be <b>NULL</b>
+     * @param interfaces The internal names of the directly implemented interfaces; may be <b>NULL</b>
+     */
+    public void add(ClassLoader loader, String internalName, String superName, String[] interfaces) {
+        ConcurrentMap<String, TypeInfo> types = types(loader, true);
+        TypeInfo ti = new TypeInfo(superName, interfaces);
+        if (types.putIfAbsent(internalName, ti) == MISSING) {
+            types.replace(internalName, MISSING, ti);
+        }
+    }
+
+    /**
+     * Checks whether a class is a subtype of a given type. The super types not recorded
+     * yet are looked up through the given class loader.
+     * @param loader The class loader the class is visible from; <b>NULL</b> for the bootstrap class loader
+     * @param internalName The class internal name
+     * @param superType The internal name of the super type
+     * @return <b>TRUE</b> if the class is the given type or extends/implements it, even indirectly
+     */
+    public boolean isSubTypeOf(ClassLoader loader, String internalName, String superType) {
+        return getSuperTypes(loader, internalName).contains(superType);
+    }
+
+    /**
+     * Checks whether a loaded class is a subtype of a given type
+     * @param clazz The class
+     * @param superType The internal name of the super type
+     * @return <b>TRUE</b> if the class is the given type or extends/implements it, even indirectly
+     */
+    public boolean isSubTypeOf(Class clazz, String superType) {
+        return clazz != null && getSuperTypes(clazz).contains(superType);
+    }
+
+    /**
+     * @param loader The class loader the class is visible from; <b>NULL</b> for the bootstrap class loader
+     * @param internalName The class internal name
+     * @return <b>TRUE</b> if all the super types of the class could be resolved
+     */
+    public boolean isResolved(ClassLoader loader, String internalName) {
+        TypeInfo ti = resolve(loader, internalName);
+        if (ti == null) {
+            return false;
+        }
+        getSuperTypes(loader, internalName, ti);
+        // only the complete hierarchies are cached
+        return ti.superTypes != null;
+    }
+
+    /**
+     * @param loader The class loader the class is visible from; <b>NULL</b> for the bootstrap class loader
+     * @param internalName The class internal name
+     * @return The internal names of all the known super types of the class, including the class itself
+     */
+    public Set<String> getSuperTypes(ClassLoader loader, String internalName) {
+        TypeInfo ti = resolve(loader, internalName);
+        if (ti == null) {
+            return Collections.singleton(internalName);
+        }
+        return getSuperTypes(loader, internalName, ti);
+    }
+
+    /**
+     * @param clazz The class
+     * @return The internal names of all the super types of the class, including the class itself
+     */
+    public Set<String> getSuperTypes(Class clazz) {
+        String internalName = clazz.getName().replace('.', '/');
+        ConcurrentMap<String, TypeInfo> types = types(clazz.getClassLoader(), true);
+        TypeInfo ti = types.get(internalName);
+        if (ti == MISSING) {
+            types.remove(internalName, MISSING);
+            ti = null;
+        }
+        if (ti != null && ti.superTypes != null) {
+            return ti.superTypes;
+        }
+
+        Class superClass = clazz.getSuperclass();
+        Class[] ifcs = clazz.getInterfaces();
+        Set<String> superTypes = new HashSet<String>();
+        superTypes.add(internalName);
+        if (superClass != null) {
+            superTypes.addAll(getSuperTypes(superClass));
+        }
+        String[] ifcNames = new String[ifcs.length];
+        for (int i = 0; i < ifcs.length; i++) {
+            ifcNames[i] = ifcs[i].getName().replace('.', '/');
+            superTypes.addAll(getSuperTypes(ifcs[i]));
+        }
+        if (ti == null) {
+            ti = new TypeInfo(superClass != null ? superClass.getName().replace('.', '/') : null, ifcNames);
+            TypeInfo old = types.putIfAbsent(internalName, ti);
+            if (old != null) {
+                ti = old;
+            }
+        }
+        ti.superTypes = superTypes;
+        return superTypes;
+    }
+
+    private Set<String> getSuperTypes(ClassLoader loader, String internalName, TypeInfo ti) {
+        Set<String> superTypes = ti.superTypes;
+        if (superTypes != null) {
+            return superTypes;
+        }
+        superTypes = new HashSet<String>();
+        superTypes.add(internalName);
+        boolean complete = true;
+        if (ti.superName != null) {
+            complete &= addSuperTypes(loader, ti.superName, superTypes);
+        }
+        for (String iface : ti.interfaces) {
+            complete &= addSuperTypes(loader, iface, superTypes);
+        }
+        if (complete) {
+            // the incomplete hierarchy is recomputed once the missing types are known
+            ti.superTypes = superTypes;
+        }
+        return superTypes;
+    }
+
+    private boolean addSuperTypes(ClassLoader loader, String internalName, Set<String> superTypes) {
+        TypeInfo ti = resolve(loader, internalName);
+        if (ti == null) {
+            superTypes.add(internalName);
+            return false;
+        }
+        Set<String> s = getSuperTypes(loader, internalName, ti);
+        superTypes.addAll(s);
+        return ti.superTypes == s;
+    }
+
+    /**
+     * Finds the type visible from the given class loader, using the parent-first delegation.
+     * Reads the class file header if the type has not been recorded yet.
+     * A failed class file lookup is remembered for the initiating class loader
+     * so that it is not repeated until the type gets recorded.
+     */
+    private TypeInfo resolve(ClassLoader loader, String internalName) {
+        boolean missing = false;
+        for (ClassLoader l = loader; l != null; l = l.getParent()) {
+            ConcurrentMap<String, TypeInfo> types = types(l, false);
+            if (types != null) {
+                TypeInfo ti = types.get(internalName);
+                if (ti == MISSING) {
+                    // a parent may miss a type its child can see
+                    missing |= l == loader;
+                } else if (ti != null) {
+                    return ti;
+                }
+            }
+        }
+        TypeInfo ti = bootTypes.get(internalName);
+        if (ti == MISSING) {
+            missing |= loader == null;
+        } else if (ti != null) {
+            return ti;
+        }
+        if (missing) {
+            return null;
+        }
+
+        String resource = internalName + ".class";
+        InputStream is = loader != null ? loader.getResourceAsStream(resource) : ClassLoader.getSystemResourceAsStream(resource);
+        if (is == null) {
+            types(loader, true).putIfAbsent(internalName, MISSING);
+            return null;
+        }
+        try {
+            ClassReader reader = new ClassReader(is);
+            ti = new TypeInfo(reader.getSuperName(), reader.getInterfaces());
+            // the defining loader is not known; the initiating one will do
+            ConcurrentMap<String, TypeInfo> types = types(loader, true);
+            TypeInfo old = types.putIfAbsent(internalName, ti);
+            if (old == MISSING) {
+                types.replace(internalName, MISSING, ti);
+                return ti;
+            }
+            return old != null ? old : ti;
+        } catch (IOException e) {
+            BTraceLogger.debugPrint(e);
+            return null;
+        } finally {
+            try {
+                is.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private ConcurrentMap<String, TypeInfo> types(ClassLoader loader, boolean create) {
+        if (loader == null) {
+            return bootTypes;
+        }
+        purge();
+        LoaderKey key = new LoaderKey(loader, null);
+        ConcurrentMap<String, TypeInfo> types = loaderTypes.get(key);
+        if (types == null && create) {
+            types = new ConcurrentHashMap<String, TypeInfo>();
+            ConcurrentMap<String, TypeInfo> old = loaderTypes.putIfAbsent(new LoaderKey(loader, collected), types);
+            if (old != null) {
+                types = old;
+            }
+        }
+        return types;
+    }
+
+    private void purge() {
+        Reference<? extends ClassLoader> ref;
+        while ((ref = collected.poll()) != null) {
+            loaderTypes.remove(ref);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package net.java.btrace.instr;
+
+import static net.java.btrace.org.objectweb.asm.Opcodes.*;
+import java.lang.reflect.Modifier;
+import net.java.btrace.api.wireio.AbstractCommand;
+import net.java.btrace.api.wireio.CommandInstantiator;
+import net.java.btrace.api.wireio.CommandInstantiatorGenerator;
+import net.java.btrace.org.objectweb.asm.ClassWriter;
+import net.java.btrace.org.objectweb.asm.MethodVisitor;
+import net.java.btrace.org.objectweb.asm.Type;
+
+/**
+ * This class generates a {@linkplain CommandInstantiator} subclass
+ * creating the given command type by a plain <b>new</b> instead of
+ * reflectively invoking its constructor.
+ *
+ * @author Jaroslav Bachorik
+ */
+public class CommandInstantiatorGeneratorImpl implements CommandInstantiatorGenerator {
+    private static final String INSTANTIATOR_INTERNAL = Type.getInternalName(CommandInstantiator.class);
+    private static final String NEW_INSTANCE_DESC = Type.getMethodDescriptor(Type.getType(AbstractCommand.class), new Type[]{Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE});
+
+    public byte[] generate(Class<? extends AbstractCommand> cmdClass, String className) {
+        int modifiers = cmdClass.getModifiers();
+        // make sure that the class is public and concrete
+        if (!Modifier.isPublic(modifiers) || Modifier.isAbstract(modifiers) ||
+            (cmdClass.getEnclosingClass() != null && !Modifier.isStatic(modifiers))) {
+            throw new IllegalArgumentException();
+        }
+        // make sure that the (int, int, int) constructor is public as well
+        try {
+            if (!Modifier.isPublic(cmdClass.getConstructor(int.class, int.class, int.class).getModifiers())) {
+                throw new IllegalArgumentException();
+            }
+        } catch (NoSuchMethodException e) {
+            throw new IllegalArgumentException(e);
+        }
+        String cmdInternal = Type.getInternalName(cmdClass);
+
+        ClassWriter cw = InstrumentUtils.newClassWriter();
+        cw.visit(V1_5, ACC_PUBLIC | ACC_FINAL | ACC_SUPER, className, null, INSTANTIATOR_INTERNAL, null);
+
+        MethodVisitor mw = cw.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
+        mw.visitCode();
+        mw.visitVarInsn(ALOAD, 0);
+        mw.visitMethodInsn(INVOKESPECIAL, INSTANTIATOR_INTERNAL, "<init>", "()V");
+        mw.visitInsn(RETURN);
+        mw.visitMaxs(1, 1);
+        mw.visitEnd();
+
+        // return new <cmdClass>(type, rx, tx);
+        mw = cw.visitMethod(ACC_PUBLIC, "newInstance", NEW_INSTANCE_DESC, null, null);
+        mw.visitCode();
+        mw.visitTypeInsn(NEW, cmdInternal);
+        mw.visitInsn(DUP);
+        mw.visitVarInsn(ILOAD, 1);
+        mw.visitVarInsn(ILOAD, 2);
+        mw.visitVarInsn(ILOAD, 3);
+        mw.visitMethodInsn(INVOKESPECIAL, cmdInternal, "<init>", "(III)V");
+        mw.visitInsn(ARETURN);
+        mw.visitMaxs(5, 4);
+        mw.visitEnd();
+
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+}
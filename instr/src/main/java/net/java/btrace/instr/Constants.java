@@ -27,10 +27,13 @@ package net.java.btrace.instr;
 
 import net.java.btrace.api.types.AnyType;
 import net.java.btrace.annotations.BTrace;
+import net.java.btrace.annotations.Clock;
 import net.java.btrace.annotations.Kind;
 import net.java.btrace.annotations.Location;
 import net.java.btrace.annotations.OnMethod;
 import net.java.btrace.annotations.OnProbe;
+import net.java.btrace.annotations.Sampled;
+import net.java.btrace.annotations.Sampler;
 import net.java.btrace.annotations.Where;
 import java.util.regex.Pattern;
 import net.java.btrace.org.objectweb.asm.Type;
@@ -77,6 +80,15 @@ public abstract class Constants {
     public static final String KIND_DESC =
         Type.getDescriptor(Kind.class);
 
+    public static final String CLOCK_DESC =
+        Type.getDescriptor(Clock.class);
+
+    public static final String SAMPLED_DESC =
+        Type.getDescriptor(Sampled.class);
+
+    public static final String SAMPLER_DESC =
+        Type.getDescriptor(Sampler.class);
+
     // class name pattern is specified with this pattern
     public static final Pattern REGEX_SPECIFIER = Pattern.compile("/.+/");
 }
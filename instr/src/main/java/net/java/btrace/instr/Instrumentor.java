@@ -27,6 +27,7 @@ package net.java.btrace.instr;
 
 import net.java.btrace.annotations.Kind;
 import net.java.btrace.annotations.Where;
+import net.java.btrace.annotations.Sampler;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Set;
@@ -39,13 +40,15 @@ import net.java.btrace.org.objectweb.asm.AnnotationVisitor;
 import net.java.btrace.org.objectweb.asm.ClassReader;
 import net.java.btrace.org.objectweb.asm.ClassVisitor;
 import net.java.btrace.org.objectweb.asm.ClassWriter;
+import net.java.btrace.org.objectweb.asm.Label;
 import net.java.btrace.org.objectweb.asm.MethodVisitor;
 import net.java.btrace.org.objectweb.asm.Opcodes;
 import net.java.btrace.org.objectweb.asm.Type;
+import net.java.btrace.org.objectweb.asm.commons.TryCatchBlockSorter;
 import net.java.btrace.util.LocalVariablesSorter;
 import net.java.btrace.util.TimeStampGenerator;
 import net.java.btrace.util.TimeStampHelper;
-import java.util.regex.PatternSyntaxException;
+import net.java.btrace.runtime.ProbeSampler;
 import static net.java.btrace.instr.Constants.*;
 
 /**
@@ -58,10 +61,12 @@ public class Instrumentor extends ClassVisitor {
     private String btraceClassName;
     private ClassReader btraceClass;
     private List<OnMethod> onMethods;
+    private ProbeMatcher matcher;
     private List<OnMethod> applicableOnMethods;
     private Set<OnMethod> calledOnMethods;
     private String className, superName;
     private Class clazz;
+    private ClassLoader loader;
     private int version;
 
     private boolean usesTimeStamp = false;
@@ -71,11 +76,29 @@ public class Instrumentor extends ClassVisitor {
     public Instrumentor(Class clazz,
             String btraceClassName, ClassReader btraceClass,
             List<OnMethod> onMethods, ClassVisitor cv) {
+        this(clazz, btraceClassName, btraceClass, onMethods, new ProbeMatcher(onMethods), cv);
+    }
+
+    public Instrumentor(Class clazz,
+            String btraceClassName, ClassReader btraceClass,
+            List<OnMethod> onMethods, ProbeMatcher matcher, ClassVisitor cv) {
+        this(clazz, clazz != null ? clazz.getClassLoader() : null, btraceClassName, btraceClass, onMethods, matcher, cv);
+    }
+
+    /**
+     * @param loader The class loader defining the instrumented class; used to resolve the super types
+     *               of a class being loaded
+     */
+    public Instrumentor(Class clazz, ClassLoader loader,
+            String btraceClassName, ClassReader btraceClass,
+            List<OnMethod> onMethods, ProbeMatcher matcher, ClassVisitor cv) {
         super(Opcodes.ASM4, cv);
         this.clazz = clazz;
+        this.loader = loader;
         this.btraceClassName = btraceClassName.replace('.', '/');
         this.btraceClass = btraceClass;
         this.onMethods = onMethods;
+        this.matcher = matcher;
         this.applicableOnMethods = new ArrayList<OnMethod>();
         this.calledOnMethods = new HashSet<OnMethod>();
     }
@@ -86,6 +109,26 @@ public class Instrumentor extends ClassVisitor {
         this(clazz, btraceClassName, new ClassReader(btraceCode), onMethods, cv);
     }
 
+    /**
+     * @param matcher The probe index built for the <b>onMethods</b>; usually shared with {@linkplain ClassFilter}
+     */
+    public Instrumentor(Class clazz,
+            String btraceClassName, byte[] btraceCode,
+            List<OnMethod> onMethods, ProbeMatcher matcher, ClassVisitor cv) {
+        this(clazz, btraceClassName, new ClassReader(btraceCode), onMethods, matcher, cv);
+    }
+
+    /**
+     * @param loader The class loader defining the instrumented class; used to resolve the super types
+     *               of a class being loaded
+     * @param matcher The probe index built for the <b>onMethods</b>; usually shared with {@linkplain ClassFilter}
+     */
+    public Instrumentor(Class clazz, ClassLoader loader,
+            String btraceClassName, byte[] btraceCode,
+            List<OnMethod> onMethods, ProbeMatcher matcher, ClassVisitor cv) {
+        this(clazz, loader, btraceClassName, new ClassReader(btraceCode), onMethods, matcher, cv);
+    }
+
     final public boolean hasMatch() {
         return !calledOnMethods.isEmpty();
     }
@@ -96,74 +139,18 @@ public class Instrumentor extends ClassVisitor {
         timeStampExisting = false;
         className = name;
         this.superName = superName;
-        // we filter the probe methods applicable for this particular
-        // class by brute force walking. FIXME: should I optimize?
-        String externalName = name.replace('/', '.');
-        for (OnMethod om : onMethods) {
-            String probeClazz = om.getClazz();
-            if (probeClazz.length() == 0) {
-                continue;
-            }
-            char firstChar = probeClazz.charAt(0);
-            if (firstChar == '/' &&
-                REGEX_SPECIFIER.matcher(probeClazz).matches()) {
-                probeClazz = probeClazz.substring(1, probeClazz.length() - 1);
-                try {
-                    if (externalName.matches(probeClazz)) {
-                        applicableOnMethods.add(om);
-                    }
-                } catch (PatternSyntaxException pse) {
-                    reportPatternSyntaxException(probeClazz);
-                }
-            } else if (firstChar == '+') {
-                // super type being matched.
-                String superType = probeClazz.substring(1);
-                // internal name of super type.
-                String superTypeInternal = superType.replace('.', '/');
-                /*
-                 * If we are redefining a class, then we have a Class object
-                 * of it and we can walk through it's hierarchy to match for
-                 * specified super type. But, if we are loading it a fresh, then
-                 * we can not walk through super hierarchy. We just check the
-                 * immediate super class and directly implemented interfaces
-                 */
-                if (ClassFilter.isSubTypeOf(this.clazz, superType) ||
-                    superName.equals(superTypeInternal) ||
-                    isInArray(interfaces, superTypeInternal)) {
-                    applicableOnMethods.add(om);
-                }
-            } else if (probeClazz.equals(externalName)) {
-                applicableOnMethods.add(om);
-            }
-        }
+        Set<OnMethod> matching = new HashSet<OnMethod>();
+        matcher.collectClassProbes(this.clazz, loader, name, superName, interfaces, matching);
+        applicableOnMethods.addAll(ProbeMatcher.ordered(onMethods, matching));
         this.version = version;
         super.visit(version, access, name, signature, superName, interfaces);
     }
 
     public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
         AnnotationVisitor av = super.visitAnnotation(desc, visible);
-        String extName = Type.getType(desc).getClassName();
-        for (OnMethod om : onMethods) {
-            String probeClazz = om.getClazz();
-            if (probeClazz.length() > 0 && probeClazz.charAt(0) == '@') {
-                probeClazz = probeClazz.substring(1);
-                if (probeClazz.length() == 0) {
-                    continue;
-                }
-                if (REGEX_SPECIFIER.matcher(probeClazz).matches()) {
-                    probeClazz = probeClazz.substring(1, probeClazz.length() - 1);
-                    try {
-                        if (extName.matches(probeClazz)) {
-                            applicableOnMethods.add(om);
-                        }
-                    } catch (PatternSyntaxException pse) {
-                        reportPatternSyntaxException(probeClazz);
-                    }
-                } else if (probeClazz.equals(extName)) {
-                    applicableOnMethods.add(om);
-                }
-            }
-        }
+        Set<OnMethod> matching = new HashSet<OnMethod>();
+        matcher.collectAnnotationProbes(Type.getType(desc).getClassName(), matching);
+        applicableOnMethods.addAll(ProbeMatcher.ordered(onMethods, matching));
         return av;
     }
 
@@ -184,6 +171,15 @@ public class Instrumentor extends ClassVisitor {
             return methodVisitor;
         }
 
+        for (OnMethod om : applicableOnMethods) {
+            if (om.isReuseArgs()) {
+                // the handlers releasing the reused arguments arrays must take precedence
+                // over the handlers of the enclosing try blocks visited before them
+                methodVisitor = new TryCatchBlockSorter(methodVisitor, access, name, desc, signature, exceptions);
+                break;
+            }
+        }
+
         // used to create new local variables while keeping the class internals consistent
         // Call "int index = lvs.newVar(<type>)" to create a new local variable.
         // Then use the generated index to get hold of the variable
@@ -191,7 +187,7 @@ public class Instrumentor extends ClassVisitor {
         final LocalVariablesSorter lvs = new LocalVariablesSorter(access, desc, methodVisitor, externalState);
         methodVisitor = lvs;
 
-        final int[] tsIndex = new int[]{-1, -1};
+        final int[] tsIndex = new int[]{-1};
 
         for (OnMethod om : applicableOnMethods) {
             if (om.getLocation().getValue() == Kind.LINE) {
@@ -201,20 +197,9 @@ public class Instrumentor extends ClassVisitor {
                 if (methodName.equals("")) {
                     methodName = om.getTargetName();
                 }
-                if (methodName.equals(name) &&
+                if (matcher.matches(methodName, name) &&
                     typeMatches(om.getType(), desc)) {
                     methodVisitor = instrumentorFor(om, methodVisitor, lvs, tsIndex, access, name, desc);
-                } else if (methodName.charAt(0) == '/' &&
-                           REGEX_SPECIFIER.matcher(methodName).matches()) {
-                    methodName = methodName.substring(1, methodName.length() - 1);
-                    try {
-                        if (name.matches(methodName) &&
-                            typeMatches(om.getType(), desc)) {
-                            methodVisitor = instrumentorFor(om, methodVisitor, lvs, tsIndex, access, name, desc);
-                        }
-                    } catch (PatternSyntaxException pse) {
-                        reportPatternSyntaxException(name);
-                    }
                 }
             }
         }
@@ -230,16 +215,7 @@ public class Instrumentor extends ClassVisitor {
                         if (annoName.length() == 0) {
                             continue;
                         }
-                        if (REGEX_SPECIFIER.matcher(annoName).matches()) {
-                            annoName = annoName.substring(1, annoName.length() - 1);
-                            try {
-                                if (extAnnoName.matches(annoName)) {
-                                    mv = instrumentorFor(om, mv, lvs, tsIndex, access, name, desc);
-                                }
-                            } catch (PatternSyntaxException pse) {
-                                reportPatternSyntaxException(extAnnoName);
-                            }
-                        } else if (annoName.equals(extAnnoName)) {
+                        if (matcher.matches(annoName, extAnnoName)) {
                             mv = instrumentorFor(om, mv, lvs, tsIndex, access, name, desc);
                         }
                     }
@@ -250,6 +226,26 @@ public class Instrumentor extends ClassVisitor {
     }
 
     private MethodVisitor instrumentorFor(
+        final OnMethod om, MethodVisitor mv, final LocalVariablesSorter lvs,
+        final int[] tsIndex, int access, String name, final String desc) {
+        MethodVisitor instr = newInstrumentor(om, mv, lvs, tsIndex, access, name, desc);
+        if (om.isSampled() && instr instanceof MethodInstrumentor) {
+            ((MethodInstrumentor)instr).setSampler(samplerId(om));
+        }
+        return instr;
+    }
+
+    private static int samplerId(OnMethod om) {
+        // the same sampler is shared by all the locations matching the probe
+        synchronized(om) {
+            if (om.getSamplerId() == -1) {
+                om.setSamplerId(ProbeSampler.register(om.getSamplerKind() == Sampler.ADAPTIVE, om.getSamplerMean()));
+            }
+            return om.getSamplerId();
+        }
+    }
+
+    private MethodVisitor newInstrumentor(
         final OnMethod om, MethodVisitor mv, final LocalVariablesSorter lvs,
         final int[] tsIndex, int access, String name, final String desc) {
         final Location loc = om.getLocation();
@@ -416,14 +412,13 @@ public class Instrumentor extends ClassVisitor {
                             Type t = actionArgTypes[index];
                            if (TypeUtils.isAnyTypeArray(t)) {
                                if (i < backupArgsIndexes.length - 1) {
-                                    actionArgs[i] = new AnyTypeArgProvider(index, backupArgsIndexes[i+1], callArgTypes);
+                                    actionArgs[i] = new AnyTypeArgProvider(index, backupArgsIndexes[i+1], callArgTypes, om.isReuseArgs());
                                 } else {
                                     actionArgs[i] = new ArgumentProvider(index) {
 
                                         @Override
                                         protected void doProvide() {
-                                            push(0);
-                                            visitTypeInsn(ANEWARRAY, TypeUtils.objectType.getInternalName());
+                                            newAnyTypeArray(0, om.isReuseArgs());
                                         }
                                     };
                                 }
@@ -617,7 +612,7 @@ public class Instrumentor extends ClassVisitor {
                                 int index = vr.getArgIdx(i);
                                 Type t = actionArgTypes[index];
                                 if (TypeUtils.isAnyTypeArray(t)) {
-                                    actionArgs[i] = new AnyTypeArgProvider(index, ptr);
+                                    actionArgs[i] = new AnyTypeArgProvider(index, ptr, om.isReuseArgs());
                                     ptr++;
                                 } else {
                                     actionArgs[i] = new LocalVarArgProvider(index, t, ptr);
@@ -674,11 +669,6 @@ public class Instrumentor extends ClassVisitor {
                             try {
                                 if (om.getDurationParameter() != -1) {
                                     usesTimeStamp = true;
-                                    // TODO: this is a nasty hack; should be in TimeStampGenerator but can't fit it there, no way :(
-                                    if (tsIndex[1] == -1) {
-                                        TimeStampHelper.generateTimeStampAccess(this, className);
-                                        tsIndex[1] = lvs.newLocal(Type.LONG_TYPE);
-                                    }
                                 }
                                 if (!vr.isAny()) {
                                     dup();
@@ -693,10 +683,8 @@ public class Instrumentor extends ClassVisitor {
                                 actionArgs[3] = new LocalVarArgProvider(om.getSelfParameter(), Type.getObjectType(className), 0);
                                 actionArgs[4] = new ArgumentProvider(om.getDurationParameter()) {
                                     public void doProvide() {
-                                        if (tsIndex[0] != -1 && tsIndex[1] != -1) {
-                                            loadLocal(Type.LONG_TYPE, tsIndex[1]);
-                                            loadLocal(Type.LONG_TYPE, tsIndex[0]);
-                                            visitInsn(LSUB);
+                                        if (tsIndex[0] != -1) {
+                                            loadDuration(tsIndex[0], om.getClock());
                                         }
                                     }
                                 };
@@ -716,7 +704,7 @@ public class Instrumentor extends ClassVisitor {
                     }
                 };
                 if (om.getDurationParameter() != -1) {
-                    return new TimeStampGenerator(lvs, tsIndex, className, superName, access, name, desc, eri, new int[0]);
+                    return new TimeStampGenerator(lvs, tsIndex, className, superName, access, name, desc, eri, om.getClock());
                 } else {
                     return eri;
                 }
@@ -1163,7 +1151,7 @@ public class Instrumentor extends ClassVisitor {
                                 int index = vr.getArgIdx(i);
                                 Type t = actionArgTypes[index];
                                 if (TypeUtils.isAnyTypeArray(t)) {
-                                    actionArgs[i] = new AnyTypeArgProvider(i, ptr);
+                                    actionArgs[i] = new AnyTypeArgProvider(i, ptr, om.isReuseArgs());
                                     ptr++;
                                 } else {
                                     actionArgs[i] = new LocalVarArgProvider(index, t, ptr);
@@ -1176,10 +1164,8 @@ public class Instrumentor extends ClassVisitor {
                             actionArgs[actionArgTypes.length + 3] = new LocalVarArgProvider(om.getSelfParameter(), Type.getObjectType(className), 0);
                             actionArgs[actionArgTypes.length + 4] = new ArgumentProvider(om.getDurationParameter()) {
                                 public void doProvide() {
-                                    if (tsIndex[0] != -1 && tsIndex[1] != -1) {
-                                        loadLocal(Type.LONG_TYPE, tsIndex[1]);
-                                        loadLocal(Type.LONG_TYPE, tsIndex[0]);
-                                        visitInsn(LSUB);
+                                    if (tsIndex[0] != -1) {
+                                        loadDuration(tsIndex[0], om.getClock());
                                     }
                                 }
                             };
@@ -1207,7 +1193,7 @@ public class Instrumentor extends ClassVisitor {
                     }
                 };
                 if (om.getDurationParameter() != -1) {
-                    return new TimeStampGenerator(lvs, tsIndex, className, superName, access, name, desc, mri, new int[]{RETURN, IRETURN, FRETURN, DRETURN, LRETURN, ARETURN});
+                    return new TimeStampGenerator(lvs, tsIndex, className, superName, access, name, desc, mri, om.getClock());
                 } else {
                     return mri;
                 }// </editor-fold>
@@ -1413,26 +1399,25 @@ public class Instrumentor extends ClassVisitor {
     }
 
     private void invokeBTraceAction(MethodInstrumentor mv, OnMethod om) {
+        mv.beginSampled();
+        int anyTypeArrays = 0;
+        if (om.isReuseArgs()) {
+            for(Type t : Type.getArgumentTypes(om.getTargetDescriptor())) {
+                if (TypeUtils.isAnyTypeArray(t)) anyTypeArrays++;
+            }
+        }
+        Label start = anyTypeArrays > 0 ? mv.beginAnyTypeArrays() : null;
         mv.invokeStatic(className, getActionMethodName(om.getTargetName()),
             om.getTargetDescriptor().replace(ANYTYPE_DESC, OBJECT_DESC));
+        if (start != null) {
+            mv.releaseAnyTypeArrays(start, anyTypeArrays);
+        }
+        mv.endSampled();
         calledOnMethods.add(om);
     }
 
     private boolean matches(String pattern, String input) {
-        if (pattern.length() == 0) {
-            return false;
-        }
-        if (pattern.charAt(0) == '/' &&
-            REGEX_SPECIFIER.matcher(pattern).matches()) {
-            try {
-                return input.matches(pattern.substring(1, pattern.length() - 1));
-            } catch (PatternSyntaxException pse) {
-                reportPatternSyntaxException(pattern.substring(1, pattern.length() - 1));
-                return false;
-            }
-        } else {
-            return pattern.equals(input);
-        }
+        return matcher.matches(pattern, input);
     }
 
     private boolean typeMatches(String decl, String desc) {
@@ -1446,18 +1431,4 @@ public class Instrumentor extends ClassVisitor {
             return TypeUtils.isCompatible(args1, args2);
         }
     }
-
-    private static boolean isInArray(String[] candidates, String given) {
-        for (String c : candidates) {
-            if (c.equals(given)) {
-                return true;
-            }
-        }
-        return false;
-    }
-
-    private static void reportPatternSyntaxException(String pattern) {
-        System.err.println("btrace ERROR: invalid regex pattern - " + pattern);
-    }
 }
-
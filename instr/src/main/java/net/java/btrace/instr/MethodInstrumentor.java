@@ -25,10 +25,15 @@
 
 package net.java.btrace.instr;
 
+import net.java.btrace.annotations.Clock;
+import net.java.btrace.org.objectweb.asm.Label;
 import net.java.btrace.org.objectweb.asm.MethodVisitor;
 import net.java.btrace.org.objectweb.asm.Type;
 import net.java.btrace.org.objectweb.asm.Opcodes;
+import net.java.btrace.runtime.BTraceRuntime;
+import net.java.btrace.runtime.ProbeSampler;
 import net.java.btrace.util.LocalVariablesSorter;
+import net.java.btrace.util.TimeStampHelper;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.HashMap;
@@ -49,6 +54,11 @@ public class MethodInstrumentor extends MethodVisitor {
     public static final String JAVA_LANG_THREAD_LOCAL_SET = "set";
     public static final String JAVA_LANG_THREAD_LOCAL_SET_DESC = "(Ljava/lang/Object;)V";
 
+    public static final String BTRACERUNTIME_INTERNAL =
+        Type.getInternalName(BTraceRuntime.class);
+    public static final String PROBESAMPLER_INTERNAL =
+        Type.getInternalName(ProbeSampler.class);
+
     public static final String JAVA_LANG_STRING =
         Type.getInternalName(String.class);
     public static final String JAVA_LANG_STRING_DESC = 
@@ -223,19 +233,28 @@ public class MethodInstrumentor extends MethodVisitor {
     protected class AnyTypeArgProvider extends ArgumentProvider {
         private int argPtr;
         private Type[] myArgTypes;
+        private boolean reuse;
         public AnyTypeArgProvider(int index, int basePtr) {
             this(index, basePtr, argumentTypes);
         }
         
         public AnyTypeArgProvider(int index, int basePtr, Type[] argTypes) {
+            this(index, basePtr, argTypes, false);
+        }
+
+        public AnyTypeArgProvider(int index, int basePtr, boolean reuse) {
+            this(index, basePtr, argumentTypes, reuse);
+        }
+
+        public AnyTypeArgProvider(int index, int basePtr, Type[] argTypes, boolean reuse) {
             super(index);
             this.argPtr = basePtr;
             this.myArgTypes = argTypes;
+            this.reuse = reuse;
          }
 
         public void doProvide() {
-            push(myArgTypes.length);
-            visitTypeInsn(ANEWARRAY, TypeUtils.objectType.getInternalName());
+            newAnyTypeArray(myArgTypes.length, reuse);
             for (int j = 0; j < myArgTypes.length; j++) {
                 dup();
                 push(j);
@@ -257,6 +276,8 @@ public class MethodInstrumentor extends MethodVisitor {
     private Type returnType;
     private Type[] argumentTypes;
     private Map<Integer, Type> extraTypes;
+    private int samplerId = -1;
+    private Label sampleSkip;
 
     public MethodInstrumentor(MethodVisitor mv, String parentClz, String superClz,
         int access, String name, String desc) {
@@ -297,7 +318,48 @@ public class MethodInstrumentor extends MethodVisitor {
         }
     }
 
+    /**
+     * Guards the probe handler invocations by the given sampler
+     * @param samplerId The id obtained from {@linkplain ProbeSampler#register(boolean, int)}
+     */
+    void setSampler(int samplerId) {
+        this.samplerId = samplerId;
+    }
+
+    /**
+     * Emits the sampling check; the code up to the matching {@linkplain #endSampled()}
+     * is skipped for the invocations which are not sampled. The check must not
+     * change the operand stack so it is placed in front of the handler arguments.
+     */
+    protected void beginSampled() {
+        if (samplerId != -1 && sampleSkip == null) {
+            sampleSkip = new Label();
+            push(samplerId);
+            invokeStatic(PROBESAMPLER_INTERNAL, "sample", "(I)Z");
+            super.visitJumpInsn(IFEQ, sampleSkip);
+        }
+    }
+
+    protected void endSampled() {
+        if (sampleSkip != null) {
+            super.visitLabel(sampleSkip);
+            sampleSkip = null;
+        }
+    }
+
+    /**
+     * Pushes the time elapsed since the time stamp stored in the given local variable
+     * @param startIndex The local variable holding the start time stamp
+     * @param clock The clock the start time stamp was taken from
+     */
+    protected void loadDuration(int startIndex, Clock clock) {
+        TimeStampHelper.generateTimeStampAccess(mv, parentClz, clock);
+        loadLocal(Type.LONG_TYPE, startIndex);
+        super.visitInsn(LSUB);
+    }
+
     protected void loadArguments(ArgumentProvider ... argumentProviders) {
+        beginSampled();
         Arrays.sort(argumentProviders, new Comparator<ArgumentProvider>() {
             public int compare(ArgumentProvider o1, ArgumentProvider o2) {
                 if (o1 == null && o2 == null) {
@@ -321,6 +383,57 @@ public class MethodInstrumentor extends MethodVisitor {
         }
     }
 
+    /**
+     * Pushes an array to store the <b>AnyType[]</b> arguments in
+     * @param size The array size
+     * @param reuse Whether to use the per-thread reusable array; the invocation
+     *              must be followed by {@linkplain #releaseAnyTypeArrays(Label, int)}
+     */
+    protected void newAnyTypeArray(int size, boolean reuse) {
+        push(size);
+        if (reuse) {
+            invokeStatic(BTRACERUNTIME_INTERNAL, "acquireArgs", "(I)[Ljava/lang/Object;");
+        } else {
+            visitTypeInsn(ANEWARRAY, TypeUtils.objectType.getInternalName());
+        }
+    }
+
+    /**
+     * Marks the start of the code using the reusable <b>AnyType[]</b> arguments arrays
+     * @return The label to pass to {@linkplain #releaseAnyTypeArrays(Label, int)}
+     */
+    protected Label beginAnyTypeArrays() {
+        Label start = new Label();
+        super.visitLabel(start);
+        return start;
+    }
+
+    /**
+     * Releases the reusable <b>AnyType[]</b> arguments arrays. The arrays are released
+     * also when the code since {@linkplain #beginAnyTypeArrays()} throws an exception.
+     * @param start The label returned by {@linkplain #beginAnyTypeArrays()}
+     * @param count The number of arrays acquired by {@linkplain #newAnyTypeArray(int, boolean)}
+     */
+    protected void releaseAnyTypeArrays(Label start, int count) {
+        Label end = new Label();
+        Label handler = new Label();
+        Label done = new Label();
+        super.visitLabel(end);
+        visitTryCatchBlock(start, end, handler, null);
+        releaseArgs(count);
+        super.visitJumpInsn(GOTO, done);
+        super.visitLabel(handler);
+        releaseArgs(count);
+        super.visitInsn(ATHROW);
+        super.visitLabel(done);
+    }
+
+    private void releaseArgs(int count) {
+        for (int i = 0; i < count; i++) {
+            invokeStatic(BTRACERUNTIME_INTERNAL, "releaseArgs", "()V");
+        }
+    }
+
     public void loadThis() {
         if ((access & ACC_STATIC) != 0) {
             throw new IllegalStateException("no 'this' inside static method");
@@ -25,6 +25,9 @@
 
 package net.java.btrace.instr;
 
+import net.java.btrace.annotations.Clock;
+import net.java.btrace.annotations.Sampler;
+
 /**
  * This class is used to store data of the annotation
  * net.java.btrace.annotations.OnMethod. We can not read the
@@ -55,6 +58,12 @@ public class OnMethod {
     private int durationParameter = -1;
     private boolean methodFqn = false;
     private boolean targetMethodFqn = false;
+    private boolean reuseArgs = false;
+    private Sampler samplerKind = Sampler.NONE;
+    private int samplerMean = 0;
+    private Clock clock = Clock.NANO;
+    // id of the runtime sampler; assigned on the first instrumentation
+    private int samplerId = -1;
     
     public OnMethod() {
     }
@@ -64,6 +73,10 @@ public class OnMethod {
         setMethod(other.getMethod());
         setType(other.getType());
         setLocation(other.getLocation());
+        setReuseArgs(other.isReuseArgs());
+        setSamplerKind(other.getSamplerKind());
+        setSamplerMean(other.getSamplerMean());
+        setClock(other.getClock());
     }
 
     public String getClazz() {
@@ -98,6 +111,51 @@ public class OnMethod {
         this.loc = loc;
     }
 
+    public boolean isReuseArgs() {
+        return reuseArgs;
+    }
+
+    public void setReuseArgs(boolean reuseArgs) {
+        this.reuseArgs = reuseArgs;
+    }
+
+    public Sampler getSamplerKind() {
+        return samplerKind;
+    }
+
+    public void setSamplerKind(Sampler samplerKind) {
+        this.samplerKind = samplerKind;
+    }
+
+    public int getSamplerMean() {
+        return samplerMean;
+    }
+
+    public void setSamplerMean(int samplerMean) {
+        this.samplerMean = samplerMean;
+    }
+
+    public boolean isSampled() {
+        return samplerKind != Sampler.NONE && samplerMean > 0 &&
+               !(samplerKind == Sampler.CONST && samplerMean == 1);
+    }
+
+    public Clock getClock() {
+        return clock;
+    }
+
+    public void setClock(Clock clock) {
+        this.clock = clock;
+    }
+
+    int getSamplerId() {
+        return samplerId;
+    }
+
+    void setSamplerId(int samplerId) {
+        this.samplerId = samplerId;
+    }
+
     public String getTargetName() {
         return targetName;
     }
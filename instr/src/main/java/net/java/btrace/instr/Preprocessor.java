@@ -33,6 +33,8 @@ import java.util.Map;
 import static net.java.btrace.org.objectweb.asm.Opcodes.*;
 import static net.java.btrace.instr.Constants.*;
 import net.java.btrace.runtime.BTraceRuntime;
+import net.java.btrace.runtime.PerfCounter;
+import net.java.btrace.runtime.ThreadLocalSlots;
 import net.java.btrace.annotations.Export;
 import net.java.btrace.annotations.Property;
 import net.java.btrace.annotations.TLS;
@@ -58,13 +60,16 @@ import net.java.btrace.org.objectweb.asm.Type;
  * Transformations done here:
  *
  *    1. add <clinit> method, if one not found
- *    2. replace @Export fields by perf counters
- *       and replace put/get by perf counter update/read
- *    3. replace @TLS fields by ThreadLocal fields
- *       and replace put/get by ThreadLocal set/get
- *    4. In <clinit> method, add ThreadLocal creation
- *       and perf counter creation calls (for @Export and
- *       @TLS fields respectively)
+ *    2. replace @Export fields by perf counter handles
+ *       and replace put/get by perf counter update/read;
+ *       replace the increments by atomic perf counter additions
+ *    3. replace @TLS fields by slots in the per-thread ThreadLocalSlots arrays
+ *       and replace put/get by array store/load; the slots of the current
+ *       thread are looked up once at the method entry
+ *    4. In <clinit> method, add the ThreadLocalSlots template creation
+ *       and perf counter creation calls (for @TLS and
+ *       @Export fields respectively); add a method creating
+ *       the ThreadLocalSlots of a new thread from the template
  *    5. Add a field to store BTraceRuntime object and
  *       initialize the same in <clinit> method
  *    6. add prolog and epilog in each BTrace action method
@@ -77,7 +82,17 @@ import net.java.btrace.org.objectweb.asm.Type;
  * @author A. Sundararajan
  */
 public class Preprocessor extends ClassVisitor {
-    public static final String JAVA_LANG_THREAD_LOCAL_DESC = "Ljava/lang/ThreadLocal;";
+    public static final String PERF_COUNTER =
+        Type.getInternalName(PerfCounter.class);
+    public static final String PERF_COUNTER_DESC =
+        Type.getDescriptor(PerfCounter.class);
+    public static final String THREAD_LOCAL_SLOTS =
+        Type.getInternalName(ThreadLocalSlots.class);
+    public static final String THREAD_LOCAL_SLOTS_DESC =
+        Type.getDescriptor(ThreadLocalSlots.class);
+    // the generated method returning the ThreadLocalSlots of the current thread
+    public static final String BTRACE_TLS_METHOD_NAME = "$btrace$tls";
+    public static final String BTRACE_TLS_METHOD_DESC = "()" + THREAD_LOCAL_SLOTS_DESC;
     // btrace specific stuff
     public static final String BTRACE_EXPORT_DESC =
         Type.getDescriptor(Export.class);
@@ -108,30 +123,16 @@ public class Preprocessor extends ClassVisitor {
     public static final String BTRACE_RUNTIME_START_DESC; 
     public static final String BTRACE_RUNTIME_FOR_CLASS;
     public static final String BTRACE_RUNTIME_FOR_CLASS_DESC;
-    public static final String BTRACE_RUNTIME_NEW_THREAD_LOCAL;
-    public static final String BTRACE_RUNTIME_NEW_THREAD_LOCAL_DESC;
+    public static final String BTRACE_RUNTIME_NEW_TLS_SLOTS;
+    public static final String BTRACE_RUNTIME_NEW_TLS_SLOTS_DESC;
+    public static final String BTRACE_RUNTIME_TLS_SLOTS;
+    public static final String BTRACE_RUNTIME_TLS_SLOTS_DESC;
+    public static final String BTRACE_RUNTIME_INIT_TLS_SLOTS;
+    public static final String BTRACE_RUNTIME_INIT_TLS_SLOTS_DESC;
+    public static final String BTRACE_RUNTIME_COPY_TLS_VALUE;
+    public static final String BTRACE_RUNTIME_COPY_TLS_VALUE_DESC;
     public static final String BTRACE_RUNTIME_NEW_PERFCOUNTER;
     public static final String BTRACE_RUNTIME_NEW_PERFCOUNTER_DESC;
-    public static final String BTRACE_RUNTIME_GET_PERFSTRING;
-    public static final String BTRACE_RUNTIME_GET_PERFSTRING_DESC;
-    public static final String BTRACE_RUNTIME_GET_PERFINT;
-    public static final String BTRACE_RUNTIME_GET_PERFINT_DESC;
-    public static final String BTRACE_RUNTIME_GET_PERFLONG;
-    public static final String BTRACE_RUNTIME_GET_PERFLONG_DESC;
-    public static final String BTRACE_RUNTIME_GET_PERFFLOAT;
-    public static final String BTRACE_RUNTIME_GET_PERFFLOAT_DESC;
-    public static final String BTRACE_RUNTIME_GET_PERFDOUBLE;
-    public static final String BTRACE_RUNTIME_GET_PERFDOUBLE_DESC;
-    public static final String BTRACE_RUNTIME_PUT_PERFSTRING;
-    public static final String BTRACE_RUNTIME_PUT_PERFSTRING_DESC;
-    public static final String BTRACE_RUNTIME_PUT_PERFINT;
-    public static final String BTRACE_RUNTIME_PUT_PERFINT_DESC;
-    public static final String BTRACE_RUNTIME_PUT_PERFLONG;
-    public static final String BTRACE_RUNTIME_PUT_PERFLONG_DESC;
-    public static final String BTRACE_RUNTIME_PUT_PERFFLOAT;
-    public static final String BTRACE_RUNTIME_PUT_PERFFLOAT_DESC;
-    public static final String BTRACE_RUNTIME_PUT_PERFDOUBLE;
-    public static final String BTRACE_RUNTIME_PUT_PERFDOUBLE_DESC;
 
     static {     
        try {
@@ -172,12 +173,33 @@ public class Preprocessor extends ClassVisitor {
            BTRACE_RUNTIME_FOR_CLASS_DESC = 
                        Type.getMethodDescriptor(forClass);
 
-           Method newThreadLocal = BTraceRuntime.class.getMethod(
-                       "newThreadLocal",
+           Method newThreadLocalSlots = BTraceRuntime.class.getMethod(
+                       "newThreadLocalSlots",
+                       new Class[] { BTraceRuntime.class, int.class, int.class, int.class, int.class, int.class });
+           BTRACE_RUNTIME_NEW_TLS_SLOTS = newThreadLocalSlots.getName();
+           BTRACE_RUNTIME_NEW_TLS_SLOTS_DESC = 
+                       Type.getMethodDescriptor(newThreadLocalSlots);
+
+           Method threadLocalSlots = BTraceRuntime.class.getMethod(
+                       "threadLocalSlots",
+                       new Class[] { BTraceRuntime.class });
+           BTRACE_RUNTIME_TLS_SLOTS = threadLocalSlots.getName();
+           BTRACE_RUNTIME_TLS_SLOTS_DESC = 
+                       Type.getMethodDescriptor(threadLocalSlots);
+
+           Method initThreadLocalSlots = BTraceRuntime.class.getMethod(
+                       "initThreadLocalSlots",
+                       new Class[] { BTraceRuntime.class });
+           BTRACE_RUNTIME_INIT_TLS_SLOTS = initThreadLocalSlots.getName();
+           BTRACE_RUNTIME_INIT_TLS_SLOTS_DESC = 
+                       Type.getMethodDescriptor(initThreadLocalSlots);
+
+           Method copyThreadLocalValue = BTraceRuntime.class.getMethod(
+                       "copyThreadLocalValue",
                        new Class[] { Object.class });
-           BTRACE_RUNTIME_NEW_THREAD_LOCAL = newThreadLocal.getName();
-           BTRACE_RUNTIME_NEW_THREAD_LOCAL_DESC = 
-                       Type.getMethodDescriptor(newThreadLocal);
+           BTRACE_RUNTIME_COPY_TLS_VALUE = copyThreadLocalValue.getName();
+           BTRACE_RUNTIME_COPY_TLS_VALUE_DESC = 
+                       Type.getMethodDescriptor(copyThreadLocalValue);
 
            Method newPerfCounter = BTraceRuntime.class.getMethod(
                        "newPerfCounter",
@@ -185,76 +207,6 @@ public class Preprocessor extends ClassVisitor {
            BTRACE_RUNTIME_NEW_PERFCOUNTER = newPerfCounter.getName();
            BTRACE_RUNTIME_NEW_PERFCOUNTER_DESC = 
                        Type.getMethodDescriptor(newPerfCounter);
-
-           Method getPerfString = BTraceRuntime.class.getMethod(
-                       "getPerfString",
-                       new Class[] { String.class });
-           BTRACE_RUNTIME_GET_PERFSTRING = getPerfString.getName();
-           BTRACE_RUNTIME_GET_PERFSTRING_DESC = 
-                       Type.getMethodDescriptor(getPerfString);
-
-           Method getPerfInt = BTraceRuntime.class.getMethod(
-                       "getPerfInt",
-                       new Class[] { String.class });
-           BTRACE_RUNTIME_GET_PERFINT = getPerfInt.getName();
-           BTRACE_RUNTIME_GET_PERFINT_DESC = 
-                       Type.getMethodDescriptor(getPerfInt);
-
-           Method getPerfLong = BTraceRuntime.class.getMethod(
-                       "getPerfLong",
-                       new Class[] { String.class });
-           BTRACE_RUNTIME_GET_PERFLONG = getPerfLong.getName();
-           BTRACE_RUNTIME_GET_PERFLONG_DESC = 
-                       Type.getMethodDescriptor(getPerfLong);
-
-           Method getPerfFloat = BTraceRuntime.class.getMethod(
-                       "getPerfFloat",
-                       new Class[] { String.class });
-           BTRACE_RUNTIME_GET_PERFFLOAT = getPerfFloat.getName();
-           BTRACE_RUNTIME_GET_PERFFLOAT_DESC = 
-                       Type.getMethodDescriptor(getPerfFloat);
-
-           Method getPerfDouble = BTraceRuntime.class.getMethod(
-                       "getPerfDouble",
-                       new Class[] { String.class });
-           BTRACE_RUNTIME_GET_PERFDOUBLE = getPerfDouble.getName();
-           BTRACE_RUNTIME_GET_PERFDOUBLE_DESC = 
-                       Type.getMethodDescriptor(getPerfDouble);
-
-           Method putPerfString = BTraceRuntime.class.getMethod(
-                       "putPerfString",
-                       new Class[] { String.class, String.class });
-           BTRACE_RUNTIME_PUT_PERFSTRING = putPerfString.getName();
-           BTRACE_RUNTIME_PUT_PERFSTRING_DESC = 
-                       Type.getMethodDescriptor(putPerfString);
-
-           Method putPerfInt = BTraceRuntime.class.getMethod(
-                       "putPerfInt",
-                       new Class[] { int.class, String.class });
-           BTRACE_RUNTIME_PUT_PERFINT = putPerfInt.getName();
-           BTRACE_RUNTIME_PUT_PERFINT_DESC = 
-                       Type.getMethodDescriptor(putPerfInt);
-
-           Method putPerfLong = BTraceRuntime.class.getMethod(
-                       "putPerfLong",
-                       new Class[] { long.class, String.class });
-           BTRACE_RUNTIME_PUT_PERFLONG = putPerfLong.getName();
-           BTRACE_RUNTIME_PUT_PERFLONG_DESC = 
-                       Type.getMethodDescriptor(putPerfLong);
-
-           Method putPerfFloat = BTraceRuntime.class.getMethod(
-                       "putPerfFloat",
-                       new Class[] { float.class, String.class });
-           BTRACE_RUNTIME_PUT_PERFFLOAT = putPerfFloat.getName();
-           BTRACE_RUNTIME_PUT_PERFFLOAT_DESC = 
-                       Type.getMethodDescriptor(putPerfFloat);
-
-           Method putPerfDouble = BTraceRuntime.class.getMethod(
-                       "putPerfDouble",
-                       new Class[] { double.class, String.class });
-           BTRACE_RUNTIME_PUT_PERFDOUBLE = putPerfDouble.getName();
-           BTRACE_RUNTIME_PUT_PERFDOUBLE_DESC = 
-                       Type.getMethodDescriptor(putPerfDouble);           
        } catch (RuntimeException re) {
            throw re;
        } catch (Exception exp) {
@@ -274,6 +226,8 @@ public class Preprocessor extends ClassVisitor {
     private List<FieldDescriptor> fields;
     private Map<String, FieldDescriptor> threadLocalFields;
     private Map<String, FieldDescriptor> exportFields;
+    // the number of @TLS slots per ThreadLocalSlots array
+    private int[] tlsSlotCounts = new int[TLS_ARRAYS.length];
 
     // flag to tell whether we have seen <clinit> or not
     private boolean classInitializerFound;
@@ -348,6 +302,53 @@ public class Preprocessor extends ClassVisitor {
         return BTRACE_COUNTER_PREFIX + externalClassName() + "." + fieldName;
     }
 
+    // the ThreadLocalSlots arrays and their element types
+    private static final String[] TLS_ARRAYS = {"refs", "ints", "longs", "floats", "doubles"};
+    private static final Type[] TLS_ARRAY_TYPES = {
+        Type.getType(Object.class), Type.INT_TYPE, Type.LONG_TYPE, Type.FLOAT_TYPE, Type.DOUBLE_TYPE
+    };
+
+    // the PerfCounter accessor suffix for the exportable types; NULL if the type can not be exported
+    private static String perfCounterType(String desc) {
+        switch (desc.charAt(0)) {
+            case 'Z':
+            case 'C':
+            case 'B':
+            case 'S':
+            case 'I':
+                return "Int";
+            case 'J':
+                return "Long";
+            case 'F':
+                return "Float";
+            case 'D':
+                return "Double";
+            case 'L':
+                return desc.equals(MethodInstrumentor.JAVA_LANG_STRING_DESC) ? "String" : null;
+            default:
+                return null;
+        }
+    }
+
+    private static int tlsArray(String desc) {
+        switch (desc.charAt(0)) {
+            case 'Z':
+            case 'C':
+            case 'B':
+            case 'S':
+            case 'I':
+                return 1;
+            case 'J':
+                return 2;
+            case 'F':
+                return 3;
+            case 'D':
+                return 4;
+            default:
+                return 0;
+        }
+    }
+
     // save interesting bits of each field
     private static class FieldDescriptor {
         int access;
@@ -359,8 +360,9 @@ public class Preprocessor extends ClassVisitor {
         boolean isProperty;
         String propertyName;
         String propertyDescription;
-        int var = -1;
-        boolean initialized;
+        // the ThreadLocalSlots array and the slot in it for @TLS fields
+        int tlsArray = -1;
+        int tlsSlot = -1;
 
         FieldDescriptor(int acc, String n, String d,
                         String sig, Object val, List<Attribute> attrs,
@@ -422,6 +424,8 @@ public class Preprocessor extends ClassVisitor {
                                     propName, propDescription);
                 fields.add(fd);
                 if (isThreadLocal) {         
+                    fd.tlsArray = tlsArray(desc);
+                    fd.tlsSlot = tlsSlotCounts[fd.tlsArray]++;
                     threadLocalFields.put(name, fd);
                 } else if (isExport) {
                     exportFields.put(name, fd);
@@ -441,26 +445,94 @@ public class Preprocessor extends ClassVisitor {
             clinit.visitEnd();
         }
         addFields();
+        if (!threadLocalFields.isEmpty()) {
+            addThreadLocalSlotsMethod();
+        }
         super.visitEnd();
     }
 
+    /**
+     * Generates the method returning the {@linkplain ThreadLocalSlots} of the current thread.
+     * The slots of a new thread are copied from the template; the mutable reference
+     * values are replaced by their copies:
+     * <pre>
+     * public static ThreadLocalSlots $btrace$tls() {
+     *     ThreadLocalSlots s = BTraceRuntime.threadLocalSlots(runtime);
+     *     if (s == null) {
+     *         s = BTraceRuntime.initThreadLocalSlots(runtime);
+     *         s.refs[i] = s.refs[i] != null ? ((T[])s.refs[i]).clone() : null; // arrays
+     *         s.refs[j] = BTraceRuntime.copyThreadLocalValue(s.refs[j]); // other mutable values
+     *     }
+     *     return s;
+     * }
+     * </pre>
+     */
+    private void addThreadLocalSlotsMethod() {
+        MethodVisitor mv = super.visitMethod(ACC_PUBLIC | ACC_STATIC, BTRACE_TLS_METHOD_NAME,
+                                             BTRACE_TLS_METHOD_DESC, null, null);
+        mv.visitCode();
+        Label found = new Label();
+        mv.visitFieldInsn(GETSTATIC, className, BTRACE_RUNTIME_FIELD_NAME, BTRACE_RUNTIME_DESC);
+        mv.visitMethodInsn(INVOKESTATIC, BTRACE_RUNTIME, BTRACE_RUNTIME_TLS_SLOTS, BTRACE_RUNTIME_TLS_SLOTS_DESC);
+        mv.visitInsn(DUP);
+        mv.visitJumpInsn(IFNONNULL, found);
+        mv.visitInsn(POP);
+        mv.visitFieldInsn(GETSTATIC, className, BTRACE_RUNTIME_FIELD_NAME, BTRACE_RUNTIME_DESC);
+        mv.visitMethodInsn(INVOKESTATIC, BTRACE_RUNTIME, BTRACE_RUNTIME_INIT_TLS_SLOTS, BTRACE_RUNTIME_INIT_TLS_SLOTS_DESC);
+        for (FieldDescriptor fd : threadLocalFields.values()) {
+            if (fd.tlsArray != 0 || isImmutable(fd.desc)) {
+                continue;
+            }
+            mv.visitInsn(DUP);
+            mv.visitFieldInsn(GETFIELD, THREAD_LOCAL_SLOTS, TLS_ARRAYS[0], "[" + TLS_ARRAY_TYPES[0].getDescriptor());
+            mv.visitLdcInsn(fd.tlsSlot);
+            mv.visitInsn(DUP2);
+            mv.visitInsn(AALOAD);
+            if (fd.desc.charAt(0) == '[') {
+                Label isNull = new Label();
+                mv.visitInsn(DUP);
+                mv.visitJumpInsn(IFNULL, isNull);
+                mv.visitTypeInsn(CHECKCAST, fd.desc);
+                mv.visitMethodInsn(INVOKEVIRTUAL, fd.desc, "clone", "()Ljava/lang/Object;");
+                mv.visitLabel(isNull);
+            } else {
+                mv.visitMethodInsn(INVOKESTATIC, BTRACE_RUNTIME, BTRACE_RUNTIME_COPY_TLS_VALUE, BTRACE_RUNTIME_COPY_TLS_VALUE_DESC);
+            }
+            mv.visitInsn(AASTORE);
+        }
+        mv.visitLabel(found);
+        mv.visitInsn(ARETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+
+    private static boolean isImmutable(String desc) {
+        return desc.equals(MethodInstrumentor.JAVA_LANG_STRING_DESC) ||
+               desc.equals("Ljava/lang/Integer;") || desc.equals("Ljava/lang/Long;") ||
+               desc.equals("Ljava/lang/Short;") || desc.equals("Ljava/lang/Byte;") ||
+               desc.equals("Ljava/lang/Character;") || desc.equals("Ljava/lang/Boolean;") ||
+               desc.equals("Ljava/lang/Float;") || desc.equals("Ljava/lang/Double;");
+    }
+
     private void addFields() {
         for (FieldDescriptor fd : fields) {
             String fieldName = fd.name;
+            if (fd.isThreadLocal) {
+                // no need to add a field for thread local fields
+                continue;
+            }
             if (fd.isExport) {
-                // no need to add a field for exported fields
+                // exported fields are replaced by the perf counter handles
+                if (perfCounterType(fd.desc) != null) {
+                    super.visitField(ACC_PUBLIC | ACC_STATIC, BTRACE_FIELD_PREFIX + fieldName,
+                                     PERF_COUNTER_DESC, null, null).visitEnd();
+                }
                 continue;
             }
             int fieldAccess = fd.access;
             String fieldDesc = fd.desc;
             String fieldSignature = fd.signature;
             Object fieldValue = fd.value;
-            if (fd.isThreadLocal) {
-                fieldAccess &= ~ACC_FINAL;
-                fieldDesc = JAVA_LANG_THREAD_LOCAL_DESC;
-                fieldSignature = null;
-                fieldValue = null;
-            }
 
             fieldAccess &= ~ACC_PRIVATE;
             fieldAccess &= ~ACC_PROTECTED;
@@ -522,136 +594,167 @@ public class Preprocessor extends ClassVisitor {
             MethodVisitor adaptee = super.visitMethod(access, name, desc, 
                                                     signature, exceptions);
             
+            // the ThreadLocalSlots of the current thread (the template in <clinit>) are kept
+            // in the first local variable after the arguments; the method locals are shifted
+            int argsSize = (access & ACC_STATIC) != 0 ? 0 : 1;
+            for (Type t : Type.getArgumentTypes(desc)) {
+                argsSize += t.getSize();
+            }
+            final int firstLocal = argsSize;
+            final boolean usesTLS = !threadLocalFields.isEmpty();
+
             return new MethodInstrumentor(adaptee, className, superName, access, name, desc) {
                 private boolean isBTraceHandler = false;
                 private Label start = new Label();
                 private Label handler = new Label();
-                private int nextVar = 0;
+                private int nextVar = usesTLS ? 1 : 0;
+
+                private void loadPerfCounter(String name) {
+                    super.visitFieldInsn(GETSTATIC, className, BTRACE_FIELD_PREFIX + name, PERF_COUNTER_DESC);
+                }
 
                 private void generateExportGet(String name, String desc) {
-                    int typeCode = desc.charAt(0);
-                    switch (typeCode) {
-                        case '[':
-                            visitInsn(ACONST_NULL);
-                            break;
-                        case 'L':
-                            if (desc.equals(JAVA_LANG_STRING_DESC)) {
-                                visitLdcInsn(name);
-                                visitMethodInsn(INVOKESTATIC, BTRACE_RUNTIME,
-                                    BTRACE_RUNTIME_GET_PERFSTRING,
-                                    BTRACE_RUNTIME_GET_PERFSTRING_DESC);
-                            } else {
-                                visitInsn(ACONST_NULL);
-                            }
-                            break;
-                        case 'Z':
-                        case 'C':
-                        case 'B':
-                        case 'S':
-                        case 'I':
-                            visitLdcInsn(name);
-                            visitMethodInsn(INVOKESTATIC, BTRACE_RUNTIME,
-                                    BTRACE_RUNTIME_GET_PERFINT,
-                                    BTRACE_RUNTIME_GET_PERFINT_DESC);
-                            break;
-                        case 'J':
-                            visitLdcInsn(name);
-                            visitMethodInsn(INVOKESTATIC, BTRACE_RUNTIME,
-                                    BTRACE_RUNTIME_GET_PERFLONG,
-                                    BTRACE_RUNTIME_GET_PERFLONG_DESC);
-                            break;
-                        case 'F':
-                            visitLdcInsn(name);
-                            visitMethodInsn(INVOKESTATIC, BTRACE_RUNTIME,
-                                    BTRACE_RUNTIME_GET_PERFFLOAT,
-                                    BTRACE_RUNTIME_GET_PERFFLOAT_DESC);
-                            break;
-                        case 'D':
-                            visitLdcInsn(name);
-                            visitMethodInsn(INVOKESTATIC, BTRACE_RUNTIME,
-                                    BTRACE_RUNTIME_GET_PERFDOUBLE,
-                                    BTRACE_RUNTIME_GET_PERFDOUBLE_DESC);
-                            break;
+                    String type = perfCounterType(desc);
+                    if (type == null) {
+                        super.visitInsn(ACONST_NULL);
+                        return;
                     }
+                    Type t = type.equals("String") ? Type.getType(String.class) : Type.getType(desc);
+                    if (t.getSort() < Type.INT) {
+                        t = Type.INT_TYPE;
+                    }
+                    loadPerfCounter(name);
+                    super.visitMethodInsn(INVOKEVIRTUAL, PERF_COUNTER, "get" + type, "()" + t.getDescriptor());
                 }
 
                 private void generateExportPut(String name, String desc) {
-                    int typeCode = desc.charAt(0);
-                    switch (typeCode) {
-                        case '[':
-                            visitInsn(POP);
-                            break;
-                        case 'L':
-                            if (desc.equals(JAVA_LANG_STRING_DESC)) {
-                                visitLdcInsn(name);
-                                visitMethodInsn(INVOKESTATIC, BTRACE_RUNTIME,
-                                    BTRACE_RUNTIME_PUT_PERFSTRING, 
-                                    BTRACE_RUNTIME_PUT_PERFSTRING_DESC);
-                            } else {
-                                visitInsn(POP);
-                            }
-                            break;
-                        case 'Z':
-                        case 'C':
-                        case 'B':
-                        case 'S':
-                        case 'I':
-                            visitLdcInsn(name);
-                            visitMethodInsn(INVOKESTATIC, BTRACE_RUNTIME,
-                                    BTRACE_RUNTIME_PUT_PERFINT,
-                                    BTRACE_RUNTIME_PUT_PERFINT_DESC);
+                    String type = perfCounterType(desc);
+                    Type t = Type.getType(desc);
+                    if (type == null) {
+                        super.visitInsn(POP);
+                        return;
+                    }
+                    if (t.getSort() < Type.INT) {
+                        t = Type.INT_TYPE;
+                    }
+                    // value, handle -> handle, value
+                    loadPerfCounter(name);
+                    if (t.getSize() == 2) {
+                        super.visitInsn(DUP_X2);
+                        super.visitInsn(POP);
+                    } else {
+                        super.visitInsn(SWAP);
+                    }
+                    super.visitMethodInsn(INVOKEVIRTUAL, PERF_COUNTER, "put" + type, "(" + t.getDescriptor() + ")V");
+                }
+
+                /*
+                 * The increments of the exported int and long fields are replaced by
+                 * atomic additions. The instruction sequence
+                 *     GETSTATIC field; <constant or local load>; xADD|xSUB; PUTSTATIC field
+                 * is recognized by keeping the first instructions pending until the
+                 * sequence either completes or breaks; the pending instructions are
+                 * emitted unchanged in the latter case.
+                 */
+                private FieldDescriptor addField;
+                // 0 - none, 1 - insn, 2 - int insn, 3 - var insn, 4 - ldc
+                private int addOperandKind;
+                private int addOperandOpcode;
+                private Object addOperand;
+                private int addOpcode = -1;
+
+                private boolean isLongAdd() {
+                    return addField.desc.equals("J");
+                }
+
+                private void emitAddOperand() {
+                    switch (addOperandKind) {
+                        case 1:
+                            super.visitInsn(addOperandOpcode);
                             break;
-                        case 'J':
-                            visitLdcInsn(name);
-                            visitMethodInsn(INVOKESTATIC, BTRACE_RUNTIME,
-                                    BTRACE_RUNTIME_PUT_PERFLONG,
-                                    BTRACE_RUNTIME_PUT_PERFLONG_DESC);
+                        case 2:
+                            super.visitIntInsn(addOperandOpcode, (Integer)addOperand);
                             break;
-                        case 'F':
-                            visitLdcInsn(name);
-                            visitMethodInsn(INVOKESTATIC, BTRACE_RUNTIME,
-                                    BTRACE_RUNTIME_PUT_PERFFLOAT,
-                                    BTRACE_RUNTIME_PUT_PERFFLOAT_DESC);
+                        case 3:
+                            super.visitVarInsn(addOperandOpcode, remap((Integer)addOperand));
                             break;
-                        case 'D':
-                            visitLdcInsn(name);
-                            visitMethodInsn(INVOKESTATIC, BTRACE_RUNTIME,
-                                    BTRACE_RUNTIME_PUT_PERFDOUBLE,
-                                    BTRACE_RUNTIME_PUT_PERFDOUBLE_DESC);
+                        case 4:
+                            super.visitLdcInsn(addOperand);
                             break;
                     }
                 }
 
+                private void resetAdd() {
+                    addField = null;
+                    addOperandKind = 0;
+                    addOperand = null;
+                    addOpcode = -1;
+                }
+
+                private void flushAdd() {
+                    if (addField == null) {
+                        return;
+                    }
+                    generateExportGet(addField.name, addField.desc);
+                    emitAddOperand();
+                    if (addOpcode != -1) {
+                        super.visitInsn(addOpcode);
+                    }
+                    resetAdd();
+                }
+
+                private boolean recordAddOperand(int kind, int opcode, Object operand) {
+                    if (addField == null || addOperandKind != 0) {
+                        return false;
+                    }
+                    addOperandKind = kind;
+                    addOperandOpcode = opcode;
+                    addOperand = operand;
+                    return true;
+                }
+
+                private boolean completeAdd(String name) {
+                    if (addOpcode == -1 || !addField.name.equals(name)) {
+                        return false;
+                    }
+                    loadPerfCounter(addField.name);
+                    emitAddOperand();
+                    if (!isLongAdd()) {
+                        super.visitInsn(I2L);
+                    }
+                    if (addOpcode == ISUB || addOpcode == LSUB) {
+                        super.visitInsn(LNEG);
+                    }
+                    super.visitMethodInsn(INVOKEVIRTUAL, PERF_COUNTER, "add", "(J)V");
+                    resetAdd();
+                    return true;
+                }
+
+                private void loadThreadLocalSlot(FieldDescriptor fd) {
+                    super.visitVarInsn(ALOAD, firstLocal);
+                    Type elementType = TLS_ARRAY_TYPES[fd.tlsArray];
+                    super.visitFieldInsn(GETFIELD, THREAD_LOCAL_SLOTS, TLS_ARRAYS[fd.tlsArray], "[" + elementType.getDescriptor());
+                    push(fd.tlsSlot);
+                }
+
                 private void generateThreadLocalGet(FieldDescriptor fd) {
-                    if (isClassInitializer) {
-                        if (fd.initialized) {
-                            super.visitVarInsn(Type.getType(fd.desc).getOpcode(Opcodes.ILOAD), fd.var);
-                        } else if (fd.value != null) {
-                            visitLdcInsn(fd.value);
-                        } else {
-                            defaultValue(fd.desc);
-                        }
-                    } else {
-                        String fieldName = BTRACE_FIELD_PREFIX + fd.name;
-                        super.visitFieldInsn(GETSTATIC, className, fieldName, JAVA_LANG_THREAD_LOCAL_DESC);
-                        visitMethodInsn(INVOKEVIRTUAL, JAVA_LANG_THREAD_LOCAL,
-                                     JAVA_LANG_THREAD_LOCAL_GET, JAVA_LANG_THREAD_LOCAL_GET_DESC);
-                        unbox(fd.desc);
+                    loadThreadLocalSlot(fd);
+                    arrayLoad(TLS_ARRAY_TYPES[fd.tlsArray]);
+                    if (fd.tlsArray == 0) {
+                        super.visitTypeInsn(CHECKCAST, Type.getType(fd.desc).getInternalName());
                     }
                 }
 
                 private void generateThreadLocalPut(FieldDescriptor fd) {
-                    if (isClassInitializer) {
-                        super.visitVarInsn(Type.getType(fd.desc).getOpcode(Opcodes.ISTORE), fd.var);
-                        fd.initialized = true;
+                    // value, array, index -> array, index, value
+                    loadThreadLocalSlot(fd);
+                    if (Type.getType(fd.desc).getSize() == 2) {
+                        super.visitInsn(DUP2_X2);
                     } else {
-                        String fieldName = BTRACE_FIELD_PREFIX + fd.name;
-                        box(fd.desc);
-                        super.visitFieldInsn(GETSTATIC, className, fieldName, JAVA_LANG_THREAD_LOCAL_DESC);
-                        visitInsn(SWAP);
-                        visitMethodInsn(INVOKEVIRTUAL, JAVA_LANG_THREAD_LOCAL,
-                                    JAVA_LANG_THREAD_LOCAL_SET, JAVA_LANG_THREAD_LOCAL_SET_DESC);
+                        super.visitInsn(DUP2_X1);
                     }
+                    super.visitInsn(POP2);
+                    arrayStore(TLS_ARRAY_TYPES[fd.tlsArray]);
                 }
 
                 @Override
@@ -687,11 +790,10 @@ public class Preprocessor extends ClassVisitor {
                                         BTRACE_RUNTIME_ENTER,
                                         BTRACE_RUNTIME_ENTER_DESC);
                         if (isClassInitializer) {
-                             for (FieldDescriptor fd : threadLocalFields.values()) {
-                                 fd.var = nextVar;
-                                 nextVar += Type.getType(fd.desc).getSize();
-                             }
                              for (FieldDescriptor fd : exportFields.values()) {
+                                 if (perfCounterType(fd.desc) == null) {
+                                     continue;
+                                 }
                                  visitLdcInsn(perfCounterName(fd.name));
                                  visitLdcInsn(fd.desc);
                                  if (fd.value == null) {
@@ -703,6 +805,9 @@ public class Preprocessor extends ClassVisitor {
                                  visitMethodInsn(INVOKESTATIC, BTRACE_RUNTIME,
                                         BTRACE_RUNTIME_NEW_PERFCOUNTER,
                                         BTRACE_RUNTIME_NEW_PERFCOUNTER_DESC);
+                                 super.visitFieldInsn(PUTSTATIC, className,
+                                        BTRACE_FIELD_PREFIX + fd.name,
+                                        PERF_COUNTER_DESC);
                              }
                         }
 
@@ -710,6 +815,28 @@ public class Preprocessor extends ClassVisitor {
                         super.visitInsn(RETURN);
                         visitLabel(start);
                     }
+                    if (usesTLS) {
+                        if (isClassInitializer) {
+                            super.visitFieldInsn(GETSTATIC, className,
+                                       BTRACE_RUNTIME_FIELD_NAME,
+                                       BTRACE_RUNTIME_DESC);
+                            for (int cnt : tlsSlotCounts) {
+                                push(cnt);
+                            }
+                            invokeStatic(BTRACE_RUNTIME, BTRACE_RUNTIME_NEW_TLS_SLOTS,
+                                         BTRACE_RUNTIME_NEW_TLS_SLOTS_DESC);
+                            super.visitVarInsn(ASTORE, firstLocal);
+                            for (FieldDescriptor fd : threadLocalFields.values()) {
+                                if (fd.value != null) {
+                                    visitLdcInsn(fd.value);
+                                    generateThreadLocalPut(fd);
+                                }
+                            }
+                        } else {
+                            invokeStatic(className, BTRACE_TLS_METHOD_NAME, BTRACE_TLS_METHOD_DESC);
+                            super.visitVarInsn(ASTORE, firstLocal);
+                        }
+                    }
                     super.visitCode();
                 }
 
@@ -717,14 +844,24 @@ public class Preprocessor extends ClassVisitor {
                                                String name, String desc) {
                     String fieldName = name;
                     if (owner.equals(className)) {   
-                        if (exportFields.get(name) != null) {
+                        FieldDescriptor efd = exportFields.get(name);
+                        if (efd != null) {
+                            if (opcode == PUTSTATIC && addField != null && completeAdd(name)) {
+                                return;
+                            }
+                            flushAdd();
                             if (opcode == GETSTATIC) {
-                                generateExportGet(perfCounterName(name), desc);
+                                if (desc.equals("I") || desc.equals("J")) {
+                                    addField = efd;
+                                } else {
+                                    generateExportGet(name, desc);
+                                }
                             } else {
-                                generateExportPut(perfCounterName(name), desc);
+                                generateExportPut(name, desc);
                             }
                             return;                       
                         }
+                        flushAdd();
 
                         if (! name.equals(BTRACE_RUNTIME_FIELD_NAME)) {
                             fieldName = BTRACE_FIELD_PREFIX + name; 
@@ -740,33 +877,128 @@ public class Preprocessor extends ClassVisitor {
                             return;
                         } // else fall through
                     } // else fall through
+                    flushAdd();
                     super.visitFieldInsn(opcode, owner, fieldName, desc);
                 }
 
                 @Override
                 public void visitMethodInsn(int opcode, String owner, String name, String desc) {
+                    flushAdd();
                     if (!net.java.btrace.compiler.Verifier.INLINED_INSTR_MARKER.equals(owner)) {
                         super.visitMethodInsn(opcode, owner, name, desc);
                     }
                 }
 
+                private int remap(int var) {
+                    return var < firstLocal ? var : var + nextVar;
+                }
+
                 public void visitVarInsn(int opcode, int var) {
-                    super.visitVarInsn(opcode, var + nextVar);
+                    if (opcode == (addField != null && isLongAdd() ? LLOAD : ILOAD) &&
+                        recordAddOperand(3, opcode, var)) {
+                        return;
+                    }
+                    flushAdd();
+                    super.visitVarInsn(opcode, remap(var));
+                }
+
+                @Override
+                public void visitIincInsn(int var, int increment) {
+                    flushAdd();
+                    super.visitIincInsn(remap(var), increment);
+                }
+
+                @Override
+                public void visitLocalVariable(String varName, String varDesc, String signature, Label from, Label to, int index) {
+                    flushAdd();
+                    super.visitLocalVariable(varName, varDesc, signature, from, to, remap(index));
+                }
+
+                @Override
+                public void visitIntInsn(int opcode, int operand) {
+                    if ((opcode == BIPUSH || opcode == SIPUSH) && addField != null && !isLongAdd() &&
+                        recordAddOperand(2, opcode, operand)) {
+                        return;
+                    }
+                    flushAdd();
+                    super.visitIntInsn(opcode, operand);
+                }
+
+                @Override
+                public void visitLdcInsn(Object cst) {
+                    if (addField != null && (isLongAdd() ? cst instanceof Long : cst instanceof Integer) &&
+                        recordAddOperand(4, LDC, cst)) {
+                        return;
+                    }
+                    flushAdd();
+                    super.visitLdcInsn(cst);
+                }
+
+                @Override
+                public void visitTypeInsn(int opcode, String type) {
+                    flushAdd();
+                    super.visitTypeInsn(opcode, type);
+                }
+
+                @Override
+                public void visitJumpInsn(int opcode, Label label) {
+                    flushAdd();
+                    super.visitJumpInsn(opcode, label);
+                }
+
+                @Override
+                public void visitLabel(Label label) {
+                    flushAdd();
+                    super.visitLabel(label);
+                }
+
+                @Override
+                public void visitTableSwitchInsn(int min, int max, Label dflt, Label... labels) {
+                    flushAdd();
+                    super.visitTableSwitchInsn(min, max, dflt, labels);
+                }
+
+                @Override
+                public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels) {
+                    flushAdd();
+                    super.visitLookupSwitchInsn(dflt, keys, labels);
+                }
+
+                @Override
+                public void visitMultiANewArrayInsn(String mdesc, int dims) {
+                    flushAdd();
+                    super.visitMultiANewArrayInsn(mdesc, dims);
+                }
+
+                @Override
+                public void visitLineNumber(int line, Label label) {
+                    flushAdd();
+                    super.visitLineNumber(line, label);
+                }
+
+                @Override
+                public void visitFrame(int type, int nLocal, Object[] local, int nStack, Object[] stack) {
+                    flushAdd();
+                    super.visitFrame(type, nLocal, local, nStack, stack);
                 }
 
                 public void visitInsn(int opcode) {
+                    if (addField != null) {
+                        if (isLongAdd() ? (opcode == LCONST_0 || opcode == LCONST_1)
+                                        : (opcode >= ICONST_M1 && opcode <= ICONST_5)) {
+                            if (recordAddOperand(1, opcode, null)) {
+                                return;
+                            }
+                        } else if (addOperandKind != 0 && addOpcode == -1 &&
+                                   (isLongAdd() ? (opcode == LADD || opcode == LSUB)
+                                                : (opcode == IADD || opcode == ISUB))) {
+                            addOpcode = opcode;
+                            return;
+                        }
+                    }
+                    flushAdd();
                     if (opcode == RETURN) {
                         if (isClassInitializer) {
-                            for (FieldDescriptor fd : threadLocalFields.values()) {
-                                generateThreadLocalGet(fd); // generates var load here
-                                box(fd.desc);
-                                visitMethodInsn(INVOKESTATIC, BTRACE_RUNTIME,
-                                        BTRACE_RUNTIME_NEW_THREAD_LOCAL,
-                                        BTRACE_RUNTIME_NEW_THREAD_LOCAL_DESC);
-                                super.visitFieldInsn(PUTSTATIC, className,
-                                        BTRACE_FIELD_PREFIX + fd.name,
-                                        JAVA_LANG_THREAD_LOCAL_DESC);
-                            }
                             visitMethodInsn(INVOKESTATIC, BTRACE_RUNTIME,
                                 BTRACE_RUNTIME_START,
                                 BTRACE_RUNTIME_START_DESC);
@@ -782,6 +1014,7 @@ public class Preprocessor extends ClassVisitor {
                 }
 
                 public void visitMaxs(int maxStack, int maxLocals) {
+                    flushAdd();
                     visitLabel(handler);
                     if (isClassInitializer || isBTraceHandler) {
                         visitMethodInsn(INVOKESTATIC, BTRACE_RUNTIME,
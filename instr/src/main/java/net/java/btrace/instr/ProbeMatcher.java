@@ -0,0 +1,483 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package net.java.btrace.instr;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import static net.java.btrace.instr.Constants.REGEX_SPECIFIER;
+
+/**
+ * A precompiled index of the class and annotation patterns of a set of {@linkplain OnMethod} probes.
+ * <p>
+ * It is built once per script and shared by {@linkplain ClassFilter} and {@linkplain Instrumentor}
+ * so that matching a loaded class does not depend on the number of probes:
+ * <ul>
+ * <li>exact names are looked up in a hash map</li>
+ * <li>regular expressions consisting of a literal prefix followed by <b>.*</b> or <b>.+</b>
+ *     (eg. <b>/java\\.awt\\..*&#47;</b>) are stored in a prefix trie</li>
+ * <li>all the other regular expressions are combined into one alternation which serves
+ *     as a quick rejection test before the individual expressions are tried</li>
+ * <li>super types (<b>+</b> probes) are checked against the whole class hierarchy
+ *     recorded in {@linkplain ClassHierarchy}</li>
+ * </ul>
+ * Any other regular expression used when instrumenting (method names, {@linkplain Location} patterns)
+ * is compiled only once and cached.
+ * </p>
+ *
+ * @author Jaroslav Bachorik
+ */
+public final class ProbeMatcher {
+    // word characters and escaped dots and dollars
+    final private static Pattern LITERAL = Pattern.compile("(?:\\w|\\\\[.$])+");
+    final private static Pattern LITERAL_PREFIX = Pattern.compile("((?:\\w|\\\\[.$])+)\\.([*+])");
+    final private static Pattern BACK_REFERENCE = Pattern.compile("\\\\([1-9]|k<)");
+    // marks the invalid regular expressions in the cache
+    final private static Pattern INVALID = Pattern.compile("");
+
+    /**
+     * Maps names to the probes using a set of name patterns
+     */
+    final private static class NameIndex {
+        final private Map<String, List<OnMethod>> exact = new HashMap<String, List<OnMethod>>();
+        final private TrieNode prefixes = new TrieNode();
+        final private List<Pattern> regexes = new ArrayList<Pattern>();
+        final private List<OnMethod> regexProbes = new ArrayList<OnMethod>();
+        // the regular expressions which can not be combined (back references)
+        final private List<Pattern> standalone = new ArrayList<Pattern>();
+        final private List<OnMethod> standaloneProbes = new ArrayList<OnMethod>();
+        private Pattern combined;
+        private boolean empty = true;
+
+        void add(String pattern, OnMethod om) {
+            empty = false;
+            if (REGEX_SPECIFIER.matcher(pattern).matches()) {
+                String regex = pattern.substring(1, pattern.length() - 1);
+                if (LITERAL.matcher(regex).matches()) {
+                    addExact(unescape(regex), om);
+                    return;
+                }
+                Matcher m = LITERAL_PREFIX.matcher(regex);
+                if (m.matches()) {
+                    prefixes.add(unescape(m.group(1)), m.group(2).equals("+"), om);
+                    return;
+                }
+                try {
+                    Pattern p = Pattern.compile(regex);
+                    if (BACK_REFERENCE.matcher(regex).find()) {
+                        standalone.add(p);
+                        standaloneProbes.add(om);
+                    } else {
+                        regexes.add(p);
+                        regexProbes.add(om);
+                    }
+                } catch (PatternSyntaxException pse) {
+                    reportPatternSyntaxException(regex);
+                }
+            } else {
+                addExact(pattern, om);
+            }
+        }
+
+        void seal() {
+            if (regexes.size() > 1) {
+                StringBuilder sb = new StringBuilder();
+                for (Pattern p : regexes) {
+                    if (sb.length() > 0) {
+                        sb.append('|');
+                    }
+                    sb.append("(?:").append(p.pattern()).append(')');
+                }
+                try {
+                    combined = Pattern.compile(sb.toString());
+                } catch (PatternSyntaxException pse) {
+                    // eg. the same named group used in several expressions; match them one by one
+                    combined = null;
+                }
+            }
+        }
+
+        boolean isEmpty() {
+            return empty;
+        }
+
+        boolean matchesAny(String name) {
+            if (empty) {
+                return false;
+            }
+            if (exact.containsKey(name) || prefixes.matchesAny(name)) {
+                return true;
+            }
+            if (combined != null) {
+                if (combined.matcher(name).matches()) {
+                    return true;
+                }
+            } else {
+                for (Pattern p : regexes) {
+                    if (p.matcher(name).matches()) {
+                        return true;
+                    }
+                }
+            }
+            for (Pattern p : standalone) {
+                if (p.matcher(name).matches()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        void collect(String name, Collection<OnMethod> probes) {
+            if (empty) {
+                return;
+            }
+            List<OnMethod> l = exact.get(name);
+            if (l != null) {
+                probes.addAll(l);
+            }
+            prefixes.collect(name, probes);
+            if (combined == null || combined.matcher(name).matches()) {
+                for (int i = 0; i < regexes.size(); i++) {
+                    if (regexes.get(i).matcher(name).matches()) {
+                        probes.add(regexProbes.get(i));
+                    }
+                }
+            }
+            for (int i = 0; i < standalone.size(); i++) {
+                if (standalone.get(i).matcher(name).matches()) {
+                    probes.add(standaloneProbes.get(i));
+                }
+            }
+        }
+
+        private void addExact(String name, OnMethod om) {
+            List<OnMethod> l = exact.get(name);
+            if (l == null) {
+                l = new ArrayList<OnMethod>(1);
+                exact.put(name, l);
+            }
+            l.add(om);
+        }
+
+        private static String unescape(String literal) {
+            return literal.replace("\\.", ".").replace("\\$", "$");
+        }
+    }
+
+    final private static class TrieNode {
+        private Map<Character, TrieNode> children;
+        // probes matching any name starting with the prefix; including the prefix itself
+        private List<OnMethod> any;
+        // probes matching the names longer than the prefix
+        private List<OnMethod> nonEmpty;
+
+        void add(String prefix, boolean nonEmptyTail, OnMethod om) {
+            TrieNode n = this;
+            for (int i = 0; i < prefix.length(); i++) {
+                if (n.children == null) {
+                    n.children = new HashMap<Character, TrieNode>(4);
+                }
+                Character c = prefix.charAt(i);
+                TrieNode next = n.children.get(c);
+                if (next == null) {
+                    next = new TrieNode();
+                    n.children.put(c, next);
+                }
+                n = next;
+            }
+            if (nonEmptyTail) {
+                if (n.nonEmpty == null) n.nonEmpty = new ArrayList<OnMethod>(1);
+                n.nonEmpty.add(om);
+            } else {
+                if (n.any == null) n.any = new ArrayList<OnMethod>(1);
+                n.any.add(om);
+            }
+        }
+
+        boolean matchesAny(String name) {
+            TrieNode n = this;
+            for (int i = 0; n != null; i++) {
+                if (n.any != null || (n.nonEmpty != null && i < name.length())) {
+                    return true;
+                }
+                if (i == name.length() || n.children == null) {
+                    return false;
+                }
+                n = n.children.get(name.charAt(i));
+            }
+            return false;
+        }
+
+        void collect(String name, Collection<OnMethod> probes) {
+            TrieNode n = this;
+            for (int i = 0; n != null; i++) {
+                if (n.any != null) {
+                    probes.addAll(n.any);
+                }
+                if (n.nonEmpty != null && i < name.length()) {
+                    probes.addAll(n.nonEmpty);
+                }
+                if (i == name.length() || n.children == null) {
+                    return;
+                }
+                n = n.children.get(name.charAt(i));
+            }
+        }
+    }
+
+    final private NameIndex classes = new NameIndex();
+    final private NameIndex annotations = new NameIndex();
+    // super type internal name -> probes
+    final private Map<String, List<OnMethod>> superTypes = new HashMap<String, List<OnMethod>>();
+    final private ConcurrentMap<String, Pattern> regexCache = new ConcurrentHashMap<String, Pattern>();
+
+    public ProbeMatcher(List<OnMethod> onMethods) {
+        for (OnMethod om : onMethods) {
+            String className = om.getClazz();
+            if (className == null || className.length() == 0) {
+                continue;
+            }
+            char firstCh = className.charAt(0);
+            if (firstCh == '@') {
+                className = className.substring(1);
+                if (className.length() > 0) {
+                    annotations.add(className, om);
+                }
+            } else if (firstCh == '+') {
+                String superType = className.substring(1);
+                String superTypeInternal = superType.replace('.', '/');
+                List<OnMethod> l = superTypes.get(superTypeInternal);
+                if (l == null) {
+                    l = new ArrayList<OnMethod>(1);
+                    superTypes.put(superTypeInternal, l);
+                }
+                l.add(om);
+            } else {
+                classes.add(className, om);
+            }
+        }
+        classes.seal();
+        annotations.seal();
+    }
+
+    /**
+     * Checks whether a class may be instrumented judging by its name and direct super types
+     * @param internalName The class internal name
+     * @param superName The super class internal name; may be <b>NULL</b>
+     * @param interfaces The internal names of the directly implemented interfaces; may be <b>NULL</b>
+     * @return <b>TRUE</b> if there is a probe for the class
+     */
+    public boolean matchesClass(String internalName, String superName, String[] interfaces) {
+        return matchesClass(null, internalName, superName, interfaces);
+    }
+
+    /**
+     * Checks whether a class being loaded may be instrumented; the super type probes
+     * are matched against the whole class hierarchy as known to {@linkplain ClassHierarchy}
+     * @param loader The class loader defining the class; <b>NULL</b> for the bootstrap class loader
+     * @param internalName The class internal name
+     * @param superName The super class internal name; may be <b>NULL</b>
+     * @param interfaces The internal names of the directly implemented interfaces; may be <b>NULL</b>
+     * @return <b>TRUE</b> if there is a probe for the class
+     */
+    public boolean matchesClass(ClassLoader loader, String internalName, String superName, String[] interfaces) {
+        if (!superTypes.isEmpty()) {
+            for (String st : superTypes.keySet()) {
+                if (isSubTypeOf(loader, internalName, superName, interfaces, st)) {
+                    return true;
+                }
+            }
+        }
+        return classes.matchesAny(internalName.replace('/', '.'));
+    }
+
+    /**
+     * Checks whether a loaded class may be instrumented; the whole class hierarchy is checked
+     * for the super type probes
+     * @param clazz The class
+     * @return <b>TRUE</b> if there is a probe for the class
+     */
+    public boolean matchesClass(Class clazz) {
+        if (classes.matchesAny(clazz.getName())) {
+            return true;
+        }
+        if (!superTypes.isEmpty()) {
+            Set<String> hierarchy = ClassHierarchy.getDefault().getSuperTypes(clazz);
+            for (String st : superTypes.keySet()) {
+                if (hierarchy.contains(st)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return <b>TRUE</b> if any probe selects the classes by annotation
+     */
+    public boolean hasAnnotationProbes() {
+        return !annotations.isEmpty();
+    }
+
+    /**
+     * @param annotationName The annotation type name (eg. <b>java.lang.Deprecated</b>)
+     * @return <b>TRUE</b> if there is a probe for the classes annotated by the given annotation
+     */
+    public boolean matchesAnnotation(String annotationName) {
+        return annotations.matchesAny(annotationName);
+    }
+
+    /**
+     * Collects the probes applicable to a class, in the declaration order
+     * @param clazz The class being redefined or <b>NULL</b> for a class being loaded
+     * @param internalName The class internal name
+     * @param superName The super class internal name; may be <b>NULL</b>
+     * @param interfaces The internal names of the directly implemented interfaces; may be <b>NULL</b>
+     * @param probes The collection to add the probes to
+     */
+    public void collectClassProbes(Class clazz, String internalName, String superName, String[] interfaces, Collection<OnMethod> probes) {
+        collectClassProbes(clazz, clazz != null ? clazz.getClassLoader() : null, internalName, superName, interfaces, probes);
+    }
+
+    /**
+     * Collects the probes applicable to a class, in the declaration order
+     * @param clazz The class being redefined or <b>NULL</b> for a class being loaded
+     * @param loader The class loader defining the class; <b>NULL</b> for the bootstrap class loader
+     * @param internalName The class internal name
+     * @param superName The super class internal name; may be <b>NULL</b>
+     * @param interfaces The internal names of the directly implemented interfaces; may be <b>NULL</b>
+     * @param probes The collection to add the probes to
+     */
+    public void collectClassProbes(Class clazz, ClassLoader loader, String internalName, String superName, String[] interfaces, Collection<OnMethod> probes) {
+        classes.collect(internalName.replace('/', '.'), probes);
+        if (superTypes.isEmpty()) {
+            return;
+        }
+        Set<String> hierarchy = clazz != null ? ClassHierarchy.getDefault().getSuperTypes(clazz) : null;
+        for (Map.Entry<String, List<OnMethod>> e : superTypes.entrySet()) {
+            String st = e.getKey();
+            if (hierarchy != null ? hierarchy.contains(st) : isSubTypeOf(loader, internalName, superName, interfaces, st)) {
+                probes.addAll(e.getValue());
+            }
+        }
+    }
+
+    /**
+     * Collects the probes applicable to the classes annotated by the given annotation
+     * @param annotationName The annotation type name
+     * @param probes The collection to add the probes to
+     */
+    public void collectAnnotationProbes(String annotationName, Collection<OnMethod> probes) {
+        annotations.collect(annotationName, probes);
+    }
+
+    /**
+     * Matches a name against a probe pattern - either a plain name or a regular expression
+     * enclosed in slashes. The compiled regular expressions are cached.
+     * @param pattern The pattern
+     * @param input The name to match
+     * @return <b>TRUE</b> if the name matches
+     */
+    public boolean matches(String pattern, String input) {
+        if (pattern.length() == 0) {
+            return false;
+        }
+        if (pattern.charAt(0) == '/' &&
+            REGEX_SPECIFIER.matcher(pattern).matches()) {
+            Pattern p = regexCache.get(pattern);
+            if (p == null) {
+                String regex = pattern.substring(1, pattern.length() - 1);
+                try {
+                    p = Pattern.compile(regex);
+                } catch (PatternSyntaxException pse) {
+                    reportPatternSyntaxException(regex);
+                    p = INVALID;
+                }
+                regexCache.putIfAbsent(pattern, p);
+            }
+            return p != INVALID && p.matcher(input).matches();
+        } else {
+            return pattern.equals(input);
+        }
+    }
+
+    /**
+     * Returns the probes in their declaration order
+     */
+    static List<OnMethod> ordered(List<OnMethod> all, Set<OnMethod> selected) {
+        if (selected.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<OnMethod> l = new ArrayList<OnMethod>(selected.size());
+        for (OnMethod om : all) {
+            if (selected.contains(om)) {
+                l.add(om);
+            }
+        }
+        return l;
+    }
+
+    /**
+     * Checks the class hierarchy of a class which might not have been recorded in {@linkplain ClassHierarchy} yet
+     */
+    private static boolean isSubTypeOf(ClassLoader loader, String internalName, String superName, String[] interfaces, String superType) {
+        if (internalName.equals(superType) || superType.equals(superName)) {
+            return true;
+        }
+        if (interfaces != null) {
+            for (String iface : interfaces) {
+                if (iface.equals(superType)) {
+                    return true;
+                }
+            }
+        }
+        ClassHierarchy h = ClassHierarchy.getDefault();
+        if (superName != null && h.isSubTypeOf(loader, superName, superType)) {
+            return true;
+        }
+        if (interfaces != null) {
+            for (String iface : interfaces) {
+                if (h.isSubTypeOf(loader, iface, superType)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static void reportPatternSyntaxException(String pattern) {
+        System.err.println("btrace ERROR: invalid regex pattern - " + pattern);
+    }
+}
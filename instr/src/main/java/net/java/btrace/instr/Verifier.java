@@ -30,11 +30,13 @@ import java.io.FileInputStream;
 import java.io.BufferedInputStream;
 import java.util.ArrayList;
 import java.util.List;
+import net.java.btrace.annotations.Clock;
 import net.java.btrace.annotations.Duration;
 import net.java.btrace.annotations.Kind;
 import net.java.btrace.annotations.ProbeClassName;
 import net.java.btrace.annotations.ProbeMethodName;
 import net.java.btrace.annotations.Return;
+import net.java.btrace.annotations.Sampler;
 import net.java.btrace.annotations.Self;
 import net.java.btrace.annotations.TargetInstance;
 import net.java.btrace.annotations.TargetMethodOrField;
@@ -76,6 +78,7 @@ public class Verifier extends ClassVisitor {
     private List<OnMethod> onMethods;
     private List<OnProbe> onProbes;
     private boolean unsafe;
+    private Clock clock = Clock.NANO;
     private CycleDetector cycleDetector;
     private CallTargetValidator ctValidator;
 
@@ -96,6 +99,10 @@ public class Verifier extends ClassVisitor {
         return className;
     }
 
+    public Clock getClock() {
+        return clock;
+    }
+
     public List<OnMethod> getOnMethods() {
         return onMethods;
     }
@@ -140,6 +147,14 @@ public class Verifier extends ClassVisitor {
     public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
         if (desc.equals(BTRACE_DESC)) {
             seenBTrace = true;
+            return new AnnotationVisitor(Opcodes.ASM4, super.visitAnnotation(desc, visible)) {
+                public void visitEnum(String name, String desc, String value) {
+                    if (desc.equals(CLOCK_DESC)) {
+                        clock = Enum.valueOf(Clock.class, value);
+                    }
+                    super.visitEnum(name, desc, value);
+                }
+            };
         }
         return super.visitAnnotation(desc, visible);
     }
@@ -307,6 +322,7 @@ public class Verifier extends ClassVisitor {
 
                 if (desc.equals(ONMETHOD_DESC)) {
                     om = new OnMethod();
+                    om.setClock(clock);
                     onMethods.add(om);
                     om.setTargetName(methodName);
                     om.setTargetDescriptor(methodDesc);
@@ -318,6 +334,8 @@ public class Verifier extends ClassVisitor {
                                 om.setMethod((String)value);
                             } else if (name.equals("type")) {
                                 om.setType((String)value);
+                            } else if (name.equals("reuseArgs")) {
+                                om.setReuseArgs((Boolean)value);
                             }
                         }
 
@@ -353,6 +371,27 @@ public class Verifier extends ClassVisitor {
                                     }
                                 };
                             }
+                            if (desc.equals(SAMPLED_DESC)) {
+                                return new AnnotationVisitor(Opcodes.ASM4) {
+                                    public void visitEnum(String name, String desc, String value) {
+                                        if (desc.equals(SAMPLER_DESC)) {
+                                            om.setSamplerKind(Enum.valueOf(Sampler.class, value));
+                                        }
+                                    }
+
+                                    public void visit(String name, Object value) {
+                                        if (name.equals("mean")) {
+                                            om.setSamplerMean(((Number)value).intValue());
+                                        }
+                                    }
+
+                                    public void visitEnd() {
+                                        if (om.getSamplerKind() != Sampler.NONE && om.getSamplerMean() <= 0) {
+                                            reportError("sampler.invalid.mean", om.getTargetName());
+                                        }
+                                    }
+                                };
+                            }
 
                             return super.visitAnnotation(name, desc);
                         }
@@ -25,39 +25,43 @@
 
 package net.java.btrace.util;
 
+import net.java.btrace.annotations.Clock;
 import net.java.btrace.org.objectweb.asm.MethodVisitor;
 import static net.java.btrace.org.objectweb.asm.Opcodes.*;
 import net.java.btrace.org.objectweb.asm.Type;
 import net.java.btrace.instr.MethodInstrumentor;
 
 /**
+ * Records the method entry time stamp for the probes consuming the {@linkplain net.java.btrace.annotations.Duration}
+ * <p>
+ * The exit time stamp is read by the probe itself, right before the handler
+ * invocation, so it is taken only when the handler is actually called.
  *
  * @author Jaroslav Bachorik
  */
 public class TimeStampGenerator extends MethodVisitor {
-        final public static String TIME_STAMP_NAME = "$btrace$time$stamp";
+    final public static String TIME_STAMP_NAME = "$btrace$time$stamp";
     
     private static final String CONSTRUCTOR = "<init>";
 
     private int[] tsIndex;
-    private int[] exitOpcodes;
     private boolean generatingIndex = false;
     private boolean entryCalled = false;
 
     private String methodName;
     private String className;
     private String superName;
+    final private Clock clock;
     final private LocalVariablesSorter lvs;
 
-    public TimeStampGenerator(LocalVariablesSorter lvs, final int[] tsIndex, String className, String superName, int access, String name, String desc, MethodVisitor mv, int[] exitOpcodes) {
+    public TimeStampGenerator(LocalVariablesSorter lvs, final int[] tsIndex, String className, String superName, int access, String name, String desc, MethodVisitor mv, Clock clock) {
         super(ASM4, mv);
         this.lvs = lvs;
         this.methodName = name;
         this.className = className;
         this.superName = superName;
         this.tsIndex = tsIndex;
-        this.exitOpcodes = new int[exitOpcodes.length];
-        System.arraycopy(exitOpcodes, 0, this.exitOpcodes, 0, exitOpcodes.length);
+        this.clock = clock;
     }
 
     @Override
@@ -65,37 +69,12 @@ public class TimeStampGenerator extends MethodVisitor {
         entryCalled = false;
         
         if (!CONSTRUCTOR.equals(methodName)) {
-            generateTS(0);
+            generateTS();
         }
         
         super.visitCode();
     }
 
-    @Override
-    public void visitInsn(int opcode) {
-        if (tsIndex[1] == -1) {
-            for(int exitOpcode : exitOpcodes) {
-                if (exitOpcode == opcode) {
-                    if (tsIndex[0] != -1 && tsIndex[1] == -1) generateTS(1);
-                    break;
-                }
-            }
-        }
-        super.visitInsn(opcode);
-        if (tsIndex[1] != -1) {
-            switch (opcode) {
-                case RETURN:
-                case IRETURN:
-                case FRETURN:
-                case LRETURN:
-                case DRETURN:
-                case ARETURN:
-                case ATHROW:
-                    tsIndex[1] = -1; // reset the exit time stamp as it gets invalidated
-            }
-        }
-    }
-
     @Override
     public void visitMethodInsn(int opcode, String owner, String name, String desc) {
         if (generatingIndex) {
@@ -105,25 +84,19 @@ public class TimeStampGenerator extends MethodVisitor {
         super.visitMethodInsn(opcode, owner, name, desc);
         if (!entryCalled && CONSTRUCTOR.equals(name) && (owner.equals(className) || (superName != null && owner.equals(superName)))) {
             entryCalled = true;
-            generateTS(0);
+            generateTS();
         }
     }
 
-    @Override
-    public void visitVarInsn(int opcode, int var) {
-        super.visitVarInsn(opcode, var);
-    }
-
-    private void generateTS(int index) {
-        if (tsIndex != null && tsIndex[index] != -1) return;
+    private void generateTS() {
+        if (tsIndex[0] != -1) return;
         
         if (!((MethodInstrumentor)mv).usesTimeStamp()) return; // the method instrumentor is not using timestamp; no need to generate time stamp collectors
         
-        if (tsIndex[index] > -1) return;
         try {
             generatingIndex = true;
-            TimeStampHelper.generateTimeStampAccess(this, className);
-            tsIndex[index] = lvs.newLocal(Type.LONG_TYPE);
+            TimeStampHelper.generateTimeStampAccess(this, className, clock);
+            tsIndex[0] = lvs.newLocal(Type.LONG_TYPE);
         } finally {
             generatingIndex = false;
         }
@@ -25,6 +25,7 @@
 
 package net.java.btrace.util;
 
+import net.java.btrace.annotations.Clock;
 import net.java.btrace.org.objectweb.asm.ClassVisitor;
 import net.java.btrace.org.objectweb.asm.MethodVisitor;
 import static net.java.btrace.org.objectweb.asm.Opcodes.*;
@@ -46,11 +47,26 @@ public class TimeStampHelper {
         timestamp.visitEnd();
     }
 
-    public static void generateTimeStampAccess(MethodVisitor mv, String className) {
-        if (Boolean.getBoolean("btrace.timer.sampled")) {
-            mv.visitFieldInsn(GETSTATIC, "net/java/btrace/runtime/BTraceRuntime", "TIMESTAMP", "J");
-        } else {
-            mv.visitMethodInsn(INVOKESTATIC, className.replace(".", "/"), TIME_STAMP_NAME, "()J");
+    /**
+     * Generates the code pushing the current time of the given clock to the stack
+     * @param mv The method visitor
+     * @param className The internal name of the instrumented class
+     * @param clock The clock to read
+     */
+    public static void generateTimeStampAccess(MethodVisitor mv, String className, Clock clock) {
+        if (clock == Clock.NANO && Boolean.getBoolean("btrace.timer.sampled")) {
+            // legacy switch; makes all the scripts use the cached clock
+            clock = Clock.COARSE;
+        }
+        switch (clock) {
+            case COARSE:
+                mv.visitFieldInsn(GETSTATIC, "net/java/btrace/runtime/Clocks$Coarse", "TIME", "J");
+                break;
+            case THREAD_CPU:
+                mv.visitMethodInsn(INVOKESTATIC, "net/java/btrace/runtime/Clocks", "threadCpuTime", "()J");
+                break;
+            default:
+                mv.visitMethodInsn(INVOKESTATIC, className.replace(".", "/"), TIME_STAMP_NAME, "()J");
         }
     }
 }
@@ -41,10 +41,9 @@ public class BTRACE106Test extends InstrumentorTestBase {
                 + "INVOKESTATIC resources/issues/BTRACE106.$btrace$traces$issues$BTRACE106$o1 (Ljava/lang/Object;Ljava/lang/String;)V\n"
                 + "INVOKESTATIC resources/issues/BTRACE106.$btrace$time$stamp ()J\n"
                 + "LSTORE 1\n"
-                + "INVOKESTATIC resources/issues/BTRACE106.$btrace$time$stamp ()J\n"
-                + "LSTORE 3\nALOAD 0\nLDC \"bMethod\"\nLLOAD 3\nLLOAD 1\nLSUB\n"
+                + "ALOAD 0\nLDC \"bMethod\"\nINVOKESTATIC resources/issues/BTRACE106.$btrace$time$stamp ()J\nLLOAD 1\nLSUB\n"
                 + "INVOKESTATIC resources/issues/BTRACE106.$btrace$traces$issues$BTRACE106$o2 (Ljava/lang/Object;Ljava/lang/String;J)V\n"
-                + "MAXSTACK = 6\nMAXLOCALS = 5"
+                + "MAXSTACK = 6\nMAXLOCALS = 3"
         );
     }
 }
@@ -39,8 +39,7 @@ public class BTRACE22Test extends InstrumentorTestBase {
         transform("issues/BTRACE22");
         checkTransformation("INVOKESTATIC resources/issues/BTRACE22.$btrace$time$stamp ()J\nLSTORE 1\n" +
                             "DSTORE 3\nDLOAD 3\nDLOAD 3\n" +
-                            "INVOKESTATIC resources/issues/BTRACE22.$btrace$time$stamp ()J\nLSTORE 5\n" +
-                            "ALOAD 0\nLLOAD 5\nLLOAD 1\nLSUB\n" +
+                            "ALOAD 0\nINVOKESTATIC resources/issues/BTRACE22.$btrace$time$stamp ()J\nLLOAD 1\nLSUB\n" +
                             "INVOKESTATIC resources/issues/BTRACE22.$btrace$traces$issues$BTRACE22$tracker (Ljava/lang/Object;J)V");
     }
 }
@@ -38,8 +38,8 @@ public class BTRACE53Test extends InstrumentorTestBase {
         originalBC = loadTargetClass("DerivedClass");
         transform("issues/BTRACE53");
         checkTransformation("INVOKESTATIC resources/DerivedClass.$btrace$time$stamp ()J\nLSTORE 1\n"
-                          + "INVOKESTATIC resources/DerivedClass.$btrace$time$stamp ()J\nLSTORE 3\n"
-                          + "LLOAD 3\nLLOAD 1\nLSUB\nINVOKESTATIC resources/DerivedClass.$btrace$traces$issues$BTRACE53$onInit (J)V\n"
-                          + "MAXSTACK = 4\nMAXLOCALS = 5");
+                          + "INVOKESTATIC resources/DerivedClass.$btrace$time$stamp ()J\n"
+                          + "LLOAD 1\nLSUB\nINVOKESTATIC resources/DerivedClass.$btrace$traces$issues$BTRACE53$onInit (J)V\n"
+                          + "MAXSTACK = 4\nMAXLOCALS = 3");
     }
 }
@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package net.java.btrace.instr;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Set;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Jaroslav Bachorik
+ */
+public class ClassHierarchyTest {
+    @Test
+    public void testTransitiveSubTypes() {
+        System.out.println("testTransitiveSubTypes");
+        ClassHierarchy h = new ClassHierarchy();
+        ClassLoader cl = getClass().getClassLoader();
+        h.add(cl, "x/I", null, null);
+        h.add(cl, "x/J", null, new String[]{"x/I"});
+        h.add(cl, "x/B", "java/lang/Object", new String[]{"x/J"});
+        h.add(cl, "x/C", "x/B", null);
+
+        assertTrue(h.isSubTypeOf(cl, "x/C", "x/I"));
+        assertTrue(h.isSubTypeOf(cl, "x/C", "x/B"));
+        assertTrue(h.isSubTypeOf(cl, "x/C", "x/C"));
+        assertTrue(h.isSubTypeOf(cl, "x/C", "java/lang/Object"));
+        assertFalse(h.isSubTypeOf(cl, "x/B", "x/C"));
+        assertTrue(h.isResolved(cl, "x/C"));
+        // visible from a child loader
+        ClassLoader child = new ClassLoader(cl) {};
+        assertTrue(h.isSubTypeOf(child, "x/C", "x/I"));
+    }
+
+    @Test
+    public void testMissingSuperType() {
+        System.out.println("testMissingSuperType");
+        ClassHierarchy h = new ClassHierarchy();
+        ClassLoader cl = getClass().getClassLoader();
+        h.add(cl, "y/C", "y/B", null);
+
+        assertFalse(h.isResolved(cl, "y/C"));
+        assertFalse(h.isSubTypeOf(cl, "y/C", "y/I"));
+
+        h.add(cl, "y/B", "java/lang/Object", new String[]{"y/I"});
+        h.add(cl, "y/I", null, null);
+        assertTrue(h.isResolved(cl, "y/C"));
+        assertTrue(h.isSubTypeOf(cl, "y/C", "y/I"));
+    }
+
+    @Test
+    public void testNegativeLookupCached() {
+        System.out.println("testNegativeLookupCached");
+        ClassHierarchy h = new ClassHierarchy();
+        final int[] lookups = new int[1];
+        ClassLoader cl = new ClassLoader(getClass().getClassLoader()) {
+            @Override
+            public InputStream getResourceAsStream(String name) {
+                if (name.equals("z/B.class")) {
+                    lookups[0]++;
+                }
+                return super.getResourceAsStream(name);
+            }
+        };
+        h.add(cl, "z/C", "z/B", null);
+
+        for (int i = 0; i < 10; i++) {
+            assertFalse(h.isSubTypeOf(cl, "z/C", "z/I"));
+            assertFalse(h.isResolved(cl, "z/C"));
+        }
+        assertEquals(1, lookups[0]);
+
+        // another loader does not share the negative result
+        ClassLoader other = new ClassLoader(cl) {};
+        h.add(other, "z/D", "z/B", null);
+        assertFalse(h.isResolved(other, "z/D"));
+
+        // recording the type replaces the negative result
+        h.add(cl, "z/B", "java/lang/Object", new String[]{"z/I"});
+        h.add(cl, "z/I", null, null);
+        assertTrue(h.isResolved(cl, "z/C"));
+        assertTrue(h.isSubTypeOf(cl, "z/C", "z/I"));
+        assertTrue(h.isSubTypeOf(other, "z/D", "z/I"));
+        assertEquals(1, lookups[0]);
+    }
+
+    @Test
+    public void testClassFiles() {
+        System.out.println("testClassFiles");
+        ClassHierarchy h = new ClassHierarchy();
+        Set<String> superTypes = h.getSuperTypes(null, "java/util/ArrayList");
+        assertTrue(superTypes.contains("java/util/AbstractCollection"));
+        assertTrue(superTypes.contains("java/util/Collection"));
+        assertTrue(superTypes.contains("java/lang/Iterable"));
+        assertTrue(h.isResolved(null, "java/util/ArrayList"));
+    }
+
+    @Test
+    public void testLoadedClasses() {
+        System.out.println("testLoadedClasses");
+        ClassHierarchy h = new ClassHierarchy();
+        assertTrue(h.isSubTypeOf(ArrayList.class, "java/util/Collection"));
+        assertTrue(h.isSubTypeOf(ClassHierarchyTest.class, "java/lang/Object"));
+        assertFalse(h.isSubTypeOf(String.class, "java/util/Collection"));
+        assertEquals(h.getSuperTypes(ArrayList.class), h.getSuperTypes(null, "java/util/ArrayList"));
+    }
+}
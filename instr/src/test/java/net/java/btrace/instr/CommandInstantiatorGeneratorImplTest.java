@@ -0,0 +1,89 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package net.java.btrace.instr;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import net.java.btrace.api.wireio.AbstractCommand;
+import net.java.btrace.api.wireio.Command;
+import net.java.btrace.api.wireio.CommandFactory;
+import net.java.btrace.api.wireio.CommandInstantiator;
+import net.java.btrace.wireio.commands.MessageCommand;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Jaroslav Bachorik
+ */
+public class CommandInstantiatorGeneratorImplTest {
+    static class HiddenCommand extends AbstractCommand {
+        public HiddenCommand(int type, int rx, int tx) {
+            super(type, rx, tx);
+        }
+
+        @Override
+        public void write(ObjectOutput out) throws IOException {
+        }
+
+        @Override
+        public void read(ObjectInput in) throws ClassNotFoundException, IOException {
+        }
+    }
+
+    @Test
+    public void testGeneratedInstantiator() throws Exception {
+        final String className = "net.java.btrace.wireio.commands.MessageCommand$Test";
+        final byte[] code = new CommandInstantiatorGeneratorImpl().generate(MessageCommand.class, className.replace('.', '/'));
+        ClassLoader loader = new ClassLoader(MessageCommand.class.getClassLoader()) {
+            @Override
+            protected Class<?> findClass(String name) throws ClassNotFoundException {
+                if (name.equals(className)) {
+                    return defineClass(className, code, 0, code.length);
+                }
+                throw new ClassNotFoundException(name);
+            }
+        };
+        CommandInstantiator inst = (CommandInstantiator)loader.loadClass(className).newInstance();
+        AbstractCommand cmd = inst.newInstance(3, 4, 5);
+
+        assertTrue(cmd instanceof MessageCommand);
+        assertEquals(3, cmd.getType());
+        assertEquals(4, cmd.getRx());
+        assertEquals(5, cmd.getTx());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNonPublicCommand() {
+        new CommandInstantiatorGeneratorImpl().generate(HiddenCommand.class, "HiddenCommand$Test");
+    }
+
+    @Test
+    public void testRecycledCommand() {
+        CommandFactory.setInstantiatorGenerator(new CommandInstantiatorGeneratorImpl());
+        try {
+            // there is no generic array creation for Class<? extends AbstractCommand>[]
+            @SuppressWarnings("unchecked")
+            CommandFactory cf = CommandFactory.getInstance((Class<? extends AbstractCommand>[])new Class<?>[]{MessageCommand.class, HiddenCommand.class}, getClass().getClassLoader(), Command.Target.SERVER);
+            MessageCommand mc = cf.createCommand(MessageCommand.class);
+            assertNotNull(mc);
+            mc.setMessage("hello");
+            mc.setTime(1L);
+            cf.recycle(mc);
+
+            MessageCommand mc1 = cf.createCommand(MessageCommand.class);
+            assertSame(mc, mc1);
+            assertNull(mc1.getMessage());
+            assertEquals(0L, mc1.getTime());
+            assertEquals(mc.getType(), mc1.getType());
+
+            // falls back to reflection for the non-public command types
+            assertNotNull(cf.createCommand(HiddenCommand.class));
+        } finally {
+            CommandFactory.setInstantiatorGenerator(null);
+        }
+    }
+}
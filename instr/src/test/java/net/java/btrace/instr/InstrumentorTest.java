@@ -24,8 +24,11 @@
  */
 package net.java.btrace.instr;
 
+import java.lang.reflect.Method;
+import net.java.btrace.runtime.ThreadLocalSlots;
 import net.java.btrace.support.InstrumentorTestBase;
 import org.junit.Test;
+import static org.junit.Assert.*;
 
 /**
  *
@@ -111,10 +114,10 @@ public class InstrumentorTest extends InstrumentorTestBase {
         transform("onmethod/ErrorDuration");
 
         checkTransformation("TRYCATCHBLOCK L0 L1 L1 java/lang/Throwable\nINVOKESTATIC resources/OnMethodTest.$btrace$time$stamp ()J\nLSTORE 1\n"
-                + "INVOKESTATIC resources/OnMethodTest.$btrace$time$stamp ()J\nLSTORE 3\nDUP\nASTORE 5\nALOAD 0\nLDC \"uncaught\"\nLLOAD 3\n"
-                + "LLOAD 1\nLSUB\nALOAD 5\n"
+                + "DUP\nASTORE 3\nALOAD 0\nLDC \"uncaught\"\nINVOKESTATIC resources/OnMethodTest.$btrace$time$stamp ()J\n"
+                + "LLOAD 1\nLSUB\nALOAD 3\n"
                 + "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$ErrorDuration$args (Ljava/lang/Object;Ljava/lang/String;JLjava/lang/Throwable;)V\n"
-                + "ATHROW\nMAXSTACK = 7\nMAXLOCALS = 6"
+                + "ATHROW\nMAXSTACK = 7\nMAXLOCALS = 4"
         );
     }
 
@@ -297,6 +300,14 @@ public class InstrumentorTest extends InstrumentorTestBase {
         checkTransformation("ALOAD 0\nALOAD 1\nLLOAD 2\nALOAD 4\nALOAD 5\nINVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$Args$args (Ljava/lang/Object;Ljava/lang/String;J[Ljava/lang/String;[I)V");
     }
 
+    @Test
+    public void methodEntryArgsSampled() throws Exception {
+        originalBC = loadTargetClass("OnMethodTest");
+        transform("onmethod/ArgsSampled");
+        checkTransformation("ICONST_0\nINVOKESTATIC net/java/btrace/runtime/ProbeSampler.sample (I)Z\nIFEQ L0\n" +
+                     "ALOAD 0\nALOAD 1\nLLOAD 2\nALOAD 4\nALOAD 5\nINVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$ArgsSampled$args (Ljava/lang/Object;Ljava/lang/String;J[Ljava/lang/String;[I)V");
+    }
+
     @Test
     public void methodEntryArgsReturn() throws Exception {
         originalBC = loadTargetClass("OnMethodTest");
@@ -309,13 +320,23 @@ public class InstrumentorTest extends InstrumentorTestBase {
         originalBC = loadTargetClass("OnMethodTest");
         transform("onmethod/ArgsDuration");
         checkTransformation("INVOKESTATIC resources/OnMethodTest.$btrace$time$stamp ()J\nLSTORE 6\n" +
-                            "INVOKESTATIC resources/OnMethodTest.$btrace$time$stamp ()J\nLSTORE 8\n" +
-                            "DUP2\nLSTORE 10\nALOAD 0\nLLOAD 10\nLLOAD 8\nLLOAD 6\nLSUB\nALOAD 1\n" +
+                            "DUP2\nLSTORE 8\nALOAD 0\nLLOAD 8\nINVOKESTATIC resources/OnMethodTest.$btrace$time$stamp ()J\nLLOAD 6\nLSUB\nALOAD 1\n" +
                             "LLOAD 2\nALOAD 4\nALOAD 5\n" +
                             "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$ArgsDuration$args (Ljava/lang/Object;JJLjava/lang/String;J[Ljava/lang/String;[I)V\n" +
                             "MAXSTACK");
     }
 
+    @Test
+    public void methodEntryArgsDurationCoarse() throws Exception {
+        originalBC = loadTargetClass("OnMethodTest");
+        transform("onmethod/ArgsDurationCoarse");
+        checkTransformation("GETSTATIC net/java/btrace/runtime/Clocks$Coarse.TIME : J\nLSTORE 6\n" +
+                            "DUP2\nLSTORE 8\nALOAD 0\nLLOAD 8\nGETSTATIC net/java/btrace/runtime/Clocks$Coarse.TIME : J\nLLOAD 6\nLSUB\nALOAD 1\n" +
+                            "LLOAD 2\nALOAD 4\nALOAD 5\n" +
+                            "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$ArgsDurationCoarse$args (Ljava/lang/Object;JJLjava/lang/String;J[Ljava/lang/String;[I)V\n" +
+                            "MAXSTACK");
+    }
+
     @Test
     public void methodEntryArgsDurationBoxed() throws Exception {
         originalBC = loadTargetClass("OnMethodTest");
@@ -330,8 +351,7 @@ public class InstrumentorTest extends InstrumentorTestBase {
         System.err.println("!!!");
         System.err.println(asmify(transformedBC));
         checkTransformation("INVOKESTATIC resources/OnMethodTest.$btrace$time$stamp ()J\nLSTORE 2\n" +
-                            "INVOKESTATIC resources/OnMethodTest.$btrace$time$stamp ()J\nLSTORE 4\n" +
-                            "ALOAD 0\nLLOAD 4\nLLOAD 2\nLSUB\nALOAD 1\n" +
+                            "ALOAD 0\nINVOKESTATIC resources/OnMethodTest.$btrace$time$stamp ()J\nLLOAD 2\nLSUB\nALOAD 1\n" +
                             "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$ArgsDurationConstructor$args (Ljava/lang/Object;JLjava/lang/String;)V\n" +
                             "MAXSTACK");
     }
@@ -342,11 +362,10 @@ public class InstrumentorTest extends InstrumentorTestBase {
         originalBC = loadTargetClass("OnMethodTest");
         transform("onmethod/ArgsDuration2");
         checkTransformation("INVOKESTATIC resources/OnMethodTest.$btrace$time$stamp ()J\nLSTORE 6\n"
-                + "INVOKESTATIC resources/OnMethodTest.$btrace$time$stamp ()J\nLSTORE 8\n"
-                + "DUP2\nLSTORE 10\nALOAD 0\nLLOAD 10\nLLOAD 8\nLLOAD 6\nLSUB\nALOAD 1\n"
+                + "DUP2\nLSTORE 8\nALOAD 0\nLLOAD 8\nINVOKESTATIC resources/OnMethodTest.$btrace$time$stamp ()J\nLLOAD 6\nLSUB\nALOAD 1\n"
                 + "LLOAD 2\nALOAD 4\nALOAD 5\n"
                 + "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$ArgsDuration2$args2 (Ljava/lang/Object;JJLjava/lang/String;J[Ljava/lang/String;[I)V\n"
-                + "DUP2\nLSTORE 12\nALOAD 0\nLLOAD 12\nLLOAD 8\nLLOAD 6\nLSUB\nALOAD 1\n"
+                + "DUP2\nLSTORE 10\nALOAD 0\nLLOAD 10\nINVOKESTATIC resources/OnMethodTest.$btrace$time$stamp ()J\nLLOAD 6\nLSUB\nALOAD 1\n"
                 + "LLOAD 2\nALOAD 4\nALOAD 5\n"
                 + "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$ArgsDuration2$args (Ljava/lang/Object;JJLjava/lang/String;J[Ljava/lang/String;[I)V\n"
                 + "MAXSTACK");
@@ -359,8 +378,7 @@ public class InstrumentorTest extends InstrumentorTestBase {
         checkTransformation("TRYCATCHBLOCK L0 L1 L1 java/lang/Throwable\n"
                 + "INVOKESTATIC resources/OnMethodTest.$btrace$time$stamp ()J\n"
                 + "LSTORE 6\n"
-                + "INVOKESTATIC resources/OnMethodTest.$btrace$time$stamp ()J\n"
-                + "LSTORE 8\nDUP\nASTORE 10\nALOAD 0\nLLOAD 8\nLLOAD 6\nLSUB\nALOAD 10\n"
+                + "DUP\nASTORE 8\nALOAD 0\nINVOKESTATIC resources/OnMethodTest.$btrace$time$stamp ()J\nLLOAD 6\nLSUB\nALOAD 8\n"
                 + "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$ArgsDurationErr$args (Ljava/lang/Object;JLjava/lang/Throwable;)V\n"
                 + "ATHROW");
     }
@@ -378,8 +396,7 @@ public class InstrumentorTest extends InstrumentorTestBase {
         transform("onmethod/ArgsDurationConstructorErr");
         checkTransformation("TRYCATCHBLOCK L0 L1 L1 java/lang/Throwable\n"
                 + "INVOKESTATIC resources/OnMethodTest.$btrace$time$stamp ()J\nLSTORE 1\n"
-                + "INVOKESTATIC resources/OnMethodTest.$btrace$time$stamp ()J\nLSTORE 3\n"
-                + "DUP\nASTORE 5\nALOAD 0\nLLOAD 3\nLLOAD 1\nLSUB\nALOAD 5\n"
+                + "DUP\nASTORE 3\nALOAD 0\nINVOKESTATIC resources/OnMethodTest.$btrace$time$stamp ()J\nLLOAD 1\nLSUB\nALOAD 3\n"
                 + "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$ArgsDurationConstructorErr$args (Ljava/lang/Object;JLjava/lang/Throwable;)V\n"
                 + "ATHROW");
     }
@@ -391,8 +408,7 @@ public class InstrumentorTest extends InstrumentorTestBase {
         transform("onmethod/ArgsDuration2Err");
         checkTransformation("TRYCATCHBLOCK L0 L1 L1 java/lang/Throwable\nTRYCATCHBLOCK L0 L2 L2 java/lang/Throwable\n"
                 + "INVOKESTATIC resources/OnMethodTest.$btrace$time$stamp ()J\nLSTORE 6\n"
-                + "INVOKESTATIC resources/OnMethodTest.$btrace$time$stamp ()J\nLSTORE 8\n"
-                + "DUP\nASTORE 10\nALOAD 0\nLLOAD 8\nLLOAD 6\nLSUB\nALOAD 10\n"
+                + "DUP\nASTORE 8\nALOAD 0\nINVOKESTATIC resources/OnMethodTest.$btrace$time$stamp ()J\nLLOAD 6\nLSUB\nALOAD 8\n"
                 + "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$ArgsDuration2Err$args2 (Ljava/lang/Object;JLjava/lang/Throwable;)V\n"
                 + "ATHROW");
     }
@@ -408,6 +424,85 @@ public class InstrumentorTest extends InstrumentorTestBase {
                      "ICONST_3\nALOAD 5\nAASTORE\nINVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$AnytypeArgs$args (Ljava/lang/Object;[Ljava/lang/Object;)V");
     }
 
+    @Test
+    public void methodEntryAnytypeArgsReuse() throws Exception {
+        originalBC = loadTargetClass("OnMethodTest");
+        transform("onmethod/AnytypeArgsReuse");
+        checkTransformation("TRYCATCHBLOCK L0 L1 L2 null\n" +
+                     "ALOAD 0\nICONST_4\nINVOKESTATIC net/java/btrace/runtime/BTraceRuntime.acquireArgs (I)[Ljava/lang/Object;\nDUP\n" +
+                     "ICONST_0\nALOAD 1\nAASTORE\nDUP\n" +
+                     "ICONST_1\nLLOAD 2\nINVOKESTATIC java/lang/Long.valueOf (J)Ljava/lang/Long;\nAASTORE\nDUP\n" +
+                     "ICONST_2\nALOAD 4\nAASTORE\nDUP\n" +
+                     "ICONST_3\nALOAD 5\nAASTORE\nINVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$AnytypeArgsReuse$args (Ljava/lang/Object;[Ljava/lang/Object;)V\n" +
+                     "L1\nINVOKESTATIC net/java/btrace/runtime/BTraceRuntime.releaseArgs ()V\nGOTO L3\n" +
+                     "L2\nINVOKESTATIC net/java/btrace/runtime/BTraceRuntime.releaseArgs ()V\nATHROW");
+    }
+
+    @Test
+    public void methodEntryTLS() throws Exception {
+        originalBC = loadTargetClass("OnMethodTest");
+        transform("onmethod/TLSFields");
+        checkTransformation("ALOAD 0\nALOAD 1\nLLOAD 2\nALOAD 4\nALOAD 5\n" +
+                     "INVOKESTATIC resources/OnMethodTest.$btrace$traces$onmethod$TLSFields$args (Ljava/lang/Object;Ljava/lang/String;J[Ljava/lang/String;[I)V\n" +
+                     "MAXSTACK = 6\n\n// access flags 0xA\n" +
+                     "private static $btrace$traces$onmethod$TLSFields$args(Ljava/lang/Object;Ljava/lang/String;J[Ljava/lang/String;[I)V\n" +
+                     "@Lnet/java/btrace/annotations/Self;() // parameter 0\n" +
+                     "INVOKESTATIC traces/onmethod/TLSFields.$btrace$tls ()Lnet/java/btrace/runtime/ThreadLocalSlots;\nASTORE 6\n" +
+                     "ALOAD 6\nGETFIELD net/java/btrace/runtime/ThreadLocalSlots.ints : [I\nICONST_0\nIALOAD\n" +
+                     "IFNE L0\nICONST_1\nGOTO L1\nL0\nICONST_0\nL1\n" +
+                     "ALOAD 6\nGETFIELD net/java/btrace/runtime/ThreadLocalSlots.ints : [I\nICONST_0\nDUP2_X1\nPOP2\nIASTORE\n" +
+                     "ALOAD 6\nGETFIELD net/java/btrace/runtime/ThreadLocalSlots.ints : [I\nICONST_1\nIALOAD\nICONST_2\nIADD\nI2B\n" +
+                     "ALOAD 6\nGETFIELD net/java/btrace/runtime/ThreadLocalSlots.ints : [I\nICONST_1\nDUP2_X1\nPOP2\nIASTORE\n");
+    }
+
+    @Test
+    public void preprocessTLS() throws Exception {
+        final Class<?> trace = loadPreprocessedTrace("onmethod/TLSFields");
+        final Method handler = trace.getMethod("args", Object.class, String.class, long.class, String[].class, int[].class);
+        final Method tls = trace.getMethod(Preprocessor.BTRACE_TLS_METHOD_NAME);
+
+        Object self = new Object();
+        handler.invoke(null, self, "a", 10L, null, null);
+        ThreadLocalSlots slots = (ThreadLocalSlots)tls.invoke(null);
+        assertArrayEquals(new int[]{0, 3, 'b', 3, 7}, slots.ints);
+        assertArrayEquals(new long[]{15L}, slots.longs);
+        assertEquals(7.0f, slots.floats[0], 0f);
+        assertEquals(9.0d, slots.doubles[0], 0d);
+        assertArrayEquals(new Object[]{self, "a", self}, slots.refs);
+
+        handler.invoke(null, self, "b", 10L, null, null);
+        assertSame(slots, tls.invoke(null));
+        assertArrayEquals(new int[]{1, 5, 'c', 4, 11}, slots.ints);
+        assertArrayEquals(new long[]{26L}, slots.longs);
+        assertEquals(8.5f, slots.floats[0], 0f);
+        assertEquals(11.5d, slots.doubles[0], 0d);
+        assertArrayEquals(new Object[]{self, "b", self}, slots.refs);
+
+        // a new thread starts with the values set by the static initializer
+        final Object[] rslt = new Object[2];
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    rslt[0] = tls.invoke(null);
+                    handler.invoke(null, null, "c", 1L, null, null);
+                    rslt[1] = tls.invoke(null);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        t.start();
+        t.join();
+        ThreadLocalSlots other = (ThreadLocalSlots)rslt[0];
+        assertNotSame(slots, other);
+        assertSame(other, rslt[1]);
+        assertArrayEquals(new int[]{0, 3, 'b', 3, 7}, other.ints);
+        assertArrayEquals(new long[]{6L}, other.longs);
+        assertEquals(7.0f, other.floats[0], 0f);
+        assertEquals(9.0d, other.doubles[0], 0d);
+        assertArrayEquals(new Object[]{null, "c", null}, other.refs);
+    }
+
     @Test
     public void methodEntryAnytypeArgsNoSelf() throws Exception {
         originalBC = loadTargetClass("OnMethodTest");
@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package net.java.btrace.instr;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Jaroslav Bachorik
+ */
+public class ProbeMatcherTest {
+    private static OnMethod probe(String clazz) {
+        OnMethod om = new OnMethod();
+        om.setClazz(clazz);
+        return om;
+    }
+
+    @Test
+    public void testClassPatterns() {
+        OnMethod exact = probe("java.lang.String");
+        OnMethod exactRegex = probe("/java\\.util\\.HashMap/");
+        OnMethod any = probe("/java\\.awt\\..*/");
+        OnMethod nonEmpty = probe("/javax\\.swing\\..+/");
+        OnMethod regex1 = probe("/.*\\$Inner[0-9]/");
+        OnMethod regex2 = probe("/com\\.acme\\.(foo|bar)\\.Service/");
+        OnMethod backRef = probe("/a\\.(b+)\\.\\1/");
+        OnMethod invalid = probe("/a\\.[/");
+        List<OnMethod> all = Arrays.asList(exact, exactRegex, any, nonEmpty, regex1, regex2, backRef, invalid);
+        ProbeMatcher pm = new ProbeMatcher(all);
+
+        assertMatches(pm, all, "java/lang/String", exact);
+        assertMatches(pm, all, "java/util/HashMap", exactRegex);
+        assertMatches(pm, all, "java/awt/Frame", any);
+        assertMatches(pm, all, "javax/swing/JFrame", nonEmpty);
+        assertMatches(pm, all, "javax/swing/");
+        assertMatches(pm, all, "java/awt/", any);
+        assertMatches(pm, all, "javax/swing");
+        assertMatches(pm, all, "java/awt/Frame$Inner1", any, regex1);
+        assertMatches(pm, all, "com/acme/bar/Service", regex2);
+        assertMatches(pm, all, "com/acme/baz/Service");
+        assertMatches(pm, all, "a/bb/bb", backRef);
+        assertMatches(pm, all, "a/bb/b");
+        assertMatches(pm, all, "java/lang/Object");
+    }
+
+    @Test
+    public void testSuperTypes() {
+        OnMethod st = probe("+java.lang.Runnable");
+        List<OnMethod> all = Arrays.asList(st);
+        ProbeMatcher pm = new ProbeMatcher(all);
+        assertTrue(pm.matchesClass("a/B", "java/lang/Object", new String[]{"java/lang/Runnable"}));
+        assertTrue(pm.matchesClass("java/lang/Runnable", null, null));
+        assertFalse(pm.matchesClass("a/B", "java/lang/Object", new String[0]));
+        assertTrue(pm.matchesClass(Thread.class));
+        assertFalse(pm.matchesClass(String.class));
+
+        Set<OnMethod> probes = new HashSet<OnMethod>();
+        pm.collectClassProbes(Thread.class, "java/lang/Thread", "java/lang/Object", new String[0], probes);
+        assertEquals(new HashSet<OnMethod>(all), probes);
+    }
+
+    @Test
+    public void testIndirectSuperTypes() {
+        OnMethod st = probe("+java.util.Collection");
+        List<OnMethod> all = Arrays.asList(st);
+        ProbeMatcher pm = new ProbeMatcher(all);
+        ClassLoader cl = getClass().getClassLoader();
+        // java.util.AbstractList is resolved from the class file
+        assertTrue(pm.matchesClass(cl, "a/MyList", "java/util/AbstractList", new String[0]));
+        assertFalse(pm.matchesClass(cl, "a/MyThread", "java/lang/Thread", new String[0]));
+
+        ClassHierarchy.getDefault().add(cl, "a/MyBaseList", "java/lang/Object", new String[]{"java/util/List"});
+        Set<OnMethod> probes = new HashSet<OnMethod>();
+        pm.collectClassProbes(null, cl, "a/MyOtherList", "a/MyBaseList", new String[0], probes);
+        assertEquals(new HashSet<OnMethod>(all), probes);
+    }
+
+    @Test
+    public void testAnnotations() {
+        OnMethod anno = probe("@javax.annotation.Resource");
+        OnMethod annoRegex = probe("@/javax\\.annotation\\..*/");
+        List<OnMethod> all = Arrays.asList(anno, annoRegex);
+        ProbeMatcher pm = new ProbeMatcher(all);
+        assertTrue(pm.hasAnnotationProbes());
+        assertFalse(pm.matchesClass("javax/annotation/Resource", null, null));
+        assertTrue(pm.matchesAnnotation("javax.annotation.Resource"));
+        assertTrue(pm.matchesAnnotation("javax.annotation.Generated"));
+        assertFalse(pm.matchesAnnotation("java.lang.Deprecated"));
+
+        List<OnMethod> probes = new ArrayList<OnMethod>();
+        pm.collectAnnotationProbes("javax.annotation.Resource", probes);
+        assertEquals(all, ProbeMatcher.ordered(all, new HashSet<OnMethod>(probes)));
+    }
+
+    @Test
+    public void testMatches() {
+        ProbeMatcher pm = new ProbeMatcher(new ArrayList<OnMethod>());
+        assertFalse(pm.hasAnnotationProbes());
+        assertTrue(pm.matches("foo", "foo"));
+        assertFalse(pm.matches("", ""));
+        assertTrue(pm.matches("/get.*/", "getFoo"));
+        assertTrue(pm.matches("/get.*/", "getBar"));
+        assertFalse(pm.matches("/get.*/", "setFoo"));
+        assertFalse(pm.matches("/get[/", "get["));
+    }
+
+    private static void assertMatches(ProbeMatcher pm, List<OnMethod> all, String internalName, OnMethod ... expected) {
+        assertEquals(internalName, expected.length > 0, pm.matchesClass(internalName, "java/lang/Object", new String[0]));
+        Set<OnMethod> probes = new HashSet<OnMethod>();
+        pm.collectClassProbes(null, internalName, "java/lang/Object", new String[0], probes);
+        assertEquals(internalName, Arrays.asList(expected), ProbeMatcher.ordered(all, probes));
+    }
+}
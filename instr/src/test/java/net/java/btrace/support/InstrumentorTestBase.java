@@ -32,6 +32,7 @@ import net.java.btrace.instr.Instrumentor;
 import net.java.btrace.instr.OnMethod;
 import net.java.btrace.instr.Preprocessor;
 import net.java.btrace.instr.Verifier;
+import net.java.btrace.runtime.BTraceRuntime;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintWriter;
@@ -153,6 +154,30 @@ abstract public class InstrumentorTestBase {
         return new Trace(writer.toByteArray(), verifier.getOnMethods(), verifier.getClassName());
     }
 
+    /**
+     * Defines the preprocessed trace class in a new class loader and initializes it;
+     * the class gets verified by the JVM along the way
+     * @param name The trace name
+     * @return The preprocessed trace class
+     */
+    protected Class<?> loadPreprocessedTrace(String name) throws IOException, ClassNotFoundException {
+        final Trace btrace = loadTrace(name);
+        final String className = btrace.className.replace('/', '.');
+        new BTraceRuntime(null, className, new String[0], null, null, null);
+        ClassLoader cl = new ClassLoader(getClass().getClassLoader()) {
+            @Override
+            protected synchronized Class<?> loadClass(String n, boolean resolve) throws ClassNotFoundException {
+                if (n.equals(className)) {
+                    // the original trace class is on the class path as well
+                    Class<?> c = findLoadedClass(n);
+                    return c != null ? c : defineClass(n, btrace.content, 0, btrace.content.length);
+                }
+                return super.loadClass(n, resolve);
+            }
+        };
+        return Class.forName(className, true, cl);
+    }
+
     protected byte[] loadTargetClass(String name) throws IOException {
         return loadFile("resources/" + name + ".class");
     }
@@ -25,6 +25,8 @@
 package net.java.btrace.runtime;
 
 import net.java.btrace.api.server.ShutdownHandler;
+import net.java.btrace.annotations.BTrace;
+import net.java.btrace.annotations.Clock;
 import net.java.btrace.annotations.OnError;
 import net.java.btrace.annotations.OnEvent;
 import net.java.btrace.annotations.OnExit;
@@ -33,16 +35,15 @@ import net.java.btrace.annotations.OnTimer;
 import java.lang.management.ManagementFactory;
 import static java.lang.management.ManagementFactory.*;
 import java.lang.instrument.Instrumentation;
+import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.security.AccessController;
 import java.security.PrivilegedAction;
 import java.security.PrivilegedExceptionAction;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.LinkedBlockingQueue;
 import com.sun.management.HotSpotDiagnosticMXBean;
 import net.java.btrace.api.core.BTraceLogger;
 import net.java.btrace.api.extensions.ExtensionsRepository;
@@ -63,13 +64,12 @@ import java.lang.management.MemoryPoolMXBean;
 import java.lang.management.MemoryUsage;
 import java.lang.management.RuntimeMXBean;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ThreadFactory;
@@ -103,40 +103,27 @@ public final class BTraceRuntime {
     // we need Unsafe to load BTrace class bytes as
     // bootstrap class
 
-    private static final Unsafe unsafe = Unsafe.getUnsafe();
+    private static final Unsafe unsafe;
     // a dummy BTraceRuntime instance
     final private static BTraceRuntime dummy;
     final public static BTraceRuntime NULL;
-    final private static Thread samplerThread;
-    volatile public static long TIMESTAMP = 0L;
 
     static {
+        // Unsafe.getUnsafe() would fail outside of the bootstrap class path
+        unsafe = AccessController.doPrivileged(new PrivilegedAction<Unsafe>() {
+            @Override
+            public Unsafe run() {
+                try {
+                    Field f = Unsafe.class.getDeclaredField("theUnsafe");
+                    f.setAccessible(true);
+                    return (Unsafe)f.get(null);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
         dummy = new BTraceRuntime();
         NULL = new BTraceRuntime();
-
-        if (Boolean.getBoolean("btrace.timer.sampled")) {
-            final long interval = Long.parseLong(System.getProperty("btrace.timer.sampled.interval", "500"));
-            long time = System.nanoTime();
-            for (int i = 0; i < 1000; i++) {
-                unsafe.park(false, interval);
-            }
-            time = System.nanoTime() - time;
-            final long step = (long) (time / 1000);
-
-            samplerThread = new Thread(new Runnable() {
-
-                public void run() {
-                    while (true) {
-                        unsafe.park(false, interval);
-                        TIMESTAMP += step;
-                    }
-                }
-            }, "BTrace Sampled Timer");
-            samplerThread.setDaemon(true);
-            samplerThread.start();
-        } else {
-            samplerThread = null;
-        }
     }
     private static ThreadEnteredMap map = new ThreadEnteredMap(NULL);
     // BTraceRuntime against BTrace class name
@@ -147,9 +134,6 @@ public final class BTraceRuntime {
     private static volatile Perf perf;
     // interface to read perf counters of this process
     private static volatile PerfReader perfReader;
-    // performance counters created by this client
-    private static Map<String, ByteBuffer> counters =
-            new HashMap<String, ByteBuffer>();
     // Few MBeans used to implement certain built-in functions
     private static volatile MemoryMXBean memoryMBean;
     private static volatile RuntimeMXBean runtimeMBean;
@@ -158,6 +142,39 @@ public final class BTraceRuntime {
     private static volatile List<MemoryPoolMXBean> memPoolList;
     // bytecode generator that generates Runnable implementations
     private static RunnableGenerator runnableGenerator;
+    // per-thread arrays for passing the AnyType[] arguments; see acquireArgs()
+    final private static int MAX_ARG_FRAME = 32;
+    final private static class ArgFrames {
+        final private Object[][] frames = new Object[MAX_ARG_FRAME][];
+        private Object[] current;
+        private int depth;
+
+        Object[] acquire(int size) {
+            if (depth++ > 0 || size >= MAX_ARG_FRAME) {
+                // nested probe invocation; the thread's array is still being used
+                return new Object[size];
+            }
+            Object[] frame = frames[size];
+            if (frame == null) {
+                frame = new Object[size];
+                frames[size] = frame;
+            }
+            current = frame;
+            return frame;
+        }
+
+        void release() {
+            if (--depth == 0 && current != null) {
+                // do not hold on the application objects
+                Arrays.fill(current, null);
+                current = null;
+            }
+        }
+    }
+    // not a ThreadLocal; the arrays are acquired before the re-entrancy guard
+    // and ThreadLocal might be instrumented itself
+    final private static ThreadEnteredMap argFrames = new ThreadEnteredMap(null);
+
     // Per-client state starts here.
     // current thread's exception
     private ThreadLocal<Throwable> currentException = new ThreadLocal<Throwable>();
@@ -179,110 +196,19 @@ public final class BTraceRuntime {
     private Map<String, Method> eventHandlers;
     // low memory handlers
     private Map<String, Method> lowMemHandlers;
-    // timer to run profile provider actions
-    private volatile Timer timer;
+    // scheduled timer callbacks; see TimerService
+    private volatile TimerService.Handle[] timers;
+    // whether this runtime holds the coarse clock ticker
+    private boolean coarseClock;
     // executer to run low memory handlers
     private volatile ExecutorService threadPool;
     // Memory MBean listener
     private volatile NotificationListener memoryListener;
-    // Command queue for the client
-    private volatile LinkedBlockingQueue<AbstractCommand> queue;
-
-    private static class SpeculativeQueueManager {
-        // maximum number of speculative buffers
-
-        private static final int MAX_SPECULATIVE_BUFFERS = Short.MAX_VALUE;
-        // per buffer message limit
-        private static final int MAX_SPECULATIVE_MSG_LIMIT = Short.MAX_VALUE;
-        // next speculative buffer id
-        private int nextSpeculationId;
-        // speculative buffers map
-        private ConcurrentHashMap<Integer, LinkedBlockingQueue<AbstractCommand>> speculativeQueues;
-        // per thread current speculative buffer id
-        private ThreadLocal<Integer> currentSpeculationId;
-
-        SpeculativeQueueManager() {
-            speculativeQueues = new ConcurrentHashMap<Integer, LinkedBlockingQueue<AbstractCommand>>();
-            currentSpeculationId = new ThreadLocal<Integer>();
-        }
-
-        void clear() {
-            speculativeQueues.clear();
-            speculativeQueues = null;
-            currentSpeculationId.remove();
-            currentSpeculationId = null;
-        }
-
-        int speculation() {
-            int nextId = getNextSpeculationId();
-            if (nextId != -1) {
-                speculativeQueues.put(nextId,
-                        new LinkedBlockingQueue<AbstractCommand>(MAX_SPECULATIVE_MSG_LIMIT));
-            }
-            return nextId;
-        }
-
-        boolean send(AbstractCommand cmd) {
-            final Integer curId = currentSpeculationId != null ? currentSpeculationId.get() : null;
-            if (curId != null && cmd.canBeSpeculated()) {
-                LinkedBlockingQueue<AbstractCommand> sb = speculativeQueues.get(curId);
-                if (sb != null) {
-                    try {
-                        sb.add(cmd);
-                    } catch (IllegalStateException ise) {
-                        sb.clear();
-                        BTraceRuntime current = getCurrent();
-                        MessageCommand mc = current.channel.prepareCommand(MessageCommand.class, new AbstractCommand.Initializer<MessageCommand>() {
-                            public void init(MessageCommand cmd) {
-                                cmd.setMessage("speculative buffer overflow: " + curId);
-                            }
-                        });
-                        
-                        sb.add(mc);
-                    }
-                    return true;
-                }
-            }
-            return false;
-        }
-
-        void speculate(int id) {
-            validateId(id);
-            currentSpeculationId.set(id);
-        }
-
-        void commit(int id, LinkedBlockingQueue<AbstractCommand> result) {
-            validateId(id);
-            currentSpeculationId.set(null);
-            LinkedBlockingQueue<AbstractCommand> sb = speculativeQueues.get(id);
-            if (sb != null) {
-                result.addAll(sb);
-                sb.clear();
-            }
-        }
-
-        void discard(int id) {
-            validateId(id);
-            currentSpeculationId.set(null);
-            speculativeQueues.get(id).clear();
-        }
-
-        // -- Internals only below this point
-        private synchronized int getNextSpeculationId() {
-            if (nextSpeculationId == MAX_SPECULATIVE_BUFFERS) {
-                return -1;
-            }
-            return nextSpeculationId++;
-        }
-
-        private void validateId(int id) {
-            if (!speculativeQueues.containsKey(id)) {
-                throw new RuntimeException("invalid speculative buffer id: " + id);
-            }
-        }
-    }
-    // per client speculative buffer manager
-    private volatile SpeculativeQueueManager specQueueManager;
+    // per client speculative buffers
+    private final SpeculativeBuffers speculations;
+    // the initial values of the @TLS fields and their per-thread copies
+    private volatile ThreadLocalSlots tlsTemplate;
+    private final ThreadEnteredMap tlsSlots = new ThreadEnteredMap(null);
     // background thread that sends Commands to the handler
 //    private volatile Thread cmdThread;
     private final Instrumentation instrumentation;
@@ -297,6 +223,7 @@ public final class BTraceRuntime {
 //        dataLinkThread = null;
         channel = null;
         shutdown = null;
+        speculations = null;
     }
 
     /**
@@ -318,8 +245,19 @@ public final class BTraceRuntime {
             throw new IllegalArgumentException();
         }
         this.args = args;
-        this.queue = new LinkedBlockingQueue<AbstractCommand>();
-        this.specQueueManager = new SpeculativeQueueManager();
+        this.speculations = new SpeculativeBuffers(new SpeculativeBuffers.Sink() {
+            @Override
+            public void commit(final int id, AbstractCommand[] cmds, int count, boolean overflown) {
+                if (overflown) {
+                    channel.sendCommand(channel.prepareCommand(MessageCommand.class, new AbstractCommand.Initializer<MessageCommand>() {
+                        public void init(MessageCommand cmd) {
+                            cmd.setMessage("speculative buffer overflow: " + id);
+                        }
+                    }));
+                }
+                channel.sendCommands(cmds, count);
+            }
+        });
         this.className = runtimeName;
         this.instrumentation = inst;
         this.repository = extRepository;
@@ -385,6 +323,61 @@ public final class BTraceRuntime {
         map.exit();
     }
 
+    /**
+     * Defers the action until the current probe handler leaves
+     * or a command is sent from the current thread, whichever comes first.
+     * @param action The action to defer
+     * @return <b>TRUE</b> if the action was deferred, <b>FALSE</b> if not called from within a probe handler
+     */
+    public static boolean defer(Runnable action) {
+        return map.defer(action);
+    }
+
+    /**
+     * Retrieves the value attached to the current thread by {@linkplain #attach(Object, Object)}
+     * @param key The attachment key
+     * @return The attached value or <b>NULL</b>
+     */
+    public static Object getAttachment(Object key) {
+        return map.getAttachment(key);
+    }
+
+    /**
+     * Attaches the value to the current thread, next to its deferred actions
+     * @param key The attachment key
+     * @param value The value to attach
+     * @return <b>TRUE</b> if the value was attached, <b>FALSE</b> if the thread has never run a probe handler
+     */
+    public static boolean attach(Object key, Object value) {
+        return map.attach(key, value);
+    }
+
+    /**
+     * Provides the array to pass the <b>AnyType[]</b> arguments in.
+     * Used by the probes declared with <b>reuseArgs=true</b>; each call must be
+     * paired with {@linkplain #releaseArgs()} once the probe handler returns.
+     * @param size The number of arguments
+     * @return The calling thread's reusable array or a new one if that is already in use
+     */
+    public static Object[] acquireArgs(int size) {
+        ArgFrames frames = (ArgFrames)argFrames.get();
+        if (frames == null) {
+            frames = new ArgFrames();
+            argFrames.enter(frames);
+        }
+        return frames.acquire(size);
+    }
+
+    /**
+     * Releases the array obtained by the previous {@linkplain #acquireArgs(int)} call
+     */
+    public static void releaseArgs() {
+        ArgFrames frames = (ArgFrames)argFrames.get();
+        if (frames != null) {
+            frames.release();
+        }
+    }
+
     /**
      * start method is called by every BTrace (preprocesed) class
      * just at the end of it's class initializer.
@@ -430,38 +423,66 @@ public final class BTraceRuntime {
     }
 
     /**
-     * Utility to create a new ThreadLocal object. Called
-     * by preprocessed BTrace class to create ThreadLocal
-     * for each @TLS variable.
+     * Creates the template of the per-thread storage of the @TLS fields. Called
+     * by the preprocessed BTrace class initializer which then stores the initial
+     * values of the @TLS fields in the template.
+     * @param rt The script runtime
+     * @param refCnt The number of reference slots
+     * @param intCnt The number of int (and narrower primitive) slots
+     * @param longCnt The number of long slots
+     * @param floatCnt The number of float slots
+     * @param doubleCnt The number of double slots
+     * @return The template
+     */
+    public static ThreadLocalSlots newThreadLocalSlots(BTraceRuntime rt, int refCnt, int intCnt, int longCnt, int floatCnt, int doubleCnt) {
+        ThreadLocalSlots template = new ThreadLocalSlots(refCnt, intCnt, longCnt, floatCnt, doubleCnt);
+        rt.tlsTemplate = template;
+        return template;
+    }
+
+    /**
+     * @param rt The script runtime
+     * @return The @TLS storage of the current thread or <b>NULL</b> if the thread has not used it yet
+     */
+    public static ThreadLocalSlots threadLocalSlots(BTraceRuntime rt) {
+        return (ThreadLocalSlots)rt.tlsSlots.get();
+    }
+
+    /**
+     * Creates the @TLS storage of the current thread by copying the template.
+     * The reference values are shared with the template; the caller is responsible
+     * for replacing the mutable ones with their copies.
+     * @param rt The script runtime
+     * @return The @TLS storage of the current thread
+     */
+    public static ThreadLocalSlots initThreadLocalSlots(BTraceRuntime rt) {
+        ThreadLocalSlots slots = rt.tlsTemplate.copy();
+        rt.tlsSlots.enter(slots);
+        return slots;
+    }
+
+    /**
+     * Copies the initial value of a @TLS field for a new thread. Used by the
+     * preprocessed BTrace class for the values not known to be immutable or arrays.
      * @param initValue Initial value.
-     *                  This value must be either a boxed primitive or {@linkplain Cloneable}.
+     *                  This value must be either immutable or {@linkplain Cloneable}.
      *                  In case a {@linkplain Cloneable} value is provided the value is never used directly
      *                  - instead, a new clone of the value is created per thread.
+     * @return The value to be used by the current thread
      */
-    public static ThreadLocal newThreadLocal(
-            final Object initValue) {
-        return new ThreadLocal() {
-
-            @Override
-            protected Object initialValue() {
-                if (initValue == null) {
-                    return initValue;
-                }
-
-                if (initValue instanceof Cloneable) {
-                    try {
-                        Class clz = initValue.getClass();
-                        Method m = clz.getDeclaredMethod("clone");
-                        m.setAccessible(true);
-                        return m.invoke(initValue);
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                        return null;
-                    }
-                }
-                return initValue;
+    public static Object copyThreadLocalValue(Object initValue) {
+        if (initValue instanceof Cloneable) {
+            try {
+                Class clz = initValue.getClass();
+                Method m = clz.getDeclaredMethod("clone");
+                m.setAccessible(true);
+                return m.invoke(initValue);
+            } catch (Exception e) {
+                e.printStackTrace();
+                return null;
             }
-        };
+        }
+        return initValue;
     }
 
     // The following constants are copied from VM code
@@ -477,8 +498,10 @@ public final class BTraceRuntime {
      * Utility to create a new jvmstat perf counter. Called
      * by preprocessed BTrace class to create perf counter
      * for each @Export variable.
+     * @return The handle the @Export field is bound to or <b>NULL</b>
+     *         if the field type can not be exported
      */
-    public static void newPerfCounter(String name, String desc, Object value) {
+    public static PerfCounter newPerfCounter(String name, String desc, Object value) {
         Perf perf = getPerf();
         char tc = desc.charAt(0);
         switch (tc) {
@@ -492,133 +515,24 @@ public final class BTraceRuntime {
             case 'D': {
                 long initValue = (value != null) ? ((Number) value).longValue() : 0L;
                 ByteBuffer b = perf.createLong(name, V_Variable, V_None, initValue);
-                b.order(ByteOrder.nativeOrder());
-                counters.put(name, b);
+                return PerfCounter.forLong(b);
             }
-            break;
-
-            case '[':
-                break;
             case 'L': {
                 if (desc.equals("Ljava/lang/String;")) {
                     byte[] buf;
                     if (value != null) {
-                        buf = getStringBytes((String) value);
+                        buf = PerfCounter.getStringBytes((String) value);
                     } else {
                         buf = new byte[PERF_STRING_LIMIT];
                         buf[0] = '\0';
                     }
                     ByteBuffer b = perf.createByteArray(name, V_Variable, V_String,
                             buf, buf.length);
-                    counters.put(name, b);
+                    return PerfCounter.forString(b);
                 }
             }
-            break;
-        }
-    }
-
-    /**
-     * Return the value of integer perf. counter of given name.
-     */
-    public static int getPerfInt(String name) {
-        return (int) getPerfLong(name);
-    }
-
-    /**
-     * Write the value of integer perf. counter of given name.
-     */
-    public static void putPerfInt(int value, String name) {
-        long l = (long) value;
-        putPerfLong(l, name);
-    }
-
-    /**
-     * Return the value of float perf. counter of given name.
-     */
-    public static float getPerfFloat(String name) {
-        int val = getPerfInt(name);
-        return Float.intBitsToFloat(val);
-    }
-
-    /**
-     * Write the value of float perf. counter of given name.
-     */
-    public static void putPerfFloat(float value, String name) {
-        int i = Float.floatToRawIntBits(value);
-        putPerfInt(i, name);
-    }
-
-    /**
-     * Return the value of long perf. counter of given name.
-     */
-    public static long getPerfLong(String name) {
-        ByteBuffer b = counters.get(name);
-        synchronized (b) {
-            long l = b.getLong();
-            b.rewind();
-            return l;
-        }
-    }
-
-    /**
-     * Write the value of float perf. counter of given name.
-     */
-    public static void putPerfLong(long value, String name) {
-        ByteBuffer b = counters.get(name);
-        synchronized (b) {
-            b.putLong(value);
-            b.rewind();
-        }
-    }
-
-    /**
-     * Return the value of double perf. counter of given name.
-     */
-    public static double getPerfDouble(String name) {
-        long val = getPerfLong(name);
-        return Double.longBitsToDouble(val);
-    }
-
-    /**
-     * write the value of double perf. counter of given name.
-     */
-    public static void putPerfDouble(double value, String name) {
-        long l = Double.doubleToRawLongBits(value);
-        putPerfLong(l, name);
-    }
-
-    /**
-     * Return the value of String perf. counter of given name.
-     */
-    public static String getPerfString(String name) {
-        ByteBuffer b = counters.get(name);
-        byte[] buf = new byte[b.limit()];
-        byte t = (byte) 0;
-        int i = 0;
-        synchronized (b) {
-            while ((t = b.get()) != '\0') {
-                buf[i++] = t;
-            }
-            b.rewind();
-        }
-        try {
-            return new String(buf, 0, i, "UTF-8");
-        } catch (java.io.UnsupportedEncodingException e) {
-            // ignore, UTF-8 encoding is always known
-        }
-        return "";
-    }
-
-    /**
-     * Write the value of float perf. counter of given name.
-     */
-    public static void putPerfString(String value, String name) {
-        ByteBuffer b = counters.get(name);
-        byte[] v = getStringBytes(value);
-        synchronized (b) {
-            b.put(v);
-            b.rewind();
         }
+        return null;
     }
 
     /**
@@ -932,6 +846,18 @@ public final class BTraceRuntime {
     }
     
     private static <T extends AbstractCommand> Response<T> send(Class<? extends T> cmdClass, AbstractCommand.Initializer<T> init, BTraceRuntime rt) {
+        // let the deferred actions send their commands first to keep the per-thread ordering
+        map.runDeferred();
+        if (rt.speculations.isSpeculating()) {
+            T cmd = rt.channel.prepareCommand(cmdClass, init);
+            if (cmd == null) {
+                return null;
+            }
+            if (rt.speculations.send(cmd)) {
+                return Response.NULL;
+            }
+            return rt.channel.sendCommand(cmd);
+        }
         try {
             return rt.channel.sendCommand(cmdClass, init);
         } catch (IOException ie) {
@@ -941,25 +867,37 @@ public final class BTraceRuntime {
     }
 
     public int speculation() {
-        return specQueueManager.speculation();
+        return speculations.speculation();
     }
 
     public void speculate(int id) {
-        specQueueManager.speculate(id);
+        // the output deferred before the speculation started does not belong to it
+        map.runDeferred();
+        speculations.speculate(id);
     }
 
     public void discard(int id) {
-        specQueueManager.discard(id);
+        // the deferred output belongs to the speculation being discarded
+        map.runDeferred();
+        speculations.discard(id);
     }
 
     public void commit(int id) {
-        specQueueManager.commit(id, queue);
+        // the deferred output belongs to the speculation being committed
+        map.runDeferred();
+        speculations.commit(id);
     }
 
     public void shutdown() {
         disabled = true;
-        if (timer != null) {
-            timer.cancel();
+        // do not keep the per-thread state of the deferred actions for the threads' lifetime
+        map.clearAttachments();
+        TimerService.Handle[] handles = timers;
+        if (handles != null) {
+            timers = null;
+            for (TimerService.Handle h : handles) {
+                h.cancel();
+            }
         }
 
         if (memoryListener != null && memoryMBean != null) {
@@ -974,9 +912,13 @@ public final class BTraceRuntime {
             if (threadPool != null) {
                 threadPool.shutdownNow();
             }
+            if (coarseClock) {
+                coarseClock = false;
+                Clocks.Coarse.release();
+            }
         }
         
-        specQueueManager.clear();
+        speculations.clear();
         runtimes.remove(className);
     }
     
@@ -1015,17 +957,15 @@ public final class BTraceRuntime {
                     } catch (Throwable ignored) {
                     }
                 } else {
+                    // Do not call send(Command). Exception messages should not
+                    // go to speculative buffers!
                     try {
-//                         Do not call send(Command). Exception messages should not
-//                         go to speculative buffers!
-                        ErrorCommand ec = channel.prepareCommand(ErrorCommand.class, new AbstractCommand.Initializer<ErrorCommand>() {
+                        channel.sendCommand(ErrorCommand.class, new AbstractCommand.Initializer<ErrorCommand>() {
                             public void init(ErrorCommand cmd) {
                                 cmd.setCause(th);
                             }
                         });
-                        
-                        queue.put(ec);
-                    } catch (InterruptedException ie) {
+                    } catch (IOException ie) {
                         ie.printStackTrace();
                     }
                 }
@@ -1036,8 +976,17 @@ public final class BTraceRuntime {
     }
 
     private void startImpl() {
+        BTrace bt = (BTrace)clazz.getAnnotation(BTrace.class);
+        // the legacy switch makes all the scripts use the coarse clock
+        if ((bt != null && bt.clock() == Clock.COARSE) || Boolean.getBoolean("btrace.timer.sampled")) {
+            synchronized(this) {
+                if (!disabled && !coarseClock) {
+                    coarseClock = true;
+                    Clocks.Coarse.acquire();
+                }
+            }
+        }
         if (timerHandlers != null && timerHandlers.length != 0) {
-            timer = new Timer(true);
             RunnableGenerator gen = getRunnableGenerator();
             Runnable[] runnables = new Runnable[timerHandlers.length];
             if (gen != null) {
@@ -1045,18 +994,14 @@ public final class BTraceRuntime {
             } else {
                 wrapToRunnables(runnables);
             }
+            TimerService ts = TimerService.getInstance();
+            TimerService.Handle[] handles = new TimerService.Handle[timerHandlers.length];
             for (int index = 0; index < timerHandlers.length; index++) {
                 Method m = timerHandlers[index];
                 OnTimer tp = m.getAnnotation(OnTimer.class);
-                long period = tp.value();
-                final Runnable r = runnables[index];
-                timer.schedule(new TimerTask() {
-
-                    public void run() {
-                        r.run();
-                    }
-                }, period, period);
+                handles[index] = ts.schedule(className + "." + m.getName(), runnables[index], tp.value());
             }
+            timers = handles;
         }
 
         if (!lowMemHandlers.isEmpty()) {
@@ -1159,19 +1104,6 @@ public final class BTraceRuntime {
         return perf;
     }
 
-    private static byte[] getStringBytes(String value) {
-        byte[] v = null;
-        try {
-            v = value.getBytes("UTF-8");
-        } catch (java.io.UnsupportedEncodingException e) {
-            throw new RuntimeException(e);
-        }
-        byte[] v1 = new byte[v.length + 1];
-        System.arraycopy(v, 0, v1, 0, v.length);
-        v1[v.length] = '\0';
-        return v1;
-    }
-
     private Class defineClassImpl(byte[] code, boolean mustBeBootstrap) {
         ClassLoader loader = null;
         if (!mustBeBootstrap) {
@@ -38,6 +38,7 @@ import net.java.btrace.api.extensions.runtime.Exceptions;
 import net.java.btrace.api.extensions.runtime.JStat;
 import net.java.btrace.api.extensions.runtime.MBeans;
 import net.java.btrace.api.extensions.runtime.Objects;
+import net.java.btrace.api.extensions.runtime.ProbeSampling;
 import net.java.btrace.api.wireio.AbstractCommand;
 import net.java.btrace.api.wireio.AbstractCommand.Initializer;
 import net.java.btrace.api.wireio.Response;
@@ -47,7 +48,7 @@ import net.java.btrace.runtime.BTraceRuntime;
  *
  * @author Jaroslav Bachorik <jaroslav.bachorik at oracle.com>
  */
-public class BTraceRuntimeBridge implements Arguments, Exceptions, JStat, MBeans, Objects, CommLine, net.java.btrace.api.extensions.runtime.Runtime {
+public class BTraceRuntimeBridge implements Arguments, Exceptions, JStat, MBeans, Objects, CommLine, ProbeSampling, net.java.btrace.api.extensions.runtime.Runtime {
     private static BTraceRuntimeBridge instance = null;
     
     public static synchronized BTraceRuntimeBridge getInstance() {
@@ -144,6 +145,21 @@ public class BTraceRuntimeBridge implements Arguments, Exceptions, JStat, MBeans
         return BTraceRuntime.send(cmdClass, init);
     }
 
+    @Override
+    public boolean defer(Runnable action) {
+        return BTraceRuntime.defer(action);
+    }
+
+    @Override
+    public Object getAttachment(Object key) {
+        return BTraceRuntime.getAttachment(key);
+    }
+
+    @Override
+    public boolean attach(Object key, Object value) {
+        return BTraceRuntime.attach(key, value);
+    }
+
     @Override
     public String className() {
         return BTraceRuntime.getClassName();
@@ -159,6 +175,21 @@ public class BTraceRuntimeBridge implements Arguments, Exceptions, JStat, MBeans
         BTraceRuntime.exit(exitCode);
     }
 
+    @Override
+    public long sampledHits() {
+        return ProbeSampler.currentHits();
+    }
+
+    @Override
+    public long sampledEvents() {
+        return ProbeSampler.currentEvents();
+    }
+
+    @Override
+    public int samplingInterval() {
+        return ProbeSampler.currentInterval();
+    }
+
     @Override
     public int dtraceProbe(String s1, String s2, int i1, int i2) {
         return -1;
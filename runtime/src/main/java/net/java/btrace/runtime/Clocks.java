@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package net.java.btrace.runtime;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Time sources for the {@linkplain net.java.btrace.annotations.Duration} values
+ * which are not available directly in the instrumented code
+ * <p>
+ * See {@linkplain net.java.btrace.annotations.Clock}
+ *
+ * @author Jaroslav Bachorik
+ */
+public final class Clocks {
+    private static volatile ThreadMXBean threadMBean;
+
+    private Clocks() {}
+
+    /**
+     * Cached {@linkplain System#nanoTime()} value
+     * <p>
+     * The value is refreshed by a daemon ticker running while at least one runtime
+     * holds the clock - see {@linkplain #acquire()} and {@linkplain #release()}.
+     * The ticker copies the real clock on each tick so the cached value
+     * never drifts - it just lags behind by up to one tick period. The requested
+     * park time is adjusted by the observed park overshoot to keep the period close
+     * to <b>btrace.clock.coarse.interval</b> nanoseconds (default 100us).
+     */
+    public static final class Coarse {
+        // read directly by the instrumented code
+        public static volatile long TIME = System.nanoTime();
+
+        final private static long INTERVAL = Long.getLong("btrace.clock.coarse.interval",
+                Long.getLong("btrace.timer.sampled.interval", 100000L));
+        final private static long MIN_PARK = 1000L;
+
+        // guarded by Coarse.class
+        private static int users = 0;
+        // the running ticker; it exits once it is not the current one any more
+        private static volatile Thread ticker = null;
+
+        private Coarse() {}
+
+        /**
+         * Starts the ticker unless it is already running
+         */
+        static synchronized void acquire() {
+            if (users++ == 0) {
+                TIME = System.nanoTime();
+                Thread t = new Thread(new Runnable() {
+                    public void run() {
+                        tick();
+                    }
+                }, "BTrace Coarse Clock");
+                t.setDaemon(true);
+                ticker = t;
+                t.start();
+            }
+        }
+
+        /**
+         * Stops the ticker once the last user releases the clock
+         */
+        static synchronized void release() {
+            if (users > 0 && --users == 0) {
+                Thread t = ticker;
+                ticker = null;
+                LockSupport.unpark(t);
+            }
+        }
+
+        static synchronized boolean isTicking() {
+            return ticker != null;
+        }
+
+        private static void tick() {
+            Thread me = Thread.currentThread();
+            long park = INTERVAL;
+            long last = System.nanoTime();
+            while (ticker == me) {
+                LockSupport.parkNanos(park);
+                long now = System.nanoTime();
+                TIME = now;
+                // compensate the scheduling latency; move half-way to damp the jitter
+                long overshoot = (now - last) - INTERVAL;
+                park = Math.max(MIN_PARK, Math.min(INTERVAL, park - overshoot / 2));
+                last = now;
+            }
+        }
+    }
+
+    /**
+     * @return The CPU time of the current thread in nanoseconds or -1 if not supported
+     */
+    public static long threadCpuTime() {
+        ThreadMXBean mb = threadMBean;
+        if (mb == null) {
+            mb = initThreadMBean();
+        }
+        return mb.getCurrentThreadCpuTime();
+    }
+
+    private static synchronized ThreadMXBean initThreadMBean() {
+        if (threadMBean == null) {
+            ThreadMXBean mb = ManagementFactory.getThreadMXBean();
+            if (mb.isCurrentThreadCpuTimeSupported() && !mb.isThreadCpuTimeEnabled()) {
+                mb.setThreadCpuTimeEnabled(true);
+            }
+            threadMBean = mb;
+        }
+        return threadMBean;
+    }
+}
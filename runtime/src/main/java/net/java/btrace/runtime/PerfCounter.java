@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package net.java.btrace.runtime;
+
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import sun.misc.Unsafe;
+import sun.nio.ch.DirectBuffer;
+
+/**
+ * A handle of a jvmstat perf counter backing an {@linkplain net.java.btrace.annotations.Export} field
+ * <p>
+ * The {@linkplain net.java.btrace.instr.Preprocessor} binds each exported field to its handle
+ * in the BTrace class initializer so the field accesses do not need to look the counter up by name.
+ * <p>
+ * The numeric counters are 64 bit values in the perf memory. They are read by volatile
+ * reads and updated by ordered writes at the fixed address - no locking is involved.
+ * {@linkplain #add(long)} updates the counter atomically and may be used by any number
+ * of threads without losing updates. The string counters are rare and are guarded by the handle monitor.
+ *
+ * @author Jaroslav Bachorik
+ */
+final public class PerfCounter {
+    final private static Unsafe unsafe;
+
+    static {
+        unsafe = AccessController.doPrivileged(new PrivilegedAction<Unsafe>() {
+            @Override
+            public Unsafe run() {
+                try {
+                    Field f = Unsafe.class.getDeclaredField("theUnsafe");
+                    f.setAccessible(true);
+                    return (Unsafe)f.get(null);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+    }
+
+    final private ByteBuffer buffer;
+    final private long address;
+    final private boolean isString;
+
+    private PerfCounter(ByteBuffer buffer, boolean isString) {
+        this.buffer = buffer;
+        this.address = ((DirectBuffer)buffer).address();
+        this.isString = isString;
+    }
+
+    /**
+     * @param buffer The direct buffer holding the 64 bit counter value
+     * @return A handle of the numeric counter
+     */
+    static PerfCounter forLong(ByteBuffer buffer) {
+        return new PerfCounter(buffer, false);
+    }
+
+    /**
+     * @param buffer The direct buffer holding the zero terminated UTF-8 string
+     * @return A handle of the string counter
+     */
+    static PerfCounter forString(ByteBuffer buffer) {
+        return new PerfCounter(buffer, true);
+    }
+
+    public long getLong() {
+        return unsafe.getLongVolatile(null, address);
+    }
+
+    public void putLong(long value) {
+        unsafe.putOrderedLong(null, address, value);
+    }
+
+    /**
+     * Atomically adds the given value to the counter
+     * @param delta The value to add
+     */
+    public void add(long delta) {
+        long val;
+        do {
+            val = unsafe.getLongVolatile(null, address);
+        } while (!unsafe.compareAndSwapLong(null, address, val, val + delta));
+    }
+
+    public int getInt() {
+        return (int)getLong();
+    }
+
+    public void putInt(int value) {
+        putLong(value);
+    }
+
+    public float getFloat() {
+        return Float.intBitsToFloat(getInt());
+    }
+
+    public void putFloat(float value) {
+        putInt(Float.floatToRawIntBits(value));
+    }
+
+    public double getDouble() {
+        return Double.longBitsToDouble(getLong());
+    }
+
+    public void putDouble(double value) {
+        putLong(Double.doubleToRawLongBits(value));
+    }
+
+    public String getString() {
+        if (!isString) {
+            return null;
+        }
+        byte[] buf = new byte[buffer.limit()];
+        int i = 0;
+        synchronized(this) {
+            byte t;
+            while (i < buf.length && (t = buffer.get(i)) != '\0') {
+                buf[i++] = t;
+            }
+        }
+        try {
+            return new String(buf, 0, i, "UTF-8");
+        } catch (java.io.UnsupportedEncodingException e) {
+            // ignore, UTF-8 encoding is always known
+        }
+        return "";
+    }
+
+    public void putString(String value) {
+        if (!isString) {
+            return;
+        }
+        byte[] v = getStringBytes(value);
+        synchronized(this) {
+            // keep the terminating zero when the value needs to be truncated
+            int len = Math.min(v.length, buffer.limit() - 1);
+            for(int i=0;i<len;i++) {
+                buffer.put(i, v[i]);
+            }
+            buffer.put(len, (byte)'\0');
+        }
+    }
+
+    /**
+     * @return The zero terminated UTF-8 representation of the string
+     */
+    static byte[] getStringBytes(String value) {
+        byte[] v = null;
+        try {
+            v = value.getBytes("UTF-8");
+        } catch (java.io.UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+        byte[] v1 = new byte[v.length + 1];
+        System.arraycopy(v, 0, v1, 0, v.length);
+        v1[v.length] = '\0';
+        return v1;
+    }
+}
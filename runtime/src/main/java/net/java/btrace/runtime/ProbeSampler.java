@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package net.java.btrace.runtime;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sampling support for the {@linkplain net.java.btrace.annotations.OnMethod} probes
+ * <p>
+ * The instrumented code calls {@linkplain #sample(int)} before preparing the
+ * handler arguments and skips the handler invocation when it returns <b>FALSE</b>.
+ * Each thread keeps its own countdown per probe so the check of a skipped
+ * invocation boils down to a table lookup, a decrement and a branch.
+ * <p>
+ * The per-thread countdowns are kept in a {@linkplain ThreadEnteredMap} rather than
+ * in a {@linkplain ThreadLocal} - the check runs before the BTrace re-entrancy guard
+ * and must not call into code which might be instrumented itself.
+ * <p>
+ * Probe ids are never reused; the instrumented code may keep referring to a probe
+ * until the class is retransformed.
+ *
+ * @author Jaroslav Bachorik
+ */
+public final class ProbeSampler {
+    final private static int MAX_INTERVAL = 1 << 24;
+    // the adaptive samplers re-evaluate the interval in windows of this length
+    final private static long WINDOW = 100L * 1000000L;
+
+    final private static class Probe {
+        final private boolean adaptive;
+        final private int mean;
+        private volatile int interval;
+        final private AtomicLong hits = new AtomicLong();
+        final private AtomicLong events = new AtomicLong();
+        // adaptive sampling only
+        final private AtomicInteger windowHits = new AtomicInteger();
+        final private AtomicLong windowStart = new AtomicLong(System.nanoTime());
+
+        Probe(boolean adaptive, int mean) {
+            this.adaptive = adaptive;
+            this.mean = mean;
+            this.interval = adaptive ? 1 : mean;
+        }
+
+        int hit(int armed) {
+            hits.incrementAndGet();
+            events.addAndGet(armed);
+            if (adaptive) {
+                adjust(windowHits.incrementAndGet());
+            }
+            return interval;
+        }
+
+        private void adjust(int wHits) {
+            long start = windowStart.get();
+            long now = System.nanoTime();
+            long elapsed = now - start;
+            if (elapsed < WINDOW || !windowStart.compareAndSet(start, now)) {
+                return;
+            }
+            windowHits.set(0);
+            // hits per second at the current interval vs. the requested rate
+            double rate = (wHits * 1000000000d) / elapsed;
+            double next = interval * rate / mean;
+            // move half-way only to damp the oscillations
+            next = (interval + next) / 2;
+            interval = (int)Math.max(1, Math.min(MAX_INTERVAL, Math.round(next)));
+        }
+    }
+
+    final private static Object lock = new Object();
+    private static volatile Probe[] probes = new Probe[16];
+    private static int probeCnt = 0;
+    // per-thread data: [0] - the last sampled probe id; [1 + 2*id] - countdown, [2 + 2*id] - armed interval
+    final private static ThreadEnteredMap countdowns = new ThreadEnteredMap(null);
+
+    private ProbeSampler() {}
+
+    /**
+     * Registers a new sampled probe
+     * @param adaptive <b>TRUE</b> for adaptive sampling, <b>FALSE</b> for "1 in <i>mean</i>" sampling
+     * @param mean The number of invocations per one sample or the requested samples per second
+     * @return The probe id to be passed to {@linkplain #sample(int)}
+     */
+    public static int register(boolean adaptive, int mean) {
+        if (mean <= 0) {
+            throw new IllegalArgumentException("mean must be positive: " + mean);
+        }
+        synchronized(lock) {
+            Probe[] p = probes;
+            if (probeCnt == p.length) {
+                Probe[] newProbes = new Probe[p.length * 2];
+                System.arraycopy(p, 0, newProbes, 0, p.length);
+                p = newProbes;
+            }
+            p[probeCnt] = new Probe(adaptive, mean);
+            probes = p;
+            return probeCnt++;
+        }
+    }
+
+    /**
+     * Called by the instrumented code
+     * @param id The probe id
+     * @return <b>TRUE</b> if the probe handler should be called
+     */
+    public static boolean sample(int id) {
+        int[] cd = (int[])countdowns.get();
+        int idx = 1 + (id << 1);
+        if (cd == null || idx >= cd.length) {
+            cd = expand(cd, idx);
+        }
+        if (--cd[idx] > 0) {
+            return false;
+        }
+        int armed = cd[idx + 1];
+        int next = probes[id].hit(armed > 0 ? armed : 1);
+        cd[idx] = next;
+        cd[idx + 1] = next;
+        cd[0] = id;
+        return true;
+    }
+
+    private static int[] expand(int[] cd, int idx) {
+        int[] newCd = new int[Math.max(idx + 2, cd != null ? cd.length * 2 : 16)];
+        if (cd != null) {
+            System.arraycopy(cd, 0, newCd, 0, cd.length);
+        } else {
+            newCd[0] = -1;
+        }
+        countdowns.exit();
+        countdowns.enter(newCd);
+        return newCd;
+    }
+
+    private static Probe current() {
+        int[] cd = (int[])countdowns.get();
+        return cd != null && cd[0] >= 0 ? probes[cd[0]] : null;
+    }
+
+    /**
+     * @see net.java.btrace.api.extensions.runtime.ProbeSampling#sampledHits()
+     */
+    static long currentHits() {
+        Probe p = current();
+        return p != null ? p.hits.get() : 0L;
+    }
+
+    /**
+     * @see net.java.btrace.api.extensions.runtime.ProbeSampling#sampledEvents()
+     */
+    static long currentEvents() {
+        Probe p = current();
+        return p != null ? p.events.get() : 0L;
+    }
+
+    /**
+     * @see net.java.btrace.api.extensions.runtime.ProbeSampling#samplingInterval()
+     */
+    static int currentInterval() {
+        Probe p = current();
+        return p != null ? p.interval : 1;
+    }
+}
@@ -0,0 +1,297 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package net.java.btrace.runtime;
+
+import java.util.Arrays;
+import net.java.btrace.api.wireio.AbstractCommand;
+
+/**
+ * Speculative command buffers of one BTrace runtime
+ * <p>
+ * A speculation collects the commands sent by the threads which {@linkplain #speculate(int) speculate}
+ * on it until it is either {@linkplain #commit(int) committed} - the collected commands are handed
+ * to the {@linkplain Sink} as one batch - or {@linkplain #discard(int) discarded}.
+ * <p>
+ * The buffers are plain growable arrays. Once committed or discarded a buffer is reset and
+ * parked in a small per-thread pool to serve the next speculation started by that thread.
+ * The speculation id consists of a slot index and the slot generation; the slots are reused
+ * while the generation makes the stale ids invalid. Therefore a script may keep starting
+ * new speculations indefinitely as long as there are less than {@linkplain #MAX_SPECULATIVE_BUFFERS}
+ * of them open at a time.
+ *
+ * @author Jaroslav Bachorik
+ */
+final class SpeculativeBuffers {
+    /**
+     * Receives the commands of a committed speculation
+     */
+    static interface Sink {
+        /**
+         * @param id The committed speculation id
+         * @param cmds The buffered commands; the array is reused once the method returns
+         * @param count The number of the buffered commands
+         * @param overflown <b>TRUE</b> if the buffer overflowed and the older commands were discarded
+         */
+        void commit(int id, AbstractCommand[] cmds, int count, boolean overflown);
+    }
+
+    // maximum number of the open speculations
+    final static int MAX_SPECULATIVE_BUFFERS = Short.MAX_VALUE;
+    // per buffer message limit
+    final private static int MAX_SPECULATIVE_MSG_LIMIT = Integer.getInteger("btrace.speculation.limit", Short.MAX_VALUE);
+    final private static int INITIAL_CAPACITY = 16;
+    // the larger buffers are not kept around after use
+    final private static int RETAINED_CAPACITY = 1024;
+    // the number of buffers pooled per thread
+    final private static int POOL_SIZE = 4;
+
+    final private static int SLOT_BITS = 15;
+    final private static int SLOT_MASK = (1 << SLOT_BITS) - 1;
+    final private static int GENERATION_MASK = 0xffff;
+
+    final private static class Buffer {
+        private AbstractCommand[] cmds = new AbstractCommand[INITIAL_CAPACITY];
+        private int count;
+        private boolean overflown;
+        // the speculation this buffer currently belongs to; -1 if none
+        private int id = -1;
+
+        synchronized boolean add(int expectedId, AbstractCommand cmd) {
+            if (id != expectedId) {
+                return false;
+            }
+            if (count == cmds.length) {
+                if (count >= MAX_SPECULATIVE_MSG_LIMIT) {
+                    Arrays.fill(cmds, 0, count, null);
+                    count = 0;
+                    overflown = true;
+                } else {
+                    cmds = Arrays.copyOf(cmds, Math.min(count * 2, MAX_SPECULATIVE_MSG_LIMIT));
+                }
+            }
+            cmds[count++] = cmd;
+            return true;
+        }
+
+        synchronized void flush(Sink sink) {
+            if (sink != null && (count > 0 || overflown)) {
+                sink.commit(id, cmds, count, overflown);
+            }
+            reset();
+        }
+
+        synchronized void reset() {
+            if (cmds.length > RETAINED_CAPACITY) {
+                cmds = new AbstractCommand[INITIAL_CAPACITY];
+            } else {
+                Arrays.fill(cmds, 0, count, null);
+            }
+            count = 0;
+            overflown = false;
+            id = -1;
+        }
+    }
+
+    final private static class PerThread {
+        // the speculation the thread is sending to and its buffer
+        private int currentId = -1;
+        private Buffer current;
+        final private Buffer[] pool = new Buffer[POOL_SIZE];
+        private int pooled;
+    }
+
+    final private Sink sink;
+    final private ThreadLocal<PerThread> perThread = new ThreadLocal<PerThread>() {
+        @Override
+        protected PerThread initialValue() {
+            return new PerThread();
+        }
+    };
+
+    // guarded by this
+    private Buffer[] slots = new Buffer[16];
+    private int[] generations = new int[16];
+    private int[] freeSlots = new int[16];
+    private int freeCount;
+    private int nextSlot;
+    private boolean closed;
+    // the number of open speculations; lets the threads skip the per-thread lookup when there are none
+    private volatile int openCount;
+
+    SpeculativeBuffers(Sink sink) {
+        this.sink = sink;
+    }
+
+    /**
+     * Opens a new speculation
+     * @return The speculation id or -1 if there are too many speculations open
+     */
+    int speculation() {
+        PerThread pt = perThread.get();
+        Buffer b;
+        if (pt.pooled > 0) {
+            b = pt.pool[--pt.pooled];
+            pt.pool[pt.pooled] = null;
+        } else {
+            b = new Buffer();
+        }
+        synchronized(this) {
+            int slot;
+            if (freeCount > 0) {
+                slot = freeSlots[--freeCount];
+            } else if (!closed && nextSlot < MAX_SPECULATIVE_BUFFERS) {
+                slot = nextSlot++;
+                if (slot == slots.length) {
+                    int len = Math.min(slots.length * 2, MAX_SPECULATIVE_BUFFERS);
+                    slots = Arrays.copyOf(slots, len);
+                    generations = Arrays.copyOf(generations, len);
+                    freeSlots = Arrays.copyOf(freeSlots, len);
+                }
+            } else {
+                recycle(pt, b);
+                return -1;
+            }
+            int id = (generations[slot] << SLOT_BITS) | slot;
+            synchronized(b) {
+                b.id = id;
+            }
+            slots[slot] = b;
+            openCount++;
+            return id;
+        }
+    }
+
+    /**
+     * Redirects the speculable commands sent by the current thread to the given speculation
+     * @param id The speculation id
+     */
+    void speculate(int id) {
+        Buffer b = lookup(id);
+        PerThread pt = perThread.get();
+        pt.currentId = id;
+        pt.current = b;
+    }
+
+    /**
+     * @return <b>TRUE</b> if the current thread is speculating
+     */
+    boolean isSpeculating() {
+        return openCount > 0 && perThread.get().current != null;
+    }
+
+    /**
+     * Attempts to place the command into the current thread's speculation
+     * @param cmd The command to send
+     * @return <b>TRUE</b> if the command has been buffered, <b>FALSE</b> if it should be sent directly
+     */
+    boolean send(AbstractCommand cmd) {
+        PerThread pt = perThread.get();
+        Buffer b = pt.current;
+        // the batched commands can not receive responses
+        if (b == null || !cmd.canBeSpeculated() || cmd.needsResponse()) {
+            return false;
+        }
+        if (b.add(pt.currentId, cmd)) {
+            return true;
+        }
+        // the speculation has been closed by another thread meanwhile
+        pt.current = null;
+        pt.currentId = -1;
+        return false;
+    }
+
+    /**
+     * Hands the commands collected by the speculation to the {@linkplain Sink} and closes the speculation
+     * @param id The speculation id
+     */
+    void commit(int id) {
+        close(id, sink);
+    }
+
+    /**
+     * Throws away the commands collected by the speculation and closes it
+     * @param id The speculation id
+     */
+    void discard(int id) {
+        close(id, null);
+    }
+
+    /**
+     * Closes all the open speculations without committing them
+     */
+    void clear() {
+        Buffer[] open;
+        synchronized(this) {
+            closed = true;
+            open = slots;
+            slots = new Buffer[0];
+            freeCount = 0;
+            openCount = 0;
+        }
+        for(Buffer b : open) {
+            if (b != null) {
+                b.reset();
+            }
+        }
+        perThread.remove();
+    }
+
+    // -- Internals only below this point
+    private void close(int id, Sink s) {
+        Buffer b = release(id);
+        PerThread pt = perThread.get();
+        if (pt.currentId == id) {
+            pt.current = null;
+            pt.currentId = -1;
+        }
+        b.flush(s);
+        recycle(pt, b);
+    }
+
+    private synchronized Buffer lookup(int id) {
+        int slot = id & SLOT_MASK;
+        if (id < 0 || slot >= nextSlot || slot >= slots.length ||
+            slots[slot] == null || generations[slot] != (id >>> SLOT_BITS)) {
+            throw new RuntimeException("invalid speculative buffer id: " + id);
+        }
+        return slots[slot];
+    }
+
+    private synchronized Buffer release(int id) {
+        Buffer b = lookup(id);
+        int slot = id & SLOT_MASK;
+        slots[slot] = null;
+        generations[slot] = (generations[slot] + 1) & GENERATION_MASK;
+        freeSlots[freeCount++] = slot;
+        openCount--;
+        return b;
+    }
+
+    private static void recycle(PerThread pt, Buffer b) {
+        if (pt.pooled < POOL_SIZE) {
+            pt.pool[pt.pooled++] = b;
+        }
+    }
+}
@@ -41,20 +41,47 @@
 
 package net.java.btrace.runtime;
 
-import java.io.IOException;
 import java.lang.ref.WeakReference;
+import java.util.concurrent.CountDownLatch;
 
 /**
- * Optimised, low-contention, thread-value map
+ * Optimised, contention-free, thread-value map
+ * <p>
+ * The map is an open-addressed table indexed by the thread id. Each thread
+ * owns exactly one {@linkplain Entry} which is created the first time the thread
+ * enters the map and which is then looked up without any locking - only the
+ * owning thread ever reads or writes the entry value. The (rare) registration
+ * of a new thread is serialized and reuses the slots of already collected threads.
+ * <p>
+ * The map deliberately avoids {@linkplain ThreadLocal} and the java.util.concurrent
+ * classes as those may be instrumented themselves and calling them from within
+ * {@linkplain BTraceRuntime#enter(BTraceRuntime)} would lead to infinite recursion.
+ *
  * @author Jaroslav Bachorik <jaroslav.bachorik@sun.com>
  */
 final class ThreadEnteredMap {
-    final private static int SECTIONS = 13;
-    final private static int BUCKETS = 27;
-    final private static int DEFAULT_BUCKET_SIZE = 4;
+    final private static int INITIAL_CAPACITY = 256;
+    final private static int MAX_PROBES = 16;
+
+    final private static class Entry extends WeakReference<Thread> {
+        final private long threadId;
+        private Object value;
+        // actions deferred until the thread exits; touched only by the owning thread
+        private Runnable[] deferred;
+        private int deferredCnt;
+        // per-thread state of the deferred actions as key/value pairs; touched only by the owning thread
+        private Object[] attachments;
+
+        Entry(Thread thread, Object value) {
+            super(thread);
+            this.threadId = thread.getId();
+            this.value = value;
+        }
+    }
 
-    final private Object[][][] map = new Object[SECTIONS][BUCKETS][];
-    final private int[][] mapPtr = new int[SECTIONS][BUCKETS];
+    // the table is only ever replaced while holding the lock
+    private volatile Entry[] table = new Entry[INITIAL_CAPACITY];
+    final private Object lock = new Object();
 
     private Object nullValue;
 
@@ -62,138 +89,298 @@ final class ThreadEnteredMap {
         this.nullValue = nullValue;
     }
 
-    public static void main(String[] args) throws IOException {
-        ThreadEnteredMap instance = new ThreadEnteredMap("null");
-        long cnt = 0;
-        long start = System.nanoTime();
-        for(int i=0;i<4000000;i++) {
-            cnt += i;
-        }
-        long dur = System.nanoTime() - start;
-        System.err.println("#" + cnt + " in " + dur + "ns");
-        System.err.println(dur / 4000000);
+    /**
+     * A simple multi-threaded benchmark measuring the cost of an enter/exit pair
+     * Usage: ThreadEnteredMap [max threads] [iterations per thread]
+     */
+    public static void main(String[] args) throws Exception {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors() * 2;
+        final int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 10000000;
 
-        for(int i=0;i<400000;i++) {
-            instance.enter("in");
-            instance.exit();
-        }
+        // warm up
+        runBenchmark(new ThreadEnteredMap("null"), 1, iterations);
 
-        final ThreadEnteredMap tem = new ThreadEnteredMap("null");
-        cnt = 0;
-        System.err.println("Ready?");
-        System.in.read();
-        Thread[] thrd = new Thread[200];
-        for(int i=0;i<4;i++) {
-            final int idx = i;
-            thrd[i] = new Thread(new Runnable() {
+        for(int threads = 1; threads <= maxThreads; threads *= 2) {
+            long dur = runBenchmark(new ThreadEnteredMap("null"), threads, iterations);
+            long ops = (long)threads * iterations;
+            System.err.println(threads + " thread(s): " + (dur / iterations) + "ns per enter/exit per thread, " +
+                               (ops * 1000000000L / dur) + " ops/s total");
+        }
+    }
 
+    private static long runBenchmark(final ThreadEnteredMap tem, int threads, final int iterations) throws InterruptedException {
+        final CountDownLatch ready = new CountDownLatch(threads);
+        final CountDownLatch go = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        final Object val = "in";
+        for(int i=0;i<threads;i++) {
+            Thread t = new Thread(new Runnable() {
                 public void run() {
-                    long cnt = 0;
-                    long start = System.nanoTime();
-                    for(int i=0;i<4000000;i++) {
-                        tem.enter("in");
-
-                        cnt += i;
-                        tem.exit();
+                    ready.countDown();
+                    try {
+                        go.await();
+                    } catch (InterruptedException e) {
+                        return;
                     }
-                    long dur = System.nanoTime() - start;
-                    System.out.println("Thread #" + idx);
-                    System.err.println("#" + cnt + " in " + dur + "ns");
-                    System.err.println(dur / 4000000);
+                    for(int i=0;i<iterations;i++) {
+                        if (tem.enter(val)) {
+                            tem.exit();
+                        }
+                    }
+                    done.countDown();
                 }
             }, "Thread#" + i);
+            t.setDaemon(true);
+            t.start();
         }
-        for(int i=0;i<4;i++) {
-            thrd[i].start();
-        }
-        
+        ready.await();
+        long start = System.nanoTime();
+        go.countDown();
+        done.await();
+        return System.nanoTime() - start;
     }
 
     public Object get() {
+        Entry e = lookup(Thread.currentThread());
+        if (e != null) {
+            return e.value == nullValue ? null : e.value;
+        }
+        return null;
+    }
+
+    public boolean enter(Object rt) {
         Thread thrd = Thread.currentThread();
-        long thrdId = thrd.getId();
-        int sectionId = (int)(((thrdId << 1) - (thrdId << 8)) & (SECTIONS - 1));
-        Object[][] section = map[sectionId];
-        int[] sectionPtr = mapPtr[sectionId];
-        int bucketId = (int)(int)(((thrdId << 1) - (thrdId << 8)) & (BUCKETS - 1));
-        synchronized(section) {
-            Object[] bucket = section[bucketId];
-            if (bucket != null && bucket.length > 0) {
-                int ptr = sectionPtr[bucketId];
-                for(int i=0;i<ptr;i+=2) {
-                    Thread bThread = ((WeakReference<Thread>)bucket[i]).get();
-                    if (bThread == thrd) {
-                        return bucket[i+1] == nullValue ? null : bucket[i+1];
-                    }
-                }
+        Entry e = lookup(thrd);
+        if (e == null) {
+            register(thrd, rt);
+            return true;
+        }
+        if (e.value == nullValue) {
+            e.value = rt;
+            return true;
+        }
+        return false;
+    }
+
+    public void exit() {
+        Entry e = lookup(Thread.currentThread());
+        if (e != null) {
+            if (e.deferredCnt > 0) {
+                runDeferred(e);
             }
+            e.value = nullValue;
+        }
+    }
+
+    /**
+     * Defers the action until the current thread exits or {@linkplain #runDeferred()} is called
+     * @param action The action to run
+     * @return <b>TRUE</b> if the action has been deferred, <b>FALSE</b> if the current thread has not entered
+     */
+    public boolean defer(Runnable action) {
+        Entry e = lookup(Thread.currentThread());
+        if (e == null || e.value == nullValue) {
+            return false;
+        }
+        if (e.deferred == null) {
+            e.deferred = new Runnable[4];
+        } else if (e.deferredCnt == e.deferred.length) {
+            Runnable[] newDeferred = new Runnable[e.deferred.length * 2];
+            System.arraycopy(e.deferred, 0, newDeferred, 0, e.deferredCnt);
+            e.deferred = newDeferred;
+        }
+        e.deferred[e.deferredCnt++] = action;
+        return true;
+    }
+
+    /**
+     * Retrieves the value attached to the current thread under the given key
+     * @param key The attachment key; compared by identity
+     * @return The attached value or <b>NULL</b>
+     */
+    public Object getAttachment(Object key) {
+        Entry e = lookup(Thread.currentThread());
+        if (e == null || e.attachments == null) {
             return null;
         }
+        Object[] atts = e.attachments;
+        for(int i=0;i<atts.length && atts[i] != null;i+=2) {
+            if (atts[i] == key) {
+                return atts[i + 1];
+            }
+        }
+        return null;
     }
 
-    public boolean enter(Object rt) {
-        Thread thrd = Thread.currentThread();
+    /**
+     * Attaches the value to the current thread; the value lives as long as the thread
+     * @param key The attachment key; compared by identity
+     * @param value The value to attach
+     * @return <b>TRUE</b> if the value has been attached, <b>FALSE</b> if the current thread has never entered
+     */
+    public boolean attach(Object key, Object value) {
+        Entry e = lookup(Thread.currentThread());
+        if (e == null) {
+            return false;
+        }
+        Object[] atts = e.attachments;
+        if (atts == null) {
+            atts = e.attachments = new Object[4];
+        }
+        int i = 0;
+        for(;i<atts.length && atts[i] != null;i+=2) {
+            if (atts[i] == key) {
+                atts[i + 1] = value;
+                return true;
+            }
+        }
+        if (i == atts.length) {
+            Object[] newAtts = new Object[atts.length * 2];
+            System.arraycopy(atts, 0, newAtts, 0, atts.length);
+            atts = e.attachments = newAtts;
+        }
+        atts[i] = key;
+        atts[i + 1] = value;
+        return true;
+    }
+
+    /**
+     * Drops the attachments of all the threads. A thread still using its attachment
+     * keeps it until it is done; the next {@linkplain #getAttachment(Object)} returns <b>NULL</b>
+     */
+    public void clearAttachments() {
+        for(Entry e : table) {
+            if (e != null) {
+                e.attachments = null;
+            }
+        }
+    }
+
+    /**
+     * Runs the actions deferred by the current thread
+     */
+    public void runDeferred() {
+        Entry e = lookup(Thread.currentThread());
+        if (e != null && e.deferredCnt > 0) {
+            runDeferred(e);
+        }
+    }
+
+    private static void runDeferred(Entry e) {
+        // an action may defer another one; it will be run in this loop as well
+        for(int i=0;i<e.deferredCnt;i++) {
+            Runnable r = e.deferred[i];
+            if (r == null) continue; // already run by a nested runDeferred()
+            e.deferred[i] = null;
+            try {
+                r.run();
+            } catch (Throwable t) {
+                // never let the deferred action break the traced code
+            }
+        }
+        e.deferredCnt = 0;
+    }
+
+    /**
+     * Number of slots in the underlying table; used by tests
+     */
+    int capacity() {
+        return table.length;
+    }
+
+    private Entry lookup(Thread thrd) {
+        Entry[] tab = table;
+        int mask = tab.length - 1;
         long thrdId = thrd.getId();
-        int sectionId = (int)(((thrdId << 1) - (thrdId << 8)) & (SECTIONS - 1));
-        Object[][] section = map[sectionId];
-        int[] sectionPtr = mapPtr[sectionId];
-        int bucketId = (int)(int)(((thrdId << 1) - (thrdId << 8)) & (BUCKETS - 1));
-        synchronized(section) {
-            Object[] bucket = section[bucketId];
-            int ptr = sectionPtr[bucketId];
-            if (bucket != null && bucket.length > 0) {
-                for(int i=0;i<ptr;i+=2) {
-                    Thread bThread = ((WeakReference<Thread>)bucket[i]).get();
-                    if (bThread == null) {
-                        // the previous thread with the same ID has already been GCd
-                        bucket[i] = new WeakReference<Thread>(thrd);
-                        bucket[i+1] = rt;
-                        return true;
-                    } else if (bThread == thrd) {
-                        if (bucket[i+1] == nullValue) {
-                            bucket[i+1] = rt;
-                            return true;
-                        }
-                        return false;
-                    }
-                }
+        int idx = hash(thrdId) & mask;
+        for(int i=0;i<MAX_PROBES;i++) {
+            Entry e = tab[idx];
+            if (e == null) {
+                return null;
+            }
+            if (e.threadId == thrdId && e.get() == thrd) {
+                return e;
+            }
+            idx = (idx + 1) & mask;
+        }
+        return null;
+    }
+
+    private void register(Thread thrd, Object rt) {
+        synchronized(lock) {
+            Entry e = lookup(thrd);
+            if (e != null) {
+                // can not really happen - only the current thread registers itself
+                e.value = rt;
+                return;
             }
-            if (bucket == null || bucket.length == 0) {
-                bucket = new Object[DEFAULT_BUCKET_SIZE * 2];
-                section[bucketId] = bucket;
-            } else {
-                if (ptr >= bucket.length) {
-                    Object[] newBucket = new Object[bucket.length * 2];
-                    System.arraycopy(bucket, 0, newBucket, 0, bucket.length);
-                    bucket = newBucket;
-                    section[bucketId] = bucket;
+            e = new Entry(thrd, rt);
+            Entry[] tab = table;
+            if (!insert(tab, e)) {
+                // try to make room by purging the collected threads first
+                tab = rehash(tab, false);
+                while (!insert(tab, e)) {
+                    tab = rehash(tab, true);
                 }
+                table = tab;
             }
-            bucket[ptr++] = new WeakReference<Thread>(thrd);
-            bucket[ptr++] = rt;
-            mapPtr[sectionId][bucketId] = ptr;
-            return true;
         }
     }
 
-    public void exit() {
-        Thread thrd = Thread.currentThread();
-        long thrdId = thrd.getId();
-        int sectionId = (int)(((thrdId << 1) - (thrdId << 8)) & (SECTIONS - 1));
-        Object[][] section = map[sectionId];
-        int[] sectionPtr = mapPtr[sectionId];
-        int bucketId = (int)(int)(((thrdId << 1) - (thrdId << 8)) & (BUCKETS - 1));
-        synchronized(section) {
-            Object[] bucket = section[bucketId];
-            if (bucket != null && bucket.length > 0) {
-                int ptr = sectionPtr[bucketId];
-                for(int i=0;i<ptr;i+=2) {
-                    Thread bThread = ((WeakReference<Thread>)bucket[i]).get();
-                    if (bThread == thrd) {
-                        bucket[i+1] = nullValue;
+    /**
+     * Puts the entry to the first empty slot or to the slot occupied by an entry
+     * of an already collected thread; fails when no such slot is found within
+     * {@linkplain #MAX_PROBES} probes
+     */
+    private static boolean insert(Entry[] tab, Entry e) {
+        int mask = tab.length - 1;
+        int idx = hash(e.threadId) & mask;
+        for(int i=0;i<MAX_PROBES;i++) {
+            Entry old = tab[idx];
+            if (old == null || old.get() == null) {
+                tab[idx] = e;
+                return true;
+            }
+            idx = (idx + 1) & mask;
+        }
+        return false;
+    }
+
+    /**
+     * Copies the live entries to a new table; grows the table when requested
+     * or when the number of live threads requires it
+     */
+    private static Entry[] rehash(Entry[] tab, boolean grow) {
+        int live = 0;
+        for(Entry e : tab) {
+            if (e != null && e.get() != null) {
+                live++;
+            }
+        }
+        int newCapacity = tab.length;
+        if (grow || live * 2 >= newCapacity) {
+            newCapacity <<= 1;
+        }
+        while (true) {
+            Entry[] newTab = new Entry[newCapacity];
+            boolean complete = true;
+            for(Entry e : tab) {
+                if (e != null && e.get() != null) {
+                    if (!insert(newTab, e)) {
+                        complete = false;
+                        break;
                     }
                 }
             }
+            if (complete) {
+                return newTab;
+            }
+            newCapacity <<= 1;
         }
     }
+
+    private static int hash(long thrdId) {
+        // fibonacci hashing; spreads the mostly sequential thread ids over the whole table
+        return (int)((thrdId * 0x9E3779B97F4A7C15L) >>> 32);
+    }
 }
@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package net.java.btrace.runtime;
+
+/**
+ * Per-thread storage of the {@linkplain net.java.btrace.annotations.TLS} fields of one BTrace script
+ * <p>
+ * The {@linkplain net.java.btrace.instr.Preprocessor} assigns each TLS field a constant slot
+ * in the array matching the field type - the primitive values live in typed arrays and
+ * are never boxed. The preprocessed script looks up the slots of the current thread
+ * once per handler invocation and then accesses the fields by plain array loads and stores.
+ * <p>
+ * The slots of a new thread are copied from the template filled in by the script
+ * class initializer. The primitive arrays are copied as a whole, the reference values
+ * are copied by the code generated into the script.
+ *
+ * @author Jaroslav Bachorik
+ */
+final public class ThreadLocalSlots {
+    final public Object[] refs;
+    final public int[] ints;
+    final public long[] longs;
+    final public float[] floats;
+    final public double[] doubles;
+
+    ThreadLocalSlots(int refCnt, int intCnt, int longCnt, int floatCnt, int doubleCnt) {
+        refs = new Object[refCnt];
+        ints = new int[intCnt];
+        longs = new long[longCnt];
+        floats = new float[floatCnt];
+        doubles = new double[doubleCnt];
+    }
+
+    private ThreadLocalSlots(ThreadLocalSlots template) {
+        refs = template.refs.clone();
+        ints = template.ints.clone();
+        longs = template.longs.clone();
+        floats = template.floats.clone();
+        doubles = template.doubles.clone();
+    }
+
+    /**
+     * @return A new instance with the values copied from this one; the references are shared
+     */
+    ThreadLocalSlots copy() {
+        return new ThreadLocalSlots(this);
+    }
+}
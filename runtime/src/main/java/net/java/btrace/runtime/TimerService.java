@@ -0,0 +1,236 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package net.java.btrace.runtime;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import net.java.btrace.api.core.BTraceLogger;
+import net.java.btrace.util.BTraceThreadFactory;
+
+/**
+ * Agent-wide scheduler for the {@linkplain net.java.btrace.annotations.OnTimer} handlers
+ * <p>
+ * All the BTrace runtimes share one tick thread and one small pool of handler
+ * threads instead of starting a {@linkplain java.util.Timer} each. Handlers with
+ * the same period are coalesced into one scheduled tick. The tick thread only
+ * hands the handlers over to the bounded handler pool so slow handlers can not
+ * delay the ticks of the other timers. A handler which is still running (or
+ * waiting for a free thread) when its next tick arrives is not started again -
+ * the tick is counted as an overrun instead; so is a tick finding the handler
+ * queue full. A failing handler neither kills the timer thread nor cancels the
+ * other handlers.
+ * <p>
+ * The size of the handler pool can be set via the <b>btrace.timer.threads</b> system property
+ * (<code>min(2, cpus)</code> by default) and the capacity of its queue via <b>btrace.timer.queue</b>
+ *
+ * @author Jaroslav Bachorik
+ */
+final class TimerService {
+    final static int THREADS = Math.max(1, Integer.getInteger("btrace.timer.threads", Math.min(2, Runtime.getRuntime().availableProcessors())));
+    final private static int QUEUE = Math.max(1, Integer.getInteger("btrace.timer.queue", 1024));
+
+    final private static TimerService INSTANCE = new TimerService();
+
+    /**
+     * A registered timer handler together with its execution statistics
+     */
+    final static class Handle implements Runnable {
+        final private String name;
+        final private Runnable action;
+        final private long period;
+        final private AtomicBoolean running = new AtomicBoolean();
+        final private AtomicLong runs = new AtomicLong();
+        final private AtomicLong overruns = new AtomicLong();
+        final private AtomicLong failures = new AtomicLong();
+        final private AtomicLong totalTime = new AtomicLong();
+        final private AtomicLong maxTime = new AtomicLong();
+        private volatile boolean cancelled;
+
+        private Handle(String name, Runnable action, long period) {
+            this.name = name;
+            this.action = action;
+            this.period = period;
+        }
+
+        public void run() {
+            if (cancelled) {
+                running.set(false);
+                return;
+            }
+            long start = System.nanoTime();
+            try {
+                action.run();
+            } catch (Throwable t) {
+                // report only the first failure; the handler keeps being scheduled
+                if (failures.getAndIncrement() == 0) {
+                    BTraceLogger.debugPrint(t);
+                }
+            } finally {
+                long duration = System.nanoTime() - start;
+                runs.incrementAndGet();
+                totalTime.addAndGet(duration);
+                long max = maxTime.get();
+                while (duration > max && !maxTime.compareAndSet(max, duration)) {
+                    max = maxTime.get();
+                }
+                running.set(false);
+            }
+        }
+
+        /**
+         * Cancels the handler; an already running invocation is allowed to finish
+         */
+        void cancel() {
+            cancelled = true;
+            INSTANCE.unregister(this);
+            if (BTraceLogger.isDebug()) {
+                BTraceLogger.debugPrint(toString());
+            }
+        }
+
+        long getRuns() {
+            return runs.get();
+        }
+
+        long getOverruns() {
+            return overruns.get();
+        }
+
+        long getFailures() {
+            return failures.get();
+        }
+
+        long getTotalTime() {
+            return totalTime.get();
+        }
+
+        long getMaxTime() {
+            return maxTime.get();
+        }
+
+        @Override
+        public String toString() {
+            long cnt = runs.get();
+            return "timer " + name + " (" + period + "ms): runs=" + cnt +
+                   ", overruns=" + overruns.get() +
+                   ", failures=" + failures.get() +
+                   ", avg=" + (cnt > 0 ? totalTime.get() / cnt : 0) + "ns" +
+                   ", max=" + maxTime.get() + "ns";
+        }
+    }
+
+    /**
+     * All handlers sharing the same period
+     */
+    final private class Tick implements Runnable {
+        final private long period;
+        final private CopyOnWriteArrayList<Handle> handles = new CopyOnWriteArrayList<Handle>();
+        private ScheduledFuture<?> future;
+
+        Tick(long period) {
+            this.period = period;
+        }
+
+        public void run() {
+            for (Handle h : handles) {
+                if (h.running.compareAndSet(false, true)) {
+                    try {
+                        handlers.execute(h);
+                    } catch (RejectedExecutionException e) {
+                        // the handler queue is full
+                        h.overruns.incrementAndGet();
+                        h.running.set(false);
+                    }
+                } else {
+                    h.overruns.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    // dispatches the ticks only; never runs the handlers
+    final private ScheduledThreadPoolExecutor scheduler;
+    final private ThreadPoolExecutor handlers;
+    // ticks per period; guarded by "this"
+    final private Map<Long, Tick> ticks = new HashMap<Long, Tick>();
+
+    private TimerService() {
+        scheduler = new ScheduledThreadPoolExecutor(1, new BTraceThreadFactory("BTrace Timer Tick"));
+        scheduler.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        handlers = new ThreadPoolExecutor(THREADS, THREADS, 30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(QUEUE), new BTraceThreadFactory("BTrace Timer"));
+        handlers.allowCoreThreadTimeOut(true);
+    }
+
+    static TimerService getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Schedules the given action to be run periodically
+     * @param name The handler name used in the diagnostic output
+     * @param action The action to run
+     * @param period The period in milliseconds
+     * @return The handle to use for cancelling the action
+     */
+    synchronized Handle schedule(String name, Runnable action, long period) {
+        Handle h = new Handle(name, action, period);
+        Tick t = ticks.get(period);
+        if (t == null) {
+            t = new Tick(period);
+            ticks.put(period, t);
+            t.handles.add(h);
+            t.future = scheduler.scheduleAtFixedRate(t, period, period, TimeUnit.MILLISECONDS);
+        } else {
+            t.handles.add(h);
+        }
+        return h;
+    }
+
+    synchronized private void unregister(Handle h) {
+        Tick t = ticks.get(h.period);
+        if (t != null && t.handles.remove(h) && t.handles.isEmpty()) {
+            t.future.cancel(false);
+            ticks.remove(h.period);
+        }
+    }
+
+    /**
+     * @return The number of distinct periods currently scheduled
+     */
+    synchronized int getTickCount() {
+        return ticks.size();
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package net.java.btrace.runtime;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Jaroslav Bachorik
+ */
+public class ClocksTest {
+    @Test
+    public void testCoarseTickerStopsWhenReleased() throws Exception {
+        System.out.println("coarseTickerStopsWhenReleased");
+        assertFalse(Clocks.Coarse.isTicking());
+
+        Clocks.Coarse.acquire();
+        Clocks.Coarse.acquire();
+        try {
+            assertTrue(Clocks.Coarse.isTicking());
+            long t = Clocks.Coarse.TIME;
+            Thread.sleep(20);
+            assertTrue(Clocks.Coarse.TIME > t);
+
+            Clocks.Coarse.release();
+            // still held by the other user
+            assertTrue(Clocks.Coarse.isTicking());
+        } finally {
+            Clocks.Coarse.release();
+        }
+        assertFalse(Clocks.Coarse.isTicking());
+
+        Thread.sleep(20);
+        long t = Clocks.Coarse.TIME;
+        Thread.sleep(20);
+        assertEquals(t, Clocks.Coarse.TIME);
+
+        // an extra release must not break the accounting
+        Clocks.Coarse.release();
+        Clocks.Coarse.acquire();
+        try {
+            assertTrue(Clocks.Coarse.isTicking());
+        } finally {
+            Clocks.Coarse.release();
+        }
+        assertFalse(Clocks.Coarse.isTicking());
+    }
+}
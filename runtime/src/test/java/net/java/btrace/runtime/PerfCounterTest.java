@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package net.java.btrace.runtime;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Jaroslav Bachorik
+ */
+public class PerfCounterTest {
+    @Test
+    public void testNumericValues() {
+        System.out.println("numericValues");
+        PerfCounter instance = PerfCounter.forLong(ByteBuffer.allocateDirect(8));
+        instance.putInt(-5);
+        assertEquals(-5, instance.getInt());
+        instance.putLong(Long.MAX_VALUE);
+        assertEquals(Long.MAX_VALUE, instance.getLong());
+        instance.putFloat(1.5f);
+        assertEquals(1.5f, instance.getFloat(), 0f);
+        instance.putDouble(-2.25d);
+        assertEquals(-2.25d, instance.getDouble(), 0d);
+        assertNull(instance.getString());
+    }
+
+    @Test
+    public void testIntWrapAround() {
+        System.out.println("intWrapAround");
+        PerfCounter instance = PerfCounter.forLong(ByteBuffer.allocateDirect(8));
+        instance.putInt(Integer.MAX_VALUE);
+        instance.add(1);
+        assertEquals(Integer.MIN_VALUE, instance.getInt());
+        instance.add(-1);
+        assertEquals(Integer.MAX_VALUE, instance.getInt());
+    }
+
+    @Test
+    public void testConcurrentAdd() throws Exception {
+        System.out.println("concurrentAdd");
+        final PerfCounter instance = PerfCounter.forLong(ByteBuffer.allocateDirect(8));
+        final int threads = 4;
+        final int iterations = 100000;
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < iterations; j++) {
+                        instance.add(1);
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+        assertEquals((long)threads * iterations, instance.getLong());
+    }
+
+    @Test
+    public void testString() {
+        System.out.println("string");
+        PerfCounter instance = PerfCounter.forString(ByteBuffer.allocateDirect(8));
+        instance.putString("abc");
+        assertEquals("abc", instance.getString());
+        instance.putString("x");
+        assertEquals("x", instance.getString());
+        // truncated to the counter capacity including the terminating zero
+        instance.putString("0123456789");
+        assertEquals("0123456", instance.getString());
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package net.java.btrace.runtime;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Jaroslav Bachorik
+ */
+public class ProbeSamplerTest {
+    @Test
+    public void testConstSampling() {
+        System.out.println("constSampling");
+        int id = ProbeSampler.register(false, 10);
+        int hits = 0;
+        for (int i = 0; i < 1000; i++) {
+            if (ProbeSampler.sample(id)) {
+                hits++;
+            }
+        }
+        assertEquals(100, hits);
+        assertEquals(100, ProbeSampler.currentHits());
+        // the first sample accounts for a single invocation only
+        assertEquals(991, ProbeSampler.currentEvents());
+        assertEquals(10, ProbeSampler.currentInterval());
+    }
+
+    @Test
+    public void testIndependentProbes() {
+        System.out.println("independentProbes");
+        int id1 = ProbeSampler.register(false, 2);
+        int id2 = ProbeSampler.register(false, 5);
+        int hits1 = 0, hits2 = 0;
+        for (int i = 0; i < 100; i++) {
+            if (ProbeSampler.sample(id1)) hits1++;
+            if (ProbeSampler.sample(id2)) hits2++;
+        }
+        assertEquals(50, hits1);
+        assertEquals(20, hits2);
+    }
+
+    @Test
+    public void testAdaptiveSampling() throws Exception {
+        System.out.println("adaptiveSampling");
+        int id = ProbeSampler.register(true, 100);
+        long deadline = System.currentTimeMillis() + 500;
+        while (System.currentTimeMillis() < deadline) {
+            for (int i = 0; i < 1000; i++) {
+                ProbeSampler.sample(id);
+            }
+        }
+        // at far more than 100 invocations per second the interval must grow
+        assertTrue(ProbeSampler.currentInterval() > 1);
+        assertTrue(ProbeSampler.currentEvents() > ProbeSampler.currentHits());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidMean() {
+        System.out.println("invalidMean");
+        ProbeSampler.register(true, 0);
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+package net.java.btrace.runtime;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import net.java.btrace.api.wireio.AbstractCommand;
+import net.java.btrace.api.wireio.Channel;
+import net.java.btrace.api.wireio.Command;
+import net.java.btrace.api.wireio.CommandFactory;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Jaroslav Bachorik
+ */
+public class SpeculativeBuffersTest {
+    private static class TestCommand extends AbstractCommand {
+        public TestCommand(int seq) {
+            super(0, seq, 0);
+        }
+
+        @Override
+        public void write(ObjectOutput out) throws IOException {
+        }
+
+        @Override
+        public void read(ObjectInput in) throws ClassNotFoundException, IOException {
+        }
+    }
+
+    private static class PrintCommand extends AbstractCommand {
+        private String msg;
+
+        public PrintCommand(int type, int rx, int tx) {
+            super(type, rx, tx);
+        }
+
+        @Override
+        public void write(ObjectOutput out) throws IOException {
+        }
+
+        @Override
+        public void read(ObjectInput in) throws ClassNotFoundException, IOException {
+        }
+    }
+
+    private static class TestChannel extends Channel {
+        // there is no generic array creation for Class<? extends AbstractCommand>[]
+        @SuppressWarnings("unchecked")
+        private final CommandFactory factory = CommandFactory.getInstance((Class<? extends AbstractCommand>[])new Class<?>[]{PrintCommand.class}, SpeculativeBuffersTest.class.getClassLoader(), Command.Target.SERVER);
+        private final List<String> printed = new ArrayList<String>();
+
+        TestChannel() {
+            super(false);
+        }
+
+        @Override
+        protected CommandFactory getCommandFactory() {
+            return factory;
+        }
+
+        @Override
+        public AbstractCommand readCommand() throws IOException, ClassNotFoundException {
+            return null;
+        }
+
+        @Override
+        public void writeCommand(AbstractCommand cmd) throws IOException {
+        }
+
+        @Override
+        protected void commandQueued() {
+            AbstractCommand cmd;
+            while ((cmd = pollCommand()) != null) {
+                printed.add(((PrintCommand)cmd).msg);
+            }
+        }
+
+        @Override
+        protected void doClose() {
+        }
+    }
+
+    private final List<List<AbstractCommand>> batches = new ArrayList<List<AbstractCommand>>();
+    private SpeculativeBuffers instance;
+
+    @Before
+    public void setUp() {
+        batches.clear();
+        instance = new SpeculativeBuffers(new SpeculativeBuffers.Sink() {
+            @Override
+            public void commit(int id, AbstractCommand[] cmds, int count, boolean overflown) {
+                batches.add(new ArrayList<AbstractCommand>(Arrays.asList(Arrays.copyOf(cmds, count))));
+            }
+        });
+    }
+
+    @Test
+    public void testCommit() {
+        System.out.println("commit");
+        assertFalse(instance.send(new TestCommand(-1)));
+        int id = instance.speculation();
+        instance.speculate(id);
+        assertTrue(instance.isSpeculating());
+        List<AbstractCommand> sent = new ArrayList<AbstractCommand>();
+        for (int i = 0; i < 100; i++) {
+            AbstractCommand cmd = new TestCommand(i);
+            assertTrue(instance.send(cmd));
+            sent.add(cmd);
+        }
+        instance.commit(id);
+        assertFalse(instance.isSpeculating());
+        assertFalse(instance.send(new TestCommand(-1)));
+        assertEquals(1, batches.size());
+        assertEquals(sent, batches.get(0));
+    }
+
+    @Test
+    public void testDiscard() {
+        System.out.println("discard");
+        int id = instance.speculation();
+        instance.speculate(id);
+        assertTrue(instance.send(new TestCommand(0)));
+        instance.discard(id);
+        assertTrue(batches.isEmpty());
+
+        // the recycled buffer must not carry over the discarded commands
+        id = instance.speculation();
+        instance.speculate(id);
+        AbstractCommand cmd = new TestCommand(1);
+        instance.send(cmd);
+        instance.commit(id);
+        assertEquals(Arrays.asList(cmd), batches.get(0));
+    }
+
+    @Test
+    public void testIdsReclaimed() {
+        System.out.println("idsReclaimed");
+        for (int i = 0; i < SpeculativeBuffers.MAX_SPECULATIVE_BUFFERS * 3; i++) {
+            int id = instance.speculation();
+            assertTrue(id >= 0);
+            instance.speculate(id);
+            instance.send(new TestCommand(i));
+            if (i % 2 == 0) {
+                instance.commit(id);
+            } else {
+                instance.discard(id);
+            }
+        }
+        assertEquals(SpeculativeBuffers.MAX_SPECULATIVE_BUFFERS * 3 / 2 + 1, batches.size());
+    }
+
+    @Test
+    public void testStaleId() {
+        System.out.println("staleId");
+        int id = instance.speculation();
+        instance.commit(id);
+        int id2 = instance.speculation();
+        assertTrue(id != id2);
+        try {
+            instance.speculate(id);
+            fail("stale speculation id accepted");
+        } catch (RuntimeException e) {
+            // expected
+        }
+        instance.discard(id2);
+    }
+
+    @Test
+    public void testDeferredPrint() {
+        System.out.println("deferredPrint");
+        TestChannel ch = new TestChannel();
+        BTraceRuntime rt = new BTraceRuntime(null, "SpeculativeBuffersTest$deferredPrint", new String[0], ch, null, null);
+        assertTrue(BTraceRuntime.enter(rt));
+        try {
+            // printed before the speculation started; must not be part of it
+            assertTrue(BTraceRuntime.defer(print("before")));
+            int id = rt.speculation();
+            rt.speculate(id);
+            assertEquals(Arrays.asList("before"), ch.printed);
+
+            // printed within the speculation; must be discarded with it
+            assertTrue(BTraceRuntime.defer(print("discarded")));
+            rt.discard(id);
+            assertEquals(Arrays.asList("before"), ch.printed);
+
+            // printed within the speculation; must be committed with it
+            id = rt.speculation();
+            rt.speculate(id);
+            assertTrue(BTraceRuntime.defer(print("committed")));
+            rt.commit(id);
+            assertEquals(Arrays.asList("before", "committed"), ch.printed);
+        } finally {
+            BTraceRuntime.leave();
+        }
+    }
+
+    private static Runnable print(final String msg) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                BTraceRuntime.send(PrintCommand.class, new AbstractCommand.Initializer<PrintCommand>() {
+                    @Override
+                    public void init(PrintCommand cmd) {
+                        cmd.msg = msg;
+                    }
+                });
+            }
+        };
+    }
+
+    @Test
+    public void testLimit() {
+        System.out.println("limit");
+        for (int i = 0; i < SpeculativeBuffers.MAX_SPECULATIVE_BUFFERS; i++) {
+            assertTrue(instance.speculation() >= 0);
+        }
+        assertEquals(-1, instance.speculation());
+        instance.clear();
+        assertEquals(-1, instance.speculation());
+    }
+}
@@ -116,4 +116,136 @@ public class ThreadEnteredMapTest {
         latch.await();
         assertTrue(rslt.get());
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testReenterCurThrd() {
+        System.out.println("reenterCurThrd");
+        Object myval = new Object();
+        assertTrue(map.enter(myval));
+        assertFalse(map.enter(new Object()));
+        assertEquals(myval, map.get());
+        map.exit();
+        assertTrue(map.enter(myval));
+    }
+
+    @Test
+    public void testDeferredRunOnExit() {
+        System.out.println("deferredRunOnExit");
+        final int[] runs = new int[1];
+        Runnable action = new Runnable() {
+            public void run() {
+                runs[0]++;
+            }
+        };
+        assertFalse(map.defer(action));
+        map.enter(new Object());
+        assertTrue(map.defer(action));
+        assertTrue(map.defer(action));
+        assertEquals(0, runs[0]);
+        map.exit();
+        assertEquals(2, runs[0]);
+        map.exit();
+        assertEquals(2, runs[0]);
+    }
+
+    @Test
+    public void testDeferredRunExplicitly() {
+        System.out.println("deferredRunExplicitly");
+        final int[] runs = new int[1];
+        final Runnable nested = new Runnable() {
+            public void run() {
+                runs[0]++;
+            }
+        };
+        map.enter(new Object());
+        map.defer(new Runnable() {
+            public void run() {
+                runs[0]++;
+                map.defer(nested);
+                map.runDeferred();
+            }
+        });
+        map.runDeferred();
+        assertEquals(2, runs[0]);
+        map.exit();
+        assertEquals(2, runs[0]);
+    }
+
+    @Test
+    public void testAttachment() throws InterruptedException {
+        System.out.println("attachment");
+        final Object key1 = new Object();
+        final Object key2 = new Object();
+        assertFalse(map.attach(key1, "a"));
+        assertNull(map.getAttachment(key1));
+
+        map.enter(new Object());
+        assertTrue(map.attach(key1, "a"));
+        for(int i=0;i<8;i++) {
+            assertTrue(map.attach(new Object(), i));
+        }
+        assertTrue(map.attach(key2, "b"));
+        map.exit();
+        // the attachment outlives the probe handler
+        assertEquals("a", map.getAttachment(key1));
+        assertEquals("b", map.getAttachment(key2));
+        assertTrue(map.attach(key1, "c"));
+        assertEquals("c", map.getAttachment(key1));
+
+        final AtomicBoolean rslt = new AtomicBoolean();
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                map.enter(new Object());
+                rslt.set(map.getAttachment(key1) == null);
+                map.exit();
+            }
+        }, "Thrd#attachment");
+        t.start();
+        t.join();
+        assertTrue(rslt.get());
+
+        map.clearAttachments();
+        assertNull(map.getAttachment(key1));
+        assertNull(map.getAttachment(key2));
+        // the entry itself stays; a new attachment can be made right away
+        assertTrue(map.attach(key1, "d"));
+        assertEquals("d", map.getAttachment(key1));
+    }
+
+    @Test
+    public void testDeadThrdsReclaimed() throws InterruptedException {
+        System.out.println("deadThrdsReclaimed");
+
+        final AtomicBoolean rslt = new AtomicBoolean(true);
+        int capacity = -1;
+        for(int round=0;round<8;round++) {
+            Thread[] thrds = new Thread[512];
+            for(int i=0;i<thrds.length;i++) {
+                thrds[i] = new Thread(new Runnable() {
+                    Object myval = new Object();
+                    public void run() {
+                        boolean outcome = map.enter(myval);
+                        outcome = outcome && myval.equals(map.get());
+                        map.exit();
+                        outcome = outcome && map.get() == null;
+                        rslt.compareAndSet(true, outcome);
+                    }
+                }, "Thrd#" + round + "#" + i);
+            }
+            for(Thread t : thrds) {
+                t.start();
+            }
+            for(Thread t : thrds) {
+                t.join();
+            }
+            thrds = null;
+            System.gc();
+            if (capacity == -1) {
+                capacity = map.capacity();
+            }
+        }
+        assertTrue(rslt.get());
+        // the slots of the collected threads must be reused
+        assertTrue(map.capacity() <= capacity * 2);
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2007, 2011, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ */
+
+package net.java.btrace.runtime;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Jaroslav Bachorik
+ */
+public class TimerServiceTest {
+    private final TimerService ts = TimerService.getInstance();
+
+    @Test
+    public void testCoalescePeriods() {
+        System.out.println("coalescePeriods");
+        int ticks = ts.getTickCount();
+        Runnable noop = new Runnable() {
+            public void run() {
+            }
+        };
+        TimerService.Handle h1 = ts.schedule("h1", noop, 7331);
+        TimerService.Handle h2 = ts.schedule("h2", noop, 7331);
+        TimerService.Handle h3 = ts.schedule("h3", noop, 7332);
+        assertEquals(ticks + 2, ts.getTickCount());
+        h1.cancel();
+        assertEquals(ticks + 2, ts.getTickCount());
+        h2.cancel();
+        h3.cancel();
+        assertEquals(ticks, ts.getTickCount());
+    }
+
+    @Test
+    public void testSkipOverlappingRuns() throws Exception {
+        System.out.println("skipOverlappingRuns");
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger concurrent = new AtomicInteger();
+        final AtomicInteger maxConcurrent = new AtomicInteger();
+        TimerService.Handle h = ts.schedule("slow", new Runnable() {
+            public void run() {
+                int c = concurrent.incrementAndGet();
+                if (c > maxConcurrent.get()) {
+                    maxConcurrent.set(c);
+                }
+                entered.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                concurrent.decrementAndGet();
+            }
+        }, 5);
+        try {
+            assertTrue(entered.await(5, TimeUnit.SECONDS));
+            Thread.sleep(100);
+            release.countDown();
+            assertEquals(1, maxConcurrent.get());
+            assertTrue(h.getOverruns() > 0);
+        } finally {
+            release.countDown();
+            h.cancel();
+        }
+    }
+
+    @Test
+    public void testSlowHandlersDoNotDelayTicks() throws Exception {
+        System.out.println("slowHandlersDoNotDelayTicks");
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch busy = new CountDownLatch(TimerService.THREADS);
+        Runnable slow = new Runnable() {
+            public void run() {
+                busy.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        // occupy all the handler threads
+        TimerService.Handle[] slows = new TimerService.Handle[TimerService.THREADS];
+        for (int i = 0; i < slows.length; i++) {
+            slows[i] = ts.schedule("slow" + i, slow, 5 + i);
+        }
+        try {
+            assertTrue(busy.await(5, TimeUnit.SECONDS));
+            long[] overruns = new long[slows.length];
+            for (int i = 0; i < slows.length; i++) {
+                overruns[i] = slows[i].getOverruns();
+            }
+            Thread.sleep(200);
+            // the ticks keep being dispatched while the handlers block
+            for (int i = 0; i < slows.length; i++) {
+                assertTrue(slows[i].getOverruns() > overruns[i]);
+            }
+        } finally {
+            release.countDown();
+            for (TimerService.Handle s : slows) {
+                s.cancel();
+            }
+        }
+        final CountDownLatch ran = new CountDownLatch(1);
+        TimerService.Handle after = ts.schedule("after", new Runnable() {
+            public void run() {
+                ran.countDown();
+            }
+        }, 5);
+        try {
+            assertTrue(ran.await(5, TimeUnit.SECONDS));
+        } finally {
+            after.cancel();
+        }
+    }
+
+    @Test
+    public void testFailingHandler() throws Exception {
+        System.out.println("failingHandler");
+        final CountDownLatch runs = new CountDownLatch(4);
+        TimerService.Handle h = ts.schedule("failing", new Runnable() {
+            public void run() {
+                runs.countDown();
+                throw new IllegalStateException();
+            }
+        }, 5);
+        try {
+            assertTrue(runs.await(5, TimeUnit.SECONDS));
+        } finally {
+            h.cancel();
+        }
+        // the 4th run can only start once the 3rd one has been accounted for
+        assertTrue(h.getRuns() >= 3);
+        assertTrue(h.getFailures() >= 3);
+    }
+}